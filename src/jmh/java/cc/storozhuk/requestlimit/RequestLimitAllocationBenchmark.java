@@ -0,0 +1,114 @@
+package cc.storozhuk.requestlimit;
+
+import cc.storozhuk.requestlimit.internal.AtomicRequestLimitImpl;
+import cc.storozhuk.requestlimit.internal.SemaphoreBasedRequestLimitImpl;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Supplier;
+
+/**
+ * Measures allocations of permitted and rejected calls through {@link RequestLimit} decorators.
+ * Should be run with the GC profiler to get allocation rate per operation:
+ * {@code gradle jmh -PjmhArgs='RequestLimitAllocationBenchmark -prof gc'}.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(1)
+public class RequestLimitAllocationBenchmark {
+
+    private static final String RESULT = "Hello Benchmark";
+    private static final Duration LONG_REFRESH_PERIOD = Duration.ofDays(1);
+
+    @Param({"semaphore", "atomic"})
+    public String implementation;
+
+    private RequestLimit availableLimit;
+    private RequestLimit exhaustedLimit;
+    private Supplier<String> permittedSupplier;
+    private Supplier<String> rejectedSupplier;
+    private Supplier<String> stacklessRejectedSupplier;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig availableConfig = RequestLimitConfig.builder()
+            .limitForPeriod(Integer.MAX_VALUE)
+            .limitRefreshPeriod(Duration.ofSeconds(1))
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        availableLimit = createLimit("available", availableConfig);
+        permittedSupplier = RequestLimit.decorateSupplier(() -> RESULT, availableLimit);
+
+        RequestLimitConfig exhaustedConfig = RequestLimitConfig.builder()
+            .limitForPeriod(1)
+            .limitRefreshPeriod(LONG_REFRESH_PERIOD)
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        exhaustedLimit = createLimit("exhausted", exhaustedConfig);
+        exhaustedLimit.getPermission(0L);
+        rejectedSupplier = RequestLimit.decorateSupplier(() -> RESULT, exhaustedLimit);
+
+        RequestLimitConfig stacklessConfig = RequestLimitConfig.builder()
+            .limitForPeriod(1)
+            .limitRefreshPeriod(LONG_REFRESH_PERIOD)
+            .timeoutDuration(Duration.ZERO)
+            .writableStackTraceEnabled(false)
+            .build();
+        RequestLimit stacklessLimit = createLimit("stackless", stacklessConfig);
+        stacklessLimit.getPermission(0L);
+        stacklessRejectedSupplier = RequestLimit.decorateSupplier(() -> RESULT, stacklessLimit);
+    }
+
+    private RequestLimit createLimit(final String name, final RequestLimitConfig config) {
+        if ("atomic".equals(implementation)) {
+            return new AtomicRequestLimitImpl(name, config);
+        }
+        return new SemaphoreBasedRequestLimitImpl(name, config);
+    }
+
+    @Benchmark
+    public boolean permission() {
+        return availableLimit.getPermission(0L);
+    }
+
+    @Benchmark
+    public String permittedSupplier() {
+        return permittedSupplier.get();
+    }
+
+    @Benchmark
+    public Object rejectedSupplier() {
+        try {
+            return rejectedSupplier.get();
+        } catch (RequestNotPermitted e) {
+            return e;
+        }
+    }
+
+    @Benchmark
+    public Object stacklessRejectedSupplier() {
+        try {
+            return stacklessRejectedSupplier.get();
+        } catch (RequestNotPermitted e) {
+            return e;
+        }
+    }
+}
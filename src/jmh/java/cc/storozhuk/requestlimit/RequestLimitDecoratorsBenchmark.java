@@ -0,0 +1,102 @@
+package cc.storozhuk.requestlimit;
+
+import cc.storozhuk.requestlimit.internal.AtomicRequestLimitImpl;
+import javaslang.control.Try;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.function.Consumer;
+import java.util.function.Function;
+import java.util.function.Supplier;
+
+/**
+ * Measures overhead of {@link RequestLimit} decorators compared to undecorated calls.
+ * Request limit always has available permissions, so only the decoration cost is measured.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Threads(1)
+public class RequestLimitDecoratorsBenchmark {
+
+    private Supplier<String> stringSupplier;
+    private Supplier<String> decoratedSupplier;
+    private Try.CheckedSupplier<String> decoratedCheckedSupplier;
+    private Runnable decoratedRunnable;
+    private Consumer<String> decoratedConsumer;
+    private Function<String, String> decoratedFunction;
+    private Try.CheckedFunction<String, String> decoratedCheckedFunction;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .limitForPeriod(Integer.MAX_VALUE)
+            .limitRefreshPeriod(Duration.ofSeconds(1))
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        RequestLimit requestLimit = new AtomicRequestLimitImpl("decorators", config);
+
+        stringSupplier = () -> {
+            Blackhole.consumeCPU(1);
+            return "Hello Benchmark";
+        };
+        decoratedSupplier = RequestLimit.decorateSupplier(stringSupplier, requestLimit);
+        decoratedCheckedSupplier = RequestLimit.decorateCheckedSupplier(stringSupplier::get, requestLimit);
+        decoratedRunnable = RequestLimit.decorateRunnable(() -> Blackhole.consumeCPU(1), requestLimit);
+        decoratedConsumer = RequestLimit.decorateConsumer(value -> Blackhole.consumeCPU(1), requestLimit);
+        decoratedFunction = RequestLimit.decorateFunction(String::trim, requestLimit);
+        decoratedCheckedFunction = RequestLimit.decorateCheckedFunction(String::trim, requestLimit);
+    }
+
+    @Benchmark
+    public String baseline() {
+        return stringSupplier.get();
+    }
+
+    @Benchmark
+    public String supplier() {
+        return decoratedSupplier.get();
+    }
+
+    @Benchmark
+    public String checkedSupplier() throws Throwable {
+        return decoratedCheckedSupplier.get();
+    }
+
+    @Benchmark
+    public void runnable() {
+        decoratedRunnable.run();
+    }
+
+    @Benchmark
+    public void consumer() {
+        decoratedConsumer.accept("Hello Benchmark");
+    }
+
+    @Benchmark
+    public String function() {
+        return decoratedFunction.apply(" Hello Benchmark ");
+    }
+
+    @Benchmark
+    public String checkedFunction() throws Throwable {
+        return decoratedCheckedFunction.apply(" Hello Benchmark ");
+    }
+}
@@ -0,0 +1,89 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.RequestLimitRegistry;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures lookups of already created request limits in {@link InMemoryRequestLimitRegistry}.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class InMemoryRequestLimitRegistryBenchmark {
+
+    @Param({"1", "1000", "100000"})
+    public int numberOfLimits;
+
+    private RequestLimitRegistry registry;
+    private String[] names;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .limitForPeriod(1000)
+            .limitRefreshPeriod(Duration.ofSeconds(1))
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        registry = RequestLimitRegistry.of(config);
+        names = new String[numberOfLimits];
+        for (int i = 0; i < numberOfLimits; i++) {
+            names[i] = "limit-" + i;
+            registry.requestLimit(names[i]);
+        }
+    }
+
+    @State(Scope.Thread)
+    public static class ThreadCursor {
+        private int position;
+
+        private String next(final String[] names) {
+            position = (position + 1) % names.length;
+            return names[position];
+        }
+    }
+
+    @Benchmark
+    @Threads(1)
+    public RequestLimit lookupOneThread(final ThreadCursor cursor) {
+        return registry.requestLimit(cursor.next(names));
+    }
+
+    @Benchmark
+    @Threads(4)
+    public RequestLimit lookupFourThreads(final ThreadCursor cursor) {
+        return registry.requestLimit(cursor.next(names));
+    }
+
+    @Benchmark
+    @Threads(16)
+    public RequestLimit lookupSixteenThreads(final ThreadCursor cursor) {
+        return registry.requestLimit(cursor.next(names));
+    }
+
+    @Benchmark
+    @Threads(64)
+    public RequestLimit lookupSixtyFourThreads(final ThreadCursor cursor) {
+        return registry.requestLimit(cursor.next(names));
+    }
+}
@@ -0,0 +1,75 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures the cost of a single limit refresh and of permission requests under short refresh periods.
+ * Refresh period shorter than the refresh cost itself can't be served,
+ * so these numbers are the lower bound for {@code RequestLimitConfig.ACCEPTABLE_REFRESH_PERIOD}.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.AverageTime, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+public class RefreshLimitBenchmark {
+
+    @Param({"500", "1000", "10000", "1000000"})
+    public long refreshPeriodInNanos;
+
+    private SemaphoreBasedRequestLimitImpl semaphoreBasedLimit;
+    private AtomicRequestLimitImpl atomicLimit;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .limitForPeriod(1)
+            .limitRefreshPeriod(Duration.ofNanos(refreshPeriodInNanos))
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        semaphoreBasedLimit = new SemaphoreBasedRequestLimitImpl("semaphore", config, new HashedWheelRefreshTimer());
+        atomicLimit = new AtomicRequestLimitImpl("atomic", config);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public void semaphoreBasedRefresh() {
+        semaphoreBasedLimit.refreshLimit();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean semaphoreBasedPermission() {
+        return semaphoreBasedLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean atomicPermission() {
+        return atomicLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean atomicPermissionFourThreads() {
+        return atomicLimit.getPermission(Duration.ZERO);
+    }
+}
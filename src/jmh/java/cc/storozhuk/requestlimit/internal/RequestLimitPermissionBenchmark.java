@@ -0,0 +1,123 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RequestLimit#getPermission(Duration)} when permissions are available
+ * and when the limit is exhausted for the current period.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode({Mode.Throughput, Mode.SampleTime})
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class RequestLimitPermissionBenchmark {
+
+    private static final Duration LONG_REFRESH_PERIOD = Duration.ofDays(1);
+    private static final int LEASE_SIZE = 64;
+
+    @Param({"semaphore", "atomic", "striped", "leasing"})
+    public String implementation;
+
+    private RequestLimit availableLimit;
+    private RequestLimit exhaustedLimit;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig availableConfig = RequestLimitConfig.builder()
+            .limitForPeriod(Integer.MAX_VALUE)
+            .limitRefreshPeriod(Duration.ofSeconds(1))
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        availableLimit = createLimit("available", availableConfig);
+
+        RequestLimitConfig exhaustedConfig = RequestLimitConfig.builder()
+            .limitForPeriod(1)
+            .limitRefreshPeriod(LONG_REFRESH_PERIOD)
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        exhaustedLimit = createLimit("exhausted", exhaustedConfig);
+        exhaustedLimit.getPermission(Duration.ZERO);
+    }
+
+    private RequestLimit createLimit(final String name, final RequestLimitConfig config) {
+        if ("atomic".equals(implementation)) {
+            return new AtomicRequestLimitImpl(name, config);
+        }
+        if ("striped".equals(implementation)) {
+            return new StripedRequestLimitImpl(name, config);
+        }
+        if ("leasing".equals(implementation)) {
+            RequestLimitConfig leasingConfig = RequestLimitConfig.from(config).leaseSize(LEASE_SIZE).build();
+            return new LeasingRequestLimit(new AtomicRequestLimitImpl(name, leasingConfig));
+        }
+        return new SemaphoreBasedRequestLimitImpl(name, config);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean permissionAvailableOneThread() {
+        return availableLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean permissionAvailableFourThreads() {
+        return availableLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean permissionAvailableSixteenThreads() {
+        return availableLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean permissionAvailableSixtyFourThreads() {
+        return availableLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean permissionExhaustedOneThread() {
+        return exhaustedLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean permissionExhaustedFourThreads() {
+        return exhaustedLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(16)
+    public boolean permissionExhaustedSixteenThreads() {
+        return exhaustedLimit.getPermission(Duration.ZERO);
+    }
+
+    @Benchmark
+    @Threads(64)
+    public boolean permissionExhaustedSixtyFourThreads() {
+        return exhaustedLimit.getPermission(Duration.ZERO);
+    }
+}
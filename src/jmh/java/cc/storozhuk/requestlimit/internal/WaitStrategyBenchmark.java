@@ -0,0 +1,81 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.WaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Threads;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Measures {@link RequestLimit#getPermission(Duration)} of callers that have to wait
+ * for the next sub-millisecond refresh period with each {@link WaitStrategy}.
+ * <p>Sample time shows wake up latency of the strategy, compare it with CPU usage of the benchmark process,
+ * because spinning strategies trade a busy core for every waiting thread.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 5, time = 2)
+@Measurement(iterations = 5, time = 2)
+@BenchmarkMode(Mode.SampleTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+public class WaitStrategyBenchmark {
+
+    private static final Duration REFRESH_PERIOD = Duration.ofNanos(200_000);
+    private static final Duration TIMEOUT = Duration.ofMillis(1);
+
+    @Param({"SEMAPHORE", "QUEUE", "SPIN", "SPIN_THEN_YIELD", "BACKOFF", "PARK"})
+    public WaitStrategy waitStrategy;
+
+    @Param({"semaphore", "atomic"})
+    public String implementation;
+
+    private RequestLimit limit;
+
+    @Setup
+    public void setUp() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .limitForPeriod(1)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .timeoutDuration(TIMEOUT)
+            .waitStrategy(waitStrategy)
+            .build();
+        if ("atomic".equals(implementation)) {
+            limit = new AtomicRequestLimitImpl("wait", config);
+        } else {
+            limit = new SemaphoreBasedRequestLimitImpl("wait", config);
+        }
+    }
+
+    @TearDown
+    public void tearDown() {
+        limit.close();
+    }
+
+    @Benchmark
+    @Threads(1)
+    public boolean waitForNextPeriodOneThread() {
+        return limit.getPermission(TIMEOUT);
+    }
+
+    @Benchmark
+    @Threads(4)
+    public boolean waitForNextPeriodFourThreads() {
+        return limit.getPermission(TIMEOUT);
+    }
+}
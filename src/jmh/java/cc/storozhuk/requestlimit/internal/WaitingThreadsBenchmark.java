@@ -0,0 +1,102 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.WaitStrategy;
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Level;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.TearDown;
+import org.openjdk.jmh.annotations.Warmup;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Measures time to serve a crowd of waiters on a single request limit refreshed by the shared timer.
+ * <p>Java 8 has no virtual threads, so 100k waiters are represented by asynchronous permission requests,
+ * that wait in the same queue as {@link WaitStrategy#QUEUE} threads, and blocked platform threads are measured
+ * in a smaller crowd for both wait strategies.
+ *
+ * @author bstorozhuk
+ */
+@State(Scope.Benchmark)
+@Fork(value = 2)
+@Warmup(iterations = 3)
+@Measurement(iterations = 5)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+public class WaitingThreadsBenchmark {
+
+    private static final int ASYNC_WAITERS = 100_000;
+    private static final int LIMIT_FOR_PERIOD = 1_000;
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(1);
+    private static final Duration TIMEOUT = Duration.ofMinutes(1);
+
+    @Param({"SEMAPHORE", "QUEUE"})
+    public WaitStrategy waitStrategy;
+
+    @Param({"1000"})
+    public int waitingThreads;
+
+    private HashedWheelRefreshTimer refreshTimer;
+    private SemaphoreBasedRequestLimitImpl limit;
+
+    @Setup(Level.Trial)
+    public void setUpTimer() {
+        refreshTimer = new HashedWheelRefreshTimer();
+    }
+
+    @Setup(Level.Invocation)
+    public void setUp() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .limitForPeriod(LIMIT_FOR_PERIOD)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .timeoutDuration(TIMEOUT)
+            .waitStrategy(waitStrategy)
+            .build();
+        limit = new SemaphoreBasedRequestLimitImpl("waiters", config, refreshTimer);
+        limit.getPermissions(LIMIT_FOR_PERIOD, 0L);
+    }
+
+    @TearDown(Level.Invocation)
+    public void tearDown() {
+        limit.close();
+    }
+
+    @Benchmark
+    public int blockedThreads() throws InterruptedException {
+        AtomicInteger permitted = new AtomicInteger();
+        Thread[] threads = new Thread[waitingThreads];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                if (limit.getPermission(TIMEOUT)) {
+                    permitted.incrementAndGet();
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        return permitted.get();
+    }
+
+    @Benchmark
+    public Object asyncWaiters() {
+        CompletableFuture<?>[] permissions = new CompletableFuture<?>[ASYNC_WAITERS];
+        for (int i = 0; i < permissions.length; i++) {
+            permissions[i] = limit.acquirePermissionAsync().toCompletableFuture();
+        }
+        return CompletableFuture.allOf(permissions).join();
+    }
+}
@@ -0,0 +1,135 @@
+package cc.storozhuk.requestlimit;
+
+import static java.lang.Long.max;
+import static java.lang.System.nanoTime;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.function.Supplier;
+
+/**
+ * Permission handling shared by the {@code decorate*} methods of {@link RequestLimit}.
+ *
+ * @author bstorozhuk
+ */
+final class DecoratedCalls {
+
+    private DecoratedCalls() {
+    }
+
+    /**
+     * Decorated call with a single argument, that can throw the given type of exception.
+     * Decorators adapt the decorated function to it once, when they are created, so calls don't allocate.
+     *
+     * @param <T> type of the argument
+     * @param <R> type of the result
+     * @param <X> type of the thrown exception
+     */
+    @FunctionalInterface
+    interface Call<T, R, X extends Throwable> {
+        R apply(T argument) throws X;
+    }
+
+    /**
+     * Acquires permits for the call and runs it.
+     * <p>
+     * <p>If in-flight calls are limited, in-flight permission is acquired first and permits are awaited
+     * for the rest of the timeout, so the whole call waits no longer than the timeout.
+     * In-flight permission is released when the call completes or when permits are not granted.
+     * Calls of adaptive request limits are measured and recorded with {@link RequestLimit#recordCall(long, boolean)}.
+     *
+     * @param requestLimit request limit of the decorated call
+     * @param permits      number of permits required for the call
+     * @param call         decorated call
+     * @param argument     argument of the decorated call
+     * @return result of the decorated call
+     * @throws RequestNotPermitted if permission was not acquired within the timeout
+     * @throws X                   if the decorated call throws it
+     */
+    static <T, R, X extends Throwable> R call(final RequestLimit requestLimit, final int permits,
+                                             final Call<T, R, X> call, final T argument) throws X {
+        RequestLimitConfig requestLimitConfig = requestLimit.getRequestLimitConfig();
+        long timeoutInNanos = requestLimitConfig.getTimeoutInNanos();
+        boolean limitingConcurrentCalls = requestLimitConfig.isLimitingConcurrentCalls();
+        boolean recordingCalls = requestLimitConfig.isAdaptive();
+        if (!limitingConcurrentCalls) {
+            waitForPermissions(requestLimit, permits, timeoutInNanos);
+            if (!recordingCalls) {
+                return call.apply(argument);
+            }
+        } else {
+            acquireInFlightAndPermissions(requestLimit, permits, timeoutInNanos);
+        }
+        long startNanos = recordingCalls ? nanoTime() : 0L;
+        boolean failed = true;
+        try {
+            R result = call.apply(argument);
+            failed = false;
+            return result;
+        } finally {
+            if (limitingConcurrentCalls) {
+                requestLimit.releaseInFlightPermission();
+            }
+            if (recordingCalls) {
+                requestLimit.recordCall(nanoTime() - startNanos, failed);
+            }
+        }
+    }
+
+    private static void acquireInFlightAndPermissions(final RequestLimit requestLimit, final int permits,
+                                                      final long timeoutInNanos) {
+        long startNanos = nanoTime();
+        if (!requestLimit.acquireInFlightPermission(timeoutInNanos)) {
+            throw RequestNotPermitted.createRequestNotPermitted(requestLimit);
+        }
+        try {
+            waitForPermissions(requestLimit, permits, max(0L, timeoutInNanos - (nanoTime() - startNanos)));
+        } catch (RuntimeException | Error e) {
+            requestLimit.releaseInFlightPermission();
+            throw e;
+        }
+    }
+
+    static void waitForPermissions(final RequestLimit requestLimit, final int permits, final long timeoutInNanos) {
+        boolean permission = permits == 1
+            ? requestLimit.getPermission(timeoutInNanos)
+            : requestLimit.getPermissions(permits, timeoutInNanos);
+        if (!permission) {
+            throw RequestNotPermitted.createRequestNotPermitted(requestLimit);
+        }
+    }
+
+    static <T> CompletionStage<T> startStage(final Supplier<CompletionStage<T>> supplier, final RequestLimit requestLimit) {
+        if (!isRecordingCalls(requestLimit)) {
+            return supplier.get();
+        }
+        long startNanos = nanoTime();
+        CompletionStage<T> stage;
+        try {
+            stage = supplier.get();
+        } catch (RuntimeException | Error e) {
+            requestLimit.recordCall(nanoTime() - startNanos, true);
+            throw e;
+        }
+        return stage.whenComplete(
+            (result, throwable) -> requestLimit.recordCall(nanoTime() - startNanos, throwable != null)
+        );
+    }
+
+    static <T> CompletionStage<T> notPermitted(final RequestLimit requestLimit) {
+        CompletableFuture<T> notPermitted = new CompletableFuture<>();
+        notPermitted.completeExceptionally(RequestNotPermitted.createRequestNotPermitted(requestLimit));
+        return notPermitted;
+    }
+
+    /**
+     * Calls are measured only for adaptive request limits,
+     * so other request limits don't pay for two {@link System#nanoTime()} calls per decorated call.
+     *
+     * @param requestLimit request limit of the decorated call
+     * @return {@code true} if the decorated call should be recorded with {@link RequestLimit#recordCall(long, boolean)}
+     */
+    static boolean isRecordingCalls(final RequestLimit requestLimit) {
+        return requestLimit.getRequestLimitConfig().isAdaptive();
+    }
+}
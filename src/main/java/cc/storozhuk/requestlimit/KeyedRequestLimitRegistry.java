@@ -0,0 +1,65 @@
+package cc.storozhuk.requestlimit;
+
+import cc.storozhuk.requestlimit.internal.OpenAddressingKeyedRequestLimitRegistry;
+
+/**
+ * Registry of request limits for high-cardinality primitive keys, e.g. client ip addresses or user ids.
+ * <p>All keys share the same {@link RequestLimitConfig} and permissions are acquired without waiting,
+ * so instead of a {@link RequestLimit} object per key the registry keeps a few primitive values per key.
+ *
+ * @author bstorozhuk
+ */
+public interface KeyedRequestLimitRegistry {
+
+    /**
+     * Acquires one permit for the given key if it is available right now.
+     *
+     * @param key key of the request limit
+     * @return {@code true} if the permit was acquired and {@code false} otherwise
+     */
+    boolean tryAcquire(long key);
+
+    /**
+     * Acquires the given number of permits for the given key as a single atomic claim
+     * if all of them are available right now.
+     *
+     * @param key     key of the request limit
+     * @param permits number of permits to acquire, should be greater than 0
+     * @return {@code true} if all permits were acquired and {@code false} if none of them were acquired
+     */
+    boolean tryAcquire(long key, int permits);
+
+    /**
+     * Estimates count of permits available for the given key.
+     *
+     * @param key key of the request limit
+     * @return estimated count of available permits
+     */
+    int getAvailablePermits(long key);
+
+    RequestLimitConfig getRequestLimitConfig();
+
+    /**
+     * Creates registry that can track up to the given number of active keys.
+     * Keys that are idle long enough to refill their burst capacity don't occupy the registry space.
+     *
+     * @param requestLimitConfig config shared by all keys
+     * @param maximumActiveKeys  max number of keys that can be limited at the same time
+     * @return new registry
+     */
+    static KeyedRequestLimitRegistry of(RequestLimitConfig requestLimitConfig, int maximumActiveKeys) {
+        return new OpenAddressingKeyedRequestLimitRegistry(requestLimitConfig, maximumActiveKeys);
+    }
+
+    /**
+     * Creates registry that keeps state of keys outside of the GC managed heap,
+     * so heap size and GC pauses don't depend on the number of tracked keys.
+     *
+     * @param requestLimitConfig config shared by all keys
+     * @param maximumActiveKeys  max number of keys that can be limited at the same time
+     * @return new registry
+     */
+    static KeyedRequestLimitRegistry ofOffHeap(RequestLimitConfig requestLimitConfig, int maximumActiveKeys) {
+        return new OpenAddressingKeyedRequestLimitRegistry(requestLimitConfig, maximumActiveKeys, true);
+    }
+}
@@ -3,13 +3,214 @@ package cc.storozhuk.requestlimit;
 import javaslang.control.Try;
 
 import java.time.Duration;
+import java.util.concurrent.CompletionStage;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
+import java.util.function.ToIntFunction;
 
-public interface RequestLimit {
+public interface RequestLimit extends AutoCloseable {
 
-    boolean getPermission(Duration timeoutDuration);
+    /**
+     * Acquires permission, blocking until it is available or the timeout elapses.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return {@code true} if permission was acquired and {@code false} otherwise
+     */
+    default boolean getPermission(Duration timeoutDuration) {
+        return getPermission(timeoutDuration.toNanos());
+    }
+
+    /**
+     * Same as {@link #getPermission(Duration)}, but takes precomputed timeout,
+     * e.g. {@link RequestLimitConfig#getTimeoutInNanos()}, so it doesn't need any conversion per call.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permission
+     * @return {@code true} if permission was acquired and {@code false} otherwise
+     */
+    boolean getPermission(long timeoutInNanos);
+
+    /**
+     * Acquires permission on behalf of a request with the given priority, blocking until it is available
+     * or the timeout elapses.
+     * <p>
+     * <p>Request limits with {@link RequestLimitConfig#getPriorityLevels()} greater than one hand permits
+     * to waiting requests of higher priorities first and keep {@link RequestLimitConfig#getReservedShare(int)}
+     * of each period for them. Other request limits ignore the priority.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @param priority        priority from {@code 0}, the lowest one, to {@code priorityLevels - 1},
+     *                        higher values are served as the highest priority
+     * @return {@code true} if permission was acquired and {@code false} otherwise
+     */
+    default boolean getPermission(Duration timeoutDuration, int priority) {
+        return getPermission(timeoutDuration.toNanos(), priority);
+    }
+
+    /**
+     * Same as {@link #getPermission(Duration, int)}, but takes precomputed timeout in nanoseconds.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permission
+     * @param priority       priority of the request, should not be negative
+     * @return {@code true} if permission was acquired and {@code false} otherwise
+     */
+    default boolean getPermission(long timeoutInNanos, int priority) {
+        if (priority < 0) {
+            throw new IllegalArgumentException("Priority should not be negative");
+        }
+        return getPermission(timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits as a single atomic claim,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>Batches bigger than {@link RequestLimitConfig#getBurstCapacity()} can never be available at once,
+     * so they are rejected immediately, without waiting and without taking or reserving any permits.
+     *
+     * @param permits         number of permits to acquire, should be greater than 0
+     * @param timeoutDuration max time that caller can wait for permits
+     * @return {@code true} if all permits were acquired and {@code false} if none of them were acquired
+     */
+    default boolean getPermissions(int permits, Duration timeoutDuration) {
+        return getPermissions(permits, timeoutDuration.toNanos());
+    }
+
+    /**
+     * Same as {@link #getPermissions(int, Duration)}, but takes precomputed timeout in nanoseconds.
+     *
+     * @param permits        number of permits to acquire, should be greater than 0
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if all permits were acquired and {@code false} if none of them were acquired
+     */
+    boolean getPermissions(int permits, long timeoutInNanos);
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>Returned stage is completed with {@code true} as soon as a permit is acquired
+     * and with {@code false} if it can't be acquired within {@link RequestLimitConfig#getTimeoutDuration()}.
+     * Waiting requests don't occupy any threads.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    CompletionStage<Boolean> acquirePermissionAsync();
+
+    /**
+     * Atomically reserves permission without blocking the calling thread.
+     * <p>
+     * <p>Reserved permission can be used only after the returned number of nanoseconds,
+     * so callers can delay their work with their own timers instead of parking a thread per request.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return nanoseconds caller should wait before using the permission, {@code 0} if it can be used immediately,
+     * or negative value if permission can't be acquired within the timeout and nothing was reserved
+     */
+    long reservePermission(Duration timeoutDuration);
+
+    /**
+     * Returns permits that were acquired, but won't be used, e.g. when another level
+     * of a composite request limit has rejected the request.
+     * <p>
+     * <p>Returned permits cancel reservations first and then become available in the current refresh period,
+     * but never above {@link RequestLimitConfig#getBurstCapacity()}. Permits acquired in already elapsed periods
+     * have been refreshed anyway, so returning them has no effect.
+     *
+     * @param permits number of permits to return, should be greater than 0
+     */
+    void releasePermissions(int permits);
+
+    /**
+     * Returns the time left until the end of the current refresh period, when permits granted in it
+     * are refreshed, e.g. so permits leased with {@link RequestLimitConfig#getLeaseSize()} are not used after it.
+     * <p>
+     * <p>Request limits that don't refresh permissions at period boundaries return
+     * the whole {@link RequestLimitConfig#getLimitRefreshPeriod()}.
+     *
+     * @return nanoseconds until the next limit refresh, {@code 0} if the refresh is already due
+     */
+    default long getNanosToNextRefresh() {
+        return getRequestLimitConfig().getLimitRefreshPeriodInNanos();
+    }
+
+    /**
+     * Records the outcome of a call made with permission of this request limit.
+     * <p>
+     * <p>Decorators record their calls only if {@link RequestLimitConfig#isAdaptive()},
+     * adaptive request limit uses them to adjust its effective limit for period, other request limits ignore them.
+     * Recording is lock-free, so it doesn't add contention to the decorated calls.
+     *
+     * @param durationInNanos duration of the call in nanoseconds
+     * @param failed          {@code true} if the call has thrown an exception
+     */
+    default void recordCall(long durationInNanos, boolean failed) {
+    }
+
+    /**
+     * Acquires in-flight permission for a call made with permission of this request limit,
+     * blocking until one of {@link RequestLimitConfig#getMaxConcurrentCalls()} slots is free or the timeout elapses.
+     * <p>
+     * <p>Decorators acquire in-flight permission only if {@link RequestLimitConfig#isLimitingConcurrentCalls()}
+     * and release it with {@link #releaseInFlightPermission()} when the call completes.
+     * Decorated completion stages don't wait for in-flight permission, they are rejected if no slot is free.
+     * Request limits that don't limit in-flight calls always grant it.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for in-flight permission
+     * @return {@code true} if in-flight permission was acquired and {@code false} otherwise
+     */
+    default boolean acquireInFlightPermission(long timeoutInNanos) {
+        return true;
+    }
+
+    /**
+     * Releases in-flight permission acquired with {@link #acquireInFlightPermission(long)},
+     * so it can be handed to a waiting call.
+     */
+    default void releaseInFlightPermission() {
+    }
+
+    /**
+     * Dynamic limit change.
+     * <p>
+     * <p>New limit is applied starting from the next limit refresh, permissions that are already
+     * available in the current period stay untouched and in-flight permission requests are not blocked.
+     * Burst capacity that was not configured explicitly follows the new limit.
+     *
+     * @param limitForPeriod new number of permissions available during one limit refresh period
+     */
+    void changeLimitForPeriod(int limitForPeriod);
+
+    /**
+     * Dynamic timeout change.
+     * <p>
+     * <p>New timeout is used by all permission requests started after this call,
+     * requests that are already waiting keep their original timeout.
+     *
+     * @param timeoutDuration new default timeout for permission requests
+     */
+    void changeTimeoutDuration(Duration timeoutDuration);
+
+    /**
+     * Dynamic change of the whole config, e.g. pushed by {@link RequestLimitRegistry}.
+     * <p>
+     * <p>Limit for period and burst capacity are applied starting from the next limit refresh
+     * and timeout is used by permission requests started after this call.
+     * Limit refresh period is fixed at the request limit creation and can't be changed.
+     *
+     * @param requestLimitConfig new config with the same limit refresh period
+     * @throws IllegalArgumentException if the limit refresh period differs from the current one
+     */
+    void changeRequestLimitConfig(RequestLimitConfig requestLimitConfig);
+
+    /**
+     * Releases background resources of the request limit, e.g. cancels scheduled limit refreshes.
+     * <p>
+     * <p>Closed request limit should not be used anymore: its permissions are not refreshed
+     * and pending asynchronous permission requests are completed with {@code false}.
+     * Repeated calls have no effect.
+     */
+    @Override
+    void close();
 
     String getName();
 
@@ -28,72 +229,118 @@ public interface RequestLimit {
     }
 
     static <T> Try.CheckedSupplier<T> decorateCheckedSupplier(Try.CheckedSupplier<T> supplier, RequestLimit requestLimit) {
-        Try.CheckedSupplier<T> decoratedSupplier = () -> {
-            waitForPermission(requestLimit);
-            T result = supplier.get();
-            return result;
-        };
+        DecoratedCalls.Call<Void, T, Throwable> call = ignored -> supplier.get();
+        Try.CheckedSupplier<T> decoratedSupplier = () -> DecoratedCalls.call(requestLimit, 1, call, null);
         return decoratedSupplier;
     }
 
     static Try.CheckedRunnable decorateCheckedRunnable(Try.CheckedRunnable runnable, RequestLimit requestLimit) {
-
-        Try.CheckedRunnable decoratedRunnable = () -> {
-            waitForPermission(requestLimit);
+        DecoratedCalls.Call<Void, Void, Throwable> call = ignored -> {
             runnable.run();
+            return null;
         };
+        Try.CheckedRunnable decoratedRunnable = () -> DecoratedCalls.call(requestLimit, 1, call, null);
         return decoratedRunnable;
     }
 
     static <T, R> Try.CheckedFunction<T, R> decorateCheckedFunction(Try.CheckedFunction<T, R> function, RequestLimit requestLimit) {
-        Try.CheckedFunction<T, R> decoratedFunction = (T t) -> {
-            waitForPermission(requestLimit);
-            R result = function.apply(t);
-            return result;
-        };
+        DecoratedCalls.Call<T, R, Throwable> call = function::apply;
+        Try.CheckedFunction<T, R> decoratedFunction = (T t) -> DecoratedCalls.call(requestLimit, 1, call, t);
         return decoratedFunction;
     }
 
     static <T> Supplier<T> decorateSupplier(Supplier<T> supplier, RequestLimit requestLimit) {
-        Supplier<T> decoratedSupplier = () -> {
-            waitForPermission(requestLimit);
-            T result = supplier.get();
-            return result;
-        };
+        DecoratedCalls.Call<Void, T, RuntimeException> call = ignored -> supplier.get();
+        Supplier<T> decoratedSupplier = () -> DecoratedCalls.call(requestLimit, 1, call, null);
         return decoratedSupplier;
     }
 
     static <T> Consumer<T> decorateConsumer(Consumer<T> consumer, RequestLimit requestLimit) {
-        Consumer<T> decoratedConsumer = (T t) -> {
-            waitForPermission(requestLimit);
+        DecoratedCalls.Call<T, Void, RuntimeException> call = t -> {
             consumer.accept(t);
+            return null;
         };
+        Consumer<T> decoratedConsumer = (T t) -> DecoratedCalls.call(requestLimit, 1, call, t);
         return decoratedConsumer;
     }
 
     static Runnable decorateRunnable(Runnable runnable, RequestLimit requestLimit) {
-        Runnable decoratedRunnable = () -> {
-            waitForPermission(requestLimit);
+        DecoratedCalls.Call<Void, Void, RuntimeException> call = ignored -> {
             runnable.run();
+            return null;
         };
+        Runnable decoratedRunnable = () -> DecoratedCalls.call(requestLimit, 1, call, null);
         return decoratedRunnable;
     }
 
     static <T, R> Function<T, R> decorateFunction(Function<T, R> function, RequestLimit requestLimit) {
-        Function<T, R> decoratedFunction = (T t) -> {
-            waitForPermission(requestLimit);
-            R result = function.apply(t);
-            return result;
-        };
+        DecoratedCalls.Call<T, R, RuntimeException> call = function::apply;
+        Function<T, R> decoratedFunction = (T t) -> DecoratedCalls.call(requestLimit, 1, call, t);
+        return decoratedFunction;
+    }
+
+    /**
+     * Decorates function so that each call acquires as many permits as the weight function returns for its argument,
+     * e.g. the number of records in a batch.
+     *
+     * @param function       function to decorate
+     * @param weightFunction number of permits required for the function argument
+     * @param requestLimit   request limit to acquire permits from
+     * @param <T>            type of the function argument
+     * @param <R>            type of the function result
+     * @return decorated function
+     */
+    static <T, R> Function<T, R> decorateFunction(Function<T, R> function, ToIntFunction<? super T> weightFunction,
+                                                  RequestLimit requestLimit) {
+        DecoratedCalls.Call<T, R, RuntimeException> call = function::apply;
+        Function<T, R> decoratedFunction =
+            (T t) -> DecoratedCalls.call(requestLimit, weightFunction.applyAsInt(t), call, t);
         return decoratedFunction;
     }
 
+    /**
+     * Decorates supplier of completion stages, so each stage is started after permission is acquired asynchronously.
+     * <p>
+     * <p>If {@link RequestLimitConfig#isLimitingConcurrentCalls()}, in-flight permission is acquired without waiting,
+     * so the calling thread is never blocked, and it is released when the returned stage completes.
+     *
+     * @param supplier     supplier of completion stages to decorate
+     * @param requestLimit request limit to acquire permission from
+     * @param <T>          type of the stage result
+     * @return decorated supplier
+     */
+    static <T> Supplier<CompletionStage<T>> decorateCompletionStage(Supplier<CompletionStage<T>> supplier, RequestLimit requestLimit) {
+        Supplier<CompletionStage<T>> decoratedSupplier = () -> {
+            boolean limitingConcurrentCalls = requestLimit.getRequestLimitConfig().isLimitingConcurrentCalls();
+            if (limitingConcurrentCalls && !requestLimit.acquireInFlightPermission(0L)) {
+                return DecoratedCalls.notPermitted(requestLimit);
+            }
+            CompletionStage<T> permittedStage;
+            try {
+                permittedStage = requestLimit.acquirePermissionAsync()
+                    .thenCompose(permission -> permission
+                        ? DecoratedCalls.startStage(supplier, requestLimit)
+                        : DecoratedCalls.notPermitted(requestLimit));
+            } catch (RuntimeException | Error e) {
+                if (limitingConcurrentCalls) {
+                    requestLimit.releaseInFlightPermission();
+                }
+                throw e;
+            }
+            if (!limitingConcurrentCalls) {
+                return permittedStage;
+            }
+            return permittedStage.whenComplete((result, throwable) -> requestLimit.releaseInFlightPermission());
+        };
+        return decoratedSupplier;
+    }
+
     static void waitForPermission(final RequestLimit requestLimit) {
         RequestLimitConfig requestLimitConfig = requestLimit.getRequestLimitConfig();
-        Duration timeoutDuration = requestLimitConfig.getTimeoutDuration();
-        boolean permission = requestLimit.getPermission(timeoutDuration);
+        long timeoutInNanos = requestLimitConfig.getTimeoutInNanos();
+        boolean permission = requestLimit.getPermission(timeoutInNanos);
         if (!permission) {
-            throw new RequestNotPermitted("Request not permitted for limit: " + requestLimit.getName());
+            throw RequestNotPermitted.createRequestNotPermitted(requestLimit);
         }
     }
 }
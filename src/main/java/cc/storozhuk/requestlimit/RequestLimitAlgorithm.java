@@ -0,0 +1,35 @@
+package cc.storozhuk.requestlimit;
+
+/**
+ * Algorithm used by request limits that are created from {@link RequestLimitConfig}, e.g. by {@link RequestLimitRegistry}.
+ *
+ * @author bstorozhuk
+ */
+public enum RequestLimitAlgorithm {
+
+    /**
+     * Permissions are refilled by {@link RequestLimitConfig#getLimitForPeriod()} at the start of each refresh period.
+     * Requests at the end of one period and at the start of the next one can together get up to
+     * {@link RequestLimitConfig#getBurstCapacity()} + {@link RequestLimitConfig#getLimitForPeriod()} permissions.
+     */
+    FIXED_WINDOW,
+
+    /**
+     * Permissions granted during any {@link RequestLimitConfig#getLimitRefreshPeriod()},
+     * measured with the precision of a window bucket, never exceed {@link RequestLimitConfig#getLimitForPeriod()}.
+     */
+    SLIDING_WINDOW,
+
+    /**
+     * Generic cell rate algorithm: permissions are evenly spaced by
+     * {@link RequestLimitConfig#getLimitRefreshPeriod()} / {@link RequestLimitConfig#getLimitForPeriod()}
+     * and only {@link RequestLimitConfig#getBurstCapacity()} above the limit can be used back to back.
+     */
+    GCRA,
+
+    /**
+     * Same as {@link #FIXED_WINDOW}, but permissions of each period are split across stripes
+     * to reduce contention of many threads on a single hot request limit.
+     */
+    STRIPED
+}
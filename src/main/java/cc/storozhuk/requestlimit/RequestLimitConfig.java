@@ -2,7 +2,10 @@ package cc.storozhuk.requestlimit;
 
 import static java.util.Objects.requireNonNull;
 
+import javaslang.control.Option;
+
 import java.time.Duration;
+import java.util.Arrays;
 
 /**
  * @author bstorozhuk
@@ -10,17 +13,51 @@ import java.time.Duration;
 public class RequestLimitConfig {
     private static final String TIMEOUT_DURATION_MUST_NOT_BE_NULL = "TimeoutDuration must not be null";
     private static final String LIMIT_REFRESH_PERIOD_MUST_NOT_BE_NULL = "LimitRefreshPeriod must not be null";
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String ALGORITHM_MUST_NOT_BE_NULL = "Algorithm must not be null";
+    private static final String WAIT_STRATEGY_MUST_NOT_BE_NULL = "WaitStrategy must not be null";
+    private static final String LATENCY_THRESHOLD_MUST_NOT_BE_NULL = "LatencyThreshold must not be null";
 
     private static final Duration ACCEPTABLE_REFRESH_PERIOD = Duration.ofNanos(500L); // TODO: use jmh to find real one
 
     private final Duration timeoutDuration;
     private final Duration limitRefreshPeriod;
     private final int limitForPeriod;
+    private final int burstCapacity;
+    private final boolean writableStackTraceEnabled;
+    private final RequestLimitAlgorithm algorithm;
+    private final int leaseSize;
+    private final WaitStrategy waitStrategy;
+    private final int minLimitForPeriod;
+    private final Duration latencyThreshold;
+    private final int priorityLevels;
+    private final double[] reservedShares;
+    private final int maxConcurrentCalls;
+    private final long timeoutInNanos;
+    private final long limitRefreshPeriodInNanos;
 
-    private RequestLimitConfig(final Duration timeoutDuration, final Duration limitRefreshPeriod, final int limitForPeriod) {
+    private RequestLimitConfig(final Duration timeoutDuration, final Duration limitRefreshPeriod,
+                               final int limitForPeriod, final int burstCapacity,
+                               final boolean writableStackTraceEnabled, final RequestLimitAlgorithm algorithm,
+                               final int leaseSize, final WaitStrategy waitStrategy,
+                               final int minLimitForPeriod, final Duration latencyThreshold,
+                               final int priorityLevels, final double[] reservedShares,
+                               final int maxConcurrentCalls) {
         this.timeoutDuration = checkTimeoutDuration(timeoutDuration);
         this.limitRefreshPeriod = checkLimitRefreshPeriod(limitRefreshPeriod);
         this.limitForPeriod = checkLimitForPeriod(limitForPeriod);
+        this.burstCapacity = checkBurstCapacity(burstCapacity, limitForPeriod);
+        this.writableStackTraceEnabled = writableStackTraceEnabled;
+        this.algorithm = algorithm;
+        this.leaseSize = leaseSize;
+        this.waitStrategy = waitStrategy;
+        this.minLimitForPeriod = checkMinLimitForPeriod(minLimitForPeriod, limitForPeriod);
+        this.latencyThreshold = latencyThreshold;
+        this.priorityLevels = priorityLevels;
+        this.reservedShares = checkReservedShares(reservedShares, priorityLevels);
+        this.maxConcurrentCalls = maxConcurrentCalls;
+        this.timeoutInNanos = timeoutDuration.toNanos();
+        this.limitRefreshPeriodInNanos = limitRefreshPeriod.toNanos();
     }
 
     public Duration getTimeoutDuration() {
@@ -31,14 +68,219 @@ public class RequestLimitConfig {
         return limitRefreshPeriod;
     }
 
+    /**
+     * Same as {@link #getTimeoutDuration()} converted to nanoseconds once, at config creation,
+     * so permission calls don't have to convert it on every request.
+     *
+     * @return timeout duration in nanoseconds
+     */
+    public long getTimeoutInNanos() {
+        return timeoutInNanos;
+    }
+
+    /**
+     * Same as {@link #getLimitRefreshPeriod()} converted to nanoseconds once, at config creation.
+     *
+     * @return limit refresh period in nanoseconds
+     */
+    public long getLimitRefreshPeriodInNanos() {
+        return limitRefreshPeriodInNanos;
+    }
+
     public int getLimitForPeriod() {
         return limitForPeriod;
     }
 
+    /**
+     * Maximum number of permissions that can be accumulated by the request limit
+     * during idle periods. Each refresh adds {@link #getLimitForPeriod()} permissions,
+     * but never tops them up above this capacity.
+     *
+     * @return max number of accumulated permissions, equals to {@link #getLimitForPeriod()} by default
+     */
+    public int getBurstCapacity() {
+        return burstCapacity;
+    }
+
+    /**
+     * Defines whether {@link RequestNotPermitted} thrown by the decorators fills in its stack trace.
+     * <p>Rejected requests are expected on the hot path of a saturated limit, and stack trace capture
+     * is the most expensive part of the rejection, while the trace itself points only to the decorator.
+     *
+     * @return {@code false} if stackless {@link RequestNotPermitted} should be thrown, {@code true} by default
+     */
+    public boolean isWritableStackTraceEnabled() {
+        return writableStackTraceEnabled;
+    }
+
+    /**
+     * Algorithm of request limits created from this config.
+     * It is used only on creation, request limits keep their algorithm when the config is changed.
+     *
+     * @return request limit algorithm, {@link RequestLimitAlgorithm#FIXED_WINDOW} by default
+     */
+    public RequestLimitAlgorithm getAlgorithm() {
+        return algorithm;
+    }
+
+    /**
+     * Number of permits each thread leases from the request limit at once and then uses without touching shared state.
+     * <p>Leasing is enabled when the request limit is created with lease size greater than 1.
+     * Leased permits are valid until the end of the refresh period they were granted in,
+     * so they are never used in the next period, and unused ones are returned when the thread leases again.
+     * Lease is never bigger than {@link #getLimitForPeriod()}.
+     *
+     * @return number of permits leased at once, {@code 1} by default, that means no leasing
+     */
+    public int getLeaseSize() {
+        return leaseSize;
+    }
+
+    /**
+     * Strategy of threads waiting for permission, it is used by permission requests started after config change.
+     *
+     * @return wait strategy, {@link WaitStrategy#SEMAPHORE} by default
+     */
+    public WaitStrategy getWaitStrategy() {
+        return waitStrategy;
+    }
+
+    /**
+     * Lowest limit for period of the adaptive request limit.
+     * <p>Request limit is adaptive when it is created with min limit for period less than {@link #getLimitForPeriod()}.
+     * Adaptive request limit measures calls made through the {@code RequestLimit.decorate*} wrappers
+     * and adjusts its effective limit once per {@link #getLimitRefreshPeriod()}: it is decreased by 10%
+     * when some calls of the period failed or their average latency exceeded {@link #getLatencyThreshold()},
+     * otherwise it is increased by one permit if at least half of the effective limit was used. Effective limit always stays between min limit for period
+     * and {@link #getLimitForPeriod()}.
+     *
+     * @return min limit for period, equals to {@link #getLimitForPeriod()} by default, that means fixed limit
+     */
+    public int getMinLimitForPeriod() {
+        return minLimitForPeriod;
+    }
+
+    /**
+     * Average latency of calls during one {@link #getLimitRefreshPeriod()} above which
+     * the adaptive request limit decreases its effective limit.
+     *
+     * @return latency threshold, or empty if only failed calls decrease the effective limit
+     */
+    public Option<Duration> getLatencyThreshold() {
+        return Option.of(latencyThreshold);
+    }
+
+    /**
+     * @return {@code true} if {@link #getMinLimitForPeriod()} is less than {@link #getLimitForPeriod()},
+     * so decorators should measure calls for the adaptive request limit
+     */
+    public boolean isAdaptive() {
+        return minLimitForPeriod < limitForPeriod;
+    }
+
+    /**
+     * Number of priorities of permission requests made with {@link RequestLimit#getPermission(Duration, int)},
+     * from {@code 0}, the lowest one, to {@code priorityLevels - 1}, the highest one.
+     * <p>Waiting requests of {@link cc.storozhuk.requestlimit.internal.SemaphoreBasedRequestLimitImpl}
+     * are queued per priority when there is more than one level, and refreshed permits are handed
+     * to the higher priorities first. It is used only on creation, like {@link #getAlgorithm()}.
+     *
+     * @return number of priority levels, {@code 1} by default, that means no priorities
+     */
+    public int getPriorityLevels() {
+        return priorityLevels;
+    }
+
+    /**
+     * Share of {@link #getLimitForPeriod()} that is kept for requests of the given priority,
+     * requests of lower priorities can't take these permits even if they are not used.
+     *
+     * @param priority priority of permission requests
+     * @return reserved share from {@code 0} to {@code 1}, {@code 0} by default
+     */
+    public double getReservedShare(final int priority) {
+        return priority >= 0 && priority < reservedShares.length ? reservedShares[priority] : 0.0;
+    }
+
+    /**
+     * Number of permits that requests of the given priority can't take, because they are kept
+     * for the higher priorities by {@link #getReservedShare(int)}.
+     *
+     * @param priority priority of permission requests
+     * @return number of permits reserved for the higher priorities
+     */
+    public int getPermitsReservedAbove(final int priority) {
+        double share = 0.0;
+        for (int higherPriority = priority + 1; higherPriority < reservedShares.length; higherPriority++) {
+            share += reservedShares[higherPriority];
+        }
+        return (int) (limitForPeriod * share);
+    }
+
+    /**
+     * Max number of calls of the {@code RequestLimit.decorate*} wrappers that can be in flight at the same time,
+     * regardless of the limit for period. Decorated calls wait for a free slot up to {@link #getTimeoutDuration()}
+     * before they wait for permission, and free their slot when they complete.
+     * <p>In-flight calls are limited by request limits created with max concurrent calls by
+     * {@link RequestLimitRegistry}, it can be changed later, but can't be added or removed.
+     *
+     * @return max number of in-flight calls, {@code 0} by default, that means no limit
+     */
+    public int getMaxConcurrentCalls() {
+        return maxConcurrentCalls;
+    }
+
+    /**
+     * @return {@code true} if {@link #getMaxConcurrentCalls()} is set,
+     * so decorators should acquire in-flight permission for each call
+     */
+    public boolean isLimitingConcurrentCalls() {
+        return maxConcurrentCalls > 0;
+    }
+
     public static Builder builder() {
         return new Builder();
     }
 
+    /**
+     * Creates builder prefilled with values of the given config.
+     * Burst capacity and min limit for period are copied only if they were different from the limit for period,
+     * otherwise they keep following the limit for period by default.
+     *
+     * @param requestLimitConfig config to copy values from
+     * @return prefilled builder
+     */
+    public static Builder from(final RequestLimitConfig requestLimitConfig) {
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        Builder builder = new Builder()
+            .timeoutDuration(requestLimitConfig.timeoutDuration)
+            .limitRefreshPeriod(requestLimitConfig.limitRefreshPeriod)
+            .limitForPeriod(requestLimitConfig.limitForPeriod)
+            .writableStackTraceEnabled(requestLimitConfig.writableStackTraceEnabled)
+            .algorithm(requestLimitConfig.algorithm)
+            .leaseSize(requestLimitConfig.leaseSize)
+            .waitStrategy(requestLimitConfig.waitStrategy);
+        if (requestLimitConfig.burstCapacity != requestLimitConfig.limitForPeriod) {
+            builder.burstCapacity(requestLimitConfig.burstCapacity);
+        }
+        if (requestLimitConfig.minLimitForPeriod != requestLimitConfig.limitForPeriod) {
+            builder.minLimitForPeriod(requestLimitConfig.minLimitForPeriod);
+        }
+        if (requestLimitConfig.latencyThreshold != null) {
+            builder.latencyThreshold(requestLimitConfig.latencyThreshold);
+        }
+        builder.priorityLevels(requestLimitConfig.priorityLevels);
+        for (int priority = 0; priority < requestLimitConfig.reservedShares.length; priority++) {
+            if (requestLimitConfig.reservedShares[priority] > 0.0) {
+                builder.reservedShare(priority, requestLimitConfig.reservedShares[priority]);
+            }
+        }
+        if (requestLimitConfig.maxConcurrentCalls > 0) {
+            builder.maxConcurrentCalls(requestLimitConfig.maxConcurrentCalls);
+        }
+        return builder;
+    }
+
     private static Duration checkTimeoutDuration(final Duration timeoutDuration) {
         return requireNonNull(timeoutDuration, TIMEOUT_DURATION_MUST_NOT_BE_NULL);
     }
@@ -59,17 +301,117 @@ public class RequestLimitConfig {
         return limitForPeriod;
     }
 
+    private static int checkBurstCapacity(final int burstCapacity) {
+        if (burstCapacity < 1) {
+            throw new IllegalArgumentException("BurstCapacity should be greater than 0");
+        }
+        return burstCapacity;
+    }
+
+    private static int checkLeaseSize(final int leaseSize) {
+        if (leaseSize < 1) {
+            throw new IllegalArgumentException("LeaseSize should be greater than 0");
+        }
+        return leaseSize;
+    }
+
+    private static int checkMinLimitForPeriod(final int minLimitForPeriod) {
+        if (minLimitForPeriod < 1) {
+            throw new IllegalArgumentException("MinLimitForPeriod should be greater than 0");
+        }
+        return minLimitForPeriod;
+    }
+
+    private static int checkMinLimitForPeriod(final int minLimitForPeriod, final int limitForPeriod) {
+        if (minLimitForPeriod > limitForPeriod) {
+            throw new IllegalArgumentException("MinLimitForPeriod should not be greater than LimitForPeriod");
+        }
+        return minLimitForPeriod;
+    }
+
+    private static Duration checkLatencyThreshold(final Duration latencyThreshold) {
+        requireNonNull(latencyThreshold, LATENCY_THRESHOLD_MUST_NOT_BE_NULL);
+        if (latencyThreshold.isNegative() || latencyThreshold.isZero()) {
+            throw new IllegalArgumentException("LatencyThreshold should be positive");
+        }
+        return latencyThreshold;
+    }
+
+    private static int checkMaxConcurrentCalls(final int maxConcurrentCalls) {
+        if (maxConcurrentCalls < 1) {
+            throw new IllegalArgumentException("MaxConcurrentCalls should be greater than 0");
+        }
+        return maxConcurrentCalls;
+    }
+
+    private static int checkPriorityLevels(final int priorityLevels) {
+        if (priorityLevels < 1) {
+            throw new IllegalArgumentException("PriorityLevels should be greater than 0");
+        }
+        return priorityLevels;
+    }
+
+    private static void checkReservedShare(final int priority, final double reservedShare) {
+        if (priority < 1) {
+            throw new IllegalArgumentException("Priority of the reserved share should be greater than 0");
+        }
+        if (!(reservedShare >= 0.0 && reservedShare <= 1.0)) {
+            throw new IllegalArgumentException("ReservedShare should be between 0 and 1");
+        }
+    }
+
+    private static double[] checkReservedShares(final double[] reservedShares, final int priorityLevels) {
+        if (reservedShares.length > priorityLevels) {
+            throw new IllegalArgumentException("Priority of the reserved share should be less than PriorityLevels");
+        }
+        double totalShare = 0.0;
+        for (double reservedShare : reservedShares) {
+            totalShare += reservedShare;
+        }
+        if (totalShare > 1.0) {
+            throw new IllegalArgumentException("ReservedShares should not exceed 1 in total");
+        }
+        return reservedShares;
+    }
+
+    private static int checkBurstCapacity(final int burstCapacity, final int limitForPeriod) {
+        if (burstCapacity < limitForPeriod) {
+            throw new IllegalArgumentException("BurstCapacity should not be less than LimitForPeriod");
+        }
+        return burstCapacity;
+    }
+
 
     public static class Builder {
         private Duration timeoutDuration;
         private Duration limitRefreshPeriod;
         private int limitForPeriod;
+        private int burstCapacity;
+        private boolean writableStackTraceEnabled = true;
+        private RequestLimitAlgorithm algorithm = RequestLimitAlgorithm.FIXED_WINDOW;
+        private int leaseSize = 1;
+        private WaitStrategy waitStrategy = WaitStrategy.SEMAPHORE;
+        private int minLimitForPeriod;
+        private Duration latencyThreshold;
+        private int priorityLevels = 1;
+        private double[] reservedShares = new double[0];
+        private int maxConcurrentCalls;
 
         public RequestLimitConfig build() {
             return new RequestLimitConfig(
                 timeoutDuration,
                 limitRefreshPeriod,
-                limitForPeriod
+                limitForPeriod,
+                burstCapacity > 0 ? burstCapacity : limitForPeriod,
+                writableStackTraceEnabled,
+                algorithm,
+                leaseSize,
+                waitStrategy,
+                minLimitForPeriod > 0 ? minLimitForPeriod : limitForPeriod,
+                latencyThreshold,
+                priorityLevels,
+                reservedShares.clone(),
+                maxConcurrentCalls
             );
         }
 
@@ -87,5 +429,67 @@ public class RequestLimitConfig {
             this.limitForPeriod = checkLimitForPeriod(limitForPeriod);
             return this;
         }
+
+        public Builder burstCapacity(final int burstCapacity) {
+            this.burstCapacity = checkBurstCapacity(burstCapacity);
+            return this;
+        }
+
+        public Builder writableStackTraceEnabled(final boolean writableStackTraceEnabled) {
+            this.writableStackTraceEnabled = writableStackTraceEnabled;
+            return this;
+        }
+
+        public Builder algorithm(final RequestLimitAlgorithm algorithm) {
+            this.algorithm = requireNonNull(algorithm, ALGORITHM_MUST_NOT_BE_NULL);
+            return this;
+        }
+
+        public Builder leaseSize(final int leaseSize) {
+            this.leaseSize = checkLeaseSize(leaseSize);
+            return this;
+        }
+
+        public Builder waitStrategy(final WaitStrategy waitStrategy) {
+            this.waitStrategy = requireNonNull(waitStrategy, WAIT_STRATEGY_MUST_NOT_BE_NULL);
+            return this;
+        }
+
+        public Builder minLimitForPeriod(final int minLimitForPeriod) {
+            this.minLimitForPeriod = checkMinLimitForPeriod(minLimitForPeriod);
+            return this;
+        }
+
+        public Builder latencyThreshold(final Duration latencyThreshold) {
+            this.latencyThreshold = checkLatencyThreshold(latencyThreshold);
+            return this;
+        }
+
+        public Builder priorityLevels(final int priorityLevels) {
+            this.priorityLevels = checkPriorityLevels(priorityLevels);
+            return this;
+        }
+
+        /**
+         * Keeps the given share of {@link RequestLimitConfig#getLimitForPeriod()} for requests of the given priority,
+         * which should be less than {@link RequestLimitConfig#getPriorityLevels()}.
+         *
+         * @param priority      priority greater than {@code 0}, the lowest priority can't exclude anyone
+         * @param reservedShare share of the limit from {@code 0} to {@code 1}
+         * @return this builder
+         */
+        public Builder reservedShare(final int priority, final double reservedShare) {
+            checkReservedShare(priority, reservedShare);
+            if (priority >= reservedShares.length) {
+                reservedShares = Arrays.copyOf(reservedShares, priority + 1);
+            }
+            reservedShares[priority] = reservedShare;
+            return this;
+        }
+
+        public Builder maxConcurrentCalls(final int maxConcurrentCalls) {
+            this.maxConcurrentCalls = checkMaxConcurrentCalls(maxConcurrentCalls);
+            return this;
+        }
     }
 }
@@ -2,12 +2,13 @@ package cc.storozhuk.requestlimit;
 
 import cc.storozhuk.requestlimit.internal.InMemoryRequestLimitRegistry;
 
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 /**
  * @author bstorozhuk
  */
-public interface RequestLimitRegistry {
+public interface RequestLimitRegistry extends AutoCloseable {
 
     RequestLimit requestLimit(String name);
 
@@ -15,7 +16,69 @@ public interface RequestLimitRegistry {
 
     RequestLimit requestLimit(String name, Supplier<RequestLimitConfig> requestLimitConfig);
 
+    /**
+     * Pushes new config to the existing request limit with the given name
+     * using {@link RequestLimit#changeRequestLimitConfig(RequestLimitConfig)}.
+     *
+     * @param name               name of the request limit
+     * @param requestLimitConfig new config with the same limit refresh period
+     * @return {@code true} if the request limit exists and its config was changed,
+     * {@code false} if there is no request limit with such a name
+     */
+    boolean changeRequestLimitConfig(String name, RequestLimitConfig requestLimitConfig);
+
+    /**
+     * Removes request limit with the given name from the registry and closes it.
+     * Next lookup with the same name creates a new request limit.
+     *
+     * @param name name of the request limit
+     * @return {@code true} if the request limit was removed,
+     * {@code false} if there is no request limit with such a name
+     */
+    boolean removeRequestLimit(String name);
+
+    /**
+     * Closes all request limits of the registry and releases its resources,
+     * e.g. stops the refresh timer and unlocks the persistence file, so it can be used by a new registry.
+     * <p>
+     * <p>Closed registry can't create request limits anymore. Repeated calls have no effect.
+     */
+    @Override
+    void close();
+
     static RequestLimitRegistry of(RequestLimitConfig defaultRequestLimitConfig) {
         return new InMemoryRequestLimitRegistry(defaultRequestLimitConfig);
     }
+
+    static RequestLimitRegistry of(RequestLimitConfig defaultRequestLimitConfig,
+                                   BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory) {
+        return new InMemoryRequestLimitRegistry(defaultRequestLimitConfig, requestLimitFactory);
+    }
+
+    static RequestLimitRegistry of(RequestLimitConfig defaultRequestLimitConfig,
+                                   RequestLimitRegistryConfig registryConfig) {
+        return new InMemoryRequestLimitRegistry(defaultRequestLimitConfig, registryConfig);
+    }
+
+    static RequestLimitRegistry of(RequestLimitConfig defaultRequestLimitConfig,
+                                   RequestLimitRegistryConfig registryConfig,
+                                   BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory) {
+        return new InMemoryRequestLimitRegistry(defaultRequestLimitConfig, registryConfig, requestLimitFactory);
+    }
+
+    /**
+     * Creates registry of request limits that share budgets with other nodes through the given state backend.
+     * <p>Cycles are counted by the millisecond wall clock and budgets are not accumulated,
+     * so request limits with refresh period shorter than a millisecond or with burst capacity are rejected.
+     *
+     * @param defaultRequestLimitConfig default config for request limits created by the registry
+     * @param registryConfig            registry settings, including {@link RequestLimitRegistryConfig#getPermitBatchSize()}
+     * @param stateBackend              shared state of request limits
+     * @return registry of distributed request limits
+     */
+    static RequestLimitRegistry distributed(RequestLimitConfig defaultRequestLimitConfig,
+                                            RequestLimitRegistryConfig registryConfig,
+                                            RequestLimitStateBackend stateBackend) {
+        return new InMemoryRequestLimitRegistry(defaultRequestLimitConfig, registryConfig, stateBackend);
+    }
 }
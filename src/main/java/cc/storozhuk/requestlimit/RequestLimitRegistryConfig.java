@@ -0,0 +1,165 @@
+package cc.storozhuk.requestlimit;
+
+import static java.util.Objects.requireNonNull;
+
+import javaslang.control.Option;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * @author bstorozhuk
+ */
+public class RequestLimitRegistryConfig {
+    private static final String EXPIRE_AFTER_IDLE_MUST_NOT_BE_NULL = "ExpireAfterIdle must not be null";
+    private static final String PERSISTENCE_FILE_MUST_NOT_BE_NULL = "PersistenceFile must not be null";
+    private static final int DEFAULT_PERSISTENCE_CAPACITY = 4096;
+    private static final int DEFAULT_PERMIT_BATCH_SIZE = 1;
+
+    private final Duration expireAfterIdle;
+    private final int maximumSize;
+    private final Path persistenceFile;
+    private final int persistenceCapacity;
+    private final int permitBatchSize;
+
+    private RequestLimitRegistryConfig(final Duration expireAfterIdle, final int maximumSize,
+                                       final Path persistenceFile, final int persistenceCapacity,
+                                       final int permitBatchSize) {
+        this.expireAfterIdle = expireAfterIdle;
+        this.maximumSize = maximumSize;
+        this.persistenceFile = persistenceFile;
+        this.persistenceCapacity = persistenceCapacity;
+        this.permitBatchSize = permitBatchSize;
+    }
+
+    /**
+     * Request limits that were neither looked up in the registry nor asked for permission for this duration
+     * are removed from it and closed by the periodic cleanup.
+     * <p>Evicted request limits reject permission requests, so callers should look them up again.
+     *
+     * @return idle duration after which request limits are evicted, empty if they never expire
+     */
+    public Option<Duration> getExpireAfterIdle() {
+        return Option.of(expireAfterIdle);
+    }
+
+    /**
+     * Maximum number of request limits in the registry.
+     * When it is exceeded, least recently used request limits are removed from it and closed.
+     *
+     * @return maximum number of request limits, {@link Integer#MAX_VALUE} by default
+     */
+    public int getMaximumSize() {
+        return maximumSize;
+    }
+
+    /**
+     * Memory-mapped file that keeps permissions consumed by request limits in the current cycle,
+     * so request limits recreated after restart don't grant them once again.
+     * <p>File can't be shared by several registries or processes at the same time.
+     *
+     * @return persistence file, empty if state of request limits is not persisted
+     */
+    public Option<Path> getPersistenceFile() {
+        return Option.of(persistenceFile);
+    }
+
+    /**
+     * Maximum number of request limit names that can be persisted in {@link #getPersistenceFile()}.
+     * State of request limits created after it is exceeded is not persisted.
+     *
+     * @return maximum number of persisted request limits, {@value #DEFAULT_PERSISTENCE_CAPACITY} by default
+     */
+    public int getPersistenceCapacity() {
+        return persistenceCapacity;
+    }
+
+    /**
+     * Number of permits that request limits of a distributed registry take from the shared
+     * {@link RequestLimitStateBackend} at once and then serve locally until the end of the cycle.
+     * <p>Bigger batches mean fewer round trips to the backend, but the limit can be underused
+     * by up to {@code nodes * (permitBatchSize - 1)} permits that are held by other nodes.
+     *
+     * @return size of permit batches, {@value #DEFAULT_PERMIT_BATCH_SIZE} by default
+     */
+    public int getPermitBatchSize() {
+        return permitBatchSize;
+    }
+
+    public static RequestLimitRegistryConfig ofDefaults() {
+        return builder().build();
+    }
+
+    public static Builder builder() {
+        return new Builder();
+    }
+
+    private static Duration checkExpireAfterIdle(final Duration expireAfterIdle) {
+        requireNonNull(expireAfterIdle, EXPIRE_AFTER_IDLE_MUST_NOT_BE_NULL);
+        if (expireAfterIdle.isNegative() || expireAfterIdle.isZero()) {
+            throw new IllegalArgumentException("ExpireAfterIdle should be positive");
+        }
+        return expireAfterIdle;
+    }
+
+    private static int checkMaximumSize(final int maximumSize) {
+        if (maximumSize < 1) {
+            throw new IllegalArgumentException("MaximumSize should be greater than 0");
+        }
+        return maximumSize;
+    }
+
+    private static int checkPersistenceCapacity(final int persistenceCapacity) {
+        if (persistenceCapacity < 1) {
+            throw new IllegalArgumentException("PersistenceCapacity should be greater than 0");
+        }
+        return persistenceCapacity;
+    }
+
+    private static int checkPermitBatchSize(final int permitBatchSize) {
+        if (permitBatchSize < 1) {
+            throw new IllegalArgumentException("PermitBatchSize should be greater than 0");
+        }
+        return permitBatchSize;
+    }
+
+
+    public static class Builder {
+        private Duration expireAfterIdle;
+        private int maximumSize = Integer.MAX_VALUE;
+        private Path persistenceFile;
+        private int persistenceCapacity = DEFAULT_PERSISTENCE_CAPACITY;
+        private int permitBatchSize = DEFAULT_PERMIT_BATCH_SIZE;
+
+        public RequestLimitRegistryConfig build() {
+            return new RequestLimitRegistryConfig(
+                expireAfterIdle, maximumSize, persistenceFile, persistenceCapacity, permitBatchSize
+            );
+        }
+
+        public Builder expireAfterIdle(final Duration expireAfterIdle) {
+            this.expireAfterIdle = checkExpireAfterIdle(expireAfterIdle);
+            return this;
+        }
+
+        public Builder maximumSize(final int maximumSize) {
+            this.maximumSize = checkMaximumSize(maximumSize);
+            return this;
+        }
+
+        public Builder persistenceFile(final Path persistenceFile) {
+            this.persistenceFile = requireNonNull(persistenceFile, PERSISTENCE_FILE_MUST_NOT_BE_NULL);
+            return this;
+        }
+
+        public Builder persistenceCapacity(final int persistenceCapacity) {
+            this.persistenceCapacity = checkPersistenceCapacity(persistenceCapacity);
+            return this;
+        }
+
+        public Builder permitBatchSize(final int permitBatchSize) {
+            this.permitBatchSize = checkPermitBatchSize(permitBatchSize);
+            return this;
+        }
+    }
+}
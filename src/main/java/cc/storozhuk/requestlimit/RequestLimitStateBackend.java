@@ -0,0 +1,27 @@
+package cc.storozhuk.requestlimit;
+
+/**
+ * Shared state of request limits that are enforced across several processes,
+ * e.g. a key-value store with atomic increments that is reachable from all nodes.
+ * <p>Time is split into cycles of {@link RequestLimitConfig#getLimitRefreshPeriod()} counted from the start of epoch,
+ * so all nodes with synchronized clocks agree on the current cycle. Each cycle has a budget of
+ * {@link RequestLimitConfig#getLimitForPeriod()} permits shared by all nodes, unused permits are not accumulated.
+ * <p>Nodes take permits in batches and serve them locally, so the backend is called
+ * once per batch instead of once per permission request.
+ *
+ * @author bstorozhuk
+ */
+public interface RequestLimitStateBackend {
+
+    /**
+     * Atomically takes up to the requested number of permits from the budget of the given cycle.
+     * Budgets of elapsed cycles are never used again, so the backend can expire them.
+     *
+     * @param name           name of the request limit
+     * @param cycle          number of the cycle since the start of epoch
+     * @param permits        number of permits requested by the node
+     * @param limitForPeriod budget of the cycle
+     * @return number of granted permits, from {@code 0} if the budget is exhausted up to {@code permits}
+     */
+    int acquirePermits(String name, long cycle, int permits, int limitForPeriod);
+}
@@ -8,4 +8,27 @@ public class RequestNotPermitted extends RuntimeException {
     public RequestNotPermitted(final String message) {
         super(message);
     }
-}
\ No newline at end of file
+
+    /**
+     * Creates exception that optionally skips stack trace capture.
+     * Stackless exceptions also have suppression disabled, so they don't accumulate state when rethrown.
+     *
+     * @param message            the detail message
+     * @param writableStackTrace whether or not the stack trace should be writable
+     */
+    public RequestNotPermitted(final String message, final boolean writableStackTrace) {
+        super(message, null, writableStackTrace, writableStackTrace);
+    }
+
+    /**
+     * Creates exception for rejected request to the given limit,
+     * honoring {@link RequestLimitConfig#isWritableStackTraceEnabled()}.
+     *
+     * @param requestLimit limit that rejected the request
+     * @return exception to throw
+     */
+    public static RequestNotPermitted createRequestNotPermitted(final RequestLimit requestLimit) {
+        boolean writableStackTrace = requestLimit.getRequestLimitConfig().isWritableStackTraceEnabled();
+        return new RequestNotPermitted("Request not permitted for limit: " + requestLimit.getName(), writableStackTrace);
+    }
+}
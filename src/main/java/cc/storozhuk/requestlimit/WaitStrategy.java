@@ -0,0 +1,50 @@
+package cc.storozhuk.requestlimit;
+
+/**
+ * Defines how threads blocked in {@link RequestLimit#getPermission(java.time.Duration)} wait for permission.
+ * <p>{@link #SEMAPHORE} and {@link #QUEUE} are specific to the semaphore based request limit,
+ * other request limits wait for their next cycle as with {@link #PARK}.
+ * {@link #SPIN}, {@link #SPIN_THEN_YIELD} and {@link #BACKOFF} burn CPU of the waiting thread for lower wake up latency,
+ * so they fit latency-critical callers with sub-millisecond timeouts.
+ *
+ * @author bstorozhuk
+ */
+public enum WaitStrategy {
+
+    /**
+     * Threads wait in the queue of the request limit {@link java.util.concurrent.Semaphore}
+     * and compete for permits when they are refreshed.
+     */
+    SEMAPHORE,
+
+    /**
+     * Threads wait in the same lock-free FIFO queue as asynchronous permission requests
+     * and the limit refresh hands permits directly to them, so each waiting thread is parked once
+     * and unparked only when it has got its permits or its timeout elapsed.
+     * <p>Waiting uses only {@link java.util.concurrent.locks.LockSupport} park and unpark without monitors,
+     * so it doesn't pin virtual threads to their carriers on runtimes that have them.
+     * It is best combined with refreshes driven by a shared timer, e.g. for request limits
+     * created by {@link RequestLimitRegistry}, so no platform thread is needed per request limit.
+     */
+    QUEUE,
+
+    /**
+     * Threads check for permission in a busy loop until it is available or the timeout elapses.
+     */
+    SPIN,
+
+    /**
+     * Threads spin for a short while and then yield the processor between checks for permission.
+     */
+    SPIN_THEN_YIELD,
+
+    /**
+     * Threads spin for a short while and then park for exponentially growing periods between checks for permission.
+     */
+    BACKOFF,
+
+    /**
+     * Threads park precisely until the start of the next limit refresh period and check for permission again.
+     */
+    PARK
+}
@@ -0,0 +1,222 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Integer.max;
+import static java.lang.Integer.min;
+import static java.util.Objects.requireNonNull;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RequestLimit} decorator that adjusts the limit for period of the underlying request limit
+ * with additive increase and multiplicative decrease (AIMD) of the effective limit,
+ * driven by calls recorded with {@link RequestLimit#recordCall(long, boolean)}.
+ * <p>Once per {@link RequestLimitConfig#getLimitRefreshPeriod()} effective limit is:
+ * <ul>
+ * <li>decreased by 10% if some calls of the period failed or their average latency exceeded
+ * {@link RequestLimitConfig#getLatencyThreshold()}, but not below {@link RequestLimitConfig#getMinLimitForPeriod()};</li>
+ * <p>
+ * <li>increased by one permit if at least half of the effective limit was used,
+ * but not above {@link RequestLimitConfig#getLimitForPeriod()};</li>
+ * <p>
+ * <li>left untouched if there were no calls, so idle request limit keeps its last estimate.</li>
+ * </ul>
+ * <p>Samples are accumulated in {@link LongAdder}s, so recording threads don't contend with each other.
+ * Adjustment runs on the first recorded call after the end of the period and only the thread that
+ * moves the start of the period with a single compare and set adjusts the limit.
+ *
+ * @author bstorozhuk
+ */
+class AdaptiveRequestLimit implements RequestLimit {
+
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+    private static final double DECREASE_RATIO = 0.9;
+
+    private final RequestLimit requestLimit;
+    private final long cyclePeriodInNanos;
+    private final AtomicLong cycleStart;
+    private final LongAdder calls;
+    private final LongAdder failedCalls;
+    private final LongAdder callDurationInNanos;
+    private volatile RequestLimitConfig requestLimitConfig;
+    private volatile int effectiveLimitForPeriod;
+
+    AdaptiveRequestLimit(final RequestLimit requestLimit, final RequestLimitConfig requestLimitConfig) {
+        this.requestLimit = requestLimit;
+        this.requestLimitConfig = requestLimitConfig;
+        this.cyclePeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        this.effectiveLimitForPeriod = requestLimitConfig.getLimitForPeriod();
+        this.calls = new LongAdder();
+        this.failedCalls = new LongAdder();
+        this.callDurationInNanos = new LongAdder();
+        this.cycleStart = new AtomicLong(currentNanoTime());
+    }
+
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        calls.increment();
+        callDurationInNanos.add(durationInNanos);
+        if (failed) {
+            failedCalls.increment();
+        }
+        long currentNanos = currentNanoTime();
+        long start = cycleStart.get();
+        if (currentNanos - start >= cyclePeriodInNanos && cycleStart.compareAndSet(start, currentNanos)) {
+            adjustLimitForPeriod();
+        }
+    }
+
+    /**
+     * Samples recorded concurrently with the adjustment can be counted in the next period,
+     * that doesn't change the estimate noticeably, but keeps recording lock-free.
+     */
+    private void adjustLimitForPeriod() {
+        long periodCalls = calls.sumThenReset();
+        long periodFailedCalls = failedCalls.sumThenReset();
+        long periodDurationInNanos = callDurationInNanos.sumThenReset();
+        if (periodCalls == 0) {
+            return;
+        }
+        RequestLimitConfig config = requestLimitConfig;
+        int limitForPeriod = effectiveLimitForPeriod;
+        long latencyThresholdInNanos = config.getLatencyThreshold().map(Duration::toNanos).getOrElse(Long.MAX_VALUE);
+        boolean overloaded = periodFailedCalls > 0 || periodDurationInNanos / periodCalls > latencyThresholdInNanos;
+        int newLimitForPeriod = limitForPeriod;
+        if (overloaded) {
+            newLimitForPeriod = max(config.getMinLimitForPeriod(), (int) (limitForPeriod * DECREASE_RATIO));
+        } else if (periodCalls * 2 >= limitForPeriod) {
+            newLimitForPeriod = min(config.getLimitForPeriod(), limitForPeriod + 1);
+        }
+        if (newLimitForPeriod != limitForPeriod) {
+            effectiveLimitForPeriod = newLimitForPeriod;
+            requestLimit.changeLimitForPeriod(newLimitForPeriod);
+        }
+    }
+
+    long currentNanoTime() {
+        return System.nanoTime();
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return requestLimit.getPermission(timeoutInNanos);
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        return requestLimit.getPermission(timeoutInNanos, priority);
+    }
+
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        return requestLimit.getPermissions(permits, timeoutInNanos);
+    }
+
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        return requestLimit.acquirePermissionAsync();
+    }
+
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return requestLimit.reservePermission(timeoutDuration);
+    }
+
+    @Override
+    public void releasePermissions(final int permits) {
+        requestLimit.releasePermissions(permits);
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        return requestLimit.getNanosToNextRefresh();
+    }
+
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        return requestLimit.acquireInFlightPermission(timeoutInNanos);
+    }
+
+    @Override
+    public void releaseInFlightPermission() {
+        requestLimit.releaseInFlightPermission();
+    }
+
+    /**
+     * Changes the upper bound of the effective limit, effective limit is lowered to it if necessary.
+     *
+     * @param limitForPeriod new upper bound of the effective limit
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Effective limit is kept between new {@link RequestLimitConfig#getMinLimitForPeriod()}
+     * and {@link RequestLimitConfig#getLimitForPeriod()}, and the underlying request limit gets the new config
+     * with the effective limit for period.
+     */
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (newConfig.getLimitRefreshPeriodInNanos() != cyclePeriodInNanos) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        int limitForPeriod = min(newConfig.getLimitForPeriod(), max(newConfig.getMinLimitForPeriod(), effectiveLimitForPeriod));
+        requestLimitConfig = newConfig;
+        effectiveLimitForPeriod = limitForPeriod;
+        requestLimit.changeRequestLimitConfig(RequestLimitConfig.from(newConfig).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void close() {
+        requestLimit.close();
+    }
+
+    @Override
+    public String getName() {
+        return requestLimit.getName();
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return requestLimit.getMetrics();
+    }
+
+    /**
+     * Returns config with the upper bound of the effective limit,
+     * so decorators keep recording calls of this request limit.
+     *
+     * @return config of this request limit
+     */
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimitConfig;
+    }
+
+    /**
+     * Returns the limit for period that is currently applied to the underlying request limit.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @return effective limit for period
+     */
+    int getEffectiveLimitForPeriod() {
+        return effectiveLimitForPeriod;
+    }
+}
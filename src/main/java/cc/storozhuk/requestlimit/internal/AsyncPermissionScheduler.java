@@ -0,0 +1,67 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.util.concurrent.ForkJoinPool.commonPool;
+
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Single daemon timer shared by all request limits to complete asynchronous permission requests.
+ * <p>Every waiting request costs only one entry in the timer queue instead of a parked thread.
+ * Permissions are completed on the {@link java.util.concurrent.ForkJoinPool#commonPool()},
+ * so dependent stages never run on the timer or limit refresh threads.
+ *
+ * @author bstorozhuk
+ */
+final class AsyncPermissionScheduler {
+
+    private static final ScheduledThreadPoolExecutor SCHEDULER = configureScheduler();
+
+    private AsyncPermissionScheduler() {
+    }
+
+    private static ScheduledThreadPoolExecutor configureScheduler() {
+        ScheduledThreadPoolExecutor scheduler = new ScheduledThreadPoolExecutor(1, target -> {
+            Thread thread = new Thread(target, "AsyncPermissionScheduler");
+            thread.setDaemon(true);
+            return thread;
+        });
+        scheduler.setRemoveOnCancelPolicy(true);
+        return scheduler;
+    }
+
+    /**
+     * Completes permission on the {@link java.util.concurrent.ForkJoinPool#commonPool()}.
+     *
+     * @param permission permission to complete
+     * @param permitted  result of the permission request
+     */
+    static void complete(final CompletableFuture<Boolean> permission, final boolean permitted) {
+        commonPool().execute(() -> permission.complete(permitted));
+    }
+
+    /**
+     * Creates permission that will be granted after the given delay.
+     *
+     * @param delayInNanos nanoseconds to wait before permission is granted
+     * @return permission that will be completed with {@code true}
+     */
+    static CompletableFuture<Boolean> permitAfter(final long delayInNanos) {
+        CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        schedule(() -> complete(permission, true), delayInNanos);
+        return permission;
+    }
+
+    /**
+     * Schedules one shot task on the shared timer.
+     *
+     * @param task         task to run, it should be short and non-blocking
+     * @param delayInNanos nanoseconds to wait before running the task
+     * @return handle that can be used to cancel the task
+     */
+    static ScheduledFuture<?> schedule(final Runnable task, final long delayInNanos) {
+        return SCHEDULER.schedule(task, delayInNanos, TimeUnit.NANOSECONDS);
+    }
+}
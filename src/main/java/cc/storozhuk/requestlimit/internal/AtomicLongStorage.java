@@ -0,0 +1,19 @@
+package cc.storozhuk.requestlimit.internal;
+
+/**
+ * Fixed size array of {@code long} values with atomic access,
+ * used to keep state of {@link OpenAddressingKeyedRequestLimitRegistry} on or off the heap.
+ * <p>Indexes are not checked, callers are responsible to keep them in range.
+ *
+ * @author bstorozhuk
+ */
+interface AtomicLongStorage {
+
+    int length();
+
+    long get(int index);
+
+    void set(int index, long value);
+
+    boolean compareAndSet(int index, long expect, long update);
+}
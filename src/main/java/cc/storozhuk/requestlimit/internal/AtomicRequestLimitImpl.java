@@ -0,0 +1,506 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.min;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link AtomicRequestLimitImpl} splits all nanoseconds from the start of epoch into cycles.
+ * <p>Each cycle has duration of {@link RequestLimitConfig#getLimitRefreshPeriod()} in nanoseconds.
+ * <p>By contract on start of each cycle request limit should
+ * add {@link RequestLimitConfig#getLimitForPeriod()} to {@link State#activePermissions},
+ * but never top them up above {@link RequestLimitConfig#getBurstCapacity()}.
+ * For the {@link AtomicRequestLimitImpl} callers it really looks so, but under the hood there is
+ * some optimisations that will skip this refresh if {@link AtomicRequestLimitImpl} is not used actively.
+ * <p>All {@link AtomicRequestLimitImpl} updates are atomic and state is encapsulated in {@link AtomicReference} to
+ * {@link AtomicRequestLimitImpl.State}, so there are no background threads and no locks on the permission path.
+ *
+ * @author bstorozhuk
+ */
+public class AtomicRequestLimitImpl implements RequestLimit {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+
+    private static final long NANO_TIME_START = nanoTime();
+
+    private final String name;
+    private final long cyclePeriodInNanos;
+    private final AtomicInteger waitingThreads;
+    private final AtomicReference<State> state;
+    private final AtomicRequestLimitMetrics metrics;
+
+    public AtomicRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig) {
+        this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+
+        this.cyclePeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+
+        this.waitingThreads = new AtomicInteger(0);
+        this.state = new AtomicReference<>(new State(requestLimitConfig, 0, requestLimitConfig.getLimitForPeriod(), 0));
+        this.metrics = this.new AtomicRequestLimitMetrics();
+    }
+
+    /**
+     * Acquires a permit from this request limit, blocking until one is
+     * available or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @return {@code true} if a permit was acquired and {@code false}
+     * if the waiting time elapsed before a permit was acquired
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from this request limit with a single atomic state update,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>Batches bigger than {@link RequestLimitConfig#getBurstCapacity()} can never be acquired,
+     * so the method returns {@code false} for them immediately.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if the waiting time elapsed before permits were acquired
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        if (permits > state.get().config.getBurstCapacity()) {
+            return false;
+        }
+        State modifiedState = updateStateWithBackOff(permits, timeoutInNanos);
+        boolean result = waitForPermissionIfNecessary(timeoutInNanos, modifiedState.nanosToWait);
+        return result;
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>Permission is reserved in the same way as for {@link #getPermission(Duration)}
+     * and granted by the shared timer when the reserved cycle starts. If the permission can't be acquired within
+     * {@link RequestLimitConfig#getTimeoutDuration()} returned stage is completed with {@code false} immediately.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        long nanosToWait = reservePermission(state.get().config.getTimeoutInNanos());
+        if (nanosToWait == 0) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (nanosToWait < 0) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return AsyncPermissionScheduler.permitAfter(nanosToWait);
+    }
+
+    /**
+     * Reserves permission without blocking the calling thread.
+     * <p>
+     * <p>Permission is reserved in the cycle when it becomes available, so the caller
+     * should wait for the start of that cycle before using it.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return nanoseconds caller should wait before using the permission,
+     * or negative value if permission can't be acquired within the timeout
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return reservePermission(timeoutDuration.toNanos());
+    }
+
+    private long reservePermission(final long timeoutInNanos) {
+        State modifiedState = updateStateWithBackOff(1, timeoutInNanos);
+        long nanosToWait = modifiedState.nanosToWait;
+        if (nanosToWait <= 0) {
+            return 0L;
+        }
+        if (nanosToWait > timeoutInNanos) {
+            return -1L;
+        }
+        return nanosToWait;
+    }
+
+    /**
+     * Atomically updates the current {@link State} with the results of
+     * applying the {@link AtomicRequestLimitImpl#calculateNextState}, returning the updated {@link State}.
+     * It differs from {@link AtomicReference#updateAndGet} by constant back off.
+     * It means that after one failed try to {@link AtomicReference#compareAndSet} this method will wait for a while
+     * before try one more time, so contended threads don't hammer the same cache line.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time that caller can wait for permission in nanoseconds
+     * @return the updated value
+     */
+    private State updateStateWithBackOff(final int permits, final long timeoutInNanos) {
+        State prev;
+        State next;
+        do {
+            prev = state.get();
+            next = calculateNextState(permits, timeoutInNanos, prev);
+        } while (!compareAndSet(prev, next));
+        return next;
+    }
+
+    /**
+     * Atomically sets the value to the given updated value
+     * if the current value {@code ==} the expected value.
+     * It differs from {@link AtomicReference#compareAndSet} by constant back off.
+     *
+     * @param current the expected value
+     * @param next    the new value
+     * @return {@code true} if successful. False return indicates that
+     * the actual value was not equal to the expected value.
+     */
+    private boolean compareAndSet(final State current, final State next) {
+        if (state.compareAndSet(current, next)) {
+            return true;
+        }
+        parkNanos(1); // back-off
+        return false;
+    }
+
+    /**
+     * A side-effect-free function that can calculate next {@link State} from current.
+     * It determines time duration that you should wait for permission and reserves it for you,
+     * if you'll be able to wait long enough.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time that caller can wait for permission in nanoseconds
+     * @param activeState    current state of {@link AtomicRequestLimitImpl}
+     * @return next {@link State}
+     */
+    private State calculateNextState(final int permits, final long timeoutInNanos, final State activeState) {
+        long currentNanos = currentNanoTime();
+        long currentCycle = currentNanos / cyclePeriodInNanos;
+
+        RequestLimitConfig config = activeState.config;
+        long nextCycle = activeState.activeCycle;
+        int nextPermissions = activeState.activePermissions;
+        if (nextCycle != currentCycle) {
+            long elapsedCycles = currentCycle - nextCycle;
+            nextCycle = currentCycle;
+            nextPermissions = refillPermissions(config, nextPermissions, elapsedCycles);
+        }
+        long nextNanosToWait = nanosToWaitForPermission(config, permits, nextPermissions, currentNanos, currentCycle);
+        State nextState = reservePermissions(config, permits, timeoutInNanos, nextCycle, nextPermissions, nextNanosToWait);
+        return nextState;
+    }
+
+    /**
+     * Adds {@link RequestLimitConfig#getLimitForPeriod()} permissions for each elapsed cycle,
+     * but never more than {@link RequestLimitConfig#getBurstCapacity()} permissions in total.
+     *
+     * @param config            config that is active in the current cycle
+     * @param activePermissions permissions available at the end of the last observed cycle, can be negative
+     * @param elapsedCycles     number of cycles elapsed since the last observed cycle
+     * @return permissions available in the current cycle
+     */
+    private int refillPermissions(final RequestLimitConfig config, final int activePermissions, final long elapsedCycles) {
+        int permissionsPerCycle = config.getLimitForPeriod();
+        int maxPermissions = config.getBurstCapacity();
+        long deficit = (long) maxPermissions - activePermissions;
+        if (elapsedCycles >= deficit) {
+            return maxPermissions;
+        }
+        long accumulatedPermissions = elapsedCycles * permissionsPerCycle;
+        return (int) min(activePermissions + accumulatedPermissions, maxPermissions);
+    }
+
+    /**
+     * Calculates time to wait for the requested permits as
+     * [time to the next cycle] + [duration of full cycles until reserved and missing permissions are refilled]
+     *
+     * @param config               config that is active in the current cycle
+     * @param permits              number of permits to acquire
+     * @param availablePermissions currently available permissions, can be negative if some permissions have been reserved
+     * @param currentNanos         current time in nanoseconds
+     * @param currentCycle         current {@link AtomicRequestLimitImpl} cycle
+     * @return nanoseconds to wait for the requested permits
+     */
+    private long nanosToWaitForPermission(final RequestLimitConfig config, final int permits, final int availablePermissions,
+                                          final long currentNanos, final long currentCycle) {
+        if (availablePermissions >= permits) {
+            return 0L;
+        }
+        long nextCycleTimeInNanos = (currentCycle + 1) * cyclePeriodInNanos;
+        long nanosToNextCycle = nextCycleTimeInNanos - currentNanos;
+        long missingPermissions = (long) permits - availablePermissions;
+        long fullCyclesToWait = (missingPermissions - 1) / config.getLimitForPeriod();
+        return (fullCyclesToWait * cyclePeriodInNanos) + nanosToNextCycle;
+    }
+
+    /**
+     * Determines whether caller can acquire permission before timeout or not and then creates corresponding {@link State}.
+     * Reserves permissions only if caller can successfully wait for permission.
+     *
+     * @param config         config for new {@link State}
+     * @param permits        number of permits to reserve
+     * @param timeoutInNanos max time that caller can wait for permission in nanoseconds
+     * @param cycle          cycle for new {@link State}
+     * @param permissions    permissions for new {@link State}
+     * @param nanosToWait    nanoseconds to wait for the requested permits
+     * @return new {@link State} with possibly reserved permissions and time to wait
+     */
+    private State reservePermissions(final RequestLimitConfig config, final int permits, final long timeoutInNanos,
+                                     final long cycle, final int permissions, final long nanosToWait) {
+        boolean canAcquireInTime = timeoutInNanos >= nanosToWait;
+        int permissionsWithReservation = permissions;
+        if (canAcquireInTime) {
+            permissionsWithReservation -= permits;
+        }
+        return new State(config, cycle, permissionsWithReservation, nanosToWait);
+    }
+
+    /**
+     * If nanosToWait is bigger than 0 it tries to park {@link Thread} for nanosToWait.
+     * Permission that can't be acquired within timeoutInNanos was not reserved,
+     * so the request is rejected right away instead of waiting for the whole timeout.
+     *
+     * @param timeoutInNanos max time that caller can wait
+     * @param nanosToWait    nanoseconds caller need to wait
+     * @return true if caller was able to wait for nanosToWait without {@link Thread#interrupt} and not exceed timeout
+     */
+    private boolean waitForPermissionIfNecessary(final long timeoutInNanos, final long nanosToWait) {
+        boolean canAcquireImmediately = nanosToWait <= 0;
+        boolean canAcquireInTime = timeoutInNanos >= nanosToWait;
+
+        if (canAcquireImmediately) {
+            return true;
+        }
+        if (canAcquireInTime) {
+            return waitForPermission(nanosToWait);
+        }
+        return false;
+    }
+
+    /**
+     * Waits for nanosToWait with {@link RequestLimitConfig#getWaitStrategy()}.
+     * <p>If the current thread is {@linkplain Thread#interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param nanosToWait nanoseconds caller need to wait
+     * @return true if caller was not {@link Thread#interrupted} while waiting
+     */
+    private boolean waitForPermission(final long nanosToWait) {
+        waitingThreads.incrementAndGet();
+        long deadline = currentNanoTime() + nanosToWait;
+        boolean wasNotInterrupted = WaitStrategies.await(state.get().config.getWaitStrategy(), deadline, this::currentNanoTime);
+        waitingThreads.decrementAndGet();
+        return wasNotInterrupted;
+    }
+
+    /**
+     * Returns the current time in nanoseconds relative to the class initialisation,
+     * so cycle boundaries are the same for all instances.
+     *
+     * @return nanoseconds since {@link AtomicRequestLimitImpl} class initialisation
+     */
+    long currentNanoTime() {
+        return nanoTime() - NANO_TIME_START;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permits are added to the permissions of the current cycle with the same constant back off,
+     * so negative permissions of reservations are returned first.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        State prev;
+        State next;
+        do {
+            prev = state.get();
+            State currentCycleState = calculateNextState(0, 0L, prev);
+            int maxPermissions = prev.config.getBurstCapacity();
+            if (currentCycleState.activePermissions >= maxPermissions) {
+                return;
+            }
+            int nextPermissions = (int) min((long) currentCycleState.activePermissions + permits, maxPermissions);
+            next = new State(prev.config, currentCycleState.activeCycle, nextPermissions, prev.nanosToWait);
+        } while (!compareAndSet(prev, next));
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        long currentNanos = currentNanoTime();
+        return (currentNanos / cyclePeriodInNanos + 1) * cyclePeriodInNanos - currentNanos;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permissions are refilled up to the current cycle with the old config
+     * and then the new config is swapped into the {@link State},
+     * so the new limit is used by the refill on the next cycle boundary.
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        changeConfig(config -> RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        changeConfig(config -> RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (newConfig.getLimitRefreshPeriodInNanos() != cyclePeriodInNanos) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        changeConfig(config -> newConfig);
+    }
+
+    private void changeConfig(final UnaryOperator<RequestLimitConfig> configChange) {
+        State prev;
+        State next;
+        do {
+            prev = state.get();
+            State currentCycleState = calculateNextState(0, 0L, prev);
+            RequestLimitConfig nextConfig = configChange.apply(prev.config);
+            next = new State(
+                nextConfig, currentCycleState.activeCycle, currentCycleState.activePermissions, prev.nanosToWait
+            );
+        } while (!compareAndSet(prev, next));
+    }
+
+    /**
+     * {@link AtomicRequestLimitImpl} has no background refreshes, so there is nothing to release.
+     * Asynchronous permissions that are already reserved are still granted by the shared timer.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return state.get().config;
+    }
+
+    public AtomicRequestLimitMetrics getDetailedMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * <p>{@link AtomicRequestLimitImpl.State} represents immutable state of {@link AtomicRequestLimitImpl} where:
+     * <ul>
+     * <li>config - {@link RequestLimitConfig} that is used to refill permissions on the next cycle.</li>
+     * <p>
+     * <li>activeCycle - {@link AtomicRequestLimitImpl} cycle number that was used
+     * by the last {@link AtomicRequestLimitImpl#getPermission(Duration)} call.</li>
+     * <p>
+     * <li>activePermissions - count of available permissions after
+     * the last {@link AtomicRequestLimitImpl#getPermission(Duration)} call.
+     * Can be negative if some permissions where reserved.</li>
+     * <p>
+     * <li>nanosToWait - count of nanoseconds to wait for permission for
+     * the last {@link AtomicRequestLimitImpl#getPermission(Duration)} call.</li>
+     * </ul>
+     */
+    private static final class State {
+
+        private final RequestLimitConfig config;
+        private final long activeCycle;
+        private final int activePermissions;
+        private final long nanosToWait;
+
+        private State(final RequestLimitConfig config, final long activeCycle,
+                      final int activePermissions, final long nanosToWait) {
+            this.config = config;
+            this.activeCycle = activeCycle;
+            this.activePermissions = activePermissions;
+            this.nanosToWait = nanosToWait;
+        }
+    }
+
+    /**
+     * Enhanced {@link Metrics} with some implementation specific details
+     */
+    public final class AtomicRequestLimitMetrics implements Metrics {
+        private AtomicRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads waiting for permission
+         * in this JVM process.
+         *
+         * @return estimate of the number of threads waiting for permission.
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Estimates count of available permissions.
+         * Can be negative if some permissions where reserved.
+         * <p>
+         * <p>This method is typically used for debugging and testing purposes.
+         *
+         * @return estimated count of permissions
+         */
+        public int getAvailablePermits() {
+            State estimatedState = calculateNextState(1, -1, state.get());
+            return estimatedState.activePermissions;
+        }
+
+        /**
+         * Estimates time duration in nanos to wait for the next permission.
+         *
+         * @return estimated time duration in nanos to wait for the next permission
+         */
+        public long getNanosToWait() {
+            State currentState = state.get();
+            State estimatedState = calculateNextState(1, -1, currentState);
+            return estimatedState.nanosToWait;
+        }
+
+        /**
+         * Returns the cycle number observed by the last permission request.
+         *
+         * @return cycle number
+         */
+        public long getCycle() {
+            return state.get().activeCycle;
+        }
+    }
+}
@@ -0,0 +1,287 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static java.util.concurrent.locks.LockSupport.unpark;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link RequestLimit} decorator that limits the number of calls in flight to {@link RequestLimitConfig#getMaxConcurrentCalls()},
+ * like a bulkhead, so slow calls can't pile up even when the limit for period allows them.
+ * In-flight permissions are acquired and released by the {@code RequestLimit.decorate*} wrappers around each call,
+ * permission requests are served by the underlying request limit.
+ * <p>In-flight calls are counted with a single compare and set, so uncontended calls don't park or allocate.
+ * Threads that find all slots busy park in FIFO queue and released slots are handed to them directly:
+ * releasing thread acquires the slot on behalf of the first waiter and unparks it, so woken threads never compete for slots.
+ * <p>Slots can be taken by new calls before queued waiters, but every release and every enqueued waiter
+ * drains the queue, so a free slot never stays unused while someone waits for it.
+ *
+ * @author bstorozhuk
+ */
+class BulkheadRequestLimit implements RequestLimit {
+
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String MAX_CONCURRENT_CALLS_CANT_BE_REMOVED = "MaxConcurrentCalls can't be removed";
+
+    private final RequestLimit requestLimit;
+    private final AtomicInteger inFlightCalls;
+    private final AtomicInteger waitingThreads;
+    private final Queue<Waiter> waiters;
+    private final AtomicBoolean closed;
+    private final Metrics metrics;
+    private volatile int maxConcurrentCalls;
+
+    BulkheadRequestLimit(final RequestLimit requestLimit) {
+        this.requestLimit = requestLimit;
+        this.maxConcurrentCalls = checkMaxConcurrentCalls(requestLimit.getRequestLimitConfig());
+        this.inFlightCalls = new AtomicInteger(0);
+        this.waitingThreads = new AtomicInteger(0);
+        this.waiters = new ConcurrentLinkedQueue<>();
+        this.closed = new AtomicBoolean(false);
+        this.metrics = () -> waitingThreads.get() + requestLimit.getMetrics().getNumberOfWaitingThreads();
+    }
+
+    private static int checkMaxConcurrentCalls(final RequestLimitConfig requestLimitConfig) {
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (!requestLimitConfig.isLimitingConcurrentCalls()) {
+            throw new IllegalArgumentException(MAX_CONCURRENT_CALLS_CANT_BE_REMOVED);
+        }
+        return requestLimitConfig.getMaxConcurrentCalls();
+    }
+
+    /**
+     * Acquires in-flight permission, blocking until a slot is handed to the calling thread or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted} while waiting,
+     * it stops waiting and its interrupt status is set.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for in-flight permission
+     * @return {@code true} if in-flight permission was acquired and {@code false} otherwise
+     */
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        if (tryAcquireSlot()) {
+            return true;
+        }
+        if (timeoutInNanos <= 0 || closed.get()) {
+            return false;
+        }
+        Waiter waiter = new Waiter(Thread.currentThread());
+        long deadline = nanoTime() + timeoutInNanos;
+        waitingThreads.incrementAndGet();
+        waiters.add(waiter);
+        handOffSlots();
+        boolean wasInterrupted = false;
+        while (!waiter.isResolved()) {
+            long nanosToWait = deadline - nanoTime();
+            if (nanosToWait <= 0 || wasInterrupted || closed.get()) {
+                waiter.resolve(false);
+            } else {
+                parkNanos(this, nanosToWait);
+                wasInterrupted = Thread.interrupted();
+            }
+        }
+        waitingThreads.decrementAndGet();
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        return waiter.isPermitted();
+    }
+
+    /**
+     * Frees the slot and hands it to the first waiter, if there is any.
+     */
+    @Override
+    public void releaseInFlightPermission() {
+        inFlightCalls.decrementAndGet();
+        handOffSlots();
+    }
+
+    private boolean tryAcquireSlot() {
+        int calls = inFlightCalls.get();
+        while (calls < maxConcurrentCalls) {
+            if (inFlightCalls.compareAndSet(calls, calls + 1)) {
+                return true;
+            }
+            calls = inFlightCalls.get();
+        }
+        return false;
+    }
+
+    /**
+     * Hands free slots to waiters in FIFO order, it stops at the first waiter that can't get a slot.
+     * <p>
+     * <p>Can be called concurrently: slot acquired for a waiter that was already resolved
+     * by someone else, e.g. by its own timeout, is freed again.
+     */
+    private void handOffSlots() {
+        Waiter waiter = waiters.peek();
+        while (waiter != null) {
+            if (!waiter.isResolved()) {
+                if (!tryAcquireSlot()) {
+                    return;
+                }
+                if (!waiter.resolve(true)) {
+                    inFlightCalls.decrementAndGet();
+                }
+            }
+            waiters.remove(waiter);
+            waiter = waiters.peek();
+        }
+    }
+
+    /**
+     * Returns the number of calls that hold in-flight permission.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @return number of in-flight calls
+     */
+    int getNumberOfInFlightCalls() {
+        return inFlightCalls.get();
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return requestLimit.getPermission(timeoutInNanos);
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        return requestLimit.getPermission(timeoutInNanos, priority);
+    }
+
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        return requestLimit.getPermissions(permits, timeoutInNanos);
+    }
+
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        return requestLimit.acquirePermissionAsync();
+    }
+
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return requestLimit.reservePermission(timeoutDuration);
+    }
+
+    @Override
+    public void releasePermissions(final int permits) {
+        requestLimit.releasePermissions(permits);
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        return requestLimit.getNanosToNextRefresh();
+    }
+
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        requestLimit.recordCall(durationInNanos, failed);
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        requestLimit.changeLimitForPeriod(limitForPeriod);
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        requestLimit.changeTimeoutDuration(timeoutDuration);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>New max concurrent calls is applied immediately: waiters get the added slots right away
+     * and with the lowered limit new calls wait until enough in-flight calls complete.
+     *
+     * @throws IllegalArgumentException if the new config doesn't limit in-flight calls
+     */
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig requestLimitConfig) {
+        int newMaxConcurrentCalls = checkMaxConcurrentCalls(requestLimitConfig);
+        requestLimit.changeRequestLimitConfig(requestLimitConfig);
+        maxConcurrentCalls = newMaxConcurrentCalls;
+        handOffSlots();
+    }
+
+    /**
+     * Threads waiting for in-flight permission stop waiting without it.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        Waiter waiter = waiters.poll();
+        while (waiter != null) {
+            waiter.resolve(false);
+            waiter = waiters.poll();
+        }
+        requestLimit.close();
+    }
+
+    @Override
+    public String getName() {
+        return requestLimit.getName();
+    }
+
+    /**
+     * Number of waiting threads includes threads waiting for in-flight permission.
+     *
+     * @return metrics of this request limit
+     */
+    @Override
+    public Metrics getMetrics() {
+        return metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimit.getRequestLimitConfig();
+    }
+
+    /**
+     * Thread waiting for in-flight permission, it is resolved exactly once,
+     * either with a slot handed off by another thread or without it.
+     */
+    private static final class Waiter {
+        private static final int PENDING = 0;
+        private static final int PERMITTED = 1;
+        private static final int REJECTED = 2;
+
+        private final Thread thread;
+        private final AtomicInteger resolution = new AtomicInteger(PENDING);
+
+        private Waiter(final Thread thread) {
+            this.thread = thread;
+        }
+
+        private boolean isResolved() {
+            return resolution.get() != PENDING;
+        }
+
+        private boolean isPermitted() {
+            return resolution.get() == PERMITTED;
+        }
+
+        private boolean resolve(final boolean permitted) {
+            if (!resolution.compareAndSet(PENDING, permitted ? PERMITTED : REJECTED)) {
+                return false;
+            }
+            unpark(thread);
+            return true;
+        }
+    }
+}
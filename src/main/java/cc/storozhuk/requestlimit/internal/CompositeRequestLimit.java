@@ -0,0 +1,306 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.max;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link CompositeRequestLimit} enforces several levels of request limits, e.g. per tenant, per endpoint and global,
+ * as a single request limit: permission is granted only if every level grants it and permits acquired
+ * from some levels are returned with {@link RequestLimit#releasePermissions(int)} if another level rejects the request.
+ * <p>Levels are ordered from the most specific to the most shared one. Composite stands for its first level,
+ * so config changes are applied to it, while other levels are usually shared between composites and managed by their owners.
+ * <p>Fast path tries all levels without waiting. If some level rejects the request, the thread waits only
+ * on that level without holding permits of other levels and then tries other levels without waiting again,
+ * so a thread is never parked by more than one level at a time and permits are not hoarded while waiting.
+ *
+ * @author bstorozhuk
+ */
+public class CompositeRequestLimit implements RequestLimit {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+    private static final String LEVELS_MUST_NOT_BE_NULL = "Levels must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final int ALL_LEVELS_PERMITTED = -1;
+    private static final int NO_LEVEL = -1;
+
+    private final String name;
+    private final RequestLimit[] levels;
+    private final AtomicInteger waitingThreads;
+    private final CompositeRequestLimitMetrics metrics;
+
+    /**
+     * @param name   name of the composite request limit
+     * @param levels request limits to enforce, ordered from the most specific to the most shared one
+     */
+    public CompositeRequestLimit(final String name, final RequestLimit... levels) {
+        this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        this.levels = requireNonNull(levels, LEVELS_MUST_NOT_BE_NULL).clone();
+        if (this.levels.length == 0) {
+            throw new IllegalArgumentException("Levels should not be empty");
+        }
+        for (RequestLimit level : this.levels) {
+            requireNonNull(level, LEVELS_MUST_NOT_BE_NULL);
+        }
+        this.waitingThreads = new AtomicInteger(0);
+        this.metrics = this.new CompositeRequestLimitMetrics();
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from every level, blocking until all of them are available
+     * or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param permits        number of permits to acquire from each level
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired from all levels and {@code false}
+     * if none of them were acquired before the timeout
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        int rejectedLevel = tryAcquireLevels(permits, NO_LEVEL);
+        if (rejectedLevel == ALL_LEVELS_PERMITTED) {
+            return true;
+        }
+        if (timeoutInNanos <= 0) {
+            return false;
+        }
+        return waitForPermissions(permits, rejectedLevel, timeoutInNanos);
+    }
+
+    /**
+     * Waits for permits on the level that rejected the request and then tries other levels without waiting.
+     * If another level rejects the request, permits of the waited level are returned and the thread waits on the new one.
+     */
+    private boolean waitForPermissions(final int permits, final int rejectedLevel, final long timeoutInNanos) {
+        waitingThreads.incrementAndGet();
+        long deadline = nanoTime() + timeoutInNanos;
+        int waitedLevel = rejectedLevel;
+        long nanosToWait = timeoutInNanos;
+        boolean permitted = false;
+        while (!permitted && nanosToWait > 0 && levels[waitedLevel].getPermissions(permits, nanosToWait)) {
+            int nextRejectedLevel = tryAcquireLevels(permits, waitedLevel);
+            if (nextRejectedLevel == ALL_LEVELS_PERMITTED) {
+                permitted = true;
+            } else {
+                levels[waitedLevel].releasePermissions(permits);
+                waitedLevel = nextRejectedLevel;
+                nanosToWait = deadline - nanoTime();
+            }
+        }
+        waitingThreads.decrementAndGet();
+        return permitted;
+    }
+
+    /**
+     * Tries to acquire permits from all levels, except the already acquired one, without waiting.
+     * If some level rejects the request, permits acquired by this call are returned.
+     *
+     * @param permits       number of permits to acquire from each level
+     * @param acquiredLevel level that is already acquired by the caller or {@link #NO_LEVEL}
+     * @return index of the rejecting level or {@link #ALL_LEVELS_PERMITTED}
+     */
+    private int tryAcquireLevels(final int permits, final int acquiredLevel) {
+        for (int level = 0; level < levels.length; level++) {
+            if (level != acquiredLevel && !levels[level].getPermissions(permits, 0L)) {
+                releaseLevels(permits, level, acquiredLevel);
+                return level;
+            }
+        }
+        return ALL_LEVELS_PERMITTED;
+    }
+
+    private void releaseLevels(final int permits, final int untilLevel, final int skippedLevel) {
+        for (int level = 0; level < untilLevel; level++) {
+            if (level != skippedLevel) {
+                levels[level].releasePermissions(permits);
+            }
+        }
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>If some level rejects the request, permission is requested asynchronously from that level only
+     * and other levels are tried once when it is granted.
+     *
+     * @return stage that is completed with {@code true} if permission was acquired from all levels
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        int rejectedLevel = tryAcquireLevels(1, NO_LEVEL);
+        if (rejectedLevel == ALL_LEVELS_PERMITTED) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return levels[rejectedLevel].acquirePermissionAsync()
+            .thenApply(permitted -> permitted && acquireOtherLevels(rejectedLevel));
+    }
+
+    private boolean acquireOtherLevels(final int acquiredLevel) {
+        if (tryAcquireLevels(1, acquiredLevel) == ALL_LEVELS_PERMITTED) {
+            return true;
+        }
+        levels[acquiredLevel].releasePermissions(1);
+        return false;
+    }
+
+    /**
+     * Reserves permission on every level. If some level can't reserve it within the timeout,
+     * reservations of other levels are returned.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return the longest wait of all levels, or negative value if permission can't be acquired within the timeout
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        long nanosToWait = 0L;
+        for (int level = 0; level < levels.length; level++) {
+            long levelNanosToWait = levels[level].reservePermission(timeoutDuration);
+            if (levelNanosToWait < 0) {
+                releaseLevels(1, level, NO_LEVEL);
+                return -1L;
+            }
+            nanosToWait = max(nanosToWait, levelNanosToWait);
+        }
+        return nanosToWait;
+    }
+
+    @Override
+    public void releasePermissions(final int permits) {
+        releaseLevels(permits, levels.length, NO_LEVEL);
+    }
+
+    /**
+     * Records the call in every level, so adaptive levels adjust their limits to the same calls.
+     * Decorators measure calls only if the first level is adaptive, see {@link #getRequestLimitConfig()}.
+     */
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        for (RequestLimit level : levels) {
+            level.recordCall(durationInNanos, failed);
+        }
+    }
+
+    /**
+     * Acquires in-flight permission of every level in order, each level with the time left until the common deadline.
+     * If some level rejects the call, in-flight permissions of previous levels are released.
+     * Decorators acquire in-flight permission only if the first level limits in-flight calls.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for in-flight permissions
+     * @return {@code true} if in-flight permission was acquired from all levels and {@code false} otherwise
+     */
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        long deadline = nanoTime() + timeoutInNanos;
+        for (int level = 0; level < levels.length; level++) {
+            long nanosToWait = deadline - nanoTime();
+            if (!levels[level].acquireInFlightPermission(nanosToWait)) {
+                releaseInFlightLevels(level);
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public void releaseInFlightPermission() {
+        releaseInFlightLevels(levels.length);
+    }
+
+    private void releaseInFlightLevels(final int untilLevel) {
+        for (int level = 0; level < untilLevel; level++) {
+            levels[level].releaseInFlightPermission();
+        }
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        levels[0].changeLimitForPeriod(limitForPeriod);
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        levels[0].changeTimeoutDuration(timeoutDuration);
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig requestLimitConfig) {
+        levels[0].changeRequestLimitConfig(requestLimitConfig);
+    }
+
+    /**
+     * Levels are owned by their creators, e.g. {@link cc.storozhuk.requestlimit.RequestLimitRegistry},
+     * and can be shared with other composites, so there is nothing to release.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    /**
+     * Returns config of the first level, so its timeout is used by decorators of this request limit.
+     *
+     * @return config of the first level
+     */
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return levels[0].getRequestLimitConfig();
+    }
+
+    public CompositeRequestLimitMetrics getDetailedMetrics() {
+        return this.metrics;
+    }
+
+    public final class CompositeRequestLimitMetrics implements Metrics {
+        private CompositeRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads waiting for permission of one of the levels
+         * of this composite request limit.
+         *
+         * @return estimate of the number of waiting threads
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Returns the number of levels of this composite request limit.
+         *
+         * @return number of levels
+         */
+        public int getNumberOfLevels() {
+            return levels.length;
+        }
+    }
+}
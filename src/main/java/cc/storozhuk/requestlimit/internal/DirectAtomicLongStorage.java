@@ -0,0 +1,132 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.nio.channels.FileChannel.MapMode.READ_WRITE;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.LongBuffer;
+import java.nio.channels.FileChannel;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * {@link AtomicLongStorage} backed by {@link ByteBuffer#allocateDirect(int)} or by a memory-mapped file,
+ * so values live outside of the GC managed heap and don't affect heap size or pause times.
+ * <p>Java 8 has no public API for atomic operations on direct buffers,
+ * so every access takes one of {@value #LOCK_STRIPES} locks chosen by the value index.
+ * Neighbouring values are guarded by different locks, so threads working with different keys rarely contend.
+ * Direct buffers are limited to 2GB, so values are split into chunks of {@value #CHUNK_LENGTH} values.
+ * Memory is released together with the buffer, when the storage becomes unreachable.
+ *
+ * @author bstorozhuk
+ */
+final class DirectAtomicLongStorage implements AtomicLongStorage {
+
+    private static final int CHUNK_SHIFT = 24;
+    private static final int CHUNK_LENGTH = 1 << CHUNK_SHIFT;
+    private static final int CHUNK_MASK = CHUNK_LENGTH - 1;
+    private static final int LOCK_STRIPES = 64;
+
+    private final LongBuffer[] chunks;
+    private final ReentrantLock[] locks;
+    private final int length;
+
+    DirectAtomicLongStorage(final int length) {
+        this.length = length;
+        this.chunks = new LongBuffer[numberOfChunks(length)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            chunks[chunk] = asLongBuffer(ByteBuffer.allocateDirect(chunkLength(chunk) * Long.BYTES));
+        }
+        this.locks = createLocks();
+    }
+
+    private DirectAtomicLongStorage(final FileChannel fileChannel, final int length) throws IOException {
+        this.length = length;
+        this.chunks = new LongBuffer[numberOfChunks(length)];
+        for (int chunk = 0; chunk < chunks.length; chunk++) {
+            long chunkPosition = (long) chunk * CHUNK_LENGTH * Long.BYTES;
+            chunks[chunk] = asLongBuffer(fileChannel.map(READ_WRITE, chunkPosition, chunkLength(chunk) * (long) Long.BYTES));
+        }
+        this.locks = createLocks();
+    }
+
+    /**
+     * Maps the first {@code length} values of the file into memory, so values written to the storage
+     * are kept by the file after the process exits. Values are stored in the native byte order.
+     *
+     * @param fileChannel channel of the file opened for reading and writing
+     * @param length      number of values in the storage
+     * @return storage backed by the file
+     * @throws IOException if the file can't be mapped
+     */
+    static DirectAtomicLongStorage mapped(final FileChannel fileChannel, final int length) throws IOException {
+        return new DirectAtomicLongStorage(fileChannel, length);
+    }
+
+    private static int numberOfChunks(final int length) {
+        return (int) ((length + (long) CHUNK_MASK) >>> CHUNK_SHIFT);
+    }
+
+    private static LongBuffer asLongBuffer(final ByteBuffer buffer) {
+        return buffer.order(ByteOrder.nativeOrder()).asLongBuffer();
+    }
+
+    private static ReentrantLock[] createLocks() {
+        ReentrantLock[] locks = new ReentrantLock[LOCK_STRIPES];
+        for (int i = 0; i < LOCK_STRIPES; i++) {
+            locks[i] = new ReentrantLock();
+        }
+        return locks;
+    }
+
+    private int chunkLength(final int chunk) {
+        return Integer.min(CHUNK_LENGTH, length - chunk * CHUNK_LENGTH);
+    }
+
+    @Override
+    public int length() {
+        return length;
+    }
+
+    @Override
+    public long get(final int index) {
+        ReentrantLock lock = lockOf(index);
+        lock.lock();
+        try {
+            return chunks[index >>> CHUNK_SHIFT].get(index & CHUNK_MASK);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public void set(final int index, final long value) {
+        ReentrantLock lock = lockOf(index);
+        lock.lock();
+        try {
+            chunks[index >>> CHUNK_SHIFT].put(index & CHUNK_MASK, value);
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    @Override
+    public boolean compareAndSet(final int index, final long expect, final long update) {
+        ReentrantLock lock = lockOf(index);
+        lock.lock();
+        try {
+            LongBuffer chunk = chunks[index >>> CHUNK_SHIFT];
+            if (chunk.get(index & CHUNK_MASK) != expect) {
+                return false;
+            }
+            chunk.put(index & CHUNK_MASK, update);
+            return true;
+        } finally {
+            lock.unlock();
+        }
+    }
+
+    private ReentrantLock lockOf(final int index) {
+        return locks[index & (LOCK_STRIPES - 1)];
+    }
+}
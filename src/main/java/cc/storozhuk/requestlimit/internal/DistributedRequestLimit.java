@@ -0,0 +1,434 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Integer.max;
+import static java.lang.Integer.min;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.ForkJoinPool.commonPool;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.RequestLimitStateBackend;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * {@link RequestLimit} that shares the budget of each cycle with other nodes through {@link RequestLimitStateBackend}.
+ * <p>Cycles of {@link RequestLimitConfig#getLimitRefreshPeriod()} are counted by the wall clock from the start of epoch,
+ * so nodes with synchronized clocks agree on them. Node takes permits from the backend in batches of
+ * {@link cc.storozhuk.requestlimit.RequestLimitRegistryConfig#getPermitBatchSize()} and serves permission requests
+ * from the local batch until it runs dry, so there is one round trip to the backend per batch.
+ * <p>Local permits are packed into a single {@code long} as [32 bits of the cycle number | 32 bits of permissions]
+ * and are dropped when the cycle ends. The full cycle number is kept in a separate field, so permits of a node
+ * that was idle for 2<sup>32</sup> cycles are not taken for permits of the current cycle.
+ * When the backend can't grant a full batch, the budget of the cycle is exhausted,
+ * so the node doesn't call the backend again until the next cycle.
+ * <p>Cycles are counted by the millisecond wall clock and budgets are refilled by the backend up to the limit for period,
+ * so the limit refresh period should not be shorter than a millisecond and burst capacity can't be configured.
+ *
+ * @author bstorozhuk
+ */
+class DistributedRequestLimit implements RequestLimit {
+
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+    private static final String REFRESH_PERIOD_TOO_SHORT =
+        "LimitRefreshPeriod of distributed request limit should not be less than 1 millisecond";
+    private static final String BURST_CAPACITY_NOT_SUPPORTED =
+        "BurstCapacity can't be configured for distributed request limit";
+    private static final long MIN_REFRESH_PERIOD_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+    private static final long PERMISSIONS_MASK = 0xFFFFFFFFL;
+    private static final long CYCLE_MASK = 0xFFFFFFFFL;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private final String name;
+    private final RequestLimitStateBackend stateBackend;
+    private final int permitBatchSize;
+    private final long cyclePeriodInNanos;
+    private final AtomicLong localPermits;
+    private final AtomicLong localCycle;
+    private final AtomicInteger waitingThreads;
+    private final LongAdder backendRequests;
+    private final DistributedRequestLimitMetrics metrics;
+    private volatile long exhaustedCycle;
+    private volatile RequestLimitConfig requestLimitConfig;
+
+    DistributedRequestLimit(final String name, final RequestLimitConfig requestLimitConfig,
+                            final RequestLimitStateBackend stateBackend, final int permitBatchSize) {
+        this.name = name;
+        this.requestLimitConfig = checkConfig(requestLimitConfig);
+        this.stateBackend = stateBackend;
+        this.permitBatchSize = permitBatchSize;
+        this.cyclePeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        if (cyclePeriodInNanos < MIN_REFRESH_PERIOD_IN_NANOS) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_TOO_SHORT);
+        }
+        this.localPermits = new AtomicLong(packState(-1L, 0));
+        this.localCycle = new AtomicLong(-1L);
+        this.waitingThreads = new AtomicInteger(0);
+        this.backendRequests = new LongAdder();
+        this.metrics = this.new DistributedRequestLimitMetrics();
+        this.exhaustedCycle = -1L;
+    }
+
+    /**
+     * Budget of the cycle is the limit for period, the backend doesn't accumulate permits of idle cycles,
+     * so burst capacity different from the limit for period is rejected instead of being silently ignored.
+     */
+    private static RequestLimitConfig checkConfig(final RequestLimitConfig requestLimitConfig) {
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (requestLimitConfig.getBurstCapacity() != requestLimitConfig.getLimitForPeriod()) {
+            throw new IllegalArgumentException(BURST_CAPACITY_NOT_SUPPORTED);
+        }
+        return requestLimitConfig;
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from the local batch or from the backend,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>If the budget of the current cycle is exhausted, the thread sleeps until the next cycle and tries again.
+     * If the next cycle starts after the timeout, the method returns {@code false} without waiting.
+     * Exceptions of the backend are propagated to the caller.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if they can't be acquired before the timeout
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        long deadline = currentTimeNanos() + timeoutInNanos;
+        while (true) {
+            long nanosToWait = tryAcquire(permits);
+            if (nanosToWait == 0L) {
+                return true;
+            }
+            if (nanosToWait > deadline - currentTimeNanos()) {
+                return false;
+            }
+            if (!waitForPermission(nanosToWait)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Requests permission without blocking the calling thread on waiting for the next cycle,
+     * but the first try can call the backend on the calling thread.
+     * <p>
+     * <p>Retries at the start of the next cycles are scheduled on the shared timer and run on the
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()}, so calls to the backend never block the timer.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        long deadline = currentTimeNanos() + requestLimitConfig.getTimeoutInNanos();
+        long nanosToWait = tryAcquire(1);
+        if (nanosToWait == 0L) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (nanosToWait > deadline - currentTimeNanos()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        scheduleRetry(permission, deadline, nanosToWait);
+        return permission;
+    }
+
+    private void scheduleRetry(final CompletableFuture<Boolean> permission, final long deadline, final long delayInNanos) {
+        AsyncPermissionScheduler.schedule(() -> commonPool().execute(() -> {
+            try {
+                long nanosToWait = tryAcquire(1);
+                if (nanosToWait == 0L) {
+                    permission.complete(true);
+                } else if (nanosToWait > deadline - currentTimeNanos()) {
+                    permission.complete(false);
+                } else {
+                    scheduleRetry(permission, deadline, nanosToWait);
+                }
+            } catch (RuntimeException e) {
+                permission.completeExceptionally(e);
+            }
+        }), delayInNanos);
+    }
+
+    /**
+     * Acquires permission only if it is available in the current cycle.
+     * <p>
+     * <p>Budgets of the future cycles are not known, so permissions can't be reserved in them.
+     *
+     * @param timeoutDuration is not used
+     * @return {@code 0} if permission was acquired or {@code -1} otherwise
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return tryAcquire(1) == 0L ? 0L : -1L;
+    }
+
+    /**
+     * Takes permits from the local batch, or takes a new batch from the backend if the local one runs dry.
+     * Permits of the new batch that are not requested by the caller are added to the local batch.
+     *
+     * @param permits number of permits to acquire
+     * @return {@code 0} if permits were acquired, otherwise nanoseconds to wait before the next try
+     */
+    private long tryAcquire(final int permits) {
+        RequestLimitConfig config = requestLimitConfig;
+        long currentNanos = currentTimeNanos();
+        long currentCycle = currentNanos / cyclePeriodInNanos;
+        if (acquireLocally(currentCycle, permits)) {
+            return 0L;
+        }
+        int limitForPeriod = config.getLimitForPeriod();
+        if (permits > limitForPeriod) {
+            return NEVER;
+        }
+        if (exhaustedCycle != currentCycle) {
+            int batch = max(permits, min(permitBatchSize, limitForPeriod));
+            backendRequests.increment();
+            int granted = stateBackend.acquirePermits(name, currentCycle, batch, limitForPeriod);
+            if (granted < batch) {
+                exhaustedCycle = currentCycle;
+            }
+            if (granted >= permits) {
+                addLocally(currentCycle, granted - permits);
+                return 0L;
+            }
+            addLocally(currentCycle, granted);
+            if (granted > 0 && acquireLocally(currentCycle, permits)) {
+                return 0L;
+            }
+        }
+        return (currentCycle + 1) * cyclePeriodInNanos - currentNanos;
+    }
+
+    private boolean acquireLocally(final long currentCycle, final int permits) {
+        while (true) {
+            long state = localPermits.get();
+            int permissions = permissionsOf(state);
+            if (cycleOf(state, localCycle.get()) != currentCycle || permissions < permits) {
+                return false;
+            }
+            if (localPermits.compareAndSet(state, packState(currentCycle, permissions - permits))) {
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Adds permits granted by the backend in the given cycle to the local batch.
+     * Local permits of the elapsed cycle are dropped and permits of the cycle that has already elapsed are ignored.
+     */
+    private void addLocally(final long cycle, final int permits) {
+        while (true) {
+            long state = localPermits.get();
+            long fullCycle = localCycle.get();
+            long stateCycle = cycleOf(state, fullCycle);
+            if (stateCycle > cycle) {
+                return;
+            }
+            int permissions = stateCycle == cycle ? permissionsOf(state) + permits : permits;
+            advanceLocalCycle(fullCycle, cycle);
+            if (localPermits.compareAndSet(state, packState(cycle, permissions))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Raises the full cycle before local permits are moved to the next cycle,
+     * so the full cycle is never behind the cycle of local permits.
+     * It is raised after the cycle of local permits was restored, because the full cycle of a node
+     * that was idle for 2<sup>32</sup> cycles can't restore it after the raise.
+     *
+     * @param fullCycle full cycle that was used to restore the cycle of local permits
+     * @param nextCycle cycle local permits are moved to
+     */
+    private void advanceLocalCycle(final long fullCycle, final long nextCycle) {
+        long currentFullCycle = fullCycle;
+        while (currentFullCycle < nextCycle && !localCycle.compareAndSet(currentFullCycle, nextCycle)) {
+            currentFullCycle = localCycle.get();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permits are returned to the local batch of the current cycle and are not returned to the backend.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        long currentCycle = currentTimeNanos() / cyclePeriodInNanos;
+        while (true) {
+            long state = localPermits.get();
+            if (cycleOf(state, localCycle.get()) != currentCycle) {
+                return;
+            }
+            if (localPermits.compareAndSet(state, packState(currentCycle, permissionsOf(state) + permits))) {
+                return;
+            }
+        }
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        long currentNanos = currentTimeNanos();
+        return (currentNanos / cyclePeriodInNanos + 1) * cyclePeriodInNanos - currentNanos;
+    }
+
+    private static long packState(final long cycle, final int permissions) {
+        return (cycle << 32) | (permissions & PERMISSIONS_MASK);
+    }
+
+    /**
+     * Restores the full cycle of local permits from its 32 bits and the full cycle of the node.
+     * Full cycle is raised before local permits are moved and it is read after them,
+     * so it is never behind the cycle of local permits and the cycle is the closest one not after it.
+     *
+     * @param state     packed local permits
+     * @param fullCycle full cycle of the node read after the local permits
+     * @return full cycle of local permits
+     */
+    private static long cycleOf(final long state, final long fullCycle) {
+        return fullCycle - (((int) fullCycle - (int) (state >>> 32)) & CYCLE_MASK);
+    }
+
+    private static int permissionsOf(final long state) {
+        return (int) state;
+    }
+
+    /**
+     * Waits for nanosToWait with {@link RequestLimitConfig#getWaitStrategy()}.
+     * <p>If the current thread is {@linkplain Thread#interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param nanosToWait nanoseconds caller need to wait
+     * @return true if caller was not {@link Thread#interrupted} while waiting
+     */
+    private boolean waitForPermission(final long nanosToWait) {
+        waitingThreads.incrementAndGet();
+        long deadline = currentTimeNanos() + nanosToWait;
+        boolean wasNotInterrupted = WaitStrategies.await(requestLimitConfig.getWaitStrategy(), deadline, this::currentTimeNanos);
+        waitingThreads.decrementAndGet();
+        return wasNotInterrupted;
+    }
+
+    /**
+     * @return wall clock time in nanoseconds from the start of epoch
+     */
+    long currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Limit for period is a budget shared by all nodes, so it should be changed on all of them,
+     * e.g. by {@link cc.storozhuk.requestlimit.RequestLimitRegistry#changeRequestLimitConfig(String, RequestLimitConfig)}.
+     *
+     * @throws IllegalArgumentException if the limit refresh period differs from the current one
+     *                                  or burst capacity differs from the limit for period
+     */
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        checkConfig(newConfig);
+        if (newConfig.getLimitRefreshPeriodInNanos() != cyclePeriodInNanos) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        requestLimitConfig = newConfig;
+    }
+
+    /**
+     * {@link DistributedRequestLimit} has no background refreshes, so there is nothing to release.
+     * Local permits stay consumed in the shared budget until the end of the cycle.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimitConfig;
+    }
+
+    DistributedRequestLimitMetrics getDetailedMetrics() {
+        return this.new DistributedRequestLimitMetrics();
+    }
+
+    final class DistributedRequestLimitMetrics implements Metrics {
+        private DistributedRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads of this node waiting for the next cycle.
+         *
+         * @return estimate of the number of waiting threads
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Returns the number of permits left in the local batch of the current cycle.
+         *
+         * @return local permits
+         */
+        public int getLocalPermits() {
+            long state = localPermits.get();
+            long currentCycle = currentTimeNanos() / cyclePeriodInNanos;
+            return cycleOf(state, localCycle.get()) == currentCycle ? permissionsOf(state) : 0;
+        }
+
+        /**
+         * Returns the number of calls to the {@link RequestLimitStateBackend} made by this node.
+         *
+         * @return number of backend round trips
+         */
+        public long getNumberOfBackendRequests() {
+            return backendRequests.sum();
+        }
+    }
+}
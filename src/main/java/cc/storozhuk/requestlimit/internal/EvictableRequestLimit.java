@@ -0,0 +1,172 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.System.nanoTime;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * {@link RequestLimit} decorator that is handed out by registries that evict request limits.
+ * It records the time of the last lookup or permission request, so request limits that callers keep in their fields
+ * and use without registry lookups are not considered idle.
+ * <p>Evicted request limit is closed and rejects all permission requests right away,
+ * so callers that still hold it fail fast instead of being served by a request limit that is no longer refreshed.
+ *
+ * @author bstorozhuk
+ */
+class EvictableRequestLimit implements RequestLimit {
+
+    private static final long ACCESS_TIME_GRANULARITY_IN_NANOS = TimeUnit.MILLISECONDS.toNanos(1);
+
+    private final RequestLimit requestLimit;
+    private final AtomicBoolean closed;
+    private volatile long lastAccessNanos;
+
+    EvictableRequestLimit(final RequestLimit requestLimit) {
+        this.requestLimit = requestLimit;
+        this.closed = new AtomicBoolean(false);
+        this.lastAccessNanos = nanoTime();
+    }
+
+    /**
+     * @return decorated request limit
+     */
+    RequestLimit getRequestLimit() {
+        return requestLimit;
+    }
+
+    /**
+     * @return nano time of the last lookup or permission request
+     */
+    long getLastAccessNanos() {
+        return lastAccessNanos;
+    }
+
+    /**
+     * Access time is updated with millisecond granularity,
+     * so frequently used request limits don't write to the shared field on each permission request.
+     */
+    void recordAccess() {
+        long currentNanos = nanoTime();
+        if (currentNanos - lastAccessNanos > ACCESS_TIME_GRANULARITY_IN_NANOS) {
+            lastAccessNanos = currentNanos;
+        }
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        if (closed.get()) {
+            return false;
+        }
+        recordAccess();
+        return requestLimit.getPermission(timeoutInNanos);
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        if (closed.get()) {
+            return false;
+        }
+        recordAccess();
+        return requestLimit.getPermission(timeoutInNanos, priority);
+    }
+
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (closed.get()) {
+            return false;
+        }
+        recordAccess();
+        return requestLimit.getPermissions(permits, timeoutInNanos);
+    }
+
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        if (closed.get()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        recordAccess();
+        return requestLimit.acquirePermissionAsync();
+    }
+
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        if (closed.get()) {
+            return -1L;
+        }
+        recordAccess();
+        return requestLimit.reservePermission(timeoutDuration);
+    }
+
+    @Override
+    public void releasePermissions(final int permits) {
+        requestLimit.releasePermissions(permits);
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        return requestLimit.getNanosToNextRefresh();
+    }
+
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        requestLimit.recordCall(durationInNanos, failed);
+    }
+
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        return !closed.get() && requestLimit.acquireInFlightPermission(timeoutInNanos);
+    }
+
+    @Override
+    public void releaseInFlightPermission() {
+        requestLimit.releaseInFlightPermission();
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        requestLimit.changeLimitForPeriod(limitForPeriod);
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        requestLimit.changeTimeoutDuration(timeoutDuration);
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig requestLimitConfig) {
+        requestLimit.changeRequestLimitConfig(requestLimitConfig);
+    }
+
+    /**
+     * Permission requests are rejected before the decorated request limit is closed,
+     * so requests that come after eviction never reach it.
+     */
+    @Override
+    public void close() {
+        if (closed.compareAndSet(false, true)) {
+            requestLimit.close();
+        }
+    }
+
+    @Override
+    public String getName() {
+        return requestLimit.getName();
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return requestLimit.getMetrics();
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimit.getRequestLimitConfig();
+    }
+}
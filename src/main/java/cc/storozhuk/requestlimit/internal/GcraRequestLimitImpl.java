@@ -0,0 +1,376 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.max;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * {@link GcraRequestLimitImpl} implements generic cell rate algorithm, so permissions are evenly spaced
+ * by the emission interval of {@link RequestLimitConfig#getLimitRefreshPeriod()} / {@link RequestLimitConfig#getLimitForPeriod()}.
+ * <p>The whole state of the request limit is a single {@code long} theoretical arrival time (TAT) - the moment when
+ * the next permission would be granted if permissions were used at exactly the configured rate.
+ * Each permission moves TAT forward by one emission interval and permission is granted
+ * if TAT doesn't run ahead of the current time by more than the burst tolerance.
+ * <p>TAT is updated with a single {@link AtomicLong#compareAndSet}, so there are no background threads,
+ * no locks on the permission path and no allocations.
+ * <p>Burst tolerance is {@link RequestLimitConfig#getBurstCapacity()} - {@link RequestLimitConfig#getLimitForPeriod()}
+ * emission intervals, so with default config there are no micro-bursts at all and
+ * only permissions above the limit can be accumulated by the idle request limit.
+ *
+ * @author bstorozhuk
+ */
+public class GcraRequestLimitImpl implements RequestLimit {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+
+    private static final long NANO_TIME_START = nanoTime();
+
+    private final String name;
+    private final long limitRefreshPeriodInNanos;
+    private final AtomicInteger waitingThreads;
+    private final AtomicLong theoreticalArrivalTime;
+    private final GcraRequestLimitMetrics metrics;
+    private volatile RequestLimitConfig requestLimitConfig;
+
+    public GcraRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig) {
+        this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        this.requestLimitConfig = requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        this.limitRefreshPeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        this.waitingThreads = new AtomicInteger(0);
+        this.theoreticalArrivalTime = new AtomicLong(0L);
+        this.metrics = this.new GcraRequestLimitMetrics();
+    }
+
+    /**
+     * Acquires a permit from this request limit, blocking until one is
+     * available or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @return {@code true} if a permit was acquired and {@code false}
+     * if the waiting time elapsed before a permit was acquired
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from this request limit with a single atomic state update,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>Time to wait is known exactly at the moment of reservation, so if it exceeds the timeout,
+     * the method returns {@code false} without waiting and nothing is reserved.
+     * Batches bigger than {@link RequestLimitConfig#getBurstCapacity()} are rejected immediately.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if they can't be acquired before the timeout
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        if (permits > requestLimitConfig.getBurstCapacity()) {
+            return false;
+        }
+        long nanosToWait = reservePermissions(permits, timeoutInNanos);
+        if (nanosToWait == 0L) {
+            return true;
+        }
+        if (nanosToWait < 0L) {
+            return false;
+        }
+        return waitForPermission(nanosToWait);
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>Permission is reserved in the same way as for {@link #getPermission(Duration)}
+     * and granted by the shared timer when its arrival time comes. If the permission can't be acquired within
+     * {@link RequestLimitConfig#getTimeoutDuration()} returned stage is completed with {@code false} immediately.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        long nanosToWait = reservePermissions(1, requestLimitConfig.getTimeoutInNanos());
+        if (nanosToWait == 0L) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (nanosToWait < 0L) {
+            return CompletableFuture.completedFuture(false);
+        }
+        return AsyncPermissionScheduler.permitAfter(nanosToWait);
+    }
+
+    /**
+     * Reserves permission without blocking the calling thread.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return nanoseconds caller should wait before using the permission,
+     * or negative value if permission can't be acquired within the timeout
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return reservePermissions(1, timeoutDuration.toNanos());
+    }
+
+    /**
+     * Atomically moves theoretical arrival time by the emission interval of each permit,
+     * if the caller can wait for them. It uses the same constant back off as {@link AtomicRequestLimitImpl}.
+     *
+     * @param permits        number of permits to reserve
+     * @param timeoutInNanos max time that caller can wait for permission in nanoseconds
+     * @return nanoseconds caller should wait before using permits,
+     * or {@code -1} if permits can't be acquired within the timeout
+     */
+    private long reservePermissions(final int permits, final long timeoutInNanos) {
+        while (true) {
+            RequestLimitConfig config = requestLimitConfig;
+            long emissionInterval = emissionInterval(config);
+            long currentNanos = currentNanoTime();
+            long tat = theoreticalArrivalTime.get();
+            long nextTat = max(tat, currentNanos) + permits * emissionInterval;
+            long nanosToWait = nanosToWait(config, emissionInterval, nextTat, currentNanos);
+            if (nanosToWait > timeoutInNanos) {
+                return -1L;
+            }
+            if (compareAndSet(tat, nextTat)) {
+                return nanosToWait;
+            }
+        }
+    }
+
+    private boolean compareAndSet(final long current, final long next) {
+        if (theoreticalArrivalTime.compareAndSet(current, next)) {
+            return true;
+        }
+        parkNanos(1); // back-off
+        return false;
+    }
+
+    /**
+     * Calculates time until the last of the reserved permissions can be used.
+     * The last permission arrives one emission interval before the next theoretical arrival time
+     * and burst tolerance allows to use it even earlier.
+     *
+     * @param config           config that is active for the reservation
+     * @param emissionInterval nanoseconds between two evenly spaced permissions
+     * @param nextTat          theoretical arrival time after the reservation
+     * @param currentNanos     current time in nanoseconds
+     * @return nanoseconds to wait, {@code 0} if permits can be used immediately
+     */
+    private static long nanosToWait(final RequestLimitConfig config, final long emissionInterval,
+                                    final long nextTat, final long currentNanos) {
+        long permissionTime = nextTat - emissionInterval - burstTolerance(config, emissionInterval);
+        return max(permissionTime - currentNanos, 0L);
+    }
+
+    /**
+     * Emission interval is rounded up, so the request limit never grants
+     * more than {@link RequestLimitConfig#getLimitForPeriod()} permissions per period at the steady rate.
+     */
+    private static long emissionInterval(final RequestLimitConfig config) {
+        long limitForPeriod = config.getLimitForPeriod();
+        return (config.getLimitRefreshPeriodInNanos() + limitForPeriod - 1) / limitForPeriod;
+    }
+
+    private static long burstTolerance(final RequestLimitConfig config, final long emissionInterval) {
+        return ((long) config.getBurstCapacity() - config.getLimitForPeriod()) * emissionInterval;
+    }
+
+    /**
+     * Waits for nanosToWait with {@link RequestLimitConfig#getWaitStrategy()}.
+     * <p>If the current thread is {@linkplain Thread#interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param nanosToWait nanoseconds caller need to wait
+     * @return true if caller was not {@link Thread#interrupted} while waiting
+     */
+    private boolean waitForPermission(final long nanosToWait) {
+        waitingThreads.incrementAndGet();
+        long deadline = currentNanoTime() + nanosToWait;
+        boolean wasNotInterrupted = WaitStrategies.await(requestLimitConfig.getWaitStrategy(), deadline, this::currentNanoTime);
+        waitingThreads.decrementAndGet();
+        return wasNotInterrupted;
+    }
+
+    /**
+     * Returns the current time in nanoseconds relative to the class initialisation,
+     * so theoretical arrival time of a new instance is never ahead of the current time.
+     *
+     * @return nanoseconds since {@link GcraRequestLimitImpl} class initialisation
+     */
+    long currentNanoTime() {
+        return nanoTime() - NANO_TIME_START;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Theoretical arrival time is moved back by the emission interval of each permit,
+     * but never behind the current time, so an idle request limit doesn't accumulate more than its burst tolerance.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        while (true) {
+            long emissionInterval = emissionInterval(requestLimitConfig);
+            long currentNanos = currentNanoTime();
+            long tat = theoreticalArrivalTime.get();
+            if (tat <= currentNanos) {
+                return;
+            }
+            long nextTat = max(tat - permits * emissionInterval, currentNanos);
+            if (compareAndSet(tat, nextTat)) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>{@link GcraRequestLimitImpl} has no refreshes, so the new emission interval
+     * is used by the next permission request. Permissions that are already reserved are not revoked.
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Config is not a part of the theoretical arrival time, so it is swapped separately
+     * and concurrent changes are resolved by the last write.
+     */
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (newConfig.getLimitRefreshPeriodInNanos() != limitRefreshPeriodInNanos) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        requestLimitConfig = newConfig;
+    }
+
+    /**
+     * {@link GcraRequestLimitImpl} has no background refreshes, so there is nothing to release.
+     * Asynchronous permissions that are already reserved are still granted by the shared timer.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimitConfig;
+    }
+
+    /**
+     * Creates detailed metrics view bound to this instance, so estimations use its {@link #currentNanoTime()}.
+     *
+     * @return detailed metrics of this request limit
+     */
+    public GcraRequestLimitMetrics getDetailedMetrics() {
+        return this.new GcraRequestLimitMetrics();
+    }
+
+    /**
+     * Enhanced {@link Metrics} with some implementation specific details
+     */
+    public final class GcraRequestLimitMetrics implements Metrics {
+        private GcraRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads waiting for permission
+         * in this JVM process.
+         *
+         * @return estimate of the number of threads waiting for permission.
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Estimates count of permissions that can be used immediately.
+         * Can be negative if some permissions where reserved.
+         * <p>
+         * <p>This method is typically used for debugging and testing purposes.
+         *
+         * @return estimated count of permissions
+         */
+        public int getAvailablePermits() {
+            RequestLimitConfig config = requestLimitConfig;
+            long emissionInterval = emissionInterval(config);
+            long currentNanos = currentNanoTime();
+            long tat = max(theoreticalArrivalTime.get(), currentNanos);
+            long tolerance = burstTolerance(config, emissionInterval);
+            return (int) Math.floorDiv(currentNanos + tolerance - tat, emissionInterval) + 1;
+        }
+
+        /**
+         * Estimates time duration in nanos to wait for the next permission.
+         *
+         * @return estimated time duration in nanos to wait for the next permission
+         */
+        public long getNanosToWait() {
+            RequestLimitConfig config = requestLimitConfig;
+            long emissionInterval = emissionInterval(config);
+            long currentNanos = currentNanoTime();
+            long nextTat = max(theoreticalArrivalTime.get(), currentNanos) + emissionInterval;
+            return nanosToWait(config, emissionInterval, nextTat, currentNanos);
+        }
+
+        /**
+         * Returns theoretical arrival time of the next permission in nanoseconds
+         * relative to the {@link GcraRequestLimitImpl} class initialisation.
+         *
+         * @return theoretical arrival time
+         */
+        public long getTheoreticalArrivalTime() {
+            return theoreticalArrivalTime.get();
+        }
+    }
+}
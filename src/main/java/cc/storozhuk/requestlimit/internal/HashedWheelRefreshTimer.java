@@ -0,0 +1,305 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.max;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static java.util.concurrent.locks.LockSupport.unpark;
+
+import java.time.Duration;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.Queue;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.IntConsumer;
+
+/**
+ * Hashed timer wheel that drives limit refreshes for many request limits using a single daemon thread.
+ * <p>All refresh tasks with the same period are grouped together, so the wheel holds only one
+ * timeout per distinct period and every limit in the group is refreshed in one batch.
+ * Scheduling of a group on each tick is O(1): it is placed into the bucket
+ * {@code deadlineTick & (ticksPerWheel - 1)} with the number of remaining wheel rounds.
+ * <p>Periods shorter than a tick can't be fired more often than once per tick, so every refresh task
+ * receives the number of its periods elapsed since the previous refresh and has to catch up accordingly.
+ * <p>Refresh tasks can be cancelled at any time, a period group without tasks is dropped
+ * from the wheel on its next expiration.
+ * <p>Exception or error thrown by a refresh task doesn't stop refreshes of other tasks, it is passed to the
+ * {@link Thread.UncaughtExceptionHandler} of the worker thread, so a broken request limit is never silently skipped.
+ * Worker thread runs until {@link #stop()} is called.
+ *
+ * @author bstorozhuk
+ */
+public class HashedWheelRefreshTimer {
+
+    private static final String PERIOD_MUST_NOT_BE_NULL = "Period must not be null";
+    private static final String TICK_DURATION_MUST_NOT_BE_NULL = "TickDuration must not be null";
+    private static final String REFRESH_MUST_NOT_BE_NULL = "Refresh must not be null";
+    private static final String FAILURE_HANDLER_MUST_NOT_BE_NULL = "RefreshFailureHandler must not be null";
+    private static final String TIMER_IS_STOPPED = "Timer is stopped";
+
+    private static final Duration DEFAULT_TICK_DURATION = Duration.ofMillis(1);
+    private static final int DEFAULT_TICKS_PER_WHEEL = 512;
+    private static final AtomicInteger TIMER_COUNTER = new AtomicInteger();
+
+    private final long tickDurationInNanos;
+    private final int mask;
+    private final Queue<PeriodGroup>[] wheel;
+    private final Map<Long, PeriodGroup> groups;
+    private final Queue<PeriodGroup> pendingGroups;
+    private final AtomicBoolean started;
+    private final AtomicBoolean stopped;
+    private final Thread workerThread;
+
+    private long startTime;
+    private long tick;
+
+    public HashedWheelRefreshTimer() {
+        this(DEFAULT_TICK_DURATION, DEFAULT_TICKS_PER_WHEEL);
+    }
+
+    public HashedWheelRefreshTimer(final Duration tickDuration, final int ticksPerWheel) {
+        this(tickDuration, ticksPerWheel, (thread, e) -> thread.getThreadGroup().uncaughtException(thread, e));
+    }
+
+    /**
+     * @param tickDuration          duration of a single wheel tick
+     * @param ticksPerWheel         number of buckets of the wheel, rounded up to a power of two
+     * @param refreshFailureHandler handler of exceptions thrown by refresh tasks, by default they are passed
+     *                              to the {@link ThreadGroup} of the worker thread, that prints them to the standard error
+     */
+    public HashedWheelRefreshTimer(final Duration tickDuration, final int ticksPerWheel,
+                                   final Thread.UncaughtExceptionHandler refreshFailureHandler) {
+        requireNonNull(refreshFailureHandler, FAILURE_HANDLER_MUST_NOT_BE_NULL);
+        requireNonNull(tickDuration, TICK_DURATION_MUST_NOT_BE_NULL);
+        if (tickDuration.isNegative() || tickDuration.isZero()) {
+            throw new IllegalArgumentException("TickDuration should be positive");
+        }
+        if (ticksPerWheel < 1) {
+            throw new IllegalArgumentException("TicksPerWheel should be greater than 0");
+        }
+        this.tickDurationInNanos = tickDuration.toNanos();
+        int wheelLength = normalizeTicksPerWheel(ticksPerWheel);
+        this.mask = wheelLength - 1;
+        this.wheel = createWheel(wheelLength);
+        this.groups = new ConcurrentHashMap<>();
+        this.pendingGroups = new ConcurrentLinkedQueue<>();
+        this.started = new AtomicBoolean(false);
+        this.stopped = new AtomicBoolean(false);
+        this.workerThread = new Thread(this::work, "HashedWheelRefreshTimer-" + TIMER_COUNTER.incrementAndGet());
+        this.workerThread.setDaemon(true);
+        this.workerThread.setUncaughtExceptionHandler(refreshFailureHandler);
+    }
+
+    @SuppressWarnings("unchecked")
+    private static Queue<PeriodGroup>[] createWheel(final int wheelLength) {
+        Queue<PeriodGroup>[] wheel = (Queue<PeriodGroup>[]) new Queue<?>[wheelLength];
+        for (int i = 0; i < wheelLength; i++) {
+            wheel[i] = new ArrayDeque<>();
+        }
+        return wheel;
+    }
+
+    private static int normalizeTicksPerWheel(final int ticksPerWheel) {
+        int normalizedTicksPerWheel = 1;
+        while (normalizedTicksPerWheel < ticksPerWheel) {
+            normalizedTicksPerWheel <<= 1;
+        }
+        return normalizedTicksPerWheel;
+    }
+
+    /**
+     * Schedules periodic refresh with the given period.
+     * The first refresh happens about one period after scheduling of the first task with such a period,
+     * tasks added to an already scheduled period join its existing refresh schedule.
+     *
+     * @param period  refresh period
+     * @param refresh refresh task that receives count of periods elapsed since its previous refresh
+     * @return registration that can be used to cancel the refresh task
+     * @throws IllegalStateException if the timer is stopped
+     */
+    public Registration schedule(final Duration period, final IntConsumer refresh) {
+        requireNonNull(period, PERIOD_MUST_NOT_BE_NULL);
+        requireNonNull(refresh, REFRESH_MUST_NOT_BE_NULL);
+        if (stopped.get()) {
+            throw new IllegalStateException(TIMER_IS_STOPPED);
+        }
+        start();
+        PeriodGroup group = groups.compute(period.toNanos(), (periodInNanos, existingGroup) -> {
+            PeriodGroup periodGroup = existingGroup;
+            if (periodGroup == null) {
+                periodGroup = new PeriodGroup(periodInNanos);
+                pendingGroups.add(periodGroup);
+            }
+            periodGroup.refreshes.add(refresh);
+            return periodGroup;
+        });
+        return () -> group.refreshes.remove(refresh);
+    }
+
+    /**
+     * Returns the number of distinct periods that have been scheduled on this timer.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @return the number of distinct periods
+     */
+    public int getNumberOfScheduledPeriods() {
+        return groups.size();
+    }
+
+    /**
+     * Stops the worker thread, scheduled refresh tasks are not called after the refresh that is currently in progress.
+     * Stopped timer can't schedule new refresh tasks. Repeated calls have no effect.
+     */
+    public void stop() {
+        if (!stopped.compareAndSet(false, true)) {
+            return;
+        }
+        groups.clear();
+        pendingGroups.clear();
+        if (!started.compareAndSet(false, true)) {
+            unpark(workerThread);
+        }
+    }
+
+    /**
+     * @return {@code true} if {@link #stop()} was called
+     */
+    public boolean isStopped() {
+        return stopped.get();
+    }
+
+    private void start() {
+        if (!started.get() && started.compareAndSet(false, true)) {
+            workerThread.start();
+        }
+    }
+
+    private void work() {
+        startTime = nanoTime();
+        List<PeriodGroup> expiredGroups = new ArrayList<>();
+        long currentTime = waitForNextTick();
+        while (!stopped.get()) {
+            transferPendingGroupsToBuckets(currentTime);
+            Queue<PeriodGroup> bucket = wheel[(int) (tick & mask)];
+            expireGroups(bucket, currentTime, expiredGroups);
+            for (PeriodGroup expiredGroup : expiredGroups) {
+                if (isActive(expiredGroup)) {
+                    placeInBucket(expiredGroup, tick + 1);
+                }
+            }
+            expiredGroups.clear();
+            tick++;
+            currentTime = waitForNextTick();
+        }
+        for (Queue<PeriodGroup> bucket : wheel) {
+            bucket.clear();
+        }
+    }
+
+    private long waitForNextTick() {
+        long deadline = tickDurationInNanos * (tick + 1);
+        long currentTime = nanoTime() - startTime;
+        while (currentTime < deadline && !stopped.get()) {
+            parkNanos(deadline - currentTime);
+            currentTime = nanoTime() - startTime;
+        }
+        return currentTime;
+    }
+
+    private void transferPendingGroupsToBuckets(final long currentTime) {
+        PeriodGroup group = pendingGroups.poll();
+        while (group != null) {
+            group.deadline = currentTime + group.periodInNanos;
+            placeInBucket(group, tick);
+            group = pendingGroups.poll();
+        }
+    }
+
+    /**
+     * Drops group without refresh tasks. Group is checked and removed atomically with respect to
+     * {@link #schedule}, so a task added concurrently either keeps the group alive or creates a new one.
+     *
+     * @param group expired group
+     * @return {@code true} if the group still has refresh tasks and should be rescheduled
+     */
+    private boolean isActive(final PeriodGroup group) {
+        if (!group.refreshes.isEmpty()) {
+            return true;
+        }
+        PeriodGroup remainingGroup = groups.computeIfPresent(
+            group.periodInNanos,
+            (periodInNanos, existingGroup) -> existingGroup == group && group.refreshes.isEmpty() ? null : existingGroup
+        );
+        return remainingGroup == group;
+    }
+
+    private void placeInBucket(final PeriodGroup group, final long earliestTick) {
+        long deadlineTick = group.deadline / tickDurationInNanos;
+        group.remainingRounds = (deadlineTick - earliestTick) / wheel.length;
+        long ticks = max(deadlineTick, earliestTick);
+        wheel[(int) (ticks & mask)].add(group);
+    }
+
+    private void expireGroups(final Queue<PeriodGroup> bucket, final long currentTime, final List<PeriodGroup> expiredGroups) {
+        for (int i = bucket.size(); i > 0; i--) {
+            PeriodGroup group = bucket.poll();
+            if (group.remainingRounds > 0) {
+                group.remainingRounds--;
+                bucket.add(group);
+                continue;
+            }
+            int elapsedPeriods = (int) Long.min(Integer.MAX_VALUE, 1 + (currentTime - group.deadline) / group.periodInNanos);
+            group.deadline += elapsedPeriods * group.periodInNanos;
+            refresh(group, elapsedPeriods);
+            expiredGroups.add(group);
+        }
+    }
+
+    /**
+     * Single broken refresh task should not stop refreshes of other limits, so its failure is reported and skipped.
+     */
+    private void refresh(final PeriodGroup group, final int elapsedPeriods) {
+        for (IntConsumer refresh : group.refreshes) {
+            try {
+                refresh.accept(elapsedPeriods);
+            } catch (Throwable e) {
+                workerThread.getUncaughtExceptionHandler().uncaughtException(workerThread, e);
+            }
+        }
+    }
+
+    /**
+     * Handle of the scheduled refresh task.
+     */
+    @FunctionalInterface
+    public interface Registration {
+        /**
+         * Cancels the refresh task, it won't be called after the refresh that is currently in progress.
+         */
+        void cancel();
+    }
+
+    /**
+     * Refresh tasks that share the same period and are fired by the single wheel timeout.
+     * All fields except {@link #refreshes} are accessed only by the worker thread.
+     * Refresh tasks are kept in a concurrent set, so adding and cancelling
+     * of a task doesn't depend on the number of tasks in the group.
+     */
+    private static final class PeriodGroup {
+        private final long periodInNanos;
+        private final Set<IntConsumer> refreshes;
+        private long deadline;
+        private long remainingRounds;
+
+        private PeriodGroup(final long periodInNanos) {
+            this.periodInNanos = periodInNanos;
+            this.refreshes = ConcurrentHashMap.newKeySet();
+        }
+    }
+}
@@ -0,0 +1,37 @@
+package cc.storozhuk.requestlimit.internal;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link AtomicLongStorage} backed by {@link AtomicLongArray}.
+ *
+ * @author bstorozhuk
+ */
+final class HeapAtomicLongStorage implements AtomicLongStorage {
+
+    private final AtomicLongArray values;
+
+    HeapAtomicLongStorage(final int length) {
+        this.values = new AtomicLongArray(length);
+    }
+
+    @Override
+    public int length() {
+        return values.length();
+    }
+
+    @Override
+    public long get(final int index) {
+        return values.get(index);
+    }
+
+    @Override
+    public void set(final int index, final long value) {
+        values.set(index, value);
+    }
+
+    @Override
+    public boolean compareAndSet(final int index, final long expect, final long update) {
+        return values.compareAndSet(index, expect, update);
+    }
+}
@@ -1,13 +1,23 @@
 package cc.storozhuk.requestlimit.internal;
 
+import static java.lang.System.nanoTime;
+import static java.util.concurrent.ForkJoinPool.commonPool;
 import static java.util.Objects.requireNonNull;
 
 import cc.storozhuk.requestlimit.RequestLimit;
 import cc.storozhuk.requestlimit.RequestLimitConfig;
 import cc.storozhuk.requestlimit.RequestLimitRegistry;
+import cc.storozhuk.requestlimit.RequestLimitRegistryConfig;
+import cc.storozhuk.requestlimit.RequestLimitStateBackend;
+import javaslang.control.Option;
 
+import java.time.Duration;
+import java.util.Arrays;
 import java.util.Map;
 import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 /**
@@ -17,14 +27,147 @@ public class InMemoryRequestLimitRegistry implements RequestLimitRegistry {
 
     private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
     private static final String CONFIG_MUST_NOT_BE_NULL = "Config must not be null";
+    private static final String REGISTRY_CONFIG_MUST_NOT_BE_NULL = "RegistryConfig must not be null";
     private static final String SUPPLIER_MUST_NOT_BE_NULL = "Supplier must not be null";
+    private static final String FACTORY_MUST_NOT_BE_NULL = "Factory must not be null";
+    private static final String STATE_BACKEND_MUST_NOT_BE_NULL = "StateBackend must not be null";
+    private static final String REGISTRY_IS_CLOSED = "Registry is closed";
+
+    private static final int EVICTION_BATCH_DIVISOR = 10;
 
     private final RequestLimitConfig defaultRequestLimitConfig;
-    private final Map<String, RequestLimit> requestLimits;
+    private final BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory;
+    private final Map<String, EvictableRequestLimit> requestLimits;
+    private final boolean recordAccess;
+    private final long expireAfterIdleInNanos;
+    private final int maximumSize;
+    private final ReentrantLock evictionLock;
+    private final AtomicBoolean expiring;
+    private final Option<PersistentRequestLimitStates> persistentStates;
+    private final HashedWheelRefreshTimer refreshTimer;
+    private final AtomicBoolean closed;
 
+    /**
+     * Creates registry of {@link SemaphoreBasedRequestLimitImpl}, {@link SlidingWindowRequestLimitImpl},
+     * {@link GcraRequestLimitImpl} or {@link StripedRequestLimitImpl} request limits,
+     * according to {@link RequestLimitConfig#getAlgorithm()}.
+     * All fixed window limits are refreshed by the single {@link HashedWheelRefreshTimer} owned by this registry,
+     * so the number of threads stays the same regardless of the number of request limits.
+     *
+     * @param requestLimitConfig default config for request limits created by this registry
+     */
     public InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig) {
+        this(requestLimitConfig, RequestLimitRegistryConfig.ofDefaults());
+    }
+
+    /**
+     * Creates registry of request limits selected by {@link RequestLimitConfig#getAlgorithm()}
+     * that evicts and persists request limits according to the given registry config.
+     *
+     * @param requestLimitConfig default config for request limits created by this registry
+     * @param registryConfig     eviction and persistence settings of this registry
+     */
+    public InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                        final RequestLimitRegistryConfig registryConfig) {
+        this(requestLimitConfig, registryConfig, new HashedWheelRefreshTimer());
+    }
+
+    private InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                         final RequestLimitRegistryConfig registryConfig,
+                                         final HashedWheelRefreshTimer refreshTimer) {
+        this(
+            requestLimitConfig,
+            registryConfig,
+            (name, limitConfig) -> createDefaultRequestLimit(name, limitConfig, refreshTimer),
+            refreshTimer
+        );
+    }
+
+    private static RequestLimit createDefaultRequestLimit(final String name, final RequestLimitConfig requestLimitConfig,
+                                                          final HashedWheelRefreshTimer refreshTimer) {
+        switch (requestLimitConfig.getAlgorithm()) {
+            case SLIDING_WINDOW:
+                return new SlidingWindowRequestLimitImpl(name, requestLimitConfig);
+            case GCRA:
+                return new GcraRequestLimitImpl(name, requestLimitConfig);
+            case STRIPED:
+                return new StripedRequestLimitImpl(name, requestLimitConfig);
+            default:
+                return new SemaphoreBasedRequestLimitImpl(name, requestLimitConfig, refreshTimer);
+        }
+    }
+
+    /**
+     * Creates registry that uses provided factory to create new request limits,
+     * e.g. {@code AtomicRequestLimitImpl::new} to avoid per limit scheduler threads.
+     *
+     * @param requestLimitConfig  default config for request limits created by this registry
+     * @param requestLimitFactory creates new request limit from its name and config
+     */
+    public InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                        final BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory) {
+        this(requestLimitConfig, RequestLimitRegistryConfig.ofDefaults(), requestLimitFactory);
+    }
+
+    /**
+     * Creates registry that uses provided factory to create new request limits
+     * and evicts and persists them according to the given registry config.
+     *
+     * @param requestLimitConfig  default config for request limits created by this registry
+     * @param registryConfig      eviction and persistence settings of this registry
+     * @param requestLimitFactory creates new request limit from its name and config
+     */
+    public InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                        final RequestLimitRegistryConfig registryConfig,
+                                        final BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory) {
+        this(requestLimitConfig, registryConfig, requestLimitFactory, new HashedWheelRefreshTimer());
+    }
+
+    /**
+     * Creates registry of {@link DistributedRequestLimit} request limits that share budgets of their cycles
+     * with registries of other nodes through the given state backend.
+     * Each node takes {@link RequestLimitRegistryConfig#getPermitBatchSize()} permits from the backend at once,
+     * so the backend is called once per batch. Reservations are not shared across nodes.
+     * Request limits with limit refresh period shorter than a millisecond or with burst capacity
+     * are rejected with {@link IllegalArgumentException} when they are created.
+     *
+     * @param requestLimitConfig default config for request limits created by this registry
+     * @param registryConfig     eviction, persistence and batching settings of this registry
+     * @param stateBackend       shared state of request limits
+     */
+    public InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                        final RequestLimitRegistryConfig registryConfig,
+                                        final RequestLimitStateBackend stateBackend) {
+        this(requestLimitConfig, registryConfig, distributedRequestLimitFactory(registryConfig, stateBackend));
+    }
+
+    private static BiFunction<String, RequestLimitConfig, RequestLimit> distributedRequestLimitFactory(
+        final RequestLimitRegistryConfig registryConfig, final RequestLimitStateBackend stateBackend) {
+        requireNonNull(registryConfig, REGISTRY_CONFIG_MUST_NOT_BE_NULL);
+        requireNonNull(stateBackend, STATE_BACKEND_MUST_NOT_BE_NULL);
+        int permitBatchSize = registryConfig.getPermitBatchSize();
+        return (name, limitConfig) -> new DistributedRequestLimit(name, limitConfig, stateBackend, permitBatchSize);
+    }
+
+    private InMemoryRequestLimitRegistry(final RequestLimitConfig requestLimitConfig,
+                                         final RequestLimitRegistryConfig registryConfig,
+                                         final BiFunction<String, RequestLimitConfig, RequestLimit> requestLimitFactory,
+                                         final HashedWheelRefreshTimer refreshTimer) {
         defaultRequestLimitConfig = requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        requireNonNull(registryConfig, REGISTRY_CONFIG_MUST_NOT_BE_NULL);
+        this.requestLimitFactory = requireNonNull(requestLimitFactory, FACTORY_MUST_NOT_BE_NULL);
         requestLimits = new ConcurrentHashMap<>();
+        maximumSize = registryConfig.getMaximumSize();
+        expireAfterIdleInNanos = registryConfig.getExpireAfterIdle().map(Duration::toNanos).getOrElse(Long.MAX_VALUE);
+        recordAccess = registryConfig.getExpireAfterIdle().isDefined() || maximumSize < Integer.MAX_VALUE;
+        evictionLock = new ReentrantLock();
+        expiring = new AtomicBoolean(false);
+        persistentStates = registryConfig.getPersistenceFile()
+            .map(file -> PersistentRequestLimitStates.open(file, registryConfig.getPersistenceCapacity()));
+        this.refreshTimer = refreshTimer;
+        closed = new AtomicBoolean(false);
+        registryConfig.getExpireAfterIdle()
+            .forEach(expireAfterIdle -> refreshTimer.schedule(expireAfterIdle, elapsedPeriods -> scheduleIdleExpiration()));
     }
 
     @Override
@@ -36,23 +179,219 @@ public class InMemoryRequestLimitRegistry implements RequestLimitRegistry {
     public RequestLimit requestLimit(final String name, final RequestLimitConfig requestLimitConfig) {
         requireNonNull(name, NAME_MUST_NOT_BE_NULL);
         requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
-        return requestLimits.computeIfAbsent(
+        checkNotClosed();
+        return lookup(name, requestLimits.computeIfAbsent(
             name,
-            limitName -> new SemaphoreBasedRequestLimitImpl(name, requestLimitConfig)
-        );
+            limitName -> new EvictableRequestLimit(createRequestLimit(limitName, requestLimitConfig))
+        ));
     }
 
     @Override
     public RequestLimit requestLimit(final String name, final Supplier<RequestLimitConfig> requestLimitConfigSupplier) {
         requireNonNull(name, NAME_MUST_NOT_BE_NULL);
         requireNonNull(requestLimitConfigSupplier, SUPPLIER_MUST_NOT_BE_NULL);
-        return requestLimits.computeIfAbsent(
+        checkNotClosed();
+        return lookup(name, requestLimits.computeIfAbsent(
             name,
             limitName -> {
                 RequestLimitConfig requestLimitConfig = requestLimitConfigSupplier.get();
                 requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
-                return new SemaphoreBasedRequestLimitImpl(limitName, requestLimitConfig);
+                return new EvictableRequestLimit(createRequestLimit(limitName, requestLimitConfig));
             }
-        );
+        ));
+    }
+
+    /**
+     * Persistence records permissions granted by the request limit itself,
+     * so leased permissions are recorded once, when the lease is acquired.
+     * Adaptive decorator changes the limit of the underlying request limit, so it wraps the persistent one.
+     * Bulkhead limits calls rather than permissions, so it wraps all other decorators.
+     */
+    private RequestLimit createRequestLimit(final String name, final RequestLimitConfig requestLimitConfig) {
+        RequestLimit requestLimit = requestLimitFactory.apply(name, requestLimitConfig);
+        if (persistentStates.isDefined()) {
+            requestLimit = persistentStates.get().persistent(requestLimit);
+        }
+        if (requestLimitConfig.isAdaptive()) {
+            requestLimit = new AdaptiveRequestLimit(requestLimit, requestLimitConfig);
+        }
+        if (requestLimitConfig.getLeaseSize() > 1) {
+            requestLimit = new LeasingRequestLimit(requestLimit);
+        }
+        if (requestLimitConfig.isLimitingConcurrentCalls()) {
+            requestLimit = new BulkheadRequestLimit(requestLimit);
+        }
+        return requestLimit;
+    }
+
+    @Override
+    public boolean changeRequestLimitConfig(final String name, final RequestLimitConfig requestLimitConfig) {
+        requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        EvictableRequestLimit entry = requestLimits.get(name);
+        if (entry == null) {
+            return false;
+        }
+        entry.changeRequestLimitConfig(requestLimitConfig);
+        return true;
+    }
+
+    @Override
+    public boolean removeRequestLimit(final String name) {
+        requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        EvictableRequestLimit entry = requestLimits.remove(name);
+        if (entry == null) {
+            return false;
+        }
+        entry.close();
+        return true;
+    }
+
+    /**
+     * Request limits are closed first, so they cancel their refreshes before the timer is stopped.
+     * Persistence file is unlocked last, when no request limit records permissions to it anymore.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        requestLimits.forEach(this::evict);
+        refreshTimer.stop();
+        persistentStates.forEach(PersistentRequestLimitStates::close);
+    }
+
+    private void checkNotClosed() {
+        if (closed.get()) {
+            throw new IllegalStateException(REGISTRY_IS_CLOSED);
+        }
+    }
+
+    /**
+     * Returns the number of request limits in this registry.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @return the number of request limits
+     */
+    public int getNumberOfRequestLimits() {
+        return requestLimits.size();
+    }
+
+    /**
+     * Request limit created concurrently with {@link #close()} may miss its sweep, so it is closed here.
+     * Registry that evicts request limits hands out their {@link EvictableRequestLimit} decorators,
+     * so permission requests count as access too. Other registries hand out request limits as is.
+     */
+    private RequestLimit lookup(final String name, final EvictableRequestLimit entry) {
+        if (closed.get()) {
+            evict(name, entry);
+            throw new IllegalStateException(REGISTRY_IS_CLOSED);
+        }
+        if (!recordAccess) {
+            return entry.getRequestLimit();
+        }
+        entry.recordAccess();
+        if (maximumSize < requestLimits.size()) {
+            evictLeastRecentlyUsed();
+        }
+        return entry;
+    }
+
+    /**
+     * Sweep of all request limits can take a while, so the refresh timer only hands it to the
+     * {@link java.util.concurrent.ForkJoinPool#commonPool()} and limit refreshes are never delayed by it.
+     * Next sweep is skipped if the previous one is still running.
+     */
+    private void scheduleIdleExpiration() {
+        if (!expiring.compareAndSet(false, true)) {
+            return;
+        }
+        commonPool().execute(() -> {
+            try {
+                expireIdleRequestLimits();
+            } finally {
+                expiring.set(false);
+            }
+        });
+    }
+
+    /**
+     * Removes request limits that were neither looked up nor asked for permission
+     * for {@link RequestLimitRegistryConfig#getExpireAfterIdle()}.
+     */
+    void expireIdleRequestLimits() {
+        long expirationTime = nanoTime() - expireAfterIdleInNanos;
+        requestLimits.forEach((name, entry) -> {
+            if (entry.getLastAccessNanos() - expirationTime < 0) {
+                evict(name, entry);
+            }
+        });
+    }
+
+    /**
+     * Evicts least recently used request limits when the maximum size is exceeded.
+     * Eviction sorts access times of all entries, so it removes a batch of
+     * {@code maximumSize / }{@value #EVICTION_BATCH_DIVISOR} entries more than necessary
+     * to amortize the sort over the following insertions.
+     * Only one thread evicts at a time, other threads don't wait for it.
+     */
+    private void evictLeastRecentlyUsed() {
+        if (!evictionLock.tryLock()) {
+            return;
+        }
+        try {
+            int size = requestLimits.size();
+            if (size <= maximumSize) {
+                return;
+            }
+            long[] accessTimes = new long[size];
+            int count = 0;
+            for (EvictableRequestLimit entry : requestLimits.values()) {
+                if (count == accessTimes.length) {
+                    break;
+                }
+                accessTimes[count++] = entry.getLastAccessNanos();
+            }
+            int entriesToEvict = Integer.min(count, size - maximumSize + maximumSize / EVICTION_BATCH_DIVISOR);
+            if (entriesToEvict == 0) {
+                return;
+            }
+            sortByNanoTime(accessTimes, count);
+            long evictionTime = accessTimes[entriesToEvict - 1];
+            int evicted = 0;
+            for (Map.Entry<String, EvictableRequestLimit> entry : requestLimits.entrySet()) {
+                if (evicted == entriesToEvict) {
+                    break;
+                }
+                EvictableRequestLimit requestLimit = entry.getValue();
+                if (requestLimit.getLastAccessNanos() - evictionTime <= 0 && evict(entry.getKey(), requestLimit)) {
+                    evicted++;
+                }
+            }
+        } finally {
+            evictionLock.unlock();
+        }
+    }
+
+    /**
+     * Sorts first count nano times, they are compared by difference to stay correct on the nano time overflow.
+     */
+    private static void sortByNanoTime(final long[] nanoTimes, final int count) {
+        long origin = nanoTime();
+        for (int i = 0; i < count; i++) {
+            nanoTimes[i] -= origin;
+        }
+        Arrays.sort(nanoTimes, 0, count);
+        for (int i = 0; i < count; i++) {
+            nanoTimes[i] += origin;
+        }
+    }
+
+    private boolean evict(final String name, final EvictableRequestLimit entry) {
+        if (!requestLimits.remove(name, entry)) {
+            return false;
+        }
+        entry.close();
+        return true;
     }
 }
@@ -0,0 +1,80 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.util.Objects.requireNonNull;
+
+import cc.storozhuk.requestlimit.RequestLimitStateBackend;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * {@link RequestLimitStateBackend} that keeps budgets in the memory of the current process,
+ * it stands in for a shared store in tests and when several registries of one process share request limits.
+ * <p>Budget of each request limit is an immutable pair of the full cycle number and consumed permits,
+ * so it is updated with a single compare and set, cycles are compared without wrapping
+ * and the budget of the elapsed cycle is dropped on the first request in the next one.
+ * Backend is called once per batch of permits, so allocation of the next budget is not on the hot path.
+ *
+ * @author bstorozhuk
+ */
+public class InMemoryRequestLimitStateBackend implements RequestLimitStateBackend {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+
+    private final Map<String, AtomicReference<Budget>> budgets;
+
+    public InMemoryRequestLimitStateBackend() {
+        this.budgets = new ConcurrentHashMap<>();
+    }
+
+    @Override
+    public int acquirePermits(final String name, final long cycle, final int permits, final int limitForPeriod) {
+        requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        AtomicReference<Budget> budget = budgets.computeIfAbsent(name, budgetName -> new AtomicReference<>(new Budget(cycle, 0)));
+        while (true) {
+            Budget current = budget.get();
+            if (current.cycle > cycle) {
+                return 0;
+            }
+            int consumedPermits = current.cycle == cycle ? current.consumedPermits : 0;
+            int granted = Integer.min(permits, limitForPeriod - consumedPermits);
+            if (granted <= 0) {
+                return 0;
+            }
+            if (budget.compareAndSet(current, new Budget(cycle, consumedPermits + granted))) {
+                return granted;
+            }
+        }
+    }
+
+    /**
+     * Returns permits consumed by all nodes in the given cycle.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @param name  name of the request limit
+     * @param cycle number of the cycle since the start of epoch
+     * @return consumed permits
+     */
+    public int getConsumedPermits(final String name, final long cycle) {
+        AtomicReference<Budget> budget = budgets.get(name);
+        Budget current = budget == null ? null : budget.get();
+        if (current == null || current.cycle != cycle) {
+            return 0;
+        }
+        return current.consumedPermits;
+    }
+
+    /**
+     * Permits consumed by all nodes in the cycle.
+     */
+    private static final class Budget {
+        private final long cycle;
+        private final int consumedPermits;
+
+        private Budget(final long cycle, final int consumedPermits) {
+            this.cycle = cycle;
+            this.consumedPermits = consumedPermits;
+        }
+    }
+}
@@ -0,0 +1,262 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.System.nanoTime;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.Set;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * {@link RequestLimit} decorator that leases {@link RequestLimitConfig#getLeaseSize()} permits at once
+ * and serves subsequent permission requests of the same thread from its thread local lease,
+ * so most of the requests don't touch shared state of the request limit at all.
+ * <p>Accuracy guarantees:
+ * <ul>
+ * <li>Every permission is granted by the underlying request limit, leasing never creates permissions.</li>
+ * <p>
+ * <li>Lease expires at the end of the refresh period of the underlying request limit it was granted in,
+ * see {@link RequestLimit#getNanosToNextRefresh()}, so leased permits are never used in the next period
+ * and a period admits at most its limit. Request limits without period boundaries let leases live
+ * one {@link RequestLimitConfig#getLimitRefreshPeriod()}.</li>
+ * <p>
+ * <li>Unused permits are returned to the underlying request limit with {@link RequestLimit#releasePermissions(int)}
+ * when the thread leases again or the request limit is closed. Permits of the expired lease belong to
+ * the elapsed period that is refilled anyway, so they are not returned.</li>
+ * <p>
+ * <li>When the underlying request limit has less than a lease of permits, threads fall back to
+ * permission requests without leasing, so a saturated limit is underused by at most
+ * {@code threads * (leaseSize - 1)} permits that are held in the leases of other threads.</li>
+ * </ul>
+ *
+ * @author bstorozhuk
+ */
+class LeasingRequestLimit implements RequestLimit {
+
+    private final RequestLimit requestLimit;
+    private final ThreadLocal<Lease> leases;
+    private final Set<Lease> leasesWithPermits;
+    private final AtomicBoolean closed;
+
+    LeasingRequestLimit(final RequestLimit requestLimit) {
+        this.requestLimit = requestLimit;
+        this.leases = ThreadLocal.withInitial(Lease::new);
+        this.leasesWithPermits = ConcurrentHashMap.newKeySet();
+        this.closed = new AtomicBoolean(false);
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Prioritized requests use the lease of the calling thread, but don't lease new permits,
+     * so they wait with their priority in the underlying request limit.
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        return tryAcquireLeased() || requestLimit.getPermission(timeoutInNanos, priority);
+    }
+
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        Lease lease = leases.get();
+        if (tryAcquireLeased(lease, permits)) {
+            return true;
+        }
+        return leasePermissions(lease, permits, timeoutInNanos);
+    }
+
+    /**
+     * Tries to lease permits without waiting and falls back to the requested permits
+     * if there is not enough permissions for the whole lease.
+     * <p>
+     * <p>Time to the end of the period is taken before the lease is granted, so the lease granted right after
+     * the refresh expires early instead of living through the whole next period.
+     */
+    private boolean leasePermissions(final Lease lease, final int permits, final long timeoutInNanos) {
+        RequestLimitConfig config = requestLimit.getRequestLimitConfig();
+        int leaseSize = Integer.min(config.getLeaseSize(), config.getLimitForPeriod());
+        if (leaseSize > permits && !closed.get()) {
+            returnLease(lease);
+            long expiresAt = currentNanoTime() + requestLimit.getNanosToNextRefresh();
+            if (requestLimit.getPermissions(leaseSize, 0L)) {
+                lease.expiresAt = expiresAt;
+                lease.permits.set(leaseSize - permits);
+                leasesWithPermits.add(lease);
+                return true;
+            }
+        }
+        return requestLimit.getPermissions(permits, timeoutInNanos);
+    }
+
+    /**
+     * Returns unused permits of the lease to the underlying request limit, if the lease is not expired yet.
+     * Can be called by any thread, so the owner and {@link #close()} never use the same permits twice.
+     */
+    private void returnLease(final Lease lease) {
+        int unusedPermits = lease.permits.getAndSet(0);
+        if (unusedPermits > 0) {
+            leasesWithPermits.remove(lease);
+            if (isValid(lease)) {
+                requestLimit.releasePermissions(unusedPermits);
+            }
+        }
+    }
+
+    /**
+     * Asynchronous requests are completed on the shared timer threads,
+     * so they use only leases of the calling thread and don't lease new permits.
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        if (tryAcquireLeased()) {
+            return CompletableFuture.completedFuture(true);
+        }
+        return requestLimit.acquirePermissionAsync();
+    }
+
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        if (tryAcquireLeased()) {
+            return 0L;
+        }
+        return requestLimit.reservePermission(timeoutDuration);
+    }
+
+    private boolean tryAcquireLeased() {
+        return tryAcquireLeased(leases.get(), 1);
+    }
+
+    /**
+     * Lease is used only by its thread, so compare and set is uncontended,
+     * it races only with {@link #close()} returning the lease.
+     */
+    private boolean tryAcquireLeased(final Lease lease, final int permits) {
+        if (!isValid(lease)) {
+            return false;
+        }
+        int leasedPermits = lease.permits.get();
+        while (leasedPermits >= permits) {
+            if (lease.permits.compareAndSet(leasedPermits, leasedPermits - permits)) {
+                if (leasedPermits == permits) {
+                    leasesWithPermits.remove(lease);
+                }
+                return true;
+            }
+            leasedPermits = lease.permits.get();
+        }
+        return false;
+    }
+
+    private boolean isValid(final Lease lease) {
+        return currentNanoTime() - lease.expiresAt < 0;
+    }
+
+    /**
+     * Returns the number of leased permits of the current thread that are not expired yet.
+     *
+     * @return leased permits of the current thread
+     */
+    int getLeasedPermits() {
+        Lease lease = leases.get();
+        return isValid(lease) ? lease.permits.get() : 0;
+    }
+
+    long currentNanoTime() {
+        return nanoTime();
+    }
+
+    /**
+     * Returned permits go straight to the underlying request limit, so other threads can use them.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        requestLimit.releasePermissions(permits);
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        return requestLimit.getNanosToNextRefresh();
+    }
+
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        requestLimit.recordCall(durationInNanos, failed);
+    }
+
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        return requestLimit.acquireInFlightPermission(timeoutInNanos);
+    }
+
+    @Override
+    public void releaseInFlightPermission() {
+        requestLimit.releaseInFlightPermission();
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        requestLimit.changeLimitForPeriod(limitForPeriod);
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        requestLimit.changeTimeoutDuration(timeoutDuration);
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>New lease size is used for the next leases, permits that are already leased stay untouched.
+     */
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig requestLimitConfig) {
+        requestLimit.changeRequestLimitConfig(requestLimitConfig);
+    }
+
+    /**
+     * Unused permits of all threads are returned before the underlying request limit is closed,
+     * e.g. so they are not recorded as consumed by the persistent request limit. Closed request limit doesn't lease.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        leasesWithPermits.forEach(this::returnLease);
+        leases.remove();
+        requestLimit.close();
+    }
+
+    @Override
+    public String getName() {
+        return requestLimit.getName();
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return requestLimit.getMetrics();
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimit.getRequestLimitConfig();
+    }
+
+    /**
+     * Permits leased by a single thread, other threads only return them on {@link #close()}.
+     * Expiration is written before permits, so whoever takes the permits sees their expiration.
+     */
+    private static final class Lease {
+        private final AtomicInteger permits = new AtomicInteger();
+        private volatile long expiresAt;
+    }
+}
@@ -0,0 +1,308 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.min;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import cc.storozhuk.requestlimit.KeyedRequestLimitRegistry;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.function.IntFunction;
+
+/**
+ * {@link KeyedRequestLimitRegistry} that keeps keys and their states in an open-addressed table of {@code long} values,
+ * so each tracked key costs two {@code long} values and there are no objects per key.
+ * The table can be placed on the heap or in a direct buffer outside of the GC managed heap.
+ * <p>State of each key works like {@link AtomicRequestLimitImpl}: time is split into cycles of
+ * {@link RequestLimitConfig#getLimitRefreshPeriod()} and permissions are refilled lazily.
+ * It is packed into a single {@code long} as [32 bits of the cycle number | 32 bits of permissions]
+ * and updated with a single CAS, so the permission path is lock-free.
+ * <p>Slot of a key that refilled its {@link RequestLimitConfig#getBurstCapacity()} is indistinguishable
+ * from a slot of an unknown key, so it can be reused for another key without losing any limiting state.
+ * Reused slot always gets the current cycle, while a reusable one had an older cycle,
+ * so concurrent CAS of the previous key's state can't succeed on the slot of the new key.
+ * <p>Insertions of the same key are serialized by striped locks to prevent duplicates,
+ * insertions of different keys compete for slots with CAS. Keys are placed within
+ * {@value #MAX_PROBES} slots from their home slot, if there is no free or reusable slot
+ * among them, the request is rejected.
+ *
+ * @author bstorozhuk
+ */
+public class OpenAddressingKeyedRequestLimitRegistry implements KeyedRequestLimitRegistry {
+
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+
+    private static final long NANO_TIME_START = nanoTime();
+    private static final long EMPTY_KEY = 0L;
+    private static final long INSERTING = -1L;
+    private static final long PERMISSIONS_MASK = 0xFFFF_FFFFL;
+    private static final int MAX_PROBES = 64;
+    private static final int INSERT_LOCKS = 64;
+
+    private final RequestLimitConfig requestLimitConfig;
+    private final long cyclePeriodInNanos;
+    private final int permissionsPerCycle;
+    private final int maxPermissions;
+    private final int mask;
+    private final int emptyKeySlot;
+    private final AtomicLongStorage table;
+    private final ReentrantLock[] insertLocks;
+    private final AtomicInteger occupiedSlots;
+
+    public OpenAddressingKeyedRequestLimitRegistry(final RequestLimitConfig requestLimitConfig, final int maximumActiveKeys) {
+        this(requestLimitConfig, maximumActiveKeys, false);
+    }
+
+    /**
+     * @param requestLimitConfig config shared by all keys
+     * @param maximumActiveKeys  max number of keys that can be limited at the same time
+     * @param offHeap            if {@code true} the table is allocated with {@link java.nio.ByteBuffer#allocateDirect(int)}
+     */
+    public OpenAddressingKeyedRequestLimitRegistry(final RequestLimitConfig requestLimitConfig, final int maximumActiveKeys,
+                                                   final boolean offHeap) {
+        this(requestLimitConfig, maximumActiveKeys, offHeap ? DirectAtomicLongStorage::new : HeapAtomicLongStorage::new);
+    }
+
+    OpenAddressingKeyedRequestLimitRegistry(final RequestLimitConfig requestLimitConfig, final int maximumActiveKeys,
+                                            final IntFunction<AtomicLongStorage> storageFactory) {
+        this.requestLimitConfig = requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (maximumActiveKeys < 1) {
+            throw new IllegalArgumentException("MaximumActiveKeys should be greater than 0");
+        }
+        this.cyclePeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        this.permissionsPerCycle = requestLimitConfig.getLimitForPeriod();
+        this.maxPermissions = requestLimitConfig.getBurstCapacity();
+
+        int capacity = tableCapacity(maximumActiveKeys);
+        this.mask = capacity - 1;
+        this.emptyKeySlot = capacity;
+        this.table = storageFactory.apply((capacity + 1) * 2);
+        for (int slot = 0; slot < capacity; slot++) {
+            table.set(stateIndex(slot), INSERTING);
+        }
+        table.set(stateIndex(emptyKeySlot), packState(currentCycle(), maxPermissions));
+        this.insertLocks = new ReentrantLock[INSERT_LOCKS];
+        for (int i = 0; i < INSERT_LOCKS; i++) {
+            insertLocks[i] = new ReentrantLock();
+        }
+        this.occupiedSlots = new AtomicInteger(0);
+    }
+
+    /**
+     * Keeps load factor of the table below 0.5, so probe sequences stay short.
+     */
+    private static int tableCapacity(final int maximumActiveKeys) {
+        long capacity = Long.highestOneBit(Integer.max(maximumActiveKeys, MAX_PROBES) * 2L - 1) << 1;
+        if (capacity > 1 << 29) {
+            throw new IllegalArgumentException("MaximumActiveKeys is too big");
+        }
+        return (int) capacity;
+    }
+
+    @Override
+    public boolean tryAcquire(final long key) {
+        return tryAcquire(key, 1);
+    }
+
+    @Override
+    public boolean tryAcquire(final long key, final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        if (permits > maxPermissions) {
+            return false;
+        }
+        while (true) {
+            int slot = findOrInsert(key);
+            if (slot < 0) {
+                return false;
+            }
+            long state = table.get(stateIndex(slot));
+            if (state == INSERTING || !ownsSlot(key, slot)) {
+                parkNanos(1); // back-off, slot is being reused right now
+                continue;
+            }
+            long currentCycle = currentCycle();
+            int availablePermissions = refillPermissions(state, currentCycle);
+            if (availablePermissions < permits) {
+                return false;
+            }
+            long nextState = packState(currentCycle, availablePermissions - permits);
+            if (table.compareAndSet(stateIndex(slot), state, nextState)) {
+                return true;
+            }
+        }
+    }
+
+    @Override
+    public int getAvailablePermits(final long key) {
+        int slot = find(key);
+        if (slot < 0) {
+            return maxPermissions;
+        }
+        long state = table.get(stateIndex(slot));
+        if (state == INSERTING || !ownsSlot(key, slot)) {
+            return maxPermissions;
+        }
+        return refillPermissions(state, currentCycle());
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimitConfig;
+    }
+
+    /**
+     * Returns the number of slots that were ever occupied by keys,
+     * including the ones that can be reused by new keys.
+     * <p>This method is typically used for debugging and testing purposes.
+     *
+     * @return the number of occupied slots
+     */
+    public int getNumberOfOccupiedSlots() {
+        return occupiedSlots.get();
+    }
+
+    private boolean ownsSlot(final long key, final int slot) {
+        return slot == emptyKeySlot || table.get(keyIndex(slot)) == key;
+    }
+
+    private int findOrInsert(final long key) {
+        int slot = find(key);
+        if (slot >= 0) {
+            return slot;
+        }
+        ReentrantLock insertLock = insertLocks[homeSlot(key) & (INSERT_LOCKS - 1)];
+        insertLock.lock();
+        try {
+            slot = find(key);
+            if (slot >= 0) {
+                return slot;
+            }
+            return insert(key);
+        } finally {
+            insertLock.unlock();
+        }
+    }
+
+    /**
+     * Probes slots starting from the home slot of the key, slots never become empty again,
+     * so the first empty slot ends the probe sequence.
+     *
+     * @param key key to find
+     * @return slot of the key or negative value if it is not tracked
+     */
+    private int find(final long key) {
+        if (key == EMPTY_KEY) {
+            return emptyKeySlot;
+        }
+        int slot = homeSlot(key);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long slotKey = table.get(keyIndex(slot));
+            if (slotKey == key) {
+                return slot;
+            }
+            if (slotKey == EMPTY_KEY) {
+                return -1;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * Places the key into the first empty or reusable slot of its probe sequence.
+     * Caller should hold the insert lock of the key.
+     *
+     * @param key key to insert
+     * @return slot of the key or negative value if there is no space for it
+     */
+    private int insert(final long key) {
+        int slot = homeSlot(key);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long slotKey = table.get(keyIndex(slot));
+            if (slotKey == EMPTY_KEY && table.compareAndSet(keyIndex(slot), EMPTY_KEY, key)) {
+                occupiedSlots.incrementAndGet();
+                table.set(stateIndex(slot), packState(currentCycle(), maxPermissions));
+                return slot;
+            }
+            if (slotKey != EMPTY_KEY && reuseSlot(slot, key)) {
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    private boolean reuseSlot(final int slot, final long key) {
+        long state = table.get(stateIndex(slot));
+        long currentCycle = currentCycle();
+        boolean isReusable = state != INSERTING
+            && cycleOf(state) != (int) currentCycle
+            && refillPermissions(state, currentCycle) == maxPermissions;
+        if (!isReusable || !table.compareAndSet(stateIndex(slot), state, INSERTING)) {
+            return false;
+        }
+        table.set(keyIndex(slot), key);
+        table.set(stateIndex(slot), packState(currentCycle, maxPermissions));
+        return true;
+    }
+
+    /**
+     * Adds {@link RequestLimitConfig#getLimitForPeriod()} permissions for each cycle elapsed since the stored one,
+     * but never more than {@link RequestLimitConfig#getBurstCapacity()} permissions in total.
+     * Cycles are compared modulo 2^32 and permissions never become negative,
+     * so an idle key refills at least as much as it should.
+     */
+    private int refillPermissions(final long state, final long currentCycle) {
+        long elapsedCycles = ((int) currentCycle - cycleOf(state)) & PERMISSIONS_MASK;
+        int permissions = permissionsOf(state);
+        long accumulatedPermissions = elapsedCycles * permissionsPerCycle;
+        return (int) min(permissions + accumulatedPermissions, maxPermissions);
+    }
+
+    private static int keyIndex(final int slot) {
+        return slot << 1;
+    }
+
+    private static int stateIndex(final int slot) {
+        return (slot << 1) + 1;
+    }
+
+    private static long packState(final long cycle, final int permissions) {
+        return (cycle << 32) | (permissions & PERMISSIONS_MASK);
+    }
+
+    private static int cycleOf(final long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int permissionsOf(final long state) {
+        return (int) state;
+    }
+
+    private int homeSlot(final long key) {
+        long hash = key;
+        hash ^= hash >>> 33;
+        hash *= 0xff51afd7ed558ccdL;
+        hash ^= hash >>> 33;
+        hash *= 0xc4ceb9fe1a85ec53L;
+        hash ^= hash >>> 33;
+        return (int) hash & mask;
+    }
+
+    private long currentCycle() {
+        return currentNanoTime() / cyclePeriodInNanos;
+    }
+
+    /**
+     * @return nanoseconds since {@link OpenAddressingKeyedRequestLimitRegistry} class initialisation
+     */
+    long currentNanoTime() {
+        return nanoTime() - NANO_TIME_START;
+    }
+}
@@ -0,0 +1,154 @@
+package cc.storozhuk.requestlimit.internal;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletionStage;
+
+/**
+ * {@link RequestLimit} decorator that records granted permissions in {@link PersistentRequestLimitStates}.
+ * <p>On creation it consumes permissions that were granted in the current cycle by the previous process,
+ * so restart doesn't let through a second {@link RequestLimitConfig#getLimitForPeriod()} of requests.
+ *
+ * @author bstorozhuk
+ */
+class PersistentRequestLimit implements RequestLimit {
+
+    private final RequestLimit requestLimit;
+    private final PersistentRequestLimitStates states;
+    private final int slot;
+    private final long cyclePeriodInNanos;
+
+    PersistentRequestLimit(final RequestLimit requestLimit, final PersistentRequestLimitStates states,
+                           final int slot, final long cyclePeriodInNanos) {
+        this.requestLimit = requestLimit;
+        this.states = states;
+        this.slot = slot;
+        this.cyclePeriodInNanos = cyclePeriodInNanos;
+        consumePersistedPermissions();
+    }
+
+    /**
+     * Newly created request limits start either with {@link RequestLimitConfig#getBurstCapacity()}
+     * or with {@link RequestLimitConfig#getLimitForPeriod()} permissions, so it tries to consume as many as possible.
+     */
+    private void consumePersistedPermissions() {
+        int consumedPermissions = states.consumedPermissions(slot, cyclePeriodInNanos);
+        if (consumedPermissions == 0) {
+            return;
+        }
+        RequestLimitConfig config = requestLimit.getRequestLimitConfig();
+        int permits = Integer.min(consumedPermissions, config.getBurstCapacity());
+        if (!requestLimit.getPermissions(permits, 0L)) {
+            requestLimit.getPermissions(Integer.min(consumedPermissions, config.getLimitForPeriod()), 0L);
+        }
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        boolean permitted = requestLimit.getPermission(timeoutInNanos);
+        if (permitted) {
+            states.recordPermissions(slot, cyclePeriodInNanos, 1);
+        }
+        return permitted;
+    }
+
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        boolean permitted = requestLimit.getPermission(timeoutInNanos, priority);
+        if (permitted) {
+            states.recordPermissions(slot, cyclePeriodInNanos, 1);
+        }
+        return permitted;
+    }
+
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        boolean permitted = requestLimit.getPermissions(permits, timeoutInNanos);
+        if (permitted) {
+            states.recordPermissions(slot, cyclePeriodInNanos, permits);
+        }
+        return permitted;
+    }
+
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        return requestLimit.acquirePermissionAsync().thenApply(permitted -> {
+            if (permitted) {
+                states.recordPermissions(slot, cyclePeriodInNanos, 1);
+            }
+            return permitted;
+        });
+    }
+
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        long nanosToWait = requestLimit.reservePermission(timeoutDuration);
+        if (nanosToWait >= 0) {
+            states.recordPermissions(slot, cyclePeriodInNanos, 1);
+        }
+        return nanosToWait;
+    }
+
+    @Override
+    public void releasePermissions(final int permits) {
+        requestLimit.releasePermissions(permits);
+        states.recordPermissions(slot, cyclePeriodInNanos, -permits);
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        return requestLimit.getNanosToNextRefresh();
+    }
+
+    @Override
+    public void recordCall(final long durationInNanos, final boolean failed) {
+        requestLimit.recordCall(durationInNanos, failed);
+    }
+
+    @Override
+    public boolean acquireInFlightPermission(final long timeoutInNanos) {
+        return requestLimit.acquireInFlightPermission(timeoutInNanos);
+    }
+
+    @Override
+    public void releaseInFlightPermission() {
+        requestLimit.releaseInFlightPermission();
+    }
+
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        requestLimit.changeLimitForPeriod(limitForPeriod);
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        requestLimit.changeTimeoutDuration(timeoutDuration);
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig requestLimitConfig) {
+        requestLimit.changeRequestLimitConfig(requestLimitConfig);
+    }
+
+    @Override
+    public void close() {
+        requestLimit.close();
+    }
+
+    @Override
+    public String getName() {
+        return requestLimit.getName();
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return requestLimit.getMetrics();
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimit.getRequestLimitConfig();
+    }
+}
@@ -0,0 +1,288 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.nio.file.StandardOpenOption.CREATE;
+import static java.nio.file.StandardOpenOption.READ;
+import static java.nio.file.StandardOpenOption.WRITE;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.channels.FileChannel;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.nio.file.Path;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Memory-mapped table of permissions consumed by request limits in the current cycle,
+ * so request limits recreated after restart of the process continue from the consumed permissions
+ * instead of granting full {@link cc.storozhuk.requestlimit.RequestLimitConfig#getLimitForPeriod()} once again.
+ * <p>Cycles are counted from the start of the epoch by the wall clock, because nano time of the previous process
+ * is meaningless after restart. Each request limit owns a slot of three {@code long} values:
+ * [64 bit hash of its name | refresh period in nanoseconds | 32 bits of the cycle number and 32 bits of consumed permissions].
+ * Consumed permissions are updated with a single CAS and written to the file by the OS,
+ * so there is nothing to replay on startup. Slots of request limits that consumed nothing in the current cycle
+ * are dropped when the file is opened, so the table doesn't fill up with names of old request limits.
+ * <p>The file is locked while it is used, so it can't be shared by several registries or processes.
+ *
+ * @author bstorozhuk
+ */
+class PersistentRequestLimitStates {
+
+    private static final long MAGIC = 0x52_4C_53_54_41_54_45_31L;
+    private static final long VERSION = 1L;
+    private static final int HEADER_LENGTH = 4;
+    private static final int MAGIC_INDEX = 0;
+    private static final int VERSION_INDEX = 1;
+    private static final int CAPACITY_INDEX = 2;
+    private static final int SLOT_LENGTH = 3;
+    private static final int MAX_PROBES = 64;
+    private static final long EMPTY_KEY = 0L;
+    private static final long PERMISSIONS_MASK = 0xFFFF_FFFFL;
+
+    private final FileChannel fileChannel;
+    private final FileLock fileLock;
+    private final AtomicLongStorage table;
+    private final int mask;
+
+    PersistentRequestLimitStates(final FileChannel fileChannel, final FileLock fileLock,
+                                 final AtomicLongStorage table, final int capacity) {
+        this.fileChannel = fileChannel;
+        this.fileLock = fileLock;
+        this.table = table;
+        this.mask = capacity - 1;
+        if (table.get(MAGIC_INDEX) == MAGIC && table.get(VERSION_INDEX) == VERSION
+            && table.get(CAPACITY_INDEX) == capacity) {
+            dropIdleSlots(capacity);
+        } else {
+            clear();
+            table.set(VERSION_INDEX, VERSION);
+            table.set(CAPACITY_INDEX, capacity);
+            table.set(MAGIC_INDEX, MAGIC);
+        }
+    }
+
+    /**
+     * Opens or creates the persistence file. Table that was written with another capacity is reset.
+     *
+     * @param file                persistence file
+     * @param persistenceCapacity max number of persisted request limits
+     * @return states backed by the file
+     */
+    static PersistentRequestLimitStates open(final Path file, final int persistenceCapacity) {
+        int capacity = Integer.highestOneBit(Integer.max(persistenceCapacity, MAX_PROBES) * 2 - 1) << 1;
+        FileChannel fileChannel = null;
+        try {
+            fileChannel = FileChannel.open(file, CREATE, READ, WRITE);
+            FileLock fileLock = lock(fileChannel, file);
+            AtomicLongStorage table = DirectAtomicLongStorage.mapped(fileChannel, HEADER_LENGTH + capacity * SLOT_LENGTH);
+            return new PersistentRequestLimitStates(fileChannel, fileLock, table, capacity);
+        } catch (IOException e) {
+            closeQuietly(fileChannel);
+            throw new UncheckedIOException("Can't open persistence file " + file, e);
+        } catch (RuntimeException e) {
+            closeQuietly(fileChannel);
+            throw e;
+        }
+    }
+
+    private static FileLock lock(final FileChannel fileChannel, final Path file) throws IOException {
+        FileLock fileLock;
+        try {
+            fileLock = fileChannel.tryLock();
+        } catch (OverlappingFileLockException e) {
+            fileLock = null;
+        }
+        if (fileLock == null) {
+            throw new IllegalStateException("Persistence file " + file + " is used by another registry");
+        }
+        return fileLock;
+    }
+
+    private static void closeQuietly(final FileChannel fileChannel) {
+        if (fileChannel == null) {
+            return;
+        }
+        try {
+            fileChannel.close();
+        } catch (IOException e) {
+            // the original failure is more important
+        }
+    }
+
+    /**
+     * Releases the file lock, so the file can be opened again. State already mapped into memory stays valid.
+     */
+    void close() {
+        try {
+            fileLock.release();
+            fileChannel.close();
+        } catch (IOException e) {
+            throw new UncheckedIOException("Can't close persistence file", e);
+        }
+    }
+
+    /**
+     * Decorates request limit, so permissions it grants are persisted
+     * and permissions consumed in the current cycle before restart are consumed from it immediately.
+     * If there is no free slot for the request limit, it is returned as is.
+     *
+     * @param requestLimit new request limit
+     * @return request limit with persisted state
+     */
+    RequestLimit persistent(final RequestLimit requestLimit) {
+        long cyclePeriodInNanos = requestLimit.getRequestLimitConfig().getLimitRefreshPeriodInNanos();
+        int slot = claimSlot(nameHash(requestLimit.getName()), cyclePeriodInNanos);
+        if (slot < 0) {
+            return requestLimit;
+        }
+        return new PersistentRequestLimit(requestLimit, this, slot, cyclePeriodInNanos);
+    }
+
+    /**
+     * Finds slot of the name or claims the first empty one in its probe sequence.
+     * Slot keeps consumed permissions only if it was written with the same refresh period.
+     *
+     * @param nameHash            hash of the request limit name
+     * @param cyclePeriodInNanos  refresh period of the request limit
+     * @return slot of the name or negative value if there is no space for it
+     */
+    synchronized int claimSlot(final long nameHash, final long cyclePeriodInNanos) {
+        int slot = homeSlot(nameHash);
+        for (int probe = 0; probe < MAX_PROBES; probe++) {
+            long slotKey = table.get(keyIndex(slot));
+            if (slotKey == nameHash || slotKey == EMPTY_KEY) {
+                if (slotKey == EMPTY_KEY || table.get(periodIndex(slot)) != cyclePeriodInNanos) {
+                    table.set(periodIndex(slot), cyclePeriodInNanos);
+                    table.set(stateIndex(slot), 0L);
+                    table.set(keyIndex(slot), nameHash);
+                }
+                return slot;
+            }
+            slot = (slot + 1) & mask;
+        }
+        return -1;
+    }
+
+    /**
+     * @param slot               slot of the request limit
+     * @param cyclePeriodInNanos refresh period of the request limit
+     * @return permissions consumed by the request limit in the current cycle
+     */
+    int consumedPermissions(final int slot, final long cyclePeriodInNanos) {
+        long state = table.get(stateIndex(slot));
+        if (cycleOf(state) != (int) currentCycle(cyclePeriodInNanos)) {
+            return 0;
+        }
+        return permissionsOf(state);
+    }
+
+    /**
+     * Adds permissions to the ones consumed in the current cycle,
+     * permissions consumed in previous cycles are dropped.
+     * Negative permits subtract returned permissions, but consumed permissions never go below zero.
+     *
+     * @param slot               slot of the request limit
+     * @param cyclePeriodInNanos refresh period of the request limit
+     * @param permits            number of granted permits, or negative number of returned permits
+     */
+    void recordPermissions(final int slot, final long cyclePeriodInNanos, final int permits) {
+        int stateIndex = stateIndex(slot);
+        long state;
+        long nextState;
+        do {
+            state = table.get(stateIndex);
+            int currentCycle = (int) currentCycle(cyclePeriodInNanos);
+            long consumedPermissions = permits;
+            if (cycleOf(state) == currentCycle) {
+                consumedPermissions = Long.min(permissionsOf(state) + consumedPermissions, Integer.MAX_VALUE);
+            }
+            nextState = packState(currentCycle, (int) Long.max(consumedPermissions, 0L));
+        } while (!table.compareAndSet(stateIndex, state, nextState));
+    }
+
+    /**
+     * Reinserts slots that consumed permissions in the current cycle and drops all others.
+     * Runs only on startup, before the table is visible to request limits.
+     */
+    private void dropIdleSlots(final int capacity) {
+        long[] activeSlots = new long[capacity * SLOT_LENGTH];
+        int activeSlotsCount = 0;
+        for (int slot = 0; slot < capacity; slot++) {
+            long nameHash = table.get(keyIndex(slot));
+            long cyclePeriodInNanos = table.get(periodIndex(slot));
+            if (nameHash != EMPTY_KEY && cyclePeriodInNanos > 0 && consumedPermissions(slot, cyclePeriodInNanos) > 0) {
+                activeSlots[activeSlotsCount * SLOT_LENGTH] = nameHash;
+                activeSlots[activeSlotsCount * SLOT_LENGTH + 1] = cyclePeriodInNanos;
+                activeSlots[activeSlotsCount * SLOT_LENGTH + 2] = table.get(stateIndex(slot));
+                activeSlotsCount++;
+            }
+        }
+        clear();
+        for (int i = 0; i < activeSlotsCount; i++) {
+            int slot = claimSlot(activeSlots[i * SLOT_LENGTH], activeSlots[i * SLOT_LENGTH + 1]);
+            if (slot >= 0) {
+                table.set(stateIndex(slot), activeSlots[i * SLOT_LENGTH + 2]);
+            }
+        }
+    }
+
+    private void clear() {
+        for (int i = HEADER_LENGTH; i < table.length(); i++) {
+            table.set(i, 0L);
+        }
+    }
+
+    /**
+     * 64 bit FNV-1a hash of the name, collisions are negligible for any realistic number of request limits.
+     */
+    static long nameHash(final String name) {
+        long hash = 0xcbf29ce484222325L;
+        for (int i = 0; i < name.length(); i++) {
+            hash ^= name.charAt(i);
+            hash *= 0x100000001b3L;
+        }
+        return hash == EMPTY_KEY ? 1L : hash;
+    }
+
+    private int homeSlot(final long nameHash) {
+        long hash = nameHash ^ (nameHash >>> 32);
+        return (int) (hash ^ (hash >>> 16)) & mask;
+    }
+
+    private static int keyIndex(final int slot) {
+        return HEADER_LENGTH + slot * SLOT_LENGTH;
+    }
+
+    private static int periodIndex(final int slot) {
+        return HEADER_LENGTH + slot * SLOT_LENGTH + 1;
+    }
+
+    private static int stateIndex(final int slot) {
+        return HEADER_LENGTH + slot * SLOT_LENGTH + 2;
+    }
+
+    private static long packState(final int cycle, final int permissions) {
+        return ((long) cycle << 32) | (permissions & PERMISSIONS_MASK);
+    }
+
+    private static int cycleOf(final long state) {
+        return (int) (state >>> 32);
+    }
+
+    private static int permissionsOf(final long state) {
+        return (int) state;
+    }
+
+    private long currentCycle(final long cyclePeriodInNanos) {
+        return currentTimeNanos() / cyclePeriodInNanos;
+    }
+
+    /**
+     * @return wall clock time in nanoseconds from the start of epoch
+     */
+    long currentTimeNanos() {
+        return TimeUnit.MILLISECONDS.toNanos(System.currentTimeMillis());
+    }
+}
@@ -1,17 +1,32 @@
 package cc.storozhuk.requestlimit.internal;
 
+import static java.lang.Long.max;
+import static java.lang.Long.min;
+import static java.lang.System.nanoTime;
 import static java.util.Objects.requireNonNull;
 import static java.util.concurrent.Executors.newSingleThreadScheduledExecutor;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+import static java.util.concurrent.locks.LockSupport.unpark;
 
 import cc.storozhuk.requestlimit.RequestLimit;
 import cc.storozhuk.requestlimit.RequestLimitConfig;
-import javaslang.control.Option;
+import cc.storozhuk.requestlimit.WaitStrategy;
 
 import java.time.Duration;
+import java.util.Queue;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ConcurrentLinkedQueue;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.Semaphore;
 import java.util.concurrent.ThreadFactory;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BooleanSupplier;
 
 /**
  * @author bstorozhuk
@@ -20,12 +35,29 @@ public class SemaphoreBasedRequestLimitImpl implements RequestLimit {
 
     private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
     private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String REFRESH_TIMER_MUST_NOT_BE_NULL = "RefreshTimer must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+    private static final String PRIORITY_MUST_NOT_BE_NEGATIVE = "Priority should not be negative";
+    private static final long LATE_REFRESH_PARK_NANOS = 10_000L;
+    private static final int LOWEST_PRIORITY = 0;
+    private static final int CLOSED_SEMAPHORE_PERMITS = Integer.MAX_VALUE / 2;
 
     private final String name;
-    private final RequestLimitConfig requestLimitConfig;
-    private final ScheduledExecutorService scheduler;
+    private final AtomicReference<RequestLimitConfig> requestLimitConfig;
     private final Semaphore semaphore;
+    private final Queue<Waiter>[] waiters;
+    private final AtomicInteger waitingThreads;
+    private final AtomicInteger reservedPermits;
+    private final LongAdder successfulPermissions;
+    private final LongAdder rejectedPermissions;
+    private final WaitTimeHistogram waitTimes;
     private final SemaphoreBasedRequestLimitMetrics metrics;
+    private final AtomicBoolean closed;
+    private final Runnable refreshCancellation;
+    private volatile long nextRefreshNanos;
+    private volatile double lastCycleUtilization;
+    private long permitsAfterRefresh;
 
     private ScheduledExecutorService configureScheduler() {
         ThreadFactory threadFactory = target -> {
@@ -36,32 +68,208 @@ public class SemaphoreBasedRequestLimitImpl implements RequestLimit {
         return newSingleThreadScheduledExecutor(threadFactory);
     }
 
-    private void scheduleLimitRefresh() {
-        scheduler.scheduleAtFixedRate(
+    private ScheduledFuture<?> scheduleLimitRefresh(final ScheduledExecutorService scheduler,
+                                                    final long refreshPeriodInNanos) {
+        return scheduler.scheduleAtFixedRate(
             this::refreshLimit,
-            this.requestLimitConfig.getLimitRefreshPeriod().toNanos(),
-            this.requestLimitConfig.getLimitRefreshPeriod().toNanos(),
+            refreshPeriodInNanos,
+            refreshPeriodInNanos,
             TimeUnit.NANOSECONDS
         );
     }
 
     public SemaphoreBasedRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig) {
-        this(name, requestLimitConfig, null);
+        this(name, requestLimitConfig, null, null);
     }
 
     public SemaphoreBasedRequestLimitImpl(String name, RequestLimitConfig requestLimitConfig,
                                           ScheduledExecutorService scheduler) {
+        this(name, requestLimitConfig, scheduler, null);
+    }
+
+    /**
+     * Creates request limit that is refreshed by the shared {@link HashedWheelRefreshTimer}
+     * instead of its own scheduler thread.
+     *
+     * @param name               name of the request limit
+     * @param requestLimitConfig request limit configuration
+     * @param refreshTimer       shared timer that drives refreshes of this request limit
+     */
+    public SemaphoreBasedRequestLimitImpl(String name, RequestLimitConfig requestLimitConfig,
+                                          HashedWheelRefreshTimer refreshTimer) {
+        this(name, requestLimitConfig, null, requireNonNull(refreshTimer, REFRESH_TIMER_MUST_NOT_BE_NULL));
+    }
+
+    private SemaphoreBasedRequestLimitImpl(String name, RequestLimitConfig requestLimitConfig,
+                                           ScheduledExecutorService scheduler, HashedWheelRefreshTimer refreshTimer) {
         this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
-        this.requestLimitConfig = requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
-        this.scheduler = Option.of(scheduler).getOrElse(this::configureScheduler);
-        this.semaphore = new Semaphore(this.requestLimitConfig.getLimitForPeriod(), true);
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        this.requestLimitConfig = new AtomicReference<>(requestLimitConfig);
+        this.semaphore = new Semaphore(requestLimitConfig.getLimitForPeriod(), true);
+        this.waiters = newWaiterQueues(requestLimitConfig.getPriorityLevels());
+        this.waitingThreads = new AtomicInteger(0);
+        this.reservedPermits = new AtomicInteger(0);
+        this.nextRefreshNanos = nanoTime() + requestLimitConfig.getLimitRefreshPeriodInNanos();
+        this.permitsAfterRefresh = semaphore.availablePermits();
+        this.successfulPermissions = new LongAdder();
+        this.rejectedPermissions = new LongAdder();
+        this.waitTimes = new WaitTimeHistogram();
         this.metrics = this.new SemaphoreBasedRequestLimitMetrics();
+        this.closed = new AtomicBoolean(false);
+
+        long refreshPeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        if (refreshTimer != null) {
+            HashedWheelRefreshTimer.Registration registration =
+                refreshTimer.schedule(requestLimitConfig.getLimitRefreshPeriod(), this::refreshLimit);
+            this.refreshCancellation = registration::cancel;
+        } else if (scheduler != null) {
+            ScheduledFuture<?> refresh = scheduleLimitRefresh(scheduler, refreshPeriodInNanos);
+            this.refreshCancellation = refresh != null ? () -> refresh.cancel(false) : () -> { };
+        } else {
+            ScheduledExecutorService ownScheduler = configureScheduler();
+            scheduleLimitRefresh(ownScheduler, refreshPeriodInNanos);
+            this.refreshCancellation = ownScheduler::shutdownNow;
+        }
+    }
 
-        scheduleLimitRefresh();
+    /**
+     * Creates a queue of waiters per priority level, the number of levels is fixed at creation.
+     */
+    @SuppressWarnings("unchecked")
+    private static Queue<Waiter>[] newWaiterQueues(final int priorityLevels) {
+        Queue<Waiter>[] queues = (Queue<Waiter>[]) new Queue<?>[priorityLevels];
+        for (int priority = 0; priority < priorityLevels; priority++) {
+            queues[priority] = new ConcurrentLinkedQueue<>();
+        }
+        return queues;
     }
 
+    /**
+     * Tops up available permits by {@link RequestLimitConfig#getLimitForPeriod()},
+     * but never above {@link RequestLimitConfig#getBurstCapacity()}.
+     * <p>
+     * <p>Refresh is always performed by a single scheduler thread and concurrent
+     * {@link #getPermission(Duration)} calls can only decrease available permits,
+     * so the capacity can't be exceeded without any additional locking.
+     */
     void refreshLimit() {
-        semaphore.release(this.requestLimitConfig.getLimitForPeriod());
+        refreshLimit(1);
+    }
+
+    /**
+     * Tops up available permits by {@link RequestLimitConfig#getLimitForPeriod()} for each elapsed period,
+     * but never above {@link RequestLimitConfig#getBurstCapacity()}.
+     * Permits that were reserved by {@link #reservePermission(Duration)} are taken from the refreshed ones first.
+     * <p>
+     * <p>Permits consumed since the previous refresh, including the reserved ones,
+     * are used to calculate utilization of the elapsed cycle.
+     *
+     * @param elapsedPeriods number of refresh periods elapsed since the previous refresh
+     */
+    void refreshLimit(final int elapsedPeriods) {
+        RequestLimitConfig config = this.requestLimitConfig.get();
+        nextRefreshNanos = nanoTime() + config.getLimitRefreshPeriodInNanos();
+        long permitsForPeriods = (long) config.getLimitForPeriod() * elapsedPeriods;
+        long consumedReservedPermits = consumeReservedPermits(permitsForPeriods);
+        long unreservedPermits = permitsForPeriods - consumedReservedPermits;
+        int availablePermits = semaphore.availablePermits();
+        long usedPermits = permitsAfterRefresh - availablePermits + consumedReservedPermits;
+        lastCycleUtilization = (double) usedPermits / permitsForPeriods;
+        int missingPermits = config.getBurstCapacity() - availablePermits;
+        int permitsToRelease = (int) min(unreservedPermits, missingPermits);
+        if (permitsToRelease > 0) {
+            semaphore.release(permitsToRelease);
+        }
+        permitsAfterRefresh = availablePermits + max(0, permitsToRelease);
+        drainWaiters();
+    }
+
+    private long consumeReservedPermits(final long refreshedPermits) {
+        int reserved;
+        int consumed;
+        do {
+            reserved = reservedPermits.get();
+            consumed = (int) min(reserved, refreshedPermits);
+        } while (!reservedPermits.compareAndSet(reserved, reserved - consumed));
+        return consumed;
+    }
+
+    /**
+     * Hands available permits to asynchronous, {@link WaitStrategy#QUEUE} and prioritized waiters,
+     * starting from the highest priority and in FIFO order within each priority.
+     * Draining stops at the first waiter that can't get its permits, so lower priorities never
+     * overtake it.
+     * <p>
+     * <p>Can be called concurrently: permits acquired for a waiter
+     * that was already resolved by someone else are returned back.
+     * Blocked waiters record their permissions themselves after they are unparked.
+     */
+    private void drainWaiters() {
+        RequestLimitConfig config = requestLimitConfig.get();
+        for (int priority = waiters.length - 1; priority >= 0; priority--) {
+            if (!drainWaiters(waiters[priority], config.getPermitsReservedAbove(priority))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * @return {@code true} if all waiters of the queue were resolved
+     */
+    private boolean drainWaiters(final Queue<Waiter> queue, final int permitsReservedAbove) {
+        Waiter waiter = queue.peek();
+        while (waiter != null) {
+            if (!waiter.isResolved()) {
+                if (!tryAcquireUnreserved(waiter.permits, permitsReservedAbove)) {
+                    return false;
+                }
+                if (!waiter.resolve(true)) {
+                    semaphore.release(waiter.permits);
+                } else if (waiter.isAsync()) {
+                    recordPermission(true, nanoTime() - waiter.startNanos);
+                }
+            }
+            queue.remove(waiter);
+            waiter = queue.peek();
+        }
+        return true;
+    }
+
+    /**
+     * Acquires permits without waiting, unless they are kept for higher priorities.
+     * Permits are acquired first and returned if too few are left, so concurrent requests of lower priorities
+     * never take reserved permits, but they can both give up when only one of them would fit.
+     *
+     * @param permits              number of permits to acquire
+     * @param permitsReservedAbove number of permits kept for higher priorities
+     * @return {@code true} if permits were acquired
+     */
+    private boolean tryAcquireUnreserved(final int permits, final int permitsReservedAbove) {
+        if (!tryAcquireNow(permits)) {
+            return false;
+        }
+        if (permitsReservedAbove == 0 || semaphore.availablePermits() >= permitsReservedAbove) {
+            return true;
+        }
+        semaphore.release(permits);
+        return false;
+    }
+
+    /**
+     * Acquires permits without waiting. Closed request limit floods the semaphore with permits
+     * to wake up threads blocked in it, so they are never granted.
+     */
+    private boolean tryAcquireNow(final int permits) {
+        return semaphore.tryAcquire(permits) && !closed.get();
+    }
+
+    private boolean hasWaitersFrom(final int priority) {
+        for (int higherPriority = priority; higherPriority < waiters.length; higherPriority++) {
+            if (!waiters[higherPriority].isEmpty()) {
+                return true;
+            }
+        }
+        return false;
     }
 
     /**
@@ -76,14 +284,365 @@ public class SemaphoreBasedRequestLimitImpl implements RequestLimit {
      * if the waiting time elapsed before a permit was acquired
      */
     @Override
-    public boolean getPermission(final Duration timeoutDuration) {
+    public boolean getPermission(final long timeoutInNanos) {
+        return tryAcquire(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires a permit on behalf of a request with the given priority, blocking until one is available.
+     * <p>
+     * <p>With more than one {@link RequestLimitConfig#getPriorityLevels()} waiting requests park in the queue
+     * of their priority, regardless of {@link RequestLimitConfig#getWaitStrategy()}, and refreshed permits
+     * are handed to the highest priority first. Requests without priority have the lowest one.
+     * Uncontended requests take a permit right away, unless it is kept for higher priorities
+     * by {@link RequestLimitConfig#getReservedShare(int)}.
+     *
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permission
+     * @param priority       priority of the request, priorities above the highest level are served as the highest one
+     * @return {@code true} if a permit was acquired and {@code false}
+     * if the waiting time elapsed before a permit was acquired
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos, final int priority) {
+        if (priority < 0) {
+            throw new IllegalArgumentException(PRIORITY_MUST_NOT_BE_NEGATIVE);
+        }
+        if (waiters.length == 1) {
+            return tryAcquire(1, timeoutInNanos);
+        }
+        return tryAcquireInQueue(1, timeoutInNanos, Integer.min(priority, waiters.length - 1));
+    }
+
+    /**
+     * Reserves permission without blocking the calling thread.
+     * <p>
+     * <p>If there is no available permit right now, it claims a permit from one of the upcoming refreshes.
+     * Each refresh serves up to {@link RequestLimitConfig#getLimitForPeriod()} reservations in the order
+     * they were made, so the wait time is the time to the next refresh plus one refresh period
+     * for each full period of already reserved permits.
+     *
+     * @param timeoutDuration max time that caller can wait for permission
+     * @return nanoseconds caller should wait before using the permission,
+     * or negative value if permission can't be acquired within the timeout
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        if (tryAcquireNow(1)) {
+            recordPermission(true, 0L);
+            return 0L;
+        }
+        long timeoutInNanos = timeoutDuration.toNanos();
+        RequestLimitConfig config = requestLimitConfig.get();
+        int limitForPeriod = config.getLimitForPeriod();
+        long refreshPeriodInNanos = config.getLimitRefreshPeriodInNanos();
+        while (true) {
+            int reserved = reservedPermits.get();
+            long nanosToNextRefresh = max(0L, nextRefreshNanos - nanoTime());
+            long nanosToWait = nanosToNextRefresh + (reserved / limitForPeriod) * refreshPeriodInNanos;
+            if (nanosToWait > timeoutInNanos || closed.get()) {
+                recordPermission(false, 0L);
+                return -1L;
+            }
+            if (reservedPermits.compareAndSet(reserved, reserved + 1)) {
+                recordPermission(true, nanosToWait);
+                return nanosToWait;
+            }
+        }
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>Waiting requests are queued and served by the limit refresh in FIFO order,
+     * together with threads blocked in {@link #getPermission(Duration)} with {@link WaitStrategy#QUEUE},
+     * but threads blocked with {@link WaitStrategy#SEMAPHORE} have priority over them.
+     * With more than one priority level, asynchronous requests have the lowest priority.
+     * Timeouts are tracked by the timer shared between all request limits.
+     *
+     * @return stage that is completed with {@code true} if a permit was acquired and {@code false}
+     * if {@link RequestLimitConfig#getTimeoutDuration()} elapsed before a permit was acquired
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        RequestLimitConfig config = requestLimitConfig.get();
+        if (!hasWaitersFrom(LOWEST_PRIORITY)
+            && tryAcquireUnreserved(1, config.getPermitsReservedAbove(LOWEST_PRIORITY))) {
+            recordPermission(true, 0L);
+            return CompletableFuture.completedFuture(true);
+        }
+        long timeoutInNanos = config.getTimeoutInNanos();
+        if (timeoutInNanos <= 0 || closed.get()) {
+            recordPermission(false, 0L);
+            return CompletableFuture.completedFuture(false);
+        }
+        Waiter waiter = new Waiter(1, null);
+        waiters[LOWEST_PRIORITY].add(waiter);
+        waiter.timeout = AsyncPermissionScheduler.schedule(() -> {
+            if (waiter.resolve(false)) {
+                recordPermission(false, 0L);
+            }
+        }, timeoutInNanos);
+        drainWaiters();
+        return waiter.permission;
+    }
+
+    /**
+     * Acquires the given number of permits from this request limit with a single semaphore operation,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>Batches bigger than {@link RequestLimitConfig#getBurstCapacity()} can never be acquired,
+     * so the method returns {@code false} for them immediately.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if the waiting time elapsed before permits were acquired
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        if (permits > requestLimitConfig.get().getBurstCapacity()) {
+            recordPermission(false, 0L);
+            return false;
+        }
+        return tryAcquire(permits, timeoutInNanos);
+    }
+
+    private boolean tryAcquire(final int permits, final long timeoutInNanos) {
+        WaitStrategy waitStrategy = requestLimitConfig.get().getWaitStrategy();
+        if (waitStrategy == WaitStrategy.QUEUE || waiters.length > 1) {
+            return tryAcquireInQueue(permits, timeoutInNanos, LOWEST_PRIORITY);
+        }
+        if (waitStrategy != WaitStrategy.SEMAPHORE) {
+            return tryAcquireWithWaitStrategy(waitStrategy, permits, timeoutInNanos);
+        }
+        if (closed.get()) {
+            recordPermission(false, 0L);
+            return false;
+        }
+        boolean canWait = timeoutInNanos > 0;
+        long startNanos = canWait ? nanoTime() : 0L;
+        boolean success;
         try {
-            boolean success = semaphore.tryAcquire(timeoutDuration.toNanos(), TimeUnit.NANOSECONDS);
-            return success;
+            success = semaphore.tryAcquire(permits, timeoutInNanos, TimeUnit.NANOSECONDS) && !closed.get();
         } catch (InterruptedException e) {
             Thread.currentThread().interrupt();
+            success = false;
+        }
+        recordPermission(success, canWait ? nanoTime() - startNanos : 0L);
+        return success;
+    }
+
+    /**
+     * Waits for permits in the queue of waiters of the given priority that is drained by the limit refresh.
+     * Thread parks until the refresh resolves its waiter or the timeout elapses,
+     * so there are no spurious competitions for permits between waiting threads.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted} while waiting,
+     * the waiter is rejected, unless it has already got its permits, and the interrupt status is set.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @param priority       index of the queue of waiters
+     * @return {@code true} if permits were acquired and {@code false} otherwise
+     */
+    private boolean tryAcquireInQueue(final int permits, final long timeoutInNanos, final int priority) {
+        int permitsReservedAbove = requestLimitConfig.get().getPermitsReservedAbove(priority);
+        if (!hasWaitersFrom(priority) && tryAcquireUnreserved(permits, permitsReservedAbove)) {
+            recordPermission(true, 0L);
+            return true;
+        }
+        if (timeoutInNanos <= 0 || closed.get()) {
+            recordPermission(false, 0L);
             return false;
         }
+        Waiter waiter = new Waiter(permits, Thread.currentThread());
+        long deadline = waiter.startNanos + timeoutInNanos;
+        waitingThreads.incrementAndGet();
+        waiters[priority].add(waiter);
+        drainWaiters();
+        boolean wasInterrupted = false;
+        while (!waiter.isResolved()) {
+            long nanosToWait = deadline - nanoTime();
+            if (nanosToWait <= 0 || wasInterrupted || closed.get()) {
+                waiter.resolve(false);
+            } else {
+                parkNanos(this, nanosToWait);
+                wasInterrupted = Thread.interrupted();
+            }
+        }
+        waitingThreads.decrementAndGet();
+        if (wasInterrupted) {
+            Thread.currentThread().interrupt();
+        }
+        boolean permitted = waiter.isPermitted();
+        recordPermission(permitted, nanoTime() - waiter.startNanos);
+        return permitted;
+    }
+
+    /**
+     * Waits for permits outside of the semaphore queue with the given {@link WaitStrategy}
+     * and competes for them with {@link Semaphore#tryAcquire(int)} every time they look available.
+     * <p>
+     * <p>{@link WaitStrategy#PARK} waiters sleep until the next limit refresh, because permits
+     * can appear only after it, other strategies poll available permits until the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted} while waiting,
+     * it stops waiting and its interrupt status is set.
+     *
+     * @param waitStrategy   strategy of the waiting thread
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false} otherwise
+     */
+    private boolean tryAcquireWithWaitStrategy(final WaitStrategy waitStrategy, final int permits,
+                                               final long timeoutInNanos) {
+        if (tryAcquireNow(permits)) {
+            recordPermission(true, 0L);
+            return true;
+        }
+        if (timeoutInNanos <= 0 || closed.get()) {
+            recordPermission(false, 0L);
+            return false;
+        }
+        long startNanos = nanoTime();
+        long deadline = startNanos + timeoutInNanos;
+        BooleanSupplier permitsAreAvailable = () -> semaphore.availablePermits() >= permits;
+        waitingThreads.incrementAndGet();
+        boolean success = false;
+        boolean waiting = true;
+        while (waiting && !success) {
+            long wakeUpNanos = waitStrategy == WaitStrategy.PARK ? nextRefreshOrDeadline(deadline) : deadline;
+            waiting = !closed.get() && deadline - nanoTime() > 0
+                && WaitStrategies.await(waitStrategy, wakeUpNanos, System::nanoTime, permitsAreAvailable);
+            success = waiting && tryAcquireNow(permits);
+        }
+        waitingThreads.decrementAndGet();
+        recordPermission(success, nanoTime() - startNanos);
+        return success;
+    }
+
+    /**
+     * Returns time of the next limit refresh if it comes before the deadline, or the deadline otherwise.
+     * If the refresh is already late, it gives the refresh thread a short period to catch up.
+     */
+    private long nextRefreshOrDeadline(final long deadline) {
+        long currentNanos = nanoTime();
+        long nextRefresh = nextRefreshNanos;
+        if (nextRefresh - currentNanos <= 0) {
+            nextRefresh = currentNanos + LATE_REFRESH_PARK_NANOS;
+        }
+        return nextRefresh - deadline < 0 ? nextRefresh : deadline;
+    }
+
+    /**
+     * Counts permission request and records wait time of the successful one.
+     * Permissions acquired with multiple permits are counted once.
+     *
+     * @param permitted   result of the permission request
+     * @param waitInNanos time that caller waited or has to wait for permission
+     */
+    private void recordPermission(final boolean permitted, final long waitInNanos) {
+        if (permitted) {
+            successfulPermissions.increment();
+            waitTimes.recordValue(max(0L, waitInNanos));
+        } else {
+            rejectedPermissions.increment();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permits that are not taken by reservations are released to the semaphore and handed to waiters.
+     * Release can race with the limit refresh, so available permits can exceed
+     * {@link RequestLimitConfig#getBurstCapacity()} by the returned permits until they are used.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        long unreservedPermits = permits - consumeReservedPermits(permits);
+        int missingPermits = requestLimitConfig.get().getBurstCapacity() - semaphore.availablePermits();
+        int permitsToRelease = (int) min(unreservedPermits, missingPermits);
+        if (permitsToRelease > 0) {
+            semaphore.release(permitsToRelease);
+            drainWaiters();
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Refresh that is late on a busy timer is already due, so it returns {@code 0} until the timer runs it.
+     */
+    @Override
+    public long getNanosToNextRefresh() {
+        return max(0L, nextRefreshNanos - nanoTime());
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>New limit is read by the next scheduled refresh, so permits are topped up
+     * with the new limit for period and capped with the new burst capacity starting from it.
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        requestLimitConfig.updateAndGet(
+            currentConfig -> RequestLimitConfig.from(currentConfig).limitForPeriod(limitForPeriod).build()
+        );
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        requestLimitConfig.updateAndGet(
+            currentConfig -> RequestLimitConfig.from(currentConfig).timeoutDuration(timeoutDuration).build()
+        );
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        requestLimitConfig.updateAndGet(currentConfig -> checkRefreshPeriod(currentConfig, newConfig));
+    }
+
+    private static RequestLimitConfig checkRefreshPeriod(final RequestLimitConfig currentConfig,
+                                                         final RequestLimitConfig newConfig) {
+        if (!currentConfig.getLimitRefreshPeriod().equals(newConfig.getLimitRefreshPeriod())) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        return newConfig;
+    }
+
+    /**
+     * Cancels limit refresh on the shared timer or the provided scheduler,
+     * or shuts down the own scheduler thread of this request limit,
+     * and rejects pending and new permission requests right away.
+     * <p>
+     * <p>Threads blocked in the semaphore with {@link WaitStrategy#SEMAPHORE} can't be woken up otherwise,
+     * so the semaphore is flooded with permits and threads that acquire them after close are rejected.
+     */
+    @Override
+    public void close() {
+        if (!closed.compareAndSet(false, true)) {
+            return;
+        }
+        refreshCancellation.run();
+        semaphore.drainPermits();
+        semaphore.release(CLOSED_SEMAPHORE_PERMITS);
+        for (Queue<Waiter> queue : waiters) {
+            Waiter waiter = queue.poll();
+            while (waiter != null) {
+                if (waiter.resolve(false) && waiter.isAsync()) {
+                    recordPermission(false, 0L);
+                }
+                waiter = queue.poll();
+            }
+        }
     }
 
     @Override
@@ -98,13 +657,65 @@ public class SemaphoreBasedRequestLimitImpl implements RequestLimit {
 
     @Override
     public RequestLimitConfig getRequestLimitConfig() {
-        return this.requestLimitConfig;
+        return this.requestLimitConfig.get();
     }
 
     public SemaphoreBasedRequestLimitMetrics getDetailedMetrics() {
         return this.metrics;
     }
 
+    /**
+     * Permission request waiting for the next limit refresh.
+     * It is either asynchronous and completes its permission stage
+     * or belongs to a parked {@link WaitStrategy#QUEUE} thread that is unparked on resolution.
+     */
+    private static final class Waiter {
+        private static final int PENDING = 0;
+        private static final int PERMITTED = 1;
+        private static final int REJECTED = 2;
+
+        private final int permits;
+        private final Thread thread;
+        private final CompletableFuture<Boolean> permission;
+        private final AtomicInteger resolution = new AtomicInteger(PENDING);
+        private final long startNanos = nanoTime();
+        private volatile ScheduledFuture<?> timeout;
+
+        private Waiter(final int permits, final Thread thread) {
+            this.permits = permits;
+            this.thread = thread;
+            this.permission = thread == null ? new CompletableFuture<>() : null;
+        }
+
+        private boolean isAsync() {
+            return thread == null;
+        }
+
+        private boolean isResolved() {
+            return resolution.get() != PENDING;
+        }
+
+        private boolean isPermitted() {
+            return resolution.get() == PERMITTED;
+        }
+
+        private boolean resolve(final boolean permitted) {
+            if (!resolution.compareAndSet(PENDING, permitted ? PERMITTED : REJECTED)) {
+                return false;
+            }
+            ScheduledFuture<?> scheduledTimeout = timeout;
+            if (scheduledTimeout != null) {
+                scheduledTimeout.cancel(false);
+            }
+            if (isAsync()) {
+                AsyncPermissionScheduler.complete(permission, permitted);
+            } else {
+                unpark(thread);
+            }
+            return true;
+        }
+    }
+
     public final class SemaphoreBasedRequestLimitMetrics implements Metrics {
         private SemaphoreBasedRequestLimitMetrics() {
         }
@@ -115,15 +726,72 @@ public class SemaphoreBasedRequestLimitImpl implements RequestLimit {
          * <p>
          * <p>This method is typically used for debugging and testing purposes.
          *
-         * @return the number of permits available in this request limit until the next refresh.
+         * @return the number of permits available in this request limit until the next refresh,
+         * {@code 0} if it is closed
          */
         public int getAvailablePermits() {
-            return semaphore.availablePermits();
+            return closed.get() ? 0 : semaphore.availablePermits();
         }
 
+        /**
+         * Returns an estimate of the number of threads waiting in the semaphore
+         * and outside of it with other {@link WaitStrategy}.
+         *
+         * @return estimate of the number of threads waiting for permission
+         */
         @Override
         public int getNumberOfWaitingThreads() {
-            return semaphore.getQueueLength();
+            return semaphore.getQueueLength() + waitingThreads.get();
+        }
+
+        /**
+         * Returns the number of permits reserved from the upcoming refreshes.
+         *
+         * @return the number of reserved permits
+         */
+        public int getReservedPermits() {
+            return reservedPermits.get();
+        }
+
+        /**
+         * Returns the number of granted permission requests, including reservations
+         * and asynchronous requests.
+         *
+         * @return the number of successful permission requests
+         */
+        public long getNumberOfSuccessfulPermissions() {
+            return successfulPermissions.sum();
+        }
+
+        /**
+         * Returns the number of permission requests that were not granted within their timeout.
+         *
+         * @return the number of rejected permission requests
+         */
+        public long getNumberOfRejectedPermissions() {
+            return rejectedPermissions.sum();
+        }
+
+        /**
+         * Returns histogram of wait times of successful permission requests.
+         * For reservations it holds the wait time returned to the caller.
+         *
+         * @return live wait time histogram in nanoseconds
+         */
+        public WaitTimeHistogram getWaitTimeHistogram() {
+            return waitTimes;
+        }
+
+        /**
+         * Returns the ratio of permits consumed between the last two refreshes
+         * to the permits added by the last refresh.
+         * <p>
+         * <p>Value can be greater than 1 when the accumulated burst capacity was consumed.
+         *
+         * @return utilization of the last completed cycle, {@code 0} before the first refresh
+         */
+        public double getLastCycleUtilization() {
+            return lastCycleUtilization;
         }
     }
 }
@@ -0,0 +1,506 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.max;
+import static java.lang.System.nanoTime;
+import static java.util.Objects.requireNonNull;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.Arrays;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.UnaryOperator;
+
+/**
+ * {@link SlidingWindowRequestLimitImpl} never grants more than {@link RequestLimitConfig#getLimitForPeriod()}
+ * permissions during any {@link RequestLimitConfig#getLimitRefreshPeriod()}, so there is no double burst
+ * around the window boundary as in fixed window implementations.
+ * <p>Window is split into buckets and permissions are counted in the ring of bucket counters.
+ * When time moves to the next bucket, the oldest bucket leaves the window and its permissions become available again,
+ * so the window slides with the precision of a single bucket.
+ * <p>Like {@link AtomicRequestLimitImpl} it keeps the whole window in the {@link State}
+ * that is replaced with a single {@link AtomicReference#compareAndSet}, so buckets are rotated lazily
+ * by permission requests without background threads and locks.
+ * Available permissions are calculated from the published state without copying it,
+ * so rejected permission requests don't allocate and the next state is allocated once per granted request.
+ * <p>{@link RequestLimitConfig#getBurstCapacity()} is not used, because the window doesn't accumulate permissions.
+ *
+ * @author bstorozhuk
+ */
+public class SlidingWindowRequestLimitImpl implements RequestLimit {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+    private static final int DEFAULT_BUCKETS_PER_WINDOW = 10;
+    private static final long NEVER = Long.MAX_VALUE;
+
+    private static final long NANO_TIME_START = nanoTime();
+
+    private final String name;
+    private final int bucketsPerWindow;
+    private final long bucketInNanos;
+    private final long windowInNanos;
+    private final AtomicInteger waitingThreads;
+    private final AtomicReference<State> state;
+    private final SlidingWindowRequestLimitMetrics metrics;
+
+    public SlidingWindowRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig) {
+        this(name, requestLimitConfig, DEFAULT_BUCKETS_PER_WINDOW);
+    }
+
+    /**
+     * @param name               name of the request limit
+     * @param requestLimitConfig request limit configuration
+     * @param bucketsPerWindow   number of buckets in the window,
+     *                           more buckets make the window slide smoother at the cost of bigger state
+     */
+    public SlidingWindowRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig,
+                                         final int bucketsPerWindow) {
+        this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (bucketsPerWindow < 1) {
+            throw new IllegalArgumentException("BucketsPerWindow should be greater than 0");
+        }
+        this.bucketsPerWindow = bucketsPerWindow;
+        this.bucketInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos() / bucketsPerWindow;
+        if (bucketInNanos < 1) {
+            throw new IllegalArgumentException("BucketsPerWindow is too big for LimitRefreshPeriod");
+        }
+        this.windowInNanos = bucketInNanos * bucketsPerWindow;
+        this.waitingThreads = new AtomicInteger(0);
+        this.state = new AtomicReference<>(new State(requestLimitConfig, new int[bucketsPerWindow], 0L, 0));
+        this.metrics = this.new SlidingWindowRequestLimitMetrics();
+    }
+
+    /**
+     * Acquires a permit from this request limit, blocking until one is
+     * available or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @return {@code true} if a permit was acquired and {@code false}
+     * if the waiting time elapsed before a permit was acquired
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from this request limit with a single atomic state update,
+     * blocking until all of them are available or the timeout elapses.
+     * <p>
+     * <p>Waiting thread sleeps until enough of the oldest buckets leave the window and then tries again.
+     * That time is the lower bound of the wait, so if it exceeds the timeout, the method returns {@code false}
+     * without waiting. Batches bigger than {@link RequestLimitConfig#getLimitForPeriod()} are rejected immediately.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if they can't be acquired before the timeout
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        long deadline = currentNanoTime() + timeoutInNanos;
+        while (true) {
+            long nanosToWait = tryAcquire(permits);
+            if (nanosToWait == 0L) {
+                return true;
+            }
+            if (nanosToWait > deadline - currentNanoTime()) {
+                return false;
+            }
+            if (!waitForPermission(nanosToWait)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>If permission is not available, the request is retried on the shared timer
+     * when enough of the oldest buckets leave the window, until {@link RequestLimitConfig#getTimeoutDuration()} elapses.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        long deadline = currentNanoTime() + state.get().config.getTimeoutInNanos();
+        long nanosToWait = tryAcquire(1);
+        if (nanosToWait == 0L) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (nanosToWait > deadline - currentNanoTime()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        scheduleRetry(permission, deadline, nanosToWait);
+        return permission;
+    }
+
+    private void scheduleRetry(final CompletableFuture<Boolean> permission, final long deadline, final long delayInNanos) {
+        AsyncPermissionScheduler.schedule(() -> {
+            long nanosToWait = tryAcquire(1);
+            if (nanosToWait == 0L) {
+                AsyncPermissionScheduler.complete(permission, true);
+            } else if (nanosToWait > deadline - currentNanoTime()) {
+                AsyncPermissionScheduler.complete(permission, false);
+            } else {
+                scheduleRetry(permission, deadline, nanosToWait);
+            }
+        }, delayInNanos);
+    }
+
+    /**
+     * Acquires permission only if it is available right now.
+     * <p>
+     * <p>Sliding window counts permissions in the bucket where they are used,
+     * so it can't reserve permissions from the future buckets without blocking the window for all other callers.
+     *
+     * @param timeoutDuration is not used
+     * @return {@code 0} if permission was acquired or {@code -1} otherwise
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return tryAcquire(1) == 0L ? 0L : -1L;
+    }
+
+    /**
+     * Atomically acquires permits in the current bucket with the same constant back off
+     * as {@link AtomicRequestLimitImpl} uses.
+     * <p>
+     * <p>Next state is allocated only when permits fit into the window and it is reused by CAS retries,
+     * because it is not visible to other threads until it is published.
+     *
+     * @param permits number of permits to acquire
+     * @return {@code 0} if permits were acquired, otherwise nanoseconds to wait before the next try
+     */
+    private long tryAcquire(final int permits) {
+        State next = null;
+        while (true) {
+            State prev = state.get();
+            long currentNanos = currentNanoTime();
+            long currentBucket = max(currentNanos / bucketInNanos, prev.bucket);
+            int windowPermissions = windowPermissions(prev, currentBucket);
+            int limitForPeriod = prev.config.getLimitForPeriod();
+            if ((long) windowPermissions + permits > limitForPeriod) {
+                return nanosToWaitForPermission(permits, limitForPeriod, prev, windowPermissions,
+                    currentBucket, currentNanos);
+            }
+            next = moveWindow(prev, currentBucket, windowPermissions, next);
+            next.buckets[bucketIndex(currentBucket)] += permits;
+            next.windowPermissions += permits;
+            if (compareAndSet(prev, next)) {
+                return 0L;
+            }
+        }
+    }
+
+    private boolean compareAndSet(final State current, final State next) {
+        if (state.compareAndSet(current, next)) {
+            return true;
+        }
+        parkNanos(1); // back-off
+        return false;
+    }
+
+    /**
+     * A side-effect-free function that calculates permissions in the window
+     * after it moves from the bucket of the active state to the current bucket.
+     *
+     * @param activeState   current state of {@link SlidingWindowRequestLimitImpl}
+     * @param currentBucket number of the current bucket, not older than the bucket of the active state
+     * @return permissions granted in the buckets that are still in the window
+     */
+    private int windowPermissions(final State activeState, final long currentBucket) {
+        if (currentBucket - activeState.bucket >= bucketsPerWindow) {
+            return 0;
+        }
+        int windowPermissions = activeState.windowPermissions;
+        for (long bucket = activeState.bucket + 1; bucket <= currentBucket; bucket++) {
+            windowPermissions -= activeState.buckets[bucketIndex(bucket)];
+        }
+        return windowPermissions;
+    }
+
+    /**
+     * Writes the active state moved to the current bucket into the given unpublished state,
+     * or into a new one if there is no such state or it has another config.
+     *
+     * @param activeState       current state of {@link SlidingWindowRequestLimitImpl}
+     * @param currentBucket     number of the current bucket, not older than the bucket of the active state
+     * @param windowPermissions permissions in the window after the move
+     * @param unpublishedState  state of the previous failed CAS or {@code null}
+     * @return unpublished state of the moved window
+     */
+    private State moveWindow(final State activeState, final long currentBucket, final int windowPermissions,
+                             final State unpublishedState) {
+        State next = unpublishedState;
+        if (next == null || next.config != activeState.config) {
+            next = new State(activeState.config, new int[bucketsPerWindow], currentBucket, windowPermissions);
+        } else {
+            next.bucket = currentBucket;
+            next.windowPermissions = windowPermissions;
+        }
+        if (currentBucket - activeState.bucket >= bucketsPerWindow) {
+            Arrays.fill(next.buckets, 0);
+        } else {
+            System.arraycopy(activeState.buckets, 0, next.buckets, 0, bucketsPerWindow);
+            for (long bucket = activeState.bucket + 1; bucket <= currentBucket; bucket++) {
+                next.buckets[bucketIndex(bucket)] = 0;
+            }
+        }
+        return next;
+    }
+
+    /**
+     * Calculates time until enough of the oldest buckets leave the window to fit the requested permits.
+     * Bucket leaves the window when the bucket {@code bucketsPerWindow} positions after it starts.
+     * Buckets newer than the active state have left the window already, so their stale counters are skipped.
+     */
+    private long nanosToWaitForPermission(final int permits, final int limitForPeriod, final State activeState,
+                                          final int windowPermissions, final long currentBucket, final long currentNanos) {
+        if (permits > limitForPeriod) {
+            return NEVER;
+        }
+        long excessPermissions = (long) windowPermissions + permits - limitForPeriod;
+        long releasedPermissions = 0L;
+        for (int bucketsToWait = 1; bucketsToWait <= bucketsPerWindow; bucketsToWait++) {
+            long leavingBucket = currentBucket + bucketsToWait - bucketsPerWindow;
+            if (leavingBucket <= activeState.bucket) {
+                releasedPermissions += activeState.buckets[bucketIndex(currentBucket + bucketsToWait)];
+            }
+            if (releasedPermissions >= excessPermissions) {
+                return (currentBucket + bucketsToWait) * bucketInNanos - currentNanos;
+            }
+        }
+        return windowInNanos;
+    }
+
+    private int bucketIndex(final long bucket) {
+        return (int) (bucket % bucketsPerWindow);
+    }
+
+    /**
+     * Waits for nanosToWait with {@link RequestLimitConfig#getWaitStrategy()}.
+     * <p>If the current thread is {@linkplain Thread#interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param nanosToWait nanoseconds caller need to wait
+     * @return true if caller was not {@link Thread#interrupted} while waiting
+     */
+    private boolean waitForPermission(final long nanosToWait) {
+        waitingThreads.incrementAndGet();
+        long deadline = currentNanoTime() + nanosToWait;
+        boolean wasNotInterrupted = WaitStrategies.await(state.get().config.getWaitStrategy(), deadline, this::currentNanoTime);
+        waitingThreads.decrementAndGet();
+        return wasNotInterrupted;
+    }
+
+    /**
+     * Returns the current time in nanoseconds relative to the class initialisation,
+     * so bucket boundaries are the same for all instances.
+     *
+     * @return nanoseconds since {@link SlidingWindowRequestLimitImpl} class initialisation
+     */
+    long currentNanoTime() {
+        return nanoTime() - NANO_TIME_START;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permits are removed from the newest buckets of the window first,
+     * because recently acquired permits are counted there.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        State prev;
+        State next = null;
+        do {
+            prev = state.get();
+            long currentBucket = max(currentNanoTime() / bucketInNanos, prev.bucket);
+            next = moveWindow(prev, currentBucket, windowPermissions(prev, currentBucket), next);
+            removePermissions(permits, next);
+        } while (!compareAndSet(prev, next));
+    }
+
+    /**
+     * Removes permits from the newest buckets of the state that is not published yet.
+     */
+    private void removePermissions(final int permits, final State unpublishedState) {
+        int[] buckets = unpublishedState.buckets;
+        int removed = 0;
+        long oldestBucket = max(0L, unpublishedState.bucket - bucketsPerWindow + 1);
+        for (long bucket = unpublishedState.bucket; bucket >= oldestBucket && removed < permits; bucket--) {
+            int index = bucketIndex(bucket);
+            int removedFromBucket = Integer.min(buckets[index], permits - removed);
+            buckets[index] -= removedFromBucket;
+            removed += removedFromBucket;
+        }
+        unpublishedState.windowPermissions -= removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>New limit is applied to the current window immediately,
+     * permissions that are already in the window are not revoked.
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        changeConfig(config -> RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        changeConfig(config -> RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (newConfig.getLimitRefreshPeriodInNanos() != state.get().config.getLimitRefreshPeriodInNanos()) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        changeConfig(config -> newConfig);
+    }
+
+    private void changeConfig(final UnaryOperator<RequestLimitConfig> configChange) {
+        State prev;
+        State next;
+        do {
+            prev = state.get();
+            RequestLimitConfig nextConfig = configChange.apply(prev.config);
+            next = new State(nextConfig, prev.buckets, prev.bucket, prev.windowPermissions);
+        } while (!compareAndSet(prev, next));
+    }
+
+    /**
+     * {@link SlidingWindowRequestLimitImpl} has no background refreshes, so there is nothing to release.
+     * Asynchronous permission requests that are already scheduled are still retried by the shared timer.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return state.get().config;
+    }
+
+    /**
+     * Creates detailed metrics view bound to this instance, so estimations use its {@link #currentNanoTime()}.
+     *
+     * @return detailed metrics of this request limit
+     */
+    public SlidingWindowRequestLimitMetrics getDetailedMetrics() {
+        return this.new SlidingWindowRequestLimitMetrics();
+    }
+
+    /**
+     * <p>{@link SlidingWindowRequestLimitImpl.State} represents state of {@link SlidingWindowRequestLimitImpl} where:
+     * <ul>
+     * <li>config - {@link RequestLimitConfig} that limits permissions in the window.</li>
+     * <p>
+     * <li>buckets - ring of permissions granted in each bucket of the window.</li>
+     * <p>
+     * <li>bucket - number of the newest bucket in the window.</li>
+     * <p>
+     * <li>windowPermissions - sum of all buckets.</li>
+     * </ul>
+     * State is written only before it is published with {@link AtomicReference#compareAndSet},
+     * that makes it visible to other threads, and it is never modified after publication.
+     */
+    private static final class State {
+
+        private final RequestLimitConfig config;
+        private final int[] buckets;
+        private long bucket;
+        private int windowPermissions;
+
+        private State(final RequestLimitConfig config, final int[] buckets, final long bucket,
+                      final int windowPermissions) {
+            this.config = config;
+            this.buckets = buckets;
+            this.bucket = bucket;
+            this.windowPermissions = windowPermissions;
+        }
+    }
+
+    /**
+     * Enhanced {@link Metrics} with some implementation specific details
+     */
+    public final class SlidingWindowRequestLimitMetrics implements Metrics {
+        private SlidingWindowRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads waiting for permission
+         * in this JVM process.
+         *
+         * @return estimate of the number of threads waiting for permission.
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Estimates count of available permissions in the current window.
+         * <p>
+         * <p>This method is typically used for debugging and testing purposes.
+         *
+         * @return estimated count of permissions
+         */
+        public int getAvailablePermits() {
+            State currentState = state.get();
+            long currentBucket = max(currentNanoTime() / bucketInNanos, currentState.bucket);
+            return currentState.config.getLimitForPeriod() - windowPermissions(currentState, currentBucket);
+        }
+
+        /**
+         * Estimates time duration in nanos to wait for the next permission.
+         *
+         * @return estimated time duration in nanos to wait for the next permission
+         */
+        public long getNanosToWait() {
+            State currentState = state.get();
+            long currentNanos = currentNanoTime();
+            long currentBucket = max(currentNanos / bucketInNanos, currentState.bucket);
+            int windowPermissions = windowPermissions(currentState, currentBucket);
+            int limitForPeriod = currentState.config.getLimitForPeriod();
+            if ((long) windowPermissions + 1 <= limitForPeriod) {
+                return 0L;
+            }
+            return nanosToWaitForPermission(1, limitForPeriod, currentState, windowPermissions, currentBucket, currentNanos);
+        }
+    }
+}
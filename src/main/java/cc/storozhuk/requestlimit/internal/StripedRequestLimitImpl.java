@@ -0,0 +1,531 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Integer.min;
+import static java.lang.System.nanoTime;
+import static java.lang.Thread.currentThread;
+import static java.util.Objects.requireNonNull;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLongArray;
+
+/**
+ * {@link StripedRequestLimitImpl} splits permissions of each cycle across several stripes,
+ * so threads that hit the same hot request limit mostly update different cache lines.
+ * <p>Like in {@link AtomicRequestLimitImpl} time is split into cycles of {@link RequestLimitConfig#getLimitRefreshPeriod()}
+ * and each stripe is lazily refilled with its share of {@link RequestLimitConfig#getLimitForPeriod()}
+ * up to its share of {@link RequestLimitConfig#getBurstCapacity()}. Shares of all stripes add up to the configured values,
+ * so the global limit per period is respected.
+ * <p>Each stripe state is packed into a single {@code long} as [32 bits of the cycle number | 32 bits of permissions]
+ * and padded to its own cache lines. Stripe also keeps the full cycle number in the next {@code long} of its lines,
+ * so stripes that were idle for more than 2<sup>31</sup> cycles are still refilled correctly. Thread starts from its home stripe and steals permissions from sibling stripes
+ * when the home stripe runs dry, so the request limit is exhausted only when all stripes are.
+ * <p>Permissions are never reserved ahead of time, waiting threads sleep until the next cycle and try again.
+ *
+ * @author bstorozhuk
+ */
+public class StripedRequestLimitImpl implements RequestLimit {
+
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String PERMITS_MUST_BE_POSITIVE = "Permits should be greater than 0";
+    private static final String REFRESH_PERIOD_CANT_BE_CHANGED = "LimitRefreshPeriod can't be changed";
+    private static final long PERMISSIONS_MASK = 0xFFFFFFFFL;
+    private static final long CYCLE_MASK = 0xFFFFFFFFL;
+    private static final int STRIPE_CYCLE_OFFSET = 1;
+    private static final long NEVER = Long.MAX_VALUE;
+    // 16 longs are two cache lines, so neighbour stripes don't share a line even with adjacent line prefetch
+    private static final int STRIPE_STRIDE = 16;
+
+    private static final long NANO_TIME_START = nanoTime();
+
+    private final String name;
+    private final int stripes;
+    private final long cyclePeriodInNanos;
+    private final AtomicInteger waitingThreads;
+    private final AtomicLongArray stripeStates;
+    private final StripedRequestLimitMetrics metrics;
+    private volatile RequestLimitConfig requestLimitConfig;
+
+    /**
+     * Creates request limit with a stripe per available processor,
+     * but not more stripes than {@link RequestLimitConfig#getLimitForPeriod()}.
+     *
+     * @param name               name of the request limit
+     * @param requestLimitConfig request limit configuration
+     */
+    public StripedRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig) {
+        this(name, requestLimitConfig, min(
+            Runtime.getRuntime().availableProcessors(),
+            requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL).getLimitForPeriod()
+        ));
+    }
+
+    /**
+     * @param name               name of the request limit
+     * @param requestLimitConfig request limit configuration
+     * @param stripes            number of stripes, more stripes reduce contention
+     *                           but make each stripe run dry faster
+     */
+    public StripedRequestLimitImpl(final String name, final RequestLimitConfig requestLimitConfig, final int stripes) {
+        this.name = requireNonNull(name, NAME_MUST_NOT_BE_NULL);
+        this.requestLimitConfig = requireNonNull(requestLimitConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (stripes < 1) {
+            throw new IllegalArgumentException("Stripes should be greater than 0");
+        }
+        this.stripes = stripes;
+        this.cyclePeriodInNanos = requestLimitConfig.getLimitRefreshPeriodInNanos();
+        this.waitingThreads = new AtomicInteger(0);
+        this.stripeStates = new AtomicLongArray(stripes * STRIPE_STRIDE);
+        for (int stripe = 0; stripe < stripes; stripe++) {
+            int permissions = share(requestLimitConfig.getLimitForPeriod(), stripe);
+            stripeStates.set(stripe * STRIPE_STRIDE, packState(0L, permissions));
+        }
+        this.metrics = this.new StripedRequestLimitMetrics();
+    }
+
+    /**
+     * Acquires a permit from this request limit, blocking until one is
+     * available or the timeout elapses.
+     * <p>
+     * <p>If the current thread is {@linkplain Thread#interrupt interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @return {@code true} if a permit was acquired and {@code false}
+     * if the waiting time elapsed before a permit was acquired
+     */
+    @Override
+    public boolean getPermission(final long timeoutInNanos) {
+        return getPermissions(1, timeoutInNanos);
+    }
+
+    /**
+     * Acquires the given number of permits from this request limit, blocking until all of them
+     * are available or the timeout elapses.
+     * <p>
+     * <p>Permits can be collected from several stripes. If all stripes together don't have enough permits,
+     * collected ones are returned and the thread sleeps until the next cycle.
+     * If the next cycle starts after the timeout, the method returns {@code false} without waiting.
+     * Batches bigger than {@link RequestLimitConfig#getBurstCapacity()} are rejected immediately.
+     *
+     * @param permits        number of permits to acquire
+     * @param timeoutInNanos max time in nanoseconds that caller can wait for permits
+     * @return {@code true} if permits were acquired and {@code false}
+     * if they can't be acquired before the timeout
+     */
+    @Override
+    public boolean getPermissions(final int permits, final long timeoutInNanos) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        long deadline = currentNanoTime() + timeoutInNanos;
+        while (true) {
+            long nanosToWait = tryAcquire(permits);
+            if (nanosToWait == 0L) {
+                return true;
+            }
+            if (nanosToWait > deadline - currentNanoTime()) {
+                return false;
+            }
+            if (!waitForPermission(nanosToWait)) {
+                return false;
+            }
+        }
+    }
+
+    /**
+     * Requests permission without blocking the calling thread.
+     * <p>
+     * <p>If permission is not available, the request is retried on the shared timer
+     * at the start of the next cycle, until {@link RequestLimitConfig#getTimeoutDuration()} elapses.
+     *
+     * @return stage that is completed with the result of the permission request
+     */
+    @Override
+    public CompletionStage<Boolean> acquirePermissionAsync() {
+        long deadline = currentNanoTime() + requestLimitConfig.getTimeoutInNanos();
+        long nanosToWait = tryAcquire(1);
+        if (nanosToWait == 0L) {
+            return CompletableFuture.completedFuture(true);
+        }
+        if (nanosToWait > deadline - currentNanoTime()) {
+            return CompletableFuture.completedFuture(false);
+        }
+        CompletableFuture<Boolean> permission = new CompletableFuture<>();
+        scheduleRetry(permission, deadline, nanosToWait);
+        return permission;
+    }
+
+    private void scheduleRetry(final CompletableFuture<Boolean> permission, final long deadline, final long delayInNanos) {
+        AsyncPermissionScheduler.schedule(() -> {
+            long nanosToWait = tryAcquire(1);
+            if (nanosToWait == 0L) {
+                AsyncPermissionScheduler.complete(permission, true);
+            } else if (nanosToWait > deadline - currentNanoTime()) {
+                AsyncPermissionScheduler.complete(permission, false);
+            } else {
+                scheduleRetry(permission, deadline, nanosToWait);
+            }
+        }, delayInNanos);
+    }
+
+    /**
+     * Acquires permission only if it is available right now.
+     * <p>
+     * <p>Stripes don't track reserved permissions, so permissions can't be reserved in the future cycles.
+     *
+     * @param timeoutDuration is not used
+     * @return {@code 0} if permission was acquired or {@code -1} otherwise
+     */
+    @Override
+    public long reservePermission(final Duration timeoutDuration) {
+        return tryAcquire(1) == 0L ? 0L : -1L;
+    }
+
+    /**
+     * Collects permits starting from the home stripe of the current thread and then from its siblings.
+     * If there are not enough permits in all stripes, collected permits are returned to the stripes they were taken from.
+     *
+     * @param permits number of permits to acquire
+     * @return {@code 0} if permits were acquired, otherwise nanoseconds to wait before the next try
+     */
+    private long tryAcquire(final int permits) {
+        RequestLimitConfig config = requestLimitConfig;
+        long currentNanos = currentNanoTime();
+        long currentCycle = currentNanos / cyclePeriodInNanos;
+        int homeStripe = homeStripe();
+        int acquired = 0;
+        int[] acquiredFromStripes = null;
+        for (int i = 0; i < stripes && acquired < permits; i++) {
+            int stripe = (homeStripe + i) % stripes;
+            int acquiredFromStripe = acquireFromStripe(stripe, permits - acquired, config, currentCycle);
+            acquired += acquiredFromStripe;
+            if (acquiredFromStripe > 0 && acquired < permits) {
+                acquiredFromStripes = acquiredFromStripes == null ? new int[stripes] : acquiredFromStripes;
+                acquiredFromStripes[stripe] = acquiredFromStripe;
+            }
+        }
+        if (acquired == permits) {
+            return 0L;
+        }
+        if (acquiredFromStripes != null) {
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                releaseToStripe(stripe, acquiredFromStripes[stripe], config, currentCycle);
+            }
+        }
+        if (permits > config.getBurstCapacity()) {
+            return NEVER;
+        }
+        return (currentCycle + 1) * cyclePeriodInNanos - currentNanos;
+    }
+
+    private int acquireFromStripe(final int stripe, final int permits, final RequestLimitConfig config,
+                                  final long currentCycle) {
+        int index = stripe * STRIPE_STRIDE;
+        while (true) {
+            long state = stripeStates.get(index);
+            long stripeCycle = stripeStates.get(index + STRIPE_CYCLE_OFFSET);
+            long stateCycle = cycleOf(state, stripeCycle);
+            int permissions = refillPermissions(state, stateCycle, stripe, config, currentCycle);
+            if (permissions <= 0) {
+                return 0;
+            }
+            int acquired = min(permissions, permits);
+            long nextCycle = Long.max(stateCycle, currentCycle);
+            advanceStripeCycle(index, stripeCycle, nextCycle);
+            if (stripeStates.compareAndSet(index, state, packState(nextCycle, permissions - acquired))) {
+                return acquired;
+            }
+        }
+    }
+
+    /**
+     * Returns permits acquired in the given cycle. If the stripe has already moved to a later cycle,
+     * permits have expired and are dropped.
+     */
+    private void releaseToStripe(final int stripe, final int permits, final RequestLimitConfig config, final long cycle) {
+        if (permits == 0) {
+            return;
+        }
+        int index = stripe * STRIPE_STRIDE;
+        while (true) {
+            long state = stripeStates.get(index);
+            long stateCycle = cycleOf(state, stripeStates.get(index + STRIPE_CYCLE_OFFSET));
+            if (stateCycle > cycle) {
+                return;
+            }
+            int permissions = refillPermissions(state, stateCycle, stripe, config, cycle);
+            if (stripeStates.compareAndSet(index, state, packState(cycle, permissions + permits))) {
+                return;
+            }
+        }
+    }
+
+    /**
+     * Adds the stripe share of {@link RequestLimitConfig#getLimitForPeriod()} for each cycle elapsed since the stored one,
+     * but never more than the stripe share of {@link RequestLimitConfig#getBurstCapacity()}.
+     * State that was already moved to a later cycle by a thread with fresher time is not refilled.
+     */
+    private int refillPermissions(final long state, final long stateCycle, final int stripe,
+                                  final RequestLimitConfig config, final long currentCycle) {
+        int permissions = permissionsOf(state);
+        long elapsedCycles = currentCycle - stateCycle;
+        if (elapsedCycles <= 0) {
+            return permissions;
+        }
+        int maxPermissions = share(config.getBurstCapacity(), stripe);
+        long accumulatedPermissions = Long.min(elapsedCycles, maxPermissions) * share(config.getLimitForPeriod(), stripe);
+        return (int) Long.min(permissions + accumulatedPermissions, maxPermissions);
+    }
+
+    /**
+     * Raises the full cycle of the stripe before its state is moved to the next cycle,
+     * so the full cycle is never behind the cycle of the state.
+     * It is raised after the state cycle was restored, because the full cycle of a stripe
+     * that was idle for 2<sup>32</sup> cycles can't restore its state cycle after the raise.
+     *
+     * @param index       index of the stripe state
+     * @param stripeCycle full cycle of the stripe that was used to restore the state cycle
+     * @param nextCycle   cycle the state is moved to
+     */
+    private void advanceStripeCycle(final int index, final long stripeCycle, final long nextCycle) {
+        long currentStripeCycle = stripeCycle;
+        while (currentStripeCycle < nextCycle
+            && !stripeStates.compareAndSet(index + STRIPE_CYCLE_OFFSET, currentStripeCycle, nextCycle)) {
+            currentStripeCycle = stripeStates.get(index + STRIPE_CYCLE_OFFSET);
+        }
+    }
+
+    /**
+     * Splits the total between stripes, so the first {@code total % stripes} stripes get one more permission.
+     */
+    private int share(final int total, final int stripe) {
+        return total / stripes + (stripe < total % stripes ? 1 : 0);
+    }
+
+    private int homeStripe() {
+        long hash = currentThread().getId() * 0x9E3779B97F4A7C15L;
+        return (int) ((hash >>> 32) % stripes);
+    }
+
+    private static long packState(final long cycle, final int permissions) {
+        return (cycle << 32) | (permissions & PERMISSIONS_MASK);
+    }
+
+    /**
+     * Restores the full cycle of the state from its 32 bits and the full cycle of the stripe.
+     * Stripe cycle is raised before the state is moved and it is read after the state,
+     * so it is never behind the cycle of the state and the cycle is the closest one not after it.
+     *
+     * @param state       packed state of the stripe
+     * @param stripeCycle full cycle of the stripe read after the state
+     * @return full cycle of the state
+     */
+    private static long cycleOf(final long state, final long stripeCycle) {
+        return stripeCycle - (((int) stripeCycle - (int) (state >>> 32)) & CYCLE_MASK);
+    }
+
+    private static int permissionsOf(final long state) {
+        return (int) state;
+    }
+
+    /**
+     * Waits for nanosToWait with {@link RequestLimitConfig#getWaitStrategy()}.
+     * <p>If the current thread is {@linkplain Thread#interrupted}
+     * while waiting for a permit then it won't throw {@linkplain InterruptedException},
+     * but its interrupt status will be set.
+     *
+     * @param nanosToWait nanoseconds caller need to wait
+     * @return true if caller was not {@link Thread#interrupted} while waiting
+     */
+    private boolean waitForPermission(final long nanosToWait) {
+        waitingThreads.incrementAndGet();
+        long deadline = currentNanoTime() + nanosToWait;
+        boolean wasNotInterrupted = WaitStrategies.await(requestLimitConfig.getWaitStrategy(), deadline, this::currentNanoTime);
+        waitingThreads.decrementAndGet();
+        return wasNotInterrupted;
+    }
+
+    /**
+     * Returns the current time in nanoseconds relative to the class initialisation,
+     * so cycle boundaries are the same for all instances.
+     *
+     * @return nanoseconds since {@link StripedRequestLimitImpl} class initialisation
+     */
+    long currentNanoTime() {
+        return nanoTime() - NANO_TIME_START;
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Permits are returned starting from the home stripe of the current thread,
+     * each stripe takes them up to its share of {@link RequestLimitConfig#getBurstCapacity()}.
+     */
+    @Override
+    public void releasePermissions(final int permits) {
+        if (permits < 1) {
+            throw new IllegalArgumentException(PERMITS_MUST_BE_POSITIVE);
+        }
+        RequestLimitConfig config = requestLimitConfig;
+        long currentCycle = currentNanoTime() / cyclePeriodInNanos;
+        int homeStripe = homeStripe();
+        int returned = 0;
+        for (int i = 0; i < stripes && returned < permits; i++) {
+            int stripe = (homeStripe + i) % stripes;
+            returned += returnToStripe(stripe, permits - returned, config, currentCycle);
+        }
+    }
+
+    @Override
+    public long getNanosToNextRefresh() {
+        long currentNanos = currentNanoTime();
+        return (currentNanos / cyclePeriodInNanos + 1) * cyclePeriodInNanos - currentNanos;
+    }
+
+    private int returnToStripe(final int stripe, final int permits, final RequestLimitConfig config,
+                               final long currentCycle) {
+        int index = stripe * STRIPE_STRIDE;
+        int maxPermissions = share(config.getBurstCapacity(), stripe);
+        while (true) {
+            long state = stripeStates.get(index);
+            long stripeCycle = stripeStates.get(index + STRIPE_CYCLE_OFFSET);
+            long stateCycle = cycleOf(state, stripeCycle);
+            int permissions = refillPermissions(state, stateCycle, stripe, config, currentCycle);
+            int returned = min(permits, maxPermissions - permissions);
+            if (returned <= 0) {
+                return 0;
+            }
+            long nextCycle = Long.max(stateCycle, currentCycle);
+            advanceStripeCycle(index, stripeCycle, nextCycle);
+            if (stripeStates.compareAndSet(index, state, packState(nextCycle, permissions + returned))) {
+                return returned;
+            }
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     * <p>
+     * <p>Each stripe picks up the new limit on its next refill, the number of stripes stays the same.
+     */
+    @Override
+    public void changeLimitForPeriod(final int limitForPeriod) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).limitForPeriod(limitForPeriod).build());
+    }
+
+    @Override
+    public void changeTimeoutDuration(final Duration timeoutDuration) {
+        RequestLimitConfig config = requestLimitConfig;
+        changeRequestLimitConfig(RequestLimitConfig.from(config).timeoutDuration(timeoutDuration).build());
+    }
+
+    @Override
+    public void changeRequestLimitConfig(final RequestLimitConfig newConfig) {
+        requireNonNull(newConfig, CONFIG_MUST_NOT_BE_NULL);
+        if (newConfig.getLimitRefreshPeriodInNanos() != cyclePeriodInNanos) {
+            throw new IllegalArgumentException(REFRESH_PERIOD_CANT_BE_CHANGED);
+        }
+        requestLimitConfig = newConfig;
+    }
+
+    /**
+     * {@link StripedRequestLimitImpl} has no background refreshes, so there is nothing to release.
+     * Asynchronous permission requests that are already scheduled are still retried by the shared timer.
+     */
+    @Override
+    public void close() {
+    }
+
+    @Override
+    public String getName() {
+        return this.name;
+    }
+
+    @Override
+    public Metrics getMetrics() {
+        return this.metrics;
+    }
+
+    @Override
+    public RequestLimitConfig getRequestLimitConfig() {
+        return requestLimitConfig;
+    }
+
+    /**
+     * Creates detailed metrics view bound to this instance, so estimations use its {@link #currentNanoTime()}.
+     *
+     * @return detailed metrics of this request limit
+     */
+    public StripedRequestLimitMetrics getDetailedMetrics() {
+        return this.new StripedRequestLimitMetrics();
+    }
+
+    /**
+     * Enhanced {@link Metrics} with some implementation specific details
+     */
+    public final class StripedRequestLimitMetrics implements Metrics {
+        private StripedRequestLimitMetrics() {
+        }
+
+        /**
+         * Returns an estimate of the number of threads waiting for permission
+         * in this JVM process.
+         *
+         * @return estimate of the number of threads waiting for permission.
+         */
+        @Override
+        public int getNumberOfWaitingThreads() {
+            return waitingThreads.get();
+        }
+
+        /**
+         * Estimates count of available permissions in all stripes.
+         * <p>
+         * <p>This method is typically used for debugging and testing purposes.
+         *
+         * @return estimated count of permissions
+         */
+        public int getAvailablePermits() {
+            RequestLimitConfig config = requestLimitConfig;
+            long currentCycle = currentNanoTime() / cyclePeriodInNanos;
+            int availablePermits = 0;
+            for (int stripe = 0; stripe < stripes; stripe++) {
+                int index = stripe * STRIPE_STRIDE;
+                long state = stripeStates.get(index);
+                long stateCycle = cycleOf(state, stripeStates.get(index + STRIPE_CYCLE_OFFSET));
+                availablePermits += refillPermissions(state, stateCycle, stripe, config, currentCycle);
+            }
+            return availablePermits;
+        }
+
+        /**
+         * Estimates time duration in nanos to wait for the next permission.
+         *
+         * @return estimated time duration in nanos to wait for the next permission
+         */
+        public long getNanosToWait() {
+            if (getAvailablePermits() > 0) {
+                return 0L;
+            }
+            long currentNanos = currentNanoTime();
+            return (currentNanos / cyclePeriodInNanos + 1) * cyclePeriodInNanos - currentNanos;
+        }
+
+        /**
+         * Returns the number of stripes permissions of each cycle are split across.
+         *
+         * @return number of stripes
+         */
+        public int getNumberOfStripes() {
+            return stripes;
+        }
+    }
+}
@@ -0,0 +1,92 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.min;
+import static java.lang.Thread.currentThread;
+import static java.util.concurrent.locks.LockSupport.parkNanos;
+
+import cc.storozhuk.requestlimit.WaitStrategy;
+
+import java.util.function.BooleanSupplier;
+import java.util.function.LongSupplier;
+
+/**
+ * Waiting loops of {@link WaitStrategy} shared by all request limits.
+ * <p>Strategies that don't park trade CPU of the waiting thread for wake up latency,
+ * they are useful only for timeouts shorter than the park and unpark round trip.
+ *
+ * @author bstorozhuk
+ */
+final class WaitStrategies {
+
+    private static final BooleanSupplier NEVER_SATISFIED = () -> false;
+    private static final int SPIN_TRIES = 100;
+    private static final long MIN_BACK_OFF_NANOS = 1_000L;
+    private static final long MAX_BACK_OFF_NANOS = 1_000_000L;
+
+    private WaitStrategies() {
+    }
+
+    /**
+     * Waits until the deadline.
+     *
+     * @param waitStrategy strategy of the waiting thread
+     * @param deadline     time in nanoseconds of the given clock to wait for
+     * @param clock        source of the current time in nanoseconds
+     * @return {@code false} if the thread was {@linkplain Thread#interrupt interrupted} while waiting
+     */
+    static boolean await(final WaitStrategy waitStrategy, final long deadline, final LongSupplier clock) {
+        return await(waitStrategy, deadline, clock, NEVER_SATISFIED);
+    }
+
+    /**
+     * Waits until the condition holds or the deadline comes.
+     * <ul>
+     * <li>{@link WaitStrategy#SPIN} - checks the condition in a busy loop.</li>
+     * <p>
+     * <li>{@link WaitStrategy#SPIN_THEN_YIELD} - spins for a while and then yields the processor between checks.</li>
+     * <p>
+     * <li>{@link WaitStrategy#BACKOFF} - spins for a while and then parks for exponentially growing periods,
+     * from 1 microsecond to 1 millisecond.</li>
+     * <p>
+     * <li>Other strategies park until the deadline, so the condition is checked only after an unpark.</li>
+     * </ul>
+     * <p>If the thread is {@linkplain Thread#interrupt interrupted} it stops waiting
+     * and its interrupt status is set again.
+     *
+     * @param waitStrategy strategy of the waiting thread
+     * @param deadline     time in nanoseconds of the given clock to wait for
+     * @param clock        source of the current time in nanoseconds
+     * @param condition    condition to wait for, it should be cheap and side-effect-free
+     * @return {@code false} if the thread was {@linkplain Thread#interrupt interrupted} while waiting
+     */
+    static boolean await(final WaitStrategy waitStrategy, final long deadline, final LongSupplier clock,
+                         final BooleanSupplier condition) {
+        int spins = 0;
+        long backOff = MIN_BACK_OFF_NANOS;
+        long nanosToWait;
+        while (!condition.getAsBoolean() && (nanosToWait = deadline - clock.getAsLong()) > 0) {
+            switch (waitStrategy) {
+                case SPIN:
+                    break;
+                case SPIN_THEN_YIELD:
+                    if (spins++ >= SPIN_TRIES) {
+                        Thread.yield();
+                    }
+                    break;
+                case BACKOFF:
+                    if (spins++ >= SPIN_TRIES) {
+                        parkNanos(min(backOff, nanosToWait));
+                        backOff = min(backOff << 1, MAX_BACK_OFF_NANOS);
+                    }
+                    break;
+                default:
+                    parkNanos(nanosToWait);
+            }
+            if (Thread.interrupted()) {
+                currentThread().interrupt();
+                return false;
+            }
+        }
+        return true;
+    }
+}
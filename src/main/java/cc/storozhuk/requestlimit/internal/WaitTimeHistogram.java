@@ -0,0 +1,141 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.Long.numberOfLeadingZeros;
+
+import java.util.concurrent.atomic.AtomicLongArray;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Lock-free histogram of wait times in nanoseconds with log-linear buckets.
+ * <p>Every power of two range is split into {@value #SUB_BUCKET_COUNT} equal sub-buckets,
+ * so any recorded value is reported with relative error below 1/{@value #SUB_BUCKET_COUNT},
+ * while the whole {@code long} range is covered by less than a thousand counters.
+ * Recording is a single atomic increment and never allocates.
+ * Zero wait times, recorded by every permission that is granted without waiting,
+ * are counted by a {@link LongAdder} so concurrent threads don't contend on a single counter.
+ * <p>Counters are read one by one, so values recorded concurrently with a read
+ * may be partially visible in its result.
+ *
+ * @author bstorozhuk
+ */
+public final class WaitTimeHistogram {
+
+    private static final String VALUE_SHOULD_NOT_BE_NEGATIVE = "Value should not be negative";
+    private static final String PERCENTILE_SHOULD_BE_IN_RANGE = "Percentile should be in range [0, 100]";
+
+    private static final int SUB_BUCKET_BITS = 4;
+    private static final int SUB_BUCKET_COUNT = 1 << SUB_BUCKET_BITS;
+    private static final int SUB_BUCKET_MASK = SUB_BUCKET_COUNT - 1;
+    private static final int MAGNITUDES = Long.SIZE - 1 - SUB_BUCKET_BITS;
+
+    private final LongAdder zeroCount;
+    private final AtomicLongArray counts;
+
+    public WaitTimeHistogram() {
+        this.zeroCount = new LongAdder();
+        this.counts = new AtomicLongArray(SUB_BUCKET_COUNT + MAGNITUDES * SUB_BUCKET_COUNT);
+    }
+
+    /**
+     * Records single value.
+     *
+     * @param valueInNanos wait time in nanoseconds, should not be negative
+     */
+    public void recordValue(final long valueInNanos) {
+        if (valueInNanos < 0) {
+            throw new IllegalArgumentException(VALUE_SHOULD_NOT_BE_NEGATIVE);
+        }
+        if (valueInNanos == 0) {
+            zeroCount.increment();
+        } else {
+            counts.incrementAndGet(bucketIndex(valueInNanos));
+        }
+    }
+
+    /**
+     * @return number of recorded values
+     */
+    public long getTotalCount() {
+        long totalCount = 0;
+        for (int i = 0; i < counts.length(); i++) {
+            totalCount += countAt(i);
+        }
+        return totalCount;
+    }
+
+    /**
+     * Returns value that is greater or equal to the given percentage of recorded values.
+     * Reported value is the highest value equivalent to the bucket it was recorded in.
+     *
+     * @param percentile percentile in range [0, 100]
+     * @return value at the given percentile in nanoseconds, or {@code 0} if nothing was recorded
+     */
+    public long getValueAtPercentile(final double percentile) {
+        if (percentile < 0 || percentile > 100) {
+            throw new IllegalArgumentException(PERCENTILE_SHOULD_BE_IN_RANGE);
+        }
+        long[] snapshot = new long[counts.length()];
+        long totalCount = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            snapshot[i] = countAt(i);
+            totalCount += snapshot[i];
+        }
+        if (totalCount == 0) {
+            return 0L;
+        }
+        long countAtPercentile = Long.max(1L, (long) Math.ceil(percentile / 100 * totalCount));
+        long seenCount = 0;
+        for (int i = 0; i < snapshot.length; i++) {
+            seenCount += snapshot[i];
+            if (seenCount >= countAtPercentile) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return highestEquivalentValue(snapshot.length - 1);
+    }
+
+    /**
+     * @return highest equivalent value of the biggest recorded value, or {@code 0} if nothing was recorded
+     */
+    public long getMaxValue() {
+        for (int i = counts.length() - 1; i >= 0; i--) {
+            if (countAt(i) > 0) {
+                return highestEquivalentValue(i);
+            }
+        }
+        return 0L;
+    }
+
+    /**
+     * Clears all recorded values.
+     */
+    public void reset() {
+        zeroCount.reset();
+        for (int i = 0; i < counts.length(); i++) {
+            counts.set(i, 0L);
+        }
+    }
+
+    private long countAt(final int index) {
+        return index == 0 ? zeroCount.sum() : counts.get(index);
+    }
+
+    static int bucketIndex(final long value) {
+        if (value < SUB_BUCKET_COUNT) {
+            return (int) value;
+        }
+        int magnitude = Long.SIZE - 1 - numberOfLeadingZeros(value) - SUB_BUCKET_BITS;
+        int subBucket = (int) (value >>> magnitude) & SUB_BUCKET_MASK;
+        return SUB_BUCKET_COUNT + magnitude * SUB_BUCKET_COUNT + subBucket;
+    }
+
+    static long highestEquivalentValue(final int index) {
+        if (index < SUB_BUCKET_COUNT) {
+            return index;
+        }
+        int magnitude = (index - SUB_BUCKET_COUNT) / SUB_BUCKET_COUNT;
+        long subBucket = SUB_BUCKET_COUNT + (index & SUB_BUCKET_MASK);
+        long lowestEquivalentValue = subBucket << magnitude;
+        return lowestEquivalentValue + (1L << magnitude) - 1;
+    }
+}
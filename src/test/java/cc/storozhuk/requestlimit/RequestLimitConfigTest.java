@@ -34,6 +34,314 @@ public class RequestLimitConfigTest {
         assertThat(config.getLimitForPeriod()).isEqualTo(LIMIT);
         assertThat(config.getLimitRefreshPeriod()).isEqualTo(REFRESH_PERIOD);
         assertThat(config.getTimeoutDuration()).isEqualTo(TIMEOUT);
+        assertThat(config.getBurstCapacity()).isEqualTo(LIMIT);
+        assertThat(config.getTimeoutInNanos()).isEqualTo(TIMEOUT.toNanos());
+        assertThat(config.getLimitRefreshPeriodInNanos()).isEqualTo(REFRESH_PERIOD.toNanos());
+        assertThat(config.isWritableStackTraceEnabled()).isTrue();
+        assertThat(config.getAlgorithm()).isEqualTo(RequestLimitAlgorithm.FIXED_WINDOW);
+        assertThat(config.getLeaseSize()).isEqualTo(1);
+        assertThat(config.getWaitStrategy()).isEqualTo(WaitStrategy.SEMAPHORE);
+        assertThat(config.getMinLimitForPeriod()).isEqualTo(LIMIT);
+        assertThat(config.getLatencyThreshold().isEmpty()).isTrue();
+        assertThat(config.isAdaptive()).isFalse();
+    }
+
+    @Test
+    public void builderWithAdaptiveLimit() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .minLimitForPeriod(LIMIT / 5)
+            .latencyThreshold(Duration.ofMillis(20))
+            .build();
+
+        assertThat(config.getMinLimitForPeriod()).isEqualTo(LIMIT / 5);
+        assertThat(config.getLatencyThreshold().get()).isEqualTo(Duration.ofMillis(20));
+        assertThat(config.isAdaptive()).isTrue();
+        RequestLimitConfig copy = RequestLimitConfig.from(config).build();
+        assertThat(copy.getMinLimitForPeriod()).isEqualTo(LIMIT / 5);
+        assertThat(copy.getLatencyThreshold().get()).isEqualTo(Duration.ofMillis(20));
+        assertThat(RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build()
+            .getMinLimitForPeriod()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void builderMinLimitForPeriodIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MinLimitForPeriod should be greater than 0");
+        RequestLimitConfig.builder()
+            .minLimitForPeriod(0);
+    }
+
+    @Test
+    public void builderMinLimitForPeriodIsGreaterThanLimit() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MinLimitForPeriod should not be greater than LimitForPeriod");
+        RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .minLimitForPeriod(LIMIT + 1)
+            .build();
+    }
+
+    @Test
+    public void builderLatencyThresholdIsNotPositive() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LatencyThreshold should be positive");
+        RequestLimitConfig.builder()
+            .latencyThreshold(Duration.ZERO);
+    }
+
+    @Test
+    public void builderWithMaxConcurrentCalls() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .maxConcurrentCalls(10)
+            .build();
+
+        assertThat(config.getMaxConcurrentCalls()).isEqualTo(10);
+        assertThat(config.isLimitingConcurrentCalls()).isTrue();
+        assertThat(RequestLimitConfig.from(config).build().getMaxConcurrentCalls()).isEqualTo(10);
+        RequestLimitConfig unlimitedConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        assertThat(unlimitedConfig.getMaxConcurrentCalls()).isEqualTo(0);
+        assertThat(unlimitedConfig.isLimitingConcurrentCalls()).isFalse();
+    }
+
+    @Test
+    public void builderMaxConcurrentCallsIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MaxConcurrentCalls should be greater than 0");
+        RequestLimitConfig.builder()
+            .maxConcurrentCalls(0);
+    }
+
+    @Test
+    public void builderWithPriorityLevels() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .priorityLevels(3)
+            .reservedShare(1, 0.1)
+            .reservedShare(2, 0.3)
+            .build();
+
+        assertThat(config.getPriorityLevels()).isEqualTo(3);
+        assertThat(config.getReservedShare(0)).isEqualTo(0.0);
+        assertThat(config.getReservedShare(2)).isEqualTo(0.3);
+        assertThat(config.getReservedShare(3)).isEqualTo(0.0);
+        assertThat(config.getPermitsReservedAbove(0)).isEqualTo((int) (LIMIT * 0.4));
+        assertThat(config.getPermitsReservedAbove(1)).isEqualTo((int) (LIMIT * 0.3));
+        assertThat(config.getPermitsReservedAbove(2)).isEqualTo(0);
+        RequestLimitConfig copy = RequestLimitConfig.from(config).build();
+        assertThat(copy.getPriorityLevels()).isEqualTo(3);
+        assertThat(copy.getReservedShare(1)).isEqualTo(0.1);
+        assertThat(copy.getPermitsReservedAbove(0)).isEqualTo((int) (LIMIT * 0.4));
+    }
+
+    @Test
+    public void builderPriorityLevelsIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("PriorityLevels should be greater than 0");
+        RequestLimitConfig.builder()
+            .priorityLevels(0);
+    }
+
+    @Test
+    public void builderReservedShareForLowestPriority() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Priority of the reserved share should be greater than 0");
+        RequestLimitConfig.builder()
+            .reservedShare(0, 0.5);
+    }
+
+    @Test
+    public void builderReservedShareIsGreaterThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("ReservedShare should be between 0 and 1");
+        RequestLimitConfig.builder()
+            .reservedShare(1, 1.5);
+    }
+
+    @Test
+    public void builderReservedShareForUnknownPriority() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Priority of the reserved share should be less than PriorityLevels");
+        RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .priorityLevels(2)
+            .reservedShare(2, 0.5)
+            .build();
+    }
+
+    @Test
+    public void builderReservedSharesExceedLimit() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("ReservedShares should not exceed 1 in total");
+        RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .priorityLevels(3)
+            .reservedShare(1, 0.6)
+            .reservedShare(2, 0.6)
+            .build();
+    }
+
+    @Test
+    public void builderWithWaitStrategy() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .waitStrategy(WaitStrategy.QUEUE)
+            .build();
+
+        assertThat(config.getWaitStrategy()).isEqualTo(WaitStrategy.QUEUE);
+        assertThat(RequestLimitConfig.from(config).build().getWaitStrategy()).isEqualTo(WaitStrategy.QUEUE);
+    }
+
+    @Test
+    public void builderWaitStrategyIsNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("WaitStrategy must not be null");
+        RequestLimitConfig.builder()
+            .waitStrategy(null);
+    }
+
+    @Test
+    public void builderWithLeaseSize() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .leaseSize(LIMIT / 5)
+            .build();
+
+        assertThat(config.getLeaseSize()).isEqualTo(LIMIT / 5);
+        assertThat(RequestLimitConfig.from(config).build().getLeaseSize()).isEqualTo(LIMIT / 5);
+    }
+
+    @Test
+    public void builderLeaseSizeIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LeaseSize should be greater than 0");
+        RequestLimitConfig.builder()
+            .leaseSize(0);
+    }
+
+    @Test
+    public void builderWithAlgorithm() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .algorithm(RequestLimitAlgorithm.SLIDING_WINDOW)
+            .build();
+
+        assertThat(config.getAlgorithm()).isEqualTo(RequestLimitAlgorithm.SLIDING_WINDOW);
+        assertThat(RequestLimitConfig.from(config).build().getAlgorithm()).isEqualTo(RequestLimitAlgorithm.SLIDING_WINDOW);
+    }
+
+    @Test
+    public void builderAlgorithmIsNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Algorithm must not be null");
+        RequestLimitConfig.builder()
+            .algorithm(null);
+    }
+
+    @Test
+    public void builderWithoutWritableStackTrace() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .writableStackTraceEnabled(false)
+            .build();
+
+        assertThat(config.isWritableStackTraceEnabled()).isFalse();
+    }
+
+    @Test
+    public void builderWithBurstCapacity() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 3)
+            .build();
+
+        assertThat(config.getLimitForPeriod()).isEqualTo(LIMIT);
+        assertThat(config.getBurstCapacity()).isEqualTo(LIMIT * 3);
+    }
+
+    @Test
+    public void builderFromConfig() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .writableStackTraceEnabled(false)
+            .build();
+        RequestLimitConfig copy = RequestLimitConfig.from(config)
+            .limitForPeriod(LIMIT * 2)
+            .build();
+
+        assertThat(copy.getTimeoutDuration()).isEqualTo(TIMEOUT);
+        assertThat(copy.getLimitRefreshPeriod()).isEqualTo(REFRESH_PERIOD);
+        assertThat(copy.getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(copy.getBurstCapacity()).isEqualTo(LIMIT * 2);
+        assertThat(copy.isWritableStackTraceEnabled()).isFalse();
+    }
+
+    @Test
+    public void builderFromConfigWithBurstCapacity() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 3)
+            .build();
+        RequestLimitConfig copy = RequestLimitConfig.from(config)
+            .limitForPeriod(LIMIT * 2)
+            .build();
+
+        assertThat(copy.getBurstCapacity()).isEqualTo(LIMIT * 3);
+    }
+
+    @Test
+    public void builderBurstCapacityIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("BurstCapacity should be greater than 0");
+        RequestLimitConfig.builder()
+            .burstCapacity(0);
+    }
+
+    @Test
+    public void builderBurstCapacityIsLessThanLimit() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("BurstCapacity should not be less than LimitForPeriod");
+        RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT - 1)
+            .build();
     }
 
     @Test
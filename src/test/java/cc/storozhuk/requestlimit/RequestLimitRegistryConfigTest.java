@@ -0,0 +1,102 @@
+package cc.storozhuk.requestlimit;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.time.Duration;
+
+/**
+ * @author bstorozhuk
+ */
+public class RequestLimitRegistryConfigTest {
+
+    private static final Duration EXPIRE_AFTER_IDLE = Duration.ofMinutes(5);
+    private static final int MAXIMUM_SIZE = 1_000_000;
+    private static final Path PERSISTENCE_FILE = Paths.get("request-limits.state");
+    private static final int PERSISTENCE_CAPACITY = 100;
+    private static final int PERMIT_BATCH_SIZE = 20;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void builderPositive() throws Exception {
+        RequestLimitRegistryConfig config = RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(EXPIRE_AFTER_IDLE)
+            .maximumSize(MAXIMUM_SIZE)
+            .persistenceFile(PERSISTENCE_FILE)
+            .persistenceCapacity(PERSISTENCE_CAPACITY)
+            .permitBatchSize(PERMIT_BATCH_SIZE)
+            .build();
+
+        assertThat(config.getExpireAfterIdle().get()).isEqualTo(EXPIRE_AFTER_IDLE);
+        assertThat(config.getMaximumSize()).isEqualTo(MAXIMUM_SIZE);
+        assertThat(config.getPersistenceFile().get()).isEqualTo(PERSISTENCE_FILE);
+        assertThat(config.getPersistenceCapacity()).isEqualTo(PERSISTENCE_CAPACITY);
+        assertThat(config.getPermitBatchSize()).isEqualTo(PERMIT_BATCH_SIZE);
+    }
+
+    @Test
+    public void defaults() throws Exception {
+        RequestLimitRegistryConfig config = RequestLimitRegistryConfig.ofDefaults();
+
+        assertThat(config.getExpireAfterIdle().isEmpty()).isTrue();
+        assertThat(config.getMaximumSize()).isEqualTo(Integer.MAX_VALUE);
+        assertThat(config.getPersistenceFile().isEmpty()).isTrue();
+        assertThat(config.getPersistenceCapacity()).isEqualTo(4096);
+        assertThat(config.getPermitBatchSize()).isEqualTo(1);
+    }
+
+    @Test
+    public void builderExpireAfterIdleIsNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("ExpireAfterIdle must not be null");
+        RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(null);
+    }
+
+    @Test
+    public void builderExpireAfterIdleIsZero() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("ExpireAfterIdle should be positive");
+        RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(Duration.ZERO);
+    }
+
+    @Test
+    public void builderMaximumSizeIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MaximumSize should be greater than 0");
+        RequestLimitRegistryConfig.builder()
+            .maximumSize(0);
+    }
+
+    @Test
+    public void builderPersistenceFileIsNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("PersistenceFile must not be null");
+        RequestLimitRegistryConfig.builder()
+            .persistenceFile(null);
+    }
+
+    @Test
+    public void builderPersistenceCapacityIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("PersistenceCapacity should be greater than 0");
+        RequestLimitRegistryConfig.builder()
+            .persistenceCapacity(0);
+    }
+
+    @Test
+    public void builderPermitBatchSizeIsLessThanOne() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("PermitBatchSize should be greater than 0");
+        RequestLimitRegistryConfig.builder()
+            .permitBatchSize(0);
+    }
+}
@@ -1,7 +1,11 @@
 package cc.storozhuk.requestlimit;
 
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.AdditionalMatchers.leq;
 import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyBoolean;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
@@ -13,6 +17,10 @@ import org.junit.Before;
 import org.junit.Test;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CompletionStage;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
 import java.util.function.Consumer;
 import java.util.function.Function;
 import java.util.function.Supplier;
@@ -46,7 +54,7 @@ public class RequestLimitTest {
         Try.CheckedSupplier supplier = mock(Try.CheckedSupplier.class);
         Try.CheckedSupplier decorated = RequestLimit.decorateCheckedSupplier(supplier, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try decoratedSupplierResult = Try.of(decorated);
@@ -54,7 +62,7 @@ public class RequestLimitTest {
         assertThat(decoratedSupplierResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(supplier, never()).get();
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondSupplierResult = Try.of(decorated);
         assertThat(secondSupplierResult.isSuccess()).isTrue();
@@ -66,7 +74,7 @@ public class RequestLimitTest {
         Try.CheckedRunnable runnable = mock(Try.CheckedRunnable.class);
         Try.CheckedRunnable decorated = RequestLimit.decorateCheckedRunnable(runnable, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try decoratedRunnableResult = Try.run(decorated);
@@ -74,7 +82,7 @@ public class RequestLimitTest {
         assertThat(decoratedRunnableResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(runnable, never()).run();
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondRunnableResult = Try.run(decorated);
         assertThat(secondRunnableResult.isSuccess()).isTrue();
@@ -86,7 +94,7 @@ public class RequestLimitTest {
         Try.CheckedFunction<Integer, String> function = mock(Try.CheckedFunction.class);
         Try.CheckedFunction<Integer, String> decorated = RequestLimit.decorateCheckedFunction(function, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try<String> decoratedFunctionResult = Try.success(1).mapTry(decorated);
@@ -94,7 +102,7 @@ public class RequestLimitTest {
         assertThat(decoratedFunctionResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(function, never()).apply(any());
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondFunctionResult = Try.success(1).mapTry(decorated);
         assertThat(secondFunctionResult.isSuccess()).isTrue();
@@ -106,7 +114,7 @@ public class RequestLimitTest {
         Supplier supplier = mock(Supplier.class);
         Supplier decorated = RequestLimit.decorateSupplier(supplier, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try decoratedSupplierResult = Try.success(decorated).map(Supplier::get);
@@ -114,7 +122,7 @@ public class RequestLimitTest {
         assertThat(decoratedSupplierResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(supplier, never()).get();
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondSupplierResult = Try.success(decorated).map(Supplier::get);
         assertThat(secondSupplierResult.isSuccess()).isTrue();
@@ -126,7 +134,7 @@ public class RequestLimitTest {
         Consumer<Integer> consumer = mock(Consumer.class);
         Consumer<Integer> decorated = RequestLimit.decorateConsumer(consumer, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try<Integer> decoratedConsumerResult = Try.success(1).andThen(decorated);
@@ -134,7 +142,7 @@ public class RequestLimitTest {
         assertThat(decoratedConsumerResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(consumer, never()).accept(any());
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondConsumerResult = Try.success(1).andThen(decorated);
         assertThat(secondConsumerResult.isSuccess()).isTrue();
@@ -146,7 +154,7 @@ public class RequestLimitTest {
         Runnable runnable = mock(Runnable.class);
         Runnable decorated = RequestLimit.decorateRunnable(runnable, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try decoratedRunnableResult = Try.success(decorated).andThen(Runnable::run);
@@ -154,7 +162,7 @@ public class RequestLimitTest {
         assertThat(decoratedRunnableResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(runnable, never()).run();
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondRunnableResult = Try.success(decorated).andThen(Runnable::run);
         assertThat(secondRunnableResult.isSuccess()).isTrue();
@@ -166,7 +174,7 @@ public class RequestLimitTest {
         Function<Integer, String> function = mock(Function.class);
         Function<Integer, String> decorated = RequestLimit.decorateFunction(function, limit);
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
 
         Try<String> decoratedFunctionResult = Try.success(1).map(decorated);
@@ -174,28 +182,280 @@ public class RequestLimitTest {
         assertThat(decoratedFunctionResult.getCause()).isInstanceOf(RequestNotPermitted.class);
         verify(function, never()).apply(any());
 
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         Try secondFunctionResult = Try.success(1).map(decorated);
         assertThat(secondFunctionResult.isSuccess()).isTrue();
         verify(function, times(1)).apply(1);
     }
 
+    @Test
+    public void decorateWeightedFunction() throws Exception {
+        Function<Integer, String> function = mock(Function.class);
+        Function<Integer, String> decorated = RequestLimit.decorateFunction(function, Integer::intValue, limit);
+
+        when(limit.getPermissions(5, config.getTimeoutInNanos()))
+            .thenReturn(false);
+
+        Try<String> decoratedFunctionResult = Try.success(5).map(decorated);
+        assertThat(decoratedFunctionResult.isFailure()).isTrue();
+        assertThat(decoratedFunctionResult.getCause()).isInstanceOf(RequestNotPermitted.class);
+        verify(function, never()).apply(any());
+
+        when(limit.getPermissions(5, config.getTimeoutInNanos()))
+            .thenReturn(true);
+        Try secondFunctionResult = Try.success(5).map(decorated);
+        assertThat(secondFunctionResult.isSuccess()).isTrue();
+        verify(function, times(1)).apply(5);
+        verify(limit, times(2)).getPermissions(5, config.getTimeoutInNanos());
+    }
+
+    @Test
+    public void decorateCompletionStage() throws Exception {
+        Supplier<CompletionStage<String>> supplier = mock(Supplier.class);
+        when(supplier.get())
+            .thenReturn(CompletableFuture.completedFuture("Resource"));
+        Supplier<CompletionStage<String>> decorated = RequestLimit.decorateCompletionStage(supplier, limit);
+
+        when(limit.acquirePermissionAsync())
+            .thenReturn(CompletableFuture.completedFuture(false));
+
+        Try<String> decoratedStageResult = Try.of(() -> decorated.get().toCompletableFuture().get());
+        assertThat(decoratedStageResult.isFailure()).isTrue();
+        assertThat(decoratedStageResult.getCause()).isInstanceOf(ExecutionException.class);
+        assertThat(decoratedStageResult.getCause().getCause()).isInstanceOf(RequestNotPermitted.class);
+        verify(supplier, never()).get();
+
+        when(limit.acquirePermissionAsync())
+            .thenReturn(CompletableFuture.completedFuture(true));
+        Try<String> secondStageResult = Try.of(() -> decorated.get().toCompletableFuture().get());
+        assertThat(secondStageResult.isSuccess()).isTrue();
+        assertThat(secondStageResult.get()).isEqualTo("Resource");
+        verify(supplier, times(1)).get();
+    }
+
+    @Test
+    public void decoratorsRecordCallsOfAdaptiveRequestLimit() throws Exception {
+        useAdaptiveConfig();
+        when(limit.getPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        Supplier<String> supplier = mock(Supplier.class);
+        when(supplier.get())
+            .thenReturn("Resource")
+            .thenThrow(new IllegalStateException("Failure"));
+        Supplier<String> decorated = RequestLimit.decorateSupplier(supplier, limit);
+
+        assertThat(decorated.get()).isEqualTo("Resource");
+        verify(limit, times(1)).recordCall(anyLong(), eq(false));
+
+        Try<String> failedResult = Try.of(decorated::get);
+        assertThat(failedResult.getCause()).isInstanceOf(IllegalStateException.class);
+        verify(limit, times(1)).recordCall(anyLong(), eq(true));
+    }
+
+    @Test
+    public void checkedDecoratorsRecordCallsOfAdaptiveRequestLimit() throws Throwable {
+        useAdaptiveConfig();
+        when(limit.getPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        Try.CheckedRunnable runnable = () -> {
+            throw new Exception("Failure");
+        };
+
+        Try result = Try.run(RequestLimit.decorateCheckedRunnable(runnable, limit));
+        assertThat(result.isFailure()).isTrue();
+        verify(limit, times(1)).recordCall(anyLong(), eq(true));
+    }
+
+    @Test
+    public void decorateCompletionStageRecordsCallsOfAdaptiveRequestLimit() throws Exception {
+        useAdaptiveConfig();
+        when(limit.acquirePermissionAsync())
+            .thenReturn(CompletableFuture.completedFuture(true));
+        CompletableFuture<String> failedStage = new CompletableFuture<>();
+        failedStage.completeExceptionally(new IllegalStateException("Failure"));
+        Supplier<CompletionStage<String>> supplier = mock(Supplier.class);
+        when(supplier.get())
+            .thenReturn(CompletableFuture.completedFuture("Resource"))
+            .thenReturn(failedStage);
+        Supplier<CompletionStage<String>> decorated = RequestLimit.decorateCompletionStage(supplier, limit);
+
+        assertThat(decorated.get().toCompletableFuture().get()).isEqualTo("Resource");
+        verify(limit, times(1)).recordCall(anyLong(), eq(false));
+
+        Try<String> failedResult = Try.of(() -> decorated.get().toCompletableFuture().get());
+        assertThat(failedResult.isFailure()).isTrue();
+        verify(limit, times(1)).recordCall(anyLong(), eq(true));
+    }
+
+    @Test
+    public void decoratorsDoNotRecordCallsOfFixedRequestLimit() throws Exception {
+        when(limit.getPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        RequestLimit.decorateRunnable(() -> {
+        }, limit).run();
+        verify(limit, never()).recordCall(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void decoratorsHoldInFlightPermissionDuringCall() throws Throwable {
+        useBulkheadConfig();
+        when(limit.acquireInFlightPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        when(limit.getPermission(leq(config.getTimeoutInNanos())))
+            .thenReturn(true);
+        Supplier<String> supplier = () -> {
+            verify(limit, never()).releaseInFlightPermission();
+            return "Resource";
+        };
+
+        assertThat(RequestLimit.decorateSupplier(supplier, limit).get()).isEqualTo("Resource");
+        verify(limit, times(1)).releaseInFlightPermission();
+
+        Try.CheckedFunction<String, String> function = value -> {
+            throw new Exception("Failure");
+        };
+        Try<String> failedResult = Try.of(() -> RequestLimit.decorateCheckedFunction(function, limit).apply("Resource"));
+        assertThat(failedResult.getCause()).hasMessage("Failure");
+        verify(limit, times(2)).acquireInFlightPermission(config.getTimeoutInNanos());
+        verify(limit, times(2)).releaseInFlightPermission();
+        verify(limit, never()).recordCall(anyLong(), anyBoolean());
+    }
+
+    @Test
+    public void decoratorsRejectCallsWithoutInFlightPermission() throws Exception {
+        useBulkheadConfig();
+        when(limit.acquireInFlightPermission(config.getTimeoutInNanos()))
+            .thenReturn(false);
+        Runnable runnable = mock(Runnable.class);
+
+        Try result = Try.run(() -> RequestLimit.decorateRunnable(runnable, limit).run());
+        assertThat(result.getCause()).isInstanceOf(RequestNotPermitted.class);
+        verify(runnable, never()).run();
+        verify(limit, never()).getPermission(anyLong());
+        verify(limit, never()).releaseInFlightPermission();
+    }
+
+    @Test
+    public void inFlightPermissionIsReleasedWhenPermissionIsRejected() throws Exception {
+        useBulkheadConfig();
+        when(limit.acquireInFlightPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        when(limit.getPermissions(eq(5), leq(config.getTimeoutInNanos())))
+            .thenReturn(false);
+        Function<String, String> function = mock(Function.class);
+
+        Try<String> result = Try.of(() -> RequestLimit.decorateFunction(function, value -> 5, limit).apply("Resource"));
+        assertThat(result.getCause()).isInstanceOf(RequestNotPermitted.class);
+        verify(function, never()).apply(any());
+        verify(limit, times(1)).releaseInFlightPermission();
+    }
+
+    @Test
+    public void permissionIsAwaitedForTheRestOfTimeoutAfterInFlightPermission() throws Exception {
+        useBulkheadConfig();
+        long inFlightWaitInNanos = TimeUnit.MILLISECONDS.toNanos(50);
+        when(limit.acquireInFlightPermission(config.getTimeoutInNanos()))
+            .thenAnswer(invocation -> {
+                TimeUnit.NANOSECONDS.sleep(inFlightWaitInNanos);
+                return true;
+            });
+        when(limit.getPermission(leq(config.getTimeoutInNanos() - inFlightWaitInNanos)))
+            .thenReturn(true);
+        Runnable runnable = mock(Runnable.class);
+
+        RequestLimit.decorateRunnable(runnable, limit).run();
+        verify(runnable, times(1)).run();
+        verify(limit, times(1)).releaseInFlightPermission();
+    }
+
+    @Test
+    public void decorateCompletionStageReleasesInFlightPermissionOnCompletion() throws Exception {
+        useBulkheadConfig();
+        when(limit.acquireInFlightPermission(0L))
+            .thenReturn(true)
+            .thenReturn(false);
+        when(limit.acquirePermissionAsync())
+            .thenReturn(CompletableFuture.completedFuture(true));
+        CompletableFuture<String> stage = new CompletableFuture<>();
+        Supplier<CompletionStage<String>> decorated = RequestLimit.decorateCompletionStage(() -> stage, limit);
+
+        CompletableFuture<String> decoratedStage = decorated.get().toCompletableFuture();
+        verify(limit, never()).releaseInFlightPermission();
+        stage.complete("Resource");
+        assertThat(decoratedStage.get()).isEqualTo("Resource");
+        verify(limit, times(1)).releaseInFlightPermission();
+
+        Try<String> rejectedResult = Try.of(() -> decorated.get().toCompletableFuture().get());
+        assertThat(rejectedResult.getCause()).isInstanceOf(ExecutionException.class);
+        assertThat(rejectedResult.getCause().getCause()).isInstanceOf(RequestNotPermitted.class);
+        verify(limit, times(1)).acquirePermissionAsync();
+        verify(limit, times(1)).releaseInFlightPermission();
+    }
+
+    @Test
+    public void decoratorsDoNotAcquireInFlightPermissionWithoutMaxConcurrentCalls() throws Exception {
+        when(limit.getPermission(config.getTimeoutInNanos()))
+            .thenReturn(true);
+        RequestLimit.decorateRunnable(() -> {
+        }, limit).run();
+        verify(limit, never()).acquireInFlightPermission(anyLong());
+        verify(limit, never()).releaseInFlightPermission();
+    }
+
+    private void useBulkheadConfig() {
+        config = RequestLimitConfig.from(config)
+            .maxConcurrentCalls(1)
+            .build();
+        when(limit.getRequestLimitConfig())
+            .thenReturn(config);
+    }
+
+    private void useAdaptiveConfig() {
+        config = RequestLimitConfig.from(config)
+            .minLimitForPeriod(LIMIT / 5)
+            .build();
+        when(limit.getRequestLimitConfig())
+            .thenReturn(config);
+    }
+
     @Test
     public void waitForPermissionWithOne() throws Exception {
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(true);
         RequestLimit.waitForPermission(limit);
         verify(limit, times(1))
-            .getPermission(config.getTimeoutDuration());
+            .getPermission(config.getTimeoutInNanos());
     }
 
     @Test(expected = RequestNotPermitted.class)
     public void waitForPermissionWithoutOne() throws Exception {
-        when(limit.getPermission(config.getTimeoutDuration()))
+        when(limit.getPermission(config.getTimeoutInNanos()))
             .thenReturn(false);
         RequestLimit.waitForPermission(limit);
         verify(limit, times(1))
-            .getPermission(config.getTimeoutDuration());
+            .getPermission(config.getTimeoutInNanos());
+    }
+
+    @Test
+    public void waitForPermissionWithoutStackTrace() throws Exception {
+        RequestLimitConfig stacklessConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .writableStackTraceEnabled(false)
+            .build();
+        when(limit.getRequestLimitConfig())
+            .thenReturn(stacklessConfig);
+        when(limit.getName())
+            .thenReturn("test");
+        when(limit.getPermission(stacklessConfig.getTimeoutInNanos()))
+            .thenReturn(false);
+
+        Try result = Try.run(() -> RequestLimit.waitForPermission(limit));
+
+        assertThat(result.getCause()).isInstanceOf(RequestNotPermitted.class);
+        assertThat(result.getCause().getMessage()).isEqualTo("Request not permitted for limit: test");
+        assertThat(result.getCause().getStackTrace()).isEmpty();
     }
-}
\ No newline at end of file
+}
@@ -0,0 +1,196 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.mockito.ArgumentCaptor;
+
+import java.time.Duration;
+
+/**
+ * @author bstorozhuk
+ */
+public class AdaptiveRequestLimitTest {
+
+    private static final int LIMIT = 20;
+    private static final int MIN_LIMIT = 10;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final Duration LATENCY_THRESHOLD = Duration.ofMillis(10);
+    private static final long PERIOD_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final long FAST_CALL = LATENCY_THRESHOLD.toNanos() / 2;
+    private static final long SLOW_CALL = LATENCY_THRESHOLD.toNanos() * 2;
+
+    private RequestLimitConfig config;
+    private RequestLimit underlyingLimit;
+    private AdaptiveRequestLimit limit;
+    private long startTime;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .minLimitForPeriod(MIN_LIMIT)
+            .latencyThreshold(LATENCY_THRESHOLD)
+            .build();
+        underlyingLimit = mock(RequestLimit.class);
+        limit = spy(new AdaptiveRequestLimit(underlyingLimit, config));
+        startTime = System.nanoTime();
+        setTimeOnNanos(startTime);
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(limit).currentNanoTime();
+    }
+
+    private void recordCalls(int calls, long durationInNanos, boolean failed) {
+        for (int i = 0; i < calls; i++) {
+            limit.recordCall(durationInNanos, failed);
+        }
+    }
+
+    @Test
+    public void failedCallsDecreaseLimit() throws Exception {
+        recordCalls(LIMIT - 1, FAST_CALL, false);
+        recordCalls(1, FAST_CALL, true);
+        setTimeOnNanos(startTime + PERIOD_IN_NANOS);
+        recordCalls(1, FAST_CALL, false);
+
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT * 9 / 10);
+        verify(underlyingLimit).changeLimitForPeriod(LIMIT * 9 / 10);
+    }
+
+    @Test
+    public void slowCallsDecreaseLimitDownToMin() throws Exception {
+        for (int period = 1; period <= 10; period++) {
+            recordCalls(LIMIT, SLOW_CALL, false);
+            setTimeOnNanos(startTime + period * PERIOD_IN_NANOS);
+        }
+        recordCalls(1, SLOW_CALL, false);
+
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(MIN_LIMIT);
+        verify(underlyingLimit).changeLimitForPeriod(MIN_LIMIT);
+    }
+
+    @Test
+    public void fastCallsIncreaseLimitUpToMax() throws Exception {
+        recordCalls(1, FAST_CALL, true);
+        setTimeOnNanos(startTime + PERIOD_IN_NANOS);
+        recordCalls(1, FAST_CALL, false);
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT * 9 / 10);
+
+        for (int period = 2; period <= 4; period++) {
+            recordCalls(LIMIT, FAST_CALL, false);
+            setTimeOnNanos(startTime + period * PERIOD_IN_NANOS);
+        }
+        recordCalls(1, FAST_CALL, false);
+
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT);
+        verify(underlyingLimit).changeLimitForPeriod(LIMIT - 1);
+        verify(underlyingLimit).changeLimitForPeriod(LIMIT);
+    }
+
+    @Test
+    public void underusedLimitIsNotIncreased() throws Exception {
+        recordCalls(1, FAST_CALL, true);
+        setTimeOnNanos(startTime + PERIOD_IN_NANOS);
+        recordCalls(1, FAST_CALL, false);
+        int limitForPeriod = limit.getEffectiveLimitForPeriod();
+
+        recordCalls(limitForPeriod / 2 - 2, FAST_CALL, false);
+        setTimeOnNanos(startTime + 2 * PERIOD_IN_NANOS);
+        recordCalls(1, FAST_CALL, false);
+
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(limitForPeriod);
+    }
+
+    @Test
+    public void limitIsAdjustedOncePerPeriod() throws Exception {
+        recordCalls(1, FAST_CALL, true);
+        setTimeOnNanos(startTime + PERIOD_IN_NANOS / 2);
+        recordCalls(1, FAST_CALL, true);
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT);
+
+        setTimeOnNanos(startTime + PERIOD_IN_NANOS);
+        recordCalls(3, FAST_CALL, true);
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT * 9 / 10);
+        verify(underlyingLimit).changeLimitForPeriod(anyInt());
+    }
+
+    @Test
+    public void changeRequestLimitConfigKeepsEffectiveLimitInBounds() throws Exception {
+        RequestLimitConfig lowerConfig = RequestLimitConfig.from(config)
+            .limitForPeriod(MIN_LIMIT + 1)
+            .minLimitForPeriod(MIN_LIMIT - 1)
+            .build();
+        limit.changeRequestLimitConfig(lowerConfig);
+
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(MIN_LIMIT + 1);
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(lowerConfig);
+        ArgumentCaptor<RequestLimitConfig> underlyingConfigCaptor = ArgumentCaptor.forClass(RequestLimitConfig.class);
+        verify(underlyingLimit).changeRequestLimitConfig(underlyingConfigCaptor.capture());
+        assertThat(underlyingConfigCaptor.getValue().getLimitForPeriod()).isEqualTo(MIN_LIMIT + 1);
+        assertThat(underlyingConfigCaptor.getValue().getTimeoutDuration()).isEqualTo(TIMEOUT);
+    }
+
+    @Test
+    public void changeLimitForPeriodChangesUpperBound() throws Exception {
+        limit.changeLimitForPeriod(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(limit.getEffectiveLimitForPeriod()).isEqualTo(LIMIT);
+
+        limit.changeTimeoutDuration(ZERO);
+        assertThat(limit.getRequestLimitConfig().getTimeoutDuration()).isEqualTo(ZERO);
+        assertThat(limit.getRequestLimitConfig().getMinLimitForPeriod()).isEqualTo(MIN_LIMIT);
+    }
+
+    @Test
+    public void changeLimitRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).limitRefreshPeriod(Duration.ofSeconds(1)).build());
+    }
+
+    @Test
+    public void permissionsAreGrantedByUnderlyingLimit() throws Exception {
+        when(underlyingLimit.getPermission(1L)).thenReturn(true);
+        when(underlyingLimit.getPermission(1L, 1)).thenReturn(true);
+        when(underlyingLimit.acquireInFlightPermission(1L)).thenReturn(true);
+        when(underlyingLimit.getPermissions(2, 1L)).thenReturn(true);
+        when(underlyingLimit.reservePermission(TIMEOUT)).thenReturn(3L);
+        when(underlyingLimit.getName()).thenReturn("test");
+
+        assertThat(limit.getPermission(1L)).isTrue();
+        assertThat(limit.getPermission(1L, 1)).isTrue();
+        assertThat(limit.acquireInFlightPermission(1L)).isTrue();
+        assertThat(limit.getPermissions(2, 1L)).isTrue();
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(3L);
+        assertThat(limit.getName()).isEqualTo("test");
+        limit.releasePermissions(1);
+        limit.releaseInFlightPermission();
+        limit.close();
+
+        verify(underlyingLimit).releasePermissions(1);
+        verify(underlyingLimit).releaseInFlightPermission();
+        verify(underlyingLimit).close();
+        verify(underlyingLimit, never()).changeLimitForPeriod(anyInt());
+    }
+}
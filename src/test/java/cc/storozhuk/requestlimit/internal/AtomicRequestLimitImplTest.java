@@ -0,0 +1,393 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.RUNNABLE;
+import static java.lang.Thread.State.TERMINATED;
+import static java.lang.Thread.State.TIMED_WAITING;
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * @author bstorozhuk
+ */
+public class AtomicRequestLimitImplTest {
+
+    private static final int LIMIT = 2;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final long CYCLE_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final long POLL_INTERVAL_IN_NANOS = 2_000_000L;
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+
+    private RequestLimitConfig config;
+    private AtomicRequestLimitImpl limit;
+    private AtomicRequestLimitImpl.AtomicRequestLimitMetrics metrics;
+    private volatile long nanoTime;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        limit = createLimit(config);
+        metrics = limit.getDetailedMetrics();
+    }
+
+    private AtomicRequestLimitImpl createLimit(final RequestLimitConfig config) {
+        return new AtomicRequestLimitImpl("test", config) {
+            @Override
+            long currentNanoTime() {
+                return nanoTime;
+            }
+        };
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        this.nanoTime = nanoTime;
+    }
+
+    @Test
+    public void permissionsInFirstCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS - 10);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(metrics.getNanosToWait()).isEqualTo(10L);
+
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void permissionsAreRefreshedOnNextCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(metrics.getCycle()).isEqualTo(1L);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(metrics.getCycle()).isEqualTo(2L);
+    }
+
+    @Test
+    public void nextRefreshIsAtCycleBoundary() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(CYCLE_IN_NANOS);
+        setTimeOnNanos(CYCLE_IN_NANOS * 2 - 10);
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(10L);
+    }
+
+    @Test
+    public void idleCyclesDoNotAccumulatePermissions() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 50);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void changeLimitForPeriodOnNextCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        limit.changeLimitForPeriod(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getBurstCapacity()).isEqualTo(LIMIT * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+
+        limit.changeLimitForPeriod(1);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        setTimeOnNanos(CYCLE_IN_NANOS * 3);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void changeTimeoutDuration() throws Exception {
+        limit.changeTimeoutDuration(ZERO);
+        assertThat(limit.getRequestLimitConfig().getTimeoutDuration()).isEqualTo(ZERO);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithAnotherRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(
+            RequestLimitConfig.from(config).limitRefreshPeriod(REFRESH_PERIOD.multipliedBy(2)).build()
+        );
+    }
+
+    @Test
+    public void idleCyclesAccumulatePermissionsUpToBurstCapacity() throws Exception {
+        RequestLimitConfig burstConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 2 + 1)
+            .build();
+        limit = createLimit(burstConfig);
+        metrics = limit.getDetailedMetrics();
+
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2 + 1);
+        setTimeOnNanos(CYCLE_IN_NANOS * 50);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2 + 1);
+
+        for (int i = 0; i < LIMIT * 2 + 1; i++) {
+            assertThat(limit.getPermission(ZERO)).isTrue();
+        }
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void reservePermissionAndWaitForIt() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        AtomicBoolean reservedPermission = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> reservedPermission.set(limit.getPermission(TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-1);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(1);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2 + POLL_INTERVAL_IN_NANOS);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(reservedPermission.get()).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void permissionAfterTimeoutIsRejectedWithoutWaiting() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ofNanos(CYCLE_IN_NANOS - 1))).isFalse();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void getPermissions() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(limit.getPermissions(1, ZERO)).isFalse();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(limit.getPermissions(LIMIT + 1, ZERO)).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(limit.getPermissions(1, ZERO)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPermissionsAreReservedInNextCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        AtomicBoolean acquiredPermissions = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> acquiredPermissions.set(limit.getPermissions(LIMIT, TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-1);
+        assertThat(metrics.getNanosToWait()).isEqualTo(CYCLE_IN_NANOS);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(acquiredPermissions.get()).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPermissionsBiggerThanBurstCapacity() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT + 1, TIMEOUT)).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void releasePermissionsReturnsReservationsFirst() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        limit.releasePermissions(1);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        assertThat(limit.reservePermission(TIMEOUT)).isPositive();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-1);
+        limit.releasePermissions(1);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+
+        limit.releasePermissions(LIMIT * 3);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void reservePermission() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.reservePermission(ZERO)).isEqualTo(0L);
+        assertThat(limit.reservePermission(ZERO)).isEqualTo(0L);
+        assertThat(limit.reservePermission(ZERO)).isNegative();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(CYCLE_IN_NANOS);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(CYCLE_IN_NANOS);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(CYCLE_IN_NANOS * 2);
+        assertThat(limit.reservePermission(Duration.ofNanos(CYCLE_IN_NANOS * 2 - 1))).isNegative();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-3);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2 + 10);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-1);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(CYCLE_IN_NANOS - 10);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        CompletableFuture<Boolean> reserved = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(reserved.isDone()).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-1);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+        assertThat(reserved.get(2, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void acquirePermissionAsyncLongerThanTimeout() throws Exception {
+        RequestLimitConfig shortTimeoutConfig = RequestLimitConfig.builder()
+            .timeoutDuration(Duration.ofNanos(CYCLE_IN_NANOS - 1))
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(1)
+            .build();
+        limit = createLimit(shortTimeoutConfig);
+        metrics = limit.getDetailedMetrics();
+        setTimeOnNanos(CYCLE_IN_NANOS);
+
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        CompletableFuture<Boolean> notPermitted = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(notPermitted.isDone()).isTrue();
+        assertThat(notPermitted.get()).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void getPermissionInterruption() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        limit.getPermission(ZERO);
+        limit.getPermission(ZERO);
+
+        Thread thread = new Thread(() -> {
+            limit.getPermission(TIMEOUT);
+            while (true) {
+                Function.identity().apply(1);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+
+        thread.interrupt();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(RUNNABLE));
+        assertThat(thread.isInterrupted()).isTrue();
+    }
+
+    @Test
+    public void getName() throws Exception {
+        assertThat(limit.getName()).isEqualTo("test");
+    }
+
+    @Test
+    public void getMetrics() throws Exception {
+        RequestLimit.Metrics metrics = limit.getMetrics();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void getRequestLimitConfig() throws Exception {
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+    }
+
+    @Test
+    public void constructionWithNullName() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(NAME_MUST_NOT_BE_NULL);
+        new AtomicRequestLimitImpl(null, config);
+    }
+
+    @Test
+    public void constructionWithNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(CONFIG_MUST_NOT_BE_NULL);
+        new AtomicRequestLimitImpl("test", null);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
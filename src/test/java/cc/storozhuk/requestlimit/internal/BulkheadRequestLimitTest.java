@@ -0,0 +1,212 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.TERMINATED;
+import static java.lang.Thread.State.TIMED_WAITING;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.verify;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author bstorozhuk
+ */
+public class BulkheadRequestLimitTest {
+
+    private static final int LIMIT = 50;
+    private static final int MAX_CONCURRENT_CALLS = 2;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final long TIMEOUT_IN_NANOS = TIMEOUT.toNanos();
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+
+    private RequestLimitConfig config;
+    private RequestLimit requestLimit;
+    private BulkheadRequestLimit limit;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .maxConcurrentCalls(MAX_CONCURRENT_CALLS)
+            .build();
+        requestLimit = mock(RequestLimit.class);
+        doReturn(config).when(requestLimit).getRequestLimitConfig();
+        doReturn(mock(RequestLimit.Metrics.class)).when(requestLimit).getMetrics();
+        limit = new BulkheadRequestLimit(requestLimit);
+    }
+
+    @Test
+    public void inFlightCallsAreLimited() throws Exception {
+        assertThat(limit.acquireInFlightPermission(0L)).isTrue();
+        assertThat(limit.acquireInFlightPermission(0L)).isTrue();
+        assertThat(limit.acquireInFlightPermission(0L)).isFalse();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS);
+
+        limit.releaseInFlightPermission();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS - 1);
+        assertThat(limit.acquireInFlightPermission(0L)).isTrue();
+    }
+
+    @Test
+    public void releasedSlotIsHandedToWaiter() throws Exception {
+        acquireAllSlots();
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> permitted.set(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS)));
+        waiter.setDaemon(true);
+        waiter.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TIMED_WAITING));
+        assertThat(limit.getMetrics().getNumberOfWaitingThreads()).isEqualTo(1);
+
+        limit.releaseInFlightPermission();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS);
+        assertThat(limit.getMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void waiterTimeout() throws Exception {
+        acquireAllSlots();
+        assertThat(limit.acquireInFlightPermission(TimeUnit.MILLISECONDS.toNanos(10))).isFalse();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS);
+
+        limit.releaseInFlightPermission();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS - 1);
+    }
+
+    @Test
+    public void interruptedWaiterStopsWaiting() throws Exception {
+        acquireAllSlots();
+        AtomicBoolean permitted = new AtomicBoolean(true);
+        AtomicBoolean interrupted = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> {
+            permitted.set(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS));
+            interrupted.set(Thread.currentThread().isInterrupted());
+        });
+        waiter.setDaemon(true);
+        waiter.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TIMED_WAITING));
+
+        waiter.interrupt();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isFalse();
+        assertThat(interrupted.get()).isTrue();
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(MAX_CONCURRENT_CALLS);
+    }
+
+    @Test
+    public void increasedMaxConcurrentCallsIsHandedToWaiter() throws Exception {
+        acquireAllSlots();
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread waiter = new Thread(() -> permitted.set(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS)));
+        waiter.setDaemon(true);
+        waiter.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TIMED_WAITING));
+
+        RequestLimitConfig newConfig = RequestLimitConfig.from(config).maxConcurrentCalls(MAX_CONCURRENT_CALLS + 1).build();
+        limit.changeRequestLimitConfig(newConfig);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        verify(requestLimit).changeRequestLimitConfig(newConfig);
+    }
+
+    @Test
+    public void decreasedMaxConcurrentCallsWaitsForInFlightCalls() throws Exception {
+        acquireAllSlots();
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).maxConcurrentCalls(1).build());
+
+        limit.releaseInFlightPermission();
+        assertThat(limit.acquireInFlightPermission(0L)).isFalse();
+        limit.releaseInFlightPermission();
+        assertThat(limit.acquireInFlightPermission(0L)).isTrue();
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithoutMaxConcurrentCalls() throws Exception {
+        RequestLimitConfig newConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MaxConcurrentCalls can't be removed");
+        limit.changeRequestLimitConfig(newConfig);
+    }
+
+    @Test
+    public void closeRejectsWaiters() throws Exception {
+        acquireAllSlots();
+        AtomicBoolean permitted = new AtomicBoolean(true);
+        Thread waiter = new Thread(() -> permitted.set(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS)));
+        waiter.setDaemon(true);
+        waiter.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TIMED_WAITING));
+
+        limit.close();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isFalse();
+        assertThat(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS)).isFalse();
+        verify(requestLimit).close();
+    }
+
+    @Test
+    public void permissionsAreGrantedByUnderlyingLimit() throws Exception {
+        doReturn(true).when(requestLimit).getPermission(1L);
+        doReturn(true).when(requestLimit).getPermission(1L, 1);
+        doReturn(true).when(requestLimit).getPermissions(2, 1L);
+        doReturn(3L).when(requestLimit).reservePermission(TIMEOUT);
+        doReturn("test").when(requestLimit).getName();
+
+        assertThat(limit.getPermission(1L)).isTrue();
+        assertThat(limit.getPermission(1L, 1)).isTrue();
+        assertThat(limit.getPermissions(2, 1L)).isTrue();
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(3L);
+        assertThat(limit.getName()).isEqualTo("test");
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+        limit.releasePermissions(1);
+        limit.recordCall(10L, false);
+
+        verify(requestLimit).releasePermissions(1);
+        verify(requestLimit).recordCall(10L, false);
+        assertThat(limit.getNumberOfInFlightCalls()).isEqualTo(0);
+    }
+
+    private void acquireAllSlots() {
+        for (int i = 0; i < MAX_CONCURRENT_CALLS; i++) {
+            assertThat(limit.acquireInFlightPermission(0L)).isTrue();
+        }
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,229 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.TERMINATED;
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+import static org.mockito.Mockito.when;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author bstorozhuk
+ */
+public class CompositeRequestLimitTest {
+
+    private static final int TENANT_LIMIT = 2;
+    private static final int GLOBAL_LIMIT = 1;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+
+    private SemaphoreBasedRequestLimitImpl tenantLimit;
+    private SemaphoreBasedRequestLimitImpl globalLimit;
+    private CompositeRequestLimit limit;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        RequestLimitConfig tenantConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(TENANT_LIMIT)
+            .build();
+        RequestLimitConfig globalConfig = RequestLimitConfig.from(tenantConfig).limitForPeriod(GLOBAL_LIMIT).build();
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        tenantLimit = new SemaphoreBasedRequestLimitImpl("tenant", tenantConfig, scheduler);
+        globalLimit = new SemaphoreBasedRequestLimitImpl("global", globalConfig, scheduler);
+        limit = new CompositeRequestLimit("composite", tenantLimit, globalLimit);
+    }
+
+    @Test
+    public void permissionIsGrantedByAllLevels() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+        assertThat(globalLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void rejectedPermissionIsRolledBack() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+
+        assertThat(limit.reservePermission(ZERO)).isNegative();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+    }
+
+    @Test
+    public void waitingThreadDoesNotHoldPermitsOfOtherLevels() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(limit.getDetailedMetrics()::getNumberOfWaitingThreads, equalTo(1));
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+
+        globalLimit.refreshLimit();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+        assertThat(globalLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+        assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void waitingThreadTimeout() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ofMillis(10))).isFalse();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+        assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        CompletableFuture<Boolean> delayed = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(delayed.isDone()).isFalse();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT - 1);
+
+        globalLimit.refreshLimit();
+        assertThat(delayed.get(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void acquirePermissionAsyncIsRolledBackWhenOtherLevelRejects() throws Exception {
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        CompletableFuture<Boolean> delayed = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(tenantLimit.getPermission(ZERO)).isTrue();
+
+        globalLimit.refreshLimit();
+        assertThat(delayed.get(1, TimeUnit.SECONDS)).isFalse();
+        assertThat(globalLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(GLOBAL_LIMIT);
+    }
+
+    @Test
+    public void releasePermissionsOfAllLevels() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        limit.releasePermissions(1);
+        assertThat(tenantLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(TENANT_LIMIT);
+        assertThat(globalLimit.getDetailedMetrics().getAvailablePermits()).isEqualTo(GLOBAL_LIMIT);
+    }
+
+    @Test
+    public void configChangesAreAppliedToFirstLevel() throws Exception {
+        RequestLimit tenant = mock(RequestLimit.class);
+        RequestLimit global = mock(RequestLimit.class);
+        RequestLimit composite = new CompositeRequestLimit("composite", tenant, global);
+        RequestLimitConfig config = tenantLimit.getRequestLimitConfig();
+
+        composite.changeLimitForPeriod(TENANT_LIMIT * 2);
+        composite.changeTimeoutDuration(ZERO);
+        composite.changeRequestLimitConfig(config);
+        composite.close();
+
+        verify(tenant).changeLimitForPeriod(TENANT_LIMIT * 2);
+        verify(tenant).changeTimeoutDuration(ZERO);
+        verify(tenant).changeRequestLimitConfig(config);
+        verify(tenant, never()).close();
+        verify(global, never()).changeLimitForPeriod(TENANT_LIMIT * 2);
+        verify(global, never()).close();
+    }
+
+    @Test
+    public void recordedCallsGoToAllLevels() throws Exception {
+        RequestLimit tenant = mock(RequestLimit.class);
+        RequestLimit global = mock(RequestLimit.class);
+        RequestLimit composite = new CompositeRequestLimit("composite", tenant, global);
+
+        composite.recordCall(10L, true);
+
+        verify(tenant).recordCall(10L, true);
+        verify(global).recordCall(10L, true);
+    }
+
+    @Test
+    public void inFlightPermissionIsRolledBackWhenOtherLevelRejects() throws Exception {
+        RequestLimit tenant = mock(RequestLimit.class);
+        RequestLimit global = mock(RequestLimit.class);
+        RequestLimit composite = new CompositeRequestLimit("composite", tenant, global);
+        when(tenant.acquireInFlightPermission(anyLong())).thenReturn(true);
+        when(global.acquireInFlightPermission(anyLong())).thenReturn(false);
+
+        assertThat(composite.acquireInFlightPermission(0L)).isFalse();
+        verify(tenant).releaseInFlightPermission();
+        verify(global, never()).releaseInFlightPermission();
+
+        when(global.acquireInFlightPermission(anyLong())).thenReturn(true);
+        assertThat(composite.acquireInFlightPermission(0L)).isTrue();
+        composite.releaseInFlightPermission();
+        verify(tenant, times(2)).releaseInFlightPermission();
+        verify(global).releaseInFlightPermission();
+    }
+
+    @Test
+    public void getNameAndConfig() throws Exception {
+        assertThat(limit.getName()).isEqualTo("composite");
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(tenantLimit.getRequestLimitConfig());
+        assertThat(limit.getDetailedMetrics().getNumberOfLevels()).isEqualTo(2);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void constructionWithoutLevels() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Levels should not be empty");
+        new CompositeRequestLimit("composite");
+    }
+
+    @Test
+    public void constructionWithNullLevel() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Levels must not be null");
+        new CompositeRequestLimit("composite", tenantLimit, null);
+    }
+
+    @Test
+    public void constructionWithNullName() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Name must not be null");
+        new CompositeRequestLimit(null, tenantLimit);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
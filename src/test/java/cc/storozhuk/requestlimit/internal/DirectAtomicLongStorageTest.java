@@ -0,0 +1,48 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Test;
+
+/**
+ * @author bstorozhuk
+ */
+public class DirectAtomicLongStorageTest {
+
+    private static final int CHUNK_LENGTH = 1 << 24;
+
+    @Test
+    public void valuesAreInitiallyZero() throws Exception {
+        DirectAtomicLongStorage storage = new DirectAtomicLongStorage(16);
+        assertThat(storage.length()).isEqualTo(16);
+        for (int i = 0; i < storage.length(); i++) {
+            assertThat(storage.get(i)).isEqualTo(0L);
+        }
+    }
+
+    @Test
+    public void setAndCompareAndSet() throws Exception {
+        DirectAtomicLongStorage storage = new DirectAtomicLongStorage(16);
+        storage.set(3, Long.MIN_VALUE);
+        assertThat(storage.get(3)).isEqualTo(Long.MIN_VALUE);
+        assertThat(storage.get(2)).isEqualTo(0L);
+        assertThat(storage.get(4)).isEqualTo(0L);
+
+        assertThat(storage.compareAndSet(3, 0L, 1L)).isFalse();
+        assertThat(storage.compareAndSet(3, Long.MIN_VALUE, Long.MAX_VALUE)).isTrue();
+        assertThat(storage.get(3)).isEqualTo(Long.MAX_VALUE);
+    }
+
+    @Test
+    public void valuesAcrossChunks() throws Exception {
+        DirectAtomicLongStorage storage = new DirectAtomicLongStorage(CHUNK_LENGTH + 2);
+        storage.set(CHUNK_LENGTH - 1, 1L);
+        storage.set(CHUNK_LENGTH, 2L);
+        assertThat(storage.compareAndSet(CHUNK_LENGTH + 1, 0L, 3L)).isTrue();
+
+        assertThat(storage.get(CHUNK_LENGTH - 1)).isEqualTo(1L);
+        assertThat(storage.get(CHUNK_LENGTH)).isEqualTo(2L);
+        assertThat(storage.get(CHUNK_LENGTH + 1)).isEqualTo(3L);
+        assertThat(storage.get(0)).isEqualTo(0L);
+    }
+}
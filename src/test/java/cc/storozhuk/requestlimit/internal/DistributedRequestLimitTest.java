@@ -0,0 +1,307 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.TERMINATED;
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.anyString;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.when;
+
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.RequestLimitStateBackend;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * @author bstorozhuk
+ */
+public class DistributedRequestLimitTest {
+
+    private static final int LIMIT = 5;
+    private static final int BATCH_SIZE = 2;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final long PERIOD_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final long CYCLE = 1000L;
+    private static final long CYCLE_START = CYCLE * PERIOD_IN_NANOS;
+
+    private RequestLimitConfig config;
+    private InMemoryRequestLimitStateBackend stateBackend;
+    private DistributedRequestLimit limit;
+    private DistributedRequestLimit anotherNode;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        stateBackend = spy(new InMemoryRequestLimitStateBackend());
+        limit = spy(new DistributedRequestLimit("test", config, stateBackend, BATCH_SIZE));
+        anotherNode = spy(new DistributedRequestLimit("test", config, stateBackend, BATCH_SIZE));
+        setTimeOnNanos(CYCLE_START);
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(limit).currentTimeNanos();
+        doReturn(nanoTime).when(anotherNode).currentTimeNanos();
+    }
+
+    @Test
+    public void permitsAreTakenFromBackendInBatches() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(BATCH_SIZE - 1);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE)).isEqualTo(BATCH_SIZE);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(1);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(2);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE)).isEqualTo(2 * BATCH_SIZE);
+    }
+
+    @Test
+    public void nextRefreshIsAtCycleBoundary() throws Exception {
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(PERIOD_IN_NANOS);
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS - 10);
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(10L);
+    }
+
+    @Test
+    public void budgetIsSharedByNodes() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(anotherNode.getPermission(ZERO)).isTrue();
+        assertThat(anotherNode.getPermission(ZERO)).isTrue();
+        assertThat(anotherNode.getPermission(ZERO)).isTrue();
+        assertThat(anotherNode.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE)).isEqualTo(LIMIT);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(anotherNode.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void exhaustedCycleDoesNotCallBackend() throws Exception {
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(2);
+
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(3);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + 1)).isEqualTo(BATCH_SIZE);
+    }
+
+    @Test
+    public void localPermitsAreDroppedInNextCycle() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(BATCH_SIZE - 1);
+
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS);
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + 1)).isEqualTo(BATCH_SIZE);
+    }
+
+    @Test
+    public void localPermitsAreDroppedAfterMoreThanIntCycles() throws Exception {
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(BATCH_SIZE - 1);
+
+        setTimeOnNanos(CYCLE_START + (1L << 32) * PERIOD_IN_NANOS);
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(2);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + (1L << 32))).isEqualTo(BATCH_SIZE);
+
+        setTimeOnNanos(CYCLE_START + ((1L << 32) + (1L << 31) + 1) * PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(BATCH_SIZE - 1);
+    }
+
+    @Test
+    public void permitsMoreThanBatchAreTakenAtOnce() throws Exception {
+        assertThat(limit.getPermissions(BATCH_SIZE + 1, ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(limit.getDetailedMetrics().getNumberOfBackendRequests()).isEqualTo(1);
+        assertThat(limit.getPermissions(LIMIT + 1, ZERO)).isFalse();
+    }
+
+    @Test
+    public void partiallyGrantedPermitsAreKeptLocally() throws Exception {
+        assertThat(anotherNode.getPermissions(LIMIT - 1, ZERO)).isTrue();
+        assertThat(limit.getPermissions(BATCH_SIZE, ZERO)).isFalse();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+    }
+
+    @Test
+    public void waitForNextCycle() throws Exception {
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(limit.getDetailedMetrics()::getNumberOfWaitingThreads, equalTo(1));
+
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void nextCycleAfterTimeout() throws Exception {
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ofMillis(10))).isFalse();
+        assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        assertThat(limit.getPermissions(LIMIT - 1, ZERO)).isTrue();
+
+        CompletableFuture<Boolean> delayed = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(delayed.isDone()).isFalse();
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS);
+        assertThat(delayed.get(1, TimeUnit.SECONDS)).isTrue();
+    }
+
+    @Test
+    public void acquirePermissionAsyncAfterTimeout() throws Exception {
+        limit.changeTimeoutDuration(Duration.ofMillis(10));
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isFalse();
+    }
+
+    @Test
+    public void acquirePermissionAsyncCompletesWithBackendFailure() throws Exception {
+        RequestLimitStateBackend failingBackend = mock(RequestLimitStateBackend.class);
+        when(failingBackend.acquirePermits(anyString(), anyLong(), anyInt(), anyInt()))
+            .thenReturn(0)
+            .thenThrow(new IllegalStateException("Backend is unavailable"));
+        DistributedRequestLimit failingLimit = spy(new DistributedRequestLimit("test", config, failingBackend, BATCH_SIZE));
+        doReturn(CYCLE_START).when(failingLimit).currentTimeNanos();
+
+        CompletableFuture<Boolean> delayed = failingLimit.acquirePermissionAsync().toCompletableFuture();
+        doReturn(CYCLE_START + PERIOD_IN_NANOS).when(failingLimit).currentTimeNanos();
+
+        exception.expect(ExecutionException.class);
+        exception.expectMessage("Backend is unavailable");
+        delayed.get(1, TimeUnit.SECONDS);
+    }
+
+    @Test
+    public void reservePermission() throws Exception {
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(0L);
+        assertThat(limit.getPermissions(LIMIT - 1, ZERO)).isTrue();
+        assertThat(limit.reservePermission(TIMEOUT)).isNegative();
+    }
+
+    @Test
+    public void releasePermissionsToCurrentCycle() throws Exception {
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        limit.releasePermissions(2);
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(2);
+        assertThat(limit.getPermissions(2, ZERO)).isTrue();
+
+        limit.releasePermissions(1);
+        setTimeOnNanos(CYCLE_START + PERIOD_IN_NANOS);
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        limit.releasePermissions(1);
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void changeLimitForPeriod() throws Exception {
+        limit.changeLimitForPeriod(1);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getDetailedMetrics().getLocalPermits()).isEqualTo(0);
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void changeLimitRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).limitRefreshPeriod(Duration.ofSeconds(1)).build());
+    }
+
+    @Test
+    public void changeBurstCapacity() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("BurstCapacity can't be configured for distributed request limit");
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).burstCapacity(LIMIT * 2).build());
+    }
+
+    @Test
+    public void constructionWithBurstCapacity() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("BurstCapacity can't be configured for distributed request limit");
+        new DistributedRequestLimit("test", RequestLimitConfig.from(config).burstCapacity(LIMIT * 2).build(),
+            stateBackend, BATCH_SIZE);
+    }
+
+    @Test
+    public void constructionWithSubMillisecondRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod of distributed request limit should not be less than 1 millisecond");
+        new DistributedRequestLimit("test", RequestLimitConfig.from(config).limitRefreshPeriod(Duration.ofNanos(999_999L)).build(),
+            stateBackend, BATCH_SIZE);
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("RequestLimitConfig must not be null");
+        limit.changeRequestLimitConfig(null);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void getNameAndConfig() throws Exception {
+        assertThat(limit.getName()).isEqualTo("test");
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+        assertThat(limit.getMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
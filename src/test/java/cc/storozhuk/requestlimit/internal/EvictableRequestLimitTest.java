@@ -0,0 +1,91 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+
+/**
+ * @author bstorozhuk
+ */
+public class EvictableRequestLimitTest {
+
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final long TIMEOUT_IN_NANOS = TIMEOUT.toNanos();
+
+    private RequestLimit requestLimit;
+    private EvictableRequestLimit limit;
+
+    @Before
+    public void init() {
+        requestLimit = mock(RequestLimit.class);
+        limit = new EvictableRequestLimit(requestLimit);
+    }
+
+    @Test
+    public void permissionRequestsRecordAccess() throws Exception {
+        doReturn(true).when(requestLimit).getPermission(TIMEOUT_IN_NANOS);
+        long createdAt = limit.getLastAccessNanos();
+        Thread.sleep(5);
+
+        assertThat(limit.getPermission(TIMEOUT)).isTrue();
+        assertThat(limit.getLastAccessNanos() - createdAt).isPositive();
+    }
+
+    @Test
+    public void frequentAccessIsRecordedOncePerMillisecond() throws Exception {
+        Thread.sleep(5);
+        limit.recordAccess();
+        long lastAccessNanos = limit.getLastAccessNanos();
+        limit.recordAccess();
+
+        assertThat(limit.getLastAccessNanos()).isEqualTo(lastAccessNanos);
+    }
+
+    @Test
+    public void closedLimitRejectsPermissionRequests() throws Exception {
+        doReturn(true).when(requestLimit).getPermission(TIMEOUT_IN_NANOS);
+        limit.close();
+        limit.close();
+
+        assertThat(limit.getPermission(TIMEOUT)).isFalse();
+        assertThat(limit.getPermission(TIMEOUT_IN_NANOS, 1)).isFalse();
+        assertThat(limit.getPermissions(2, TIMEOUT)).isFalse();
+        assertThat(limit.reservePermission(TIMEOUT)).isNegative();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isFalse();
+        assertThat(limit.acquireInFlightPermission(TIMEOUT_IN_NANOS)).isFalse();
+        verify(requestLimit, never()).getPermission(TIMEOUT_IN_NANOS);
+        verify(requestLimit, times(1)).close();
+    }
+
+    @Test
+    public void otherCallsAreDelegated() throws Exception {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(Duration.ofMillis(100))
+            .limitForPeriod(10)
+            .build();
+        doReturn(config).when(requestLimit).getRequestLimitConfig();
+        doReturn("test").when(requestLimit).getName();
+
+        assertThat(limit.getRequestLimit()).isSameAs(requestLimit);
+        assertThat(limit.getName()).isEqualTo("test");
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+        limit.releasePermissions(1);
+        limit.changeLimitForPeriod(20);
+        limit.recordCall(10L, false);
+
+        verify(requestLimit).releasePermissions(1);
+        verify(requestLimit).changeLimitForPeriod(20);
+        verify(requestLimit).recordCall(10L, false);
+    }
+}
@@ -0,0 +1,281 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.RUNNABLE;
+import static java.lang.Thread.State.TERMINATED;
+import static java.lang.Thread.State.TIMED_WAITING;
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Function;
+
+/**
+ * @author bstorozhuk
+ */
+public class GcraRequestLimitImplTest {
+
+    private static final int LIMIT = 4;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final long PERIOD_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final long EMISSION_INTERVAL = PERIOD_IN_NANOS / LIMIT;
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+
+    private RequestLimitConfig config;
+    private GcraRequestLimitImpl limit;
+    private GcraRequestLimitImpl.GcraRequestLimitMetrics metrics;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        limit = spy(new GcraRequestLimitImpl("test", config));
+        metrics = limit.getDetailedMetrics();
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(limit).currentNanoTime();
+    }
+
+    @Test
+    public void permissionsAreEvenlySpaced() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS + EMISSION_INTERVAL);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(metrics.getNanosToWait()).isEqualTo(EMISSION_INTERVAL);
+        assertThat(limit.getPermission(ZERO)).isFalse();
+
+        setTimeOnNanos(PERIOD_IN_NANOS + EMISSION_INTERVAL - 1);
+        assertThat(metrics.getNanosToWait()).isEqualTo(1L);
+        assertThat(limit.getPermission(ZERO)).isFalse();
+
+        setTimeOnNanos(PERIOD_IN_NANOS + EMISSION_INTERVAL);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void idleLimitDoesNotAccumulatePermissions() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        setTimeOnNanos(PERIOD_IN_NANOS * 50);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermissions(2, ZERO)).isFalse();
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void burstCapacityAboveLimitIsTolerated() throws Exception {
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).burstCapacity(LIMIT + 2).build());
+        setTimeOnNanos(PERIOD_IN_NANOS * 10);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(3);
+        assertThat(limit.getPermissions(3, ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(metrics.getNanosToWait()).isEqualTo(EMISSION_INTERVAL);
+
+        setTimeOnNanos(PERIOD_IN_NANOS * 10 + EMISSION_INTERVAL * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(2);
+    }
+
+    @Test
+    public void getPermissionsBiggerThanBurstCapacity() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT + 1, TIMEOUT)).isFalse();
+        assertThat(metrics.getTheoreticalArrivalTime()).isLessThanOrEqualTo(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+    }
+
+    @Test
+    public void getPermissionsAreReservedAhead() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(0L);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(EMISSION_INTERVAL);
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(EMISSION_INTERVAL * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(-2);
+        assertThat(limit.reservePermission(Duration.ofNanos(EMISSION_INTERVAL * 3 - 1))).isNegative();
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS + EMISSION_INTERVAL * 3);
+    }
+
+    @Test
+    public void releasePermissionsMovesArrivalTimeBack() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        limit.releasePermissions(1);
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        limit.releasePermissions(LIMIT * 5);
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void waitForPermission() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(1);
+
+        setTimeOnNanos(PERIOD_IN_NANOS + EMISSION_INTERVAL);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void permissionAfterTimeoutIsRejectedWithoutWaiting() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ofNanos(EMISSION_INTERVAL - 1))).isFalse();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS + EMISSION_INTERVAL);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        CompletableFuture<Boolean> delayed = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+        assertThat(delayed.get(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(metrics.getTheoreticalArrivalTime()).isEqualTo(PERIOD_IN_NANOS + EMISSION_INTERVAL * 2);
+    }
+
+    @Test
+    public void acquirePermissionAsyncLongerThanTimeout() throws Exception {
+        limit.changeTimeoutDuration(Duration.ofNanos(EMISSION_INTERVAL - 1));
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        CompletableFuture<Boolean> notPermitted = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(notPermitted.isDone()).isTrue();
+        assertThat(notPermitted.get()).isFalse();
+    }
+
+    @Test
+    public void getPermissionInterruption() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        limit.getPermission(ZERO);
+
+        Thread thread = new Thread(() -> {
+            limit.getPermission(TIMEOUT);
+            while (true) {
+                Function.identity().apply(1);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+
+        thread.interrupt();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(RUNNABLE));
+        assertThat(thread.isInterrupted()).isTrue();
+    }
+
+    @Test
+    public void changeLimitForPeriodChangesEmissionInterval() throws Exception {
+        setTimeOnNanos(PERIOD_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        limit.changeLimitForPeriod(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(metrics.getNanosToWait()).isEqualTo(EMISSION_INTERVAL);
+
+        setTimeOnNanos(PERIOD_IN_NANOS + EMISSION_INTERVAL);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        assertThat(metrics.getNanosToWait()).isEqualTo(EMISSION_INTERVAL / 2);
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithAnotherRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(
+            RequestLimitConfig.from(config).limitRefreshPeriod(REFRESH_PERIOD.multipliedBy(2)).build()
+        );
+    }
+
+    @Test
+    public void getName() throws Exception {
+        assertThat(limit.getName()).isEqualTo("test");
+    }
+
+    @Test
+    public void getMetrics() throws Exception {
+        RequestLimit.Metrics metrics = limit.getMetrics();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void getRequestLimitConfig() throws Exception {
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+    }
+
+    @Test
+    public void constructionWithNullName() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(NAME_MUST_NOT_BE_NULL);
+        new GcraRequestLimitImpl(null, config);
+    }
+
+    @Test
+    public void constructionWithNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(CONFIG_MUST_NOT_BE_NULL);
+        new GcraRequestLimitImpl("test", null);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
@@ -0,0 +1,203 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * @author bstorozhuk
+ */
+public class HashedWheelRefreshTimerTest {
+
+    private static final Duration TICK = Duration.ofMillis(1);
+    private static final Duration PERIOD = Duration.ofMillis(10);
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void refreshesAreBatchedByPeriod() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer(TICK, 8);
+        AtomicLong firstRefreshes = new AtomicLong();
+        AtomicLong secondRefreshes = new AtomicLong();
+        AtomicLong longPeriodRefreshes = new AtomicLong();
+
+        timer.schedule(PERIOD, firstRefreshes::addAndGet);
+        timer.schedule(PERIOD, secondRefreshes::addAndGet);
+        timer.schedule(Duration.ofMillis(100), longPeriodRefreshes::addAndGet);
+        assertThat(timer.getNumberOfScheduledPeriods()).isEqualTo(2);
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> longPeriodRefreshes.get() >= 3L);
+        assertThat(firstRefreshes.get()).isGreaterThanOrEqualTo(20L);
+        assertThat(secondRefreshes.get()).isGreaterThanOrEqualTo(20L);
+    }
+
+    @Test
+    public void periodsShorterThanTickAreCaughtUp() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer(PERIOD, 8);
+        AtomicLong refreshes = new AtomicLong();
+        timer.schedule(Duration.ofMillis(1), refreshes::addAndGet);
+
+        long start = System.nanoTime();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> refreshes.get() >= 100L);
+        long elapsedMillis = TimeUnit.NANOSECONDS.toMillis(System.nanoTime() - start);
+        assertThat(refreshes.get()).isLessThanOrEqualTo(elapsedMillis + PERIOD.toMillis());
+    }
+
+    @Test
+    public void brokenRefreshDoesNotStopOthers() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer(TICK, 8, (thread, e) -> failure.set(e));
+        AtomicLong refreshes = new AtomicLong();
+        timer.schedule(PERIOD, elapsedPeriods -> {
+            throw new IllegalStateException("Broken refresh");
+        });
+        timer.schedule(PERIOD, refreshes::addAndGet);
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> refreshes.get() >= 5L);
+        assertThat(failure.get()).isInstanceOf(IllegalStateException.class).hasMessage("Broken refresh");
+    }
+
+    @Test
+    public void refreshFailedWithErrorDoesNotStopOthers() throws Exception {
+        AtomicReference<Throwable> failure = new AtomicReference<>();
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer(TICK, 8, (thread, e) -> failure.set(e));
+        AtomicLong refreshes = new AtomicLong();
+        timer.schedule(PERIOD, elapsedPeriods -> {
+            throw new AssertionError("Broken refresh");
+        });
+        timer.schedule(PERIOD, refreshes::addAndGet);
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> refreshes.get() >= 5L);
+        assertThat(failure.get()).isInstanceOf(AssertionError.class).hasMessage("Broken refresh");
+    }
+
+    @Test
+    public void stoppedTimerDoesNotRefresh() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer();
+        AtomicLong refreshes = new AtomicLong();
+        timer.schedule(PERIOD, refreshes::addAndGet);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> refreshes.get() >= 1L);
+
+        timer.stop();
+        assertThat(timer.isStopped()).isTrue();
+        assertThat(timer.getNumberOfScheduledPeriods()).isEqualTo(0);
+        Thread.sleep(PERIOD.toMillis() * 2);
+        long refreshesAfterStop = refreshes.get();
+        Thread.sleep(PERIOD.toMillis() * 5);
+        assertThat(refreshes.get()).isEqualTo(refreshesAfterStop);
+        timer.stop();
+    }
+
+    @Test
+    public void scheduleOnStoppedTimer() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer();
+        timer.stop();
+
+        exception.expect(IllegalStateException.class);
+        exception.expectMessage("Timer is stopped");
+        timer.schedule(PERIOD, elapsedPeriods -> {
+        });
+    }
+
+    @Test
+    public void constructionWithNullFailureHandler() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("RefreshFailureHandler must not be null");
+        new HashedWheelRefreshTimer(TICK, 8, null);
+    }
+
+    @Test
+    public void refreshSemaphoreBasedRequestLimit() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer();
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(Duration.ZERO)
+            .limitRefreshPeriod(PERIOD)
+            .limitForPeriod(1)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, timer);
+
+        assertThat(limit.getPermission(Duration.ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ZERO)).isFalse();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> limit.getDetailedMetrics().getAvailablePermits() >= 1);
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void cancelledRefreshIsDroppedWithItsPeriod() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer();
+        AtomicLong cancelledRefreshes = new AtomicLong();
+        AtomicLong refreshes = new AtomicLong();
+        HashedWheelRefreshTimer.Registration registration = timer.schedule(PERIOD, cancelledRefreshes::addAndGet);
+        timer.schedule(Duration.ofMillis(5), refreshes::addAndGet);
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> cancelledRefreshes.get() >= 1L);
+        registration.cancel();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> timer.getNumberOfScheduledPeriods() == 1);
+
+        long refreshesAfterCancel = cancelledRefreshes.get();
+        long otherRefreshes = refreshes.get();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> refreshes.get() >= otherRefreshes + 10L);
+        assertThat(cancelledRefreshes.get()).isEqualTo(refreshesAfterCancel);
+
+        timer.schedule(PERIOD, cancelledRefreshes::addAndGet);
+        assertThat(timer.getNumberOfScheduledPeriods()).isEqualTo(2);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> cancelledRefreshes.get() > refreshesAfterCancel);
+    }
+
+    @Test
+    public void scheduleWithNullPeriod() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Period must not be null");
+        new HashedWheelRefreshTimer().schedule(null, elapsedPeriods -> {
+        });
+    }
+
+    @Test
+    public void scheduleWithNullRefresh() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Refresh must not be null");
+        new HashedWheelRefreshTimer().schedule(PERIOD, null);
+    }
+
+    @Test
+    public void constructionWithNonPositiveTick() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("TickDuration should be positive");
+        new HashedWheelRefreshTimer(Duration.ZERO, 8);
+    }
+
+    @Test
+    public void constructionWithoutTicks() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("TicksPerWheel should be greater than 0");
+        new HashedWheelRefreshTimer(TICK, 0);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+
+}
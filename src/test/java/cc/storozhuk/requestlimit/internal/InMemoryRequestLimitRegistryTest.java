@@ -1,20 +1,34 @@
 package cc.storozhuk.requestlimit.internal;
 
+import static com.jayway.awaitility.Awaitility.await;
 import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doAnswer;
 import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
 import static org.mockito.Mockito.times;
 import static org.mockito.Mockito.verify;
 import static org.mockito.Mockito.when;
 
 import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitAlgorithm;
 import cc.storozhuk.requestlimit.RequestLimitConfig;
 import cc.storozhuk.requestlimit.RequestLimitRegistry;
+import cc.storozhuk.requestlimit.RequestLimitRegistryConfig;
+import cc.storozhuk.requestlimit.RequestLimitStateBackend;
 import org.junit.Before;
 import org.junit.Rule;
 import org.junit.Test;
 import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
 
+import java.nio.file.Path;
 import java.time.Duration;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicReference;
+import java.util.function.BiFunction;
 import java.util.function.Supplier;
 
 /**
@@ -32,6 +46,9 @@ public class InMemoryRequestLimitRegistryTest {
     @Rule
     public ExpectedException exception = ExpectedException.none();
 
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
     @Before
     public void init() {
         config = RequestLimitConfig.builder()
@@ -70,6 +87,140 @@ public class InMemoryRequestLimitRegistryTest {
         assertThat(firstRequestLimit).isNotEqualTo(anotherLimit);
     }
 
+    @Test
+    public void requestLimitPositiveWithFactory() throws Exception {
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config, AtomicRequestLimitImpl::new);
+        RequestLimit firstRequestLimit = registry.requestLimit("test");
+        RequestLimit sameAsFirst = registry.requestLimit("test");
+        RequestLimit anotherLimit = registry.requestLimit("test1", () -> config);
+
+        assertThat(firstRequestLimit).isInstanceOf(AtomicRequestLimitImpl.class);
+        assertThat(firstRequestLimit).isEqualTo(sameAsFirst);
+        assertThat(firstRequestLimit.getName()).isEqualTo("test");
+        assertThat(anotherLimit).isInstanceOf(AtomicRequestLimitImpl.class);
+        assertThat(anotherLimit.getName()).isEqualTo("test1");
+    }
+
+    @Test
+    public void changeRequestLimitConfig() throws Exception {
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config, (name, limitConfig) -> requestLimit);
+        RequestLimitConfig newConfig = RequestLimitConfig.from(config)
+            .limitForPeriod(LIMIT * 2)
+            .build();
+
+        assertThat(registry.changeRequestLimitConfig("test", newConfig)).isFalse();
+        registry.requestLimit("test");
+        assertThat(registry.changeRequestLimitConfig("test", newConfig)).isTrue();
+        verify(requestLimit, times(1)).changeRequestLimitConfig(newConfig);
+    }
+
+    @Test
+    public void removeRequestLimit() throws Exception {
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config, (name, limitConfig) -> requestLimit);
+
+        assertThat(registry.removeRequestLimit("test")).isFalse();
+        registry.requestLimit("test");
+        assertThat(registry.removeRequestLimit("test")).isTrue();
+        verify(requestLimit, times(1)).close();
+        assertThat(registry.removeRequestLimit("test")).isFalse();
+    }
+
+    @Test
+    public void leastRecentlyUsedRequestLimitsAreEvicted() throws Exception {
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .maximumSize(2)
+            .build();
+        Map<String, RequestLimit> createdLimits = new ConcurrentHashMap<>();
+        InMemoryRequestLimitRegistry registry = new InMemoryRequestLimitRegistry(
+            config, registryConfig, (name, limitConfig) -> createdLimits.computeIfAbsent(name, key -> mock(RequestLimit.class))
+        );
+
+        RequestLimit first = registry.requestLimit("first");
+        Thread.sleep(5);
+        registry.requestLimit("second");
+        Thread.sleep(5);
+        assertThat(registry.requestLimit("first")).isSameAs(first);
+        Thread.sleep(5);
+        registry.requestLimit("third");
+
+        assertThat(registry.getNumberOfRequestLimits()).isEqualTo(2);
+        verify(createdLimits.get("second"), times(1)).close();
+        verify(createdLimits.get("first"), never()).close();
+        assertThat(registry.requestLimit("first")).isSameAs(first);
+    }
+
+    @Test
+    public void idleRequestLimitsExpire() throws Exception {
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(Duration.ofMillis(20))
+            .build();
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        InMemoryRequestLimitRegistry registry =
+            new InMemoryRequestLimitRegistry(config, registryConfig, (name, limitConfig) -> requestLimit);
+
+        registry.requestLimit("test");
+        assertThat(registry.getNumberOfRequestLimits()).isEqualTo(1);
+        await().atMost(2, TimeUnit.SECONDS).until(() -> registry.getNumberOfRequestLimits() == 0);
+        verify(requestLimit, times(1)).close();
+    }
+
+    @Test
+    public void usedRequestLimitsDontExpire() throws Exception {
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(Duration.ofMillis(20))
+            .build();
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        when(requestLimit.getPermission(anyLong())).thenReturn(true);
+        InMemoryRequestLimitRegistry registry =
+            new InMemoryRequestLimitRegistry(config, registryConfig, (name, limitConfig) -> requestLimit);
+
+        RequestLimit heldRequestLimit = registry.requestLimit("test");
+        long deadline = System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(200);
+        while (System.nanoTime() - deadline < 0) {
+            assertThat(heldRequestLimit.getPermission(Duration.ZERO)).isTrue();
+            Thread.sleep(2);
+        }
+
+        assertThat(registry.getNumberOfRequestLimits()).isEqualTo(1);
+        verify(requestLimit, never()).close();
+    }
+
+    @Test
+    public void expiredRequestLimitRejectsPermissions() throws Exception {
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .expireAfterIdle(Duration.ofMillis(20))
+            .build();
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        when(requestLimit.getPermission(anyLong())).thenReturn(true);
+        AtomicReference<String> closingThread = new AtomicReference<>();
+        doAnswer(invocation -> {
+            closingThread.set(Thread.currentThread().getName());
+            return null;
+        }).when(requestLimit).close();
+        InMemoryRequestLimitRegistry registry =
+            new InMemoryRequestLimitRegistry(config, registryConfig, (name, limitConfig) -> requestLimit);
+
+        RequestLimit heldRequestLimit = registry.requestLimit("test");
+        await().atMost(2, TimeUnit.SECONDS).until(() -> closingThread.get() != null);
+
+        assertThat(registry.getNumberOfRequestLimits()).isEqualTo(0);
+        assertThat(heldRequestLimit.getPermission(Duration.ZERO)).isFalse();
+        assertThat(heldRequestLimit.reservePermission(Duration.ZERO)).isNegative();
+        assertThat(heldRequestLimit.acquirePermissionAsync().toCompletableFuture().get()).isFalse();
+        verify(requestLimit, never()).getPermission(anyLong());
+        assertThat(closingThread.get().startsWith("HashedWheelRefreshTimer")).isFalse();
+        assertThat(registry.requestLimit("test")).isNotSameAs(heldRequestLimit);
+    }
+
+    @Test
+    public void requestLimitFactoryIsNull() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Factory must not be null");
+        new InMemoryRequestLimitRegistry(config, (BiFunction<String, RequestLimitConfig, RequestLimit>) null);
+    }
+
     @Test
     public void requestLimitConfigIsNull() throws Exception {
         exception.expect(NullPointerException.class);
@@ -102,6 +253,151 @@ public class InMemoryRequestLimitRegistryTest {
         registry.requestLimit(null, config);
     }
 
+    @Test
+    public void requestLimitAlgorithmIsSelectedByConfig() throws Exception {
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config);
+        RequestLimitConfig slidingWindowConfig = RequestLimitConfig.from(config)
+            .algorithm(RequestLimitAlgorithm.SLIDING_WINDOW)
+            .build();
+
+        assertThat(registry.requestLimit("fixed")).isInstanceOf(SemaphoreBasedRequestLimitImpl.class);
+        assertThat(registry.requestLimit("sliding", slidingWindowConfig)).isInstanceOf(SlidingWindowRequestLimitImpl.class);
+        assertThat(registry.requestLimit("gcra", RequestLimitConfig.from(config).algorithm(RequestLimitAlgorithm.GCRA).build()))
+            .isInstanceOf(GcraRequestLimitImpl.class);
+        assertThat(registry.requestLimit("striped", RequestLimitConfig.from(config).algorithm(RequestLimitAlgorithm.STRIPED).build()))
+            .isInstanceOf(StripedRequestLimitImpl.class);
+    }
+
+    @Test
+    public void leasingIsEnabledByLeaseSize() throws Exception {
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config);
+        RequestLimitConfig leasingConfig = RequestLimitConfig.from(config)
+            .leaseSize(2)
+            .build();
+
+        assertThat(registry.requestLimit("plain")).isNotInstanceOf(LeasingRequestLimit.class);
+        assertThat(registry.requestLimit("leasing", leasingConfig)).isInstanceOf(LeasingRequestLimit.class);
+    }
+
+    @Test
+    public void distributedRequestLimitsShareBudget() throws Exception {
+        RequestLimitConfig distributedConfig = RequestLimitConfig.from(config)
+            .limitRefreshPeriod(Duration.ofDays(1))
+            .limitForPeriod(3)
+            .timeoutDuration(Duration.ZERO)
+            .build();
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .permitBatchSize(2)
+            .build();
+        InMemoryRequestLimitStateBackend stateBackend = new InMemoryRequestLimitStateBackend();
+        RequestLimitRegistry firstNode = RequestLimitRegistry.distributed(distributedConfig, registryConfig, stateBackend);
+        RequestLimitRegistry secondNode = RequestLimitRegistry.distributed(distributedConfig, registryConfig, stateBackend);
+
+        RequestLimit first = firstNode.requestLimit("test");
+        RequestLimit second = secondNode.requestLimit("test");
+        assertThat(first).isInstanceOf(DistributedRequestLimit.class);
+        assertThat(first.getPermission(Duration.ZERO)).isTrue();
+        assertThat(second.getPermission(Duration.ZERO)).isTrue();
+        assertThat(first.getPermission(Duration.ZERO)).isTrue();
+        assertThat(second.getPermission(Duration.ZERO)).isFalse();
+    }
+
+    @Test
+    public void distributedRegistryWithNullStateBackend() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("StateBackend must not be null");
+        RequestLimitStateBackend stateBackend = null;
+        new InMemoryRequestLimitRegistry(config, RequestLimitRegistryConfig.ofDefaults(), stateBackend);
+    }
+
+    @Test
+    public void adaptiveIsEnabledByMinLimitForPeriod() throws Exception {
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config);
+        RequestLimitConfig adaptiveConfig = RequestLimitConfig.from(config)
+            .minLimitForPeriod(LIMIT / 5)
+            .build();
+
+        assertThat(registry.requestLimit("plain")).isNotInstanceOf(AdaptiveRequestLimit.class);
+        RequestLimit adaptiveLimit = registry.requestLimit("adaptive", adaptiveConfig);
+        assertThat(adaptiveLimit).isInstanceOf(AdaptiveRequestLimit.class);
+        assertThat(adaptiveLimit.getRequestLimitConfig().isAdaptive()).isTrue();
+    }
+
+    @Test
+    public void bulkheadIsEnabledByMaxConcurrentCalls() throws Exception {
+        RequestLimitRegistry registry = RequestLimitRegistry.of(config);
+        RequestLimitConfig bulkheadConfig = RequestLimitConfig.from(config)
+            .leaseSize(LIMIT / 5)
+            .maxConcurrentCalls(1)
+            .build();
+
+        assertThat(registry.requestLimit("plain")).isNotInstanceOf(BulkheadRequestLimit.class);
+        RequestLimit bulkheadLimit = registry.requestLimit("bulkhead", bulkheadConfig);
+        assertThat(bulkheadLimit).isInstanceOf(BulkheadRequestLimit.class);
+        assertThat(bulkheadLimit.acquireInFlightPermission(0L)).isTrue();
+        assertThat(bulkheadLimit.acquireInFlightPermission(0L)).isFalse();
+        bulkheadLimit.releaseInFlightPermission();
+        assertThat(bulkheadLimit.acquireInFlightPermission(0L)).isTrue();
+    }
+
+    @Test
+    public void persistentRequestLimits() throws Exception {
+        Path persistenceFile = temporaryFolder.newFile().toPath();
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .persistenceFile(persistenceFile)
+            .build();
+        RequestLimitRegistry registry = new InMemoryRequestLimitRegistry(config, registryConfig, AtomicRequestLimitImpl::new);
+
+        RequestLimit requestLimit = registry.requestLimit("test");
+        assertThat(requestLimit).isInstanceOf(PersistentRequestLimit.class);
+        assertThat(requestLimit.getName()).isEqualTo("test");
+        assertThat(requestLimit.getPermission(Duration.ZERO)).isTrue();
+        assertThat(registry.requestLimit("test")).isSameAs(requestLimit);
+
+        exception.expect(IllegalStateException.class);
+        exception.expectMessage("is used by another registry");
+        new InMemoryRequestLimitRegistry(config, registryConfig);
+    }
+
+    @Test
+    public void closedRegistryReleasesPersistenceFile() throws Exception {
+        Path persistenceFile = temporaryFolder.newFile().toPath();
+        RequestLimitRegistryConfig registryConfig = RequestLimitRegistryConfig.builder()
+            .persistenceFile(persistenceFile)
+            .build();
+        RequestLimitRegistry registry = new InMemoryRequestLimitRegistry(config, registryConfig, AtomicRequestLimitImpl::new);
+        registry.requestLimit("test");
+        registry.close();
+
+        RequestLimitRegistry recreated = new InMemoryRequestLimitRegistry(config, registryConfig, AtomicRequestLimitImpl::new);
+        assertThat(recreated.requestLimit("test")).isInstanceOf(PersistentRequestLimit.class);
+        recreated.close();
+    }
+
+    @Test
+    public void closeClosesRequestLimits() throws Exception {
+        RequestLimit requestLimit = mock(RequestLimit.class);
+        InMemoryRequestLimitRegistry registry =
+            new InMemoryRequestLimitRegistry(config, (name, limitConfig) -> requestLimit);
+        registry.requestLimit("test");
+
+        registry.close();
+        registry.close();
+        verify(requestLimit, times(1)).close();
+        assertThat(registry.getNumberOfRequestLimits()).isEqualTo(0);
+    }
+
+    @Test
+    public void closedRegistryRejectsLookups() throws Exception {
+        InMemoryRequestLimitRegistry registry = new InMemoryRequestLimitRegistry(config);
+        registry.requestLimit("test");
+        registry.close();
+
+        exception.expect(IllegalStateException.class);
+        exception.expectMessage("Registry is closed");
+        registry.requestLimit("test");
+    }
+
     @Test
     public void requestLimitNewWithNullNameAndConfigSupplier() throws Exception {
         exception.expect(NullPointerException.class);
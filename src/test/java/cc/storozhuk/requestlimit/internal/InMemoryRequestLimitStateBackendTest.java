@@ -0,0 +1,80 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * @author bstorozhuk
+ */
+public class InMemoryRequestLimitStateBackendTest {
+
+    private static final int LIMIT = 5;
+    private static final long CYCLE = 1000L;
+
+    private InMemoryRequestLimitStateBackend stateBackend;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        stateBackend = new InMemoryRequestLimitStateBackend();
+    }
+
+    @Test
+    public void acquirePermitsUpToLimit() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 2, LIMIT)).isEqualTo(2);
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 2, LIMIT)).isEqualTo(2);
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 2, LIMIT)).isEqualTo(1);
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 2, LIMIT)).isEqualTo(0);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE)).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void budgetsAreSeparatedByName() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE, LIMIT, LIMIT)).isEqualTo(LIMIT);
+        assertThat(stateBackend.acquirePermits("another", CYCLE, LIMIT, LIMIT)).isEqualTo(LIMIT);
+        assertThat(stateBackend.getConsumedPermits("unknown", CYCLE)).isEqualTo(0);
+    }
+
+    @Test
+    public void budgetIsRenewedInNextCycle() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE, LIMIT, LIMIT)).isEqualTo(LIMIT);
+        assertThat(stateBackend.acquirePermits("test", CYCLE + 1, 2, LIMIT)).isEqualTo(2);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE)).isEqualTo(0);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + 1)).isEqualTo(2);
+    }
+
+    @Test
+    public void elapsedCycleIsNotGranted() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE + 1, 1, LIMIT)).isEqualTo(1);
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 1, LIMIT)).isEqualTo(0);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + 1)).isEqualTo(1);
+    }
+
+    @Test
+    public void budgetIsRenewedAfterMoreThanIntCycles() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE, LIMIT, LIMIT)).isEqualTo(LIMIT);
+        assertThat(stateBackend.acquirePermits("test", CYCLE + (1L << 31) + 1, 2, LIMIT)).isEqualTo(2);
+        assertThat(stateBackend.acquirePermits("test", CYCLE + (1L << 32) + (1L << 31) + 1, LIMIT, LIMIT)).isEqualTo(LIMIT);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + (1L << 31) + 1)).isEqualTo(0);
+        assertThat(stateBackend.getConsumedPermits("test", CYCLE + (1L << 32) + (1L << 31) + 1)).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void decreasedLimitIsApplied() throws Exception {
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 3, LIMIT)).isEqualTo(3);
+        assertThat(stateBackend.acquirePermits("test", CYCLE, 1, 2)).isEqualTo(0);
+    }
+
+    @Test
+    public void acquirePermitsWithNullName() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage("Name must not be null");
+        stateBackend.acquirePermits(null, CYCLE, 1, LIMIT);
+    }
+}
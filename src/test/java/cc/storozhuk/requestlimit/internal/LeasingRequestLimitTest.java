@@ -0,0 +1,223 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.spy;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author bstorozhuk
+ */
+public class LeasingRequestLimitTest {
+
+    private static final int LIMIT = 100;
+    private static final int LEASE_SIZE = 10;
+    private static final Duration REFRESH_PERIOD = Duration.ofSeconds(1);
+    private static final long CYCLE_IN_NANOS = REFRESH_PERIOD.toNanos();
+
+    private RequestLimitConfig config;
+    private RequestLimit requestLimit;
+    private LeasingRequestLimit leasingLimit;
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(Duration.ZERO)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .leaseSize(LEASE_SIZE)
+            .build();
+        requestLimit = mock(RequestLimit.class);
+        doReturn(config).when(requestLimit).getRequestLimitConfig();
+        doReturn(CYCLE_IN_NANOS).when(requestLimit).getNanosToNextRefresh();
+        leasingLimit = spy(new LeasingRequestLimit(requestLimit));
+        setTimeOnNanos(CYCLE_IN_NANOS);
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(leasingLimit).currentNanoTime();
+    }
+
+    @Test
+    public void permissionsAreServedFromLease() throws Exception {
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        for (int i = 0; i < LEASE_SIZE; i++) {
+            assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+        }
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+        verify(requestLimit).getPermissions(LEASE_SIZE, 0L);
+
+        assertThat(leasingLimit.getPermissions(3, Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(LEASE_SIZE - 3);
+        verify(requestLimit, times(2)).getPermissions(LEASE_SIZE, 0L);
+        verify(requestLimit, never()).getPermission(anyLong());
+    }
+
+    @Test
+    public void leaseExpiresAtNextRefresh() throws Exception {
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        doReturn(CYCLE_IN_NANOS / 4).when(requestLimit).getNanosToNextRefresh();
+        assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+        setTimeOnNanos(CYCLE_IN_NANOS + CYCLE_IN_NANOS / 4 - 1);
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(LEASE_SIZE - 1);
+
+        setTimeOnNanos(CYCLE_IN_NANOS + CYCLE_IN_NANOS / 4);
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+        assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+        verify(requestLimit, times(2)).getPermissions(LEASE_SIZE, 0L);
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(LEASE_SIZE - 1);
+        verify(requestLimit, never()).releasePermissions(anyInt());
+    }
+
+    @Test
+    public void unusedPermitsAreReturnedWhenLeasingAgain() throws Exception {
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        assertThat(leasingLimit.getPermissions(4, Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.getPermissions(4, Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(2);
+
+        assertThat(leasingLimit.getPermissions(4, Duration.ZERO)).isTrue();
+        verify(requestLimit).releasePermissions(2);
+        verify(requestLimit, times(2)).getPermissions(LEASE_SIZE, 0L);
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(LEASE_SIZE - 4);
+    }
+
+    @Test
+    public void closeReturnsUnusedPermitsOfAllThreads() throws Exception {
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        Thread thread = new Thread(() -> leasingLimit.getPermissions(3, 0L));
+        thread.start();
+        thread.join();
+        assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+
+        leasingLimit.close();
+        leasingLimit.close();
+        verify(requestLimit).releasePermissions(LEASE_SIZE - 3);
+        verify(requestLimit).releasePermissions(LEASE_SIZE - 1);
+        verify(requestLimit).close();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+
+        doReturn(false).when(requestLimit).getPermissions(1, 0L);
+        assertThat(leasingLimit.getPermission(0L)).isFalse();
+        verify(requestLimit, times(2)).getPermissions(LEASE_SIZE, 0L);
+    }
+
+    @Test
+    public void fallBackToSinglePermissionWhenLeaseIsNotAvailable() throws Exception {
+        doReturn(false).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        doReturn(true).when(requestLimit).getPermissions(1, CYCLE_IN_NANOS);
+        assertThat(leasingLimit.getPermission(CYCLE_IN_NANOS)).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+        verify(requestLimit).getPermissions(1, CYCLE_IN_NANOS);
+    }
+
+    @Test
+    public void batchesNotSmallerThanLeaseAreNotLeased() throws Exception {
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        assertThat(leasingLimit.getPermissions(LEASE_SIZE, Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void recordedCallsGoToUnderlyingLimit() throws Exception {
+        leasingLimit.recordCall(10L, true);
+        verify(requestLimit).recordCall(10L, true);
+    }
+
+    @Test
+    public void prioritizedPermissionFallsBackToUnderlyingLimit() throws Exception {
+        doReturn(true).when(requestLimit).getPermission(CYCLE_IN_NANOS, 1);
+        assertThat(leasingLimit.getPermission(CYCLE_IN_NANOS, 1)).isTrue();
+        verify(requestLimit).getPermission(CYCLE_IN_NANOS, 1);
+    }
+
+    @Test
+    public void inFlightPermissionsGoToUnderlyingLimit() throws Exception {
+        doReturn(true).when(requestLimit).acquireInFlightPermission(CYCLE_IN_NANOS);
+        assertThat(leasingLimit.acquireInFlightPermission(CYCLE_IN_NANOS)).isTrue();
+        leasingLimit.releaseInFlightPermission();
+        verify(requestLimit).releaseInFlightPermission();
+    }
+
+    @Test
+    public void leaseIsNotBiggerThanLimitForPeriod() throws Exception {
+        doReturn(RequestLimitConfig.from(config).limitForPeriod(4).build()).when(requestLimit).getRequestLimitConfig();
+        doReturn(true).when(requestLimit).getPermissions(4, 0L);
+        assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(3);
+    }
+
+    @Test
+    public void asyncAndReservedPermissionsUseOnlyExistingLease() throws Exception {
+        doReturn(-1L).when(requestLimit).reservePermission(Duration.ZERO);
+        doReturn(CompletableFuture.completedFuture(false)).when(requestLimit).acquirePermissionAsync();
+        assertThat(leasingLimit.reservePermission(Duration.ZERO)).isEqualTo(-1L);
+        assertThat(leasingLimit.acquirePermissionAsync().toCompletableFuture().get()).isFalse();
+
+        doReturn(true).when(requestLimit).getPermissions(LEASE_SIZE, 0L);
+        assertThat(leasingLimit.getPermission(Duration.ZERO)).isTrue();
+        assertThat(leasingLimit.reservePermission(Duration.ZERO)).isEqualTo(0L);
+        assertThat(leasingLimit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(LEASE_SIZE - 3);
+        verify(requestLimit).reservePermission(Duration.ZERO);
+        verify(requestLimit).acquirePermissionAsync();
+    }
+
+    @Test
+    public void releasedPermissionsGoToUnderlyingLimit() throws Exception {
+        leasingLimit.releasePermissions(2);
+        verify(requestLimit).releasePermissions(2);
+        assertThat(leasingLimit.getLeasedPermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void leasesNeverExceedLimitAndUnderuseIsBounded() throws Exception {
+        RequestLimitConfig dayConfig = RequestLimitConfig.from(config).limitRefreshPeriod(Duration.ofDays(1)).build();
+        RequestLimit limit = new LeasingRequestLimit(new AtomicRequestLimitImpl("test", dayConfig));
+        int threadsCount = 4;
+        AtomicInteger permitted = new AtomicInteger();
+        Thread[] threads = new Thread[threadsCount];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < LIMIT; j++) {
+                    if (limit.getPermission(0L)) {
+                        permitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(permitted.get()).isLessThanOrEqualTo(LIMIT);
+        assertThat(permitted.get()).isGreaterThanOrEqualTo(LIMIT - threadsCount * (LEASE_SIZE - 1));
+    }
+
+    @Test
+    public void decoratorDelegatesToRequestLimit() throws Exception {
+        doReturn("test").when(requestLimit).getName();
+        assertThat(leasingLimit.getName()).isEqualTo("test");
+        assertThat(leasingLimit.getRequestLimitConfig()).isEqualTo(config);
+        assertThat(leasingLimit.getNanosToNextRefresh()).isEqualTo(CYCLE_IN_NANOS);
+
+        leasingLimit.changeLimitForPeriod(LIMIT * 2);
+        verify(requestLimit).changeLimitForPeriod(LIMIT * 2);
+        leasingLimit.close();
+        verify(requestLimit).close();
+    }
+}
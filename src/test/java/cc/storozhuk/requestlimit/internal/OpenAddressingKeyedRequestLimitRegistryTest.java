@@ -0,0 +1,205 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import cc.storozhuk.requestlimit.KeyedRequestLimitRegistry;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author bstorozhuk
+ */
+public class OpenAddressingKeyedRequestLimitRegistryTest {
+
+    private static final int LIMIT = 2;
+    private static final int MAXIMUM_ACTIVE_KEYS = 64;
+    private static final int TABLE_CAPACITY = 128;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final long CYCLE_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+
+    private RequestLimitConfig config;
+    private OpenAddressingKeyedRequestLimitRegistry registry;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        registry = spy(new OpenAddressingKeyedRequestLimitRegistry(config, MAXIMUM_ACTIVE_KEYS));
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(registry).currentNanoTime();
+    }
+
+    @Test
+    public void permissionsAreLimitedPerKey() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(LIMIT);
+        assertThat(registry.tryAcquire(1L)).isTrue();
+        assertThat(registry.tryAcquire(1L)).isTrue();
+        assertThat(registry.tryAcquire(1L)).isFalse();
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(0);
+
+        assertThat(registry.tryAcquire(2L)).isTrue();
+        assertThat(registry.tryAcquire(0L)).isTrue();
+        assertThat(registry.tryAcquire(0L)).isTrue();
+        assertThat(registry.tryAcquire(0L)).isFalse();
+        assertThat(registry.getAvailablePermits(2L)).isEqualTo(1);
+        assertThat(registry.getNumberOfOccupiedSlots()).isEqualTo(2);
+    }
+
+    @Test
+    public void permissionsAreRefreshedOnNextCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.tryAcquire(1L, LIMIT)).isTrue();
+        assertThat(registry.tryAcquire(1L)).isFalse();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2 - 1);
+        assertThat(registry.tryAcquire(1L)).isFalse();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(LIMIT);
+        assertThat(registry.tryAcquire(1L)).isTrue();
+    }
+
+    @Test
+    public void batchOfPermissionsIsAcquiredAtOnce() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.tryAcquire(1L, LIMIT + 1)).isFalse();
+        assertThat(registry.tryAcquire(1L)).isTrue();
+        assertThat(registry.tryAcquire(1L, LIMIT)).isFalse();
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(LIMIT - 1);
+        assertThat(registry.tryAcquire(1L, LIMIT - 1)).isTrue();
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(0);
+    }
+
+    @Test
+    public void unusedPermissionsAccumulateUpToBurstCapacity() throws Exception {
+        RequestLimitConfig burstConfig = RequestLimitConfig.from(config)
+            .burstCapacity(LIMIT * 3)
+            .build();
+        registry = spy(new OpenAddressingKeyedRequestLimitRegistry(burstConfig, MAXIMUM_ACTIVE_KEYS));
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.tryAcquire(1L, LIMIT * 3)).isTrue();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 3);
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(LIMIT * 2);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 10);
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(LIMIT * 3);
+        assertThat(registry.tryAcquire(1L, LIMIT * 3)).isTrue();
+        assertThat(registry.tryAcquire(1L)).isFalse();
+    }
+
+    @Test
+    public void slotsOfRefilledKeysAreReused() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        for (long key = 1; key <= MAXIMUM_ACTIVE_KEYS; key++) {
+            assertThat(registry.tryAcquire(key, LIMIT)).isTrue();
+        }
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        for (long key = MAXIMUM_ACTIVE_KEYS + 1; key <= MAXIMUM_ACTIVE_KEYS * 10; key++) {
+            assertThat(registry.tryAcquire(key, LIMIT)).isTrue();
+            setTimeOnNanos(CYCLE_IN_NANOS * (key + 2));
+        }
+        assertThat(registry.getNumberOfOccupiedSlots()).isLessThanOrEqualTo(TABLE_CAPACITY);
+    }
+
+    @Test
+    public void slotsOfActiveKeysAreNotReused() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.tryAcquire(1L, LIMIT)).isTrue();
+        for (long key = 2; key <= MAXIMUM_ACTIVE_KEYS * 10; key++) {
+            registry.tryAcquire(key, LIMIT);
+        }
+        assertThat(registry.getNumberOfOccupiedSlots()).isLessThanOrEqualTo(TABLE_CAPACITY);
+        assertThat(registry.tryAcquire(1L)).isFalse();
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(0);
+    }
+
+    @Test
+    public void concurrentPermissionsForTheSameKey() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        AtomicInteger permitted = new AtomicInteger();
+        CompletableFuture<?>[] requests = new CompletableFuture<?>[8];
+        for (int i = 0; i < requests.length; i++) {
+            requests[i] = CompletableFuture.runAsync(() -> {
+                for (int j = 0; j < 1_000; j++) {
+                    if (registry.tryAcquire(42L)) {
+                        permitted.incrementAndGet();
+                    }
+                }
+            });
+        }
+        CompletableFuture.allOf(requests).join();
+
+        assertThat(permitted.get()).isEqualTo(LIMIT);
+        assertThat(registry.getNumberOfOccupiedSlots()).isEqualTo(1);
+    }
+
+    @Test
+    public void keyedRegistryFactory() throws Exception {
+        KeyedRequestLimitRegistry keyedRegistry = KeyedRequestLimitRegistry.of(config, MAXIMUM_ACTIVE_KEYS);
+        assertThat(keyedRegistry.getRequestLimitConfig()).isSameAs(config);
+        assertThat(keyedRegistry.tryAcquire(Long.MIN_VALUE)).isTrue();
+        assertThat(keyedRegistry.tryAcquire(Long.MAX_VALUE)).isTrue();
+    }
+
+    @Test
+    public void offHeapRegistry() throws Exception {
+        registry = spy(new OpenAddressingKeyedRequestLimitRegistry(config, MAXIMUM_ACTIVE_KEYS, true));
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(registry.tryAcquire(1L, LIMIT)).isTrue();
+        assertThat(registry.tryAcquire(1L)).isFalse();
+        assertThat(registry.tryAcquire(0L)).isTrue();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        for (long key = 2; key <= MAXIMUM_ACTIVE_KEYS; key++) {
+            assertThat(registry.tryAcquire(key, LIMIT)).isTrue();
+        }
+        assertThat(registry.tryAcquire(1L, LIMIT)).isTrue();
+        assertThat(registry.getAvailablePermits(1L)).isEqualTo(0);
+
+        KeyedRequestLimitRegistry offHeapRegistry = KeyedRequestLimitRegistry.ofOffHeap(config, MAXIMUM_ACTIVE_KEYS);
+        assertThat(offHeapRegistry.tryAcquire(Long.MIN_VALUE)).isTrue();
+    }
+
+    @Test
+    public void tryAcquireWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        registry.tryAcquire(1L, 0);
+    }
+
+    @Test
+    public void constructionWithNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(CONFIG_MUST_NOT_BE_NULL);
+        new OpenAddressingKeyedRequestLimitRegistry(null, MAXIMUM_ACTIVE_KEYS);
+    }
+
+    @Test
+    public void constructionWithNonPositiveMaximumActiveKeys() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("MaximumActiveKeys should be greater than 0");
+        new OpenAddressingKeyedRequestLimitRegistry(config, 0);
+    }
+}
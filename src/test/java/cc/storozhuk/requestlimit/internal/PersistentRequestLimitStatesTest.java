@@ -0,0 +1,124 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+import org.junit.rules.TemporaryFolder;
+
+import java.nio.file.Path;
+import java.time.Duration;
+
+/**
+ * @author bstorozhuk
+ */
+public class PersistentRequestLimitStatesTest {
+
+    private static final int CAPACITY = 16;
+    private static final long CYCLE_IN_NANOS = Duration.ofHours(1).toNanos();
+    private static final long OTHER_CYCLE_IN_NANOS = Duration.ofMinutes(1).toNanos();
+
+    private Path file;
+    private PersistentRequestLimitStates states;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Rule
+    public TemporaryFolder temporaryFolder = new TemporaryFolder();
+
+    @Before
+    public void init() throws Exception {
+        file = temporaryFolder.newFile().toPath();
+        states = spy(PersistentRequestLimitStates.open(file, CAPACITY));
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(states).currentTimeNanos();
+    }
+
+    @Test
+    public void permissionsAreRecordedInCurrentCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        int slot = states.claimSlot(PersistentRequestLimitStates.nameHash("test"), CYCLE_IN_NANOS);
+        assertThat(slot).isGreaterThanOrEqualTo(0);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(0);
+
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 1);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 5);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(6);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(0);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 2);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(2);
+    }
+
+    @Test
+    public void returnedPermissionsAreSubtracted() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        int slot = states.claimSlot(PersistentRequestLimitStates.nameHash("test"), CYCLE_IN_NANOS);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 5);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, -2);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(3);
+
+        states.recordPermissions(slot, CYCLE_IN_NANOS, -10);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(0);
+    }
+
+    @Test
+    public void slotIsClaimedOncePerName() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        long nameHash = PersistentRequestLimitStates.nameHash("test");
+        int slot = states.claimSlot(nameHash, CYCLE_IN_NANOS);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 3);
+
+        assertThat(states.claimSlot(nameHash, CYCLE_IN_NANOS)).isEqualTo(slot);
+        assertThat(states.consumedPermissions(slot, CYCLE_IN_NANOS)).isEqualTo(3);
+        assertThat(states.claimSlot(PersistentRequestLimitStates.nameHash("other"), CYCLE_IN_NANOS)).isNotEqualTo(slot);
+
+        assertThat(states.claimSlot(nameHash, OTHER_CYCLE_IN_NANOS)).isEqualTo(slot);
+        assertThat(states.consumedPermissions(slot, OTHER_CYCLE_IN_NANOS)).isEqualTo(0);
+    }
+
+    @Test
+    public void permissionsSurviveReopening() throws Exception {
+        long nameHash = PersistentRequestLimitStates.nameHash("test");
+        int slot = states.claimSlot(nameHash, CYCLE_IN_NANOS);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 7);
+        int idleSlot = states.claimSlot(PersistentRequestLimitStates.nameHash("idle"), CYCLE_IN_NANOS);
+        states.close();
+
+        PersistentRequestLimitStates reopenedStates = PersistentRequestLimitStates.open(file, CAPACITY);
+        int reopenedSlot = reopenedStates.claimSlot(nameHash, CYCLE_IN_NANOS);
+        assertThat(reopenedStates.consumedPermissions(reopenedSlot, CYCLE_IN_NANOS)).isEqualTo(7);
+        int reopenedIdleSlot = reopenedStates.claimSlot(PersistentRequestLimitStates.nameHash("idle"), CYCLE_IN_NANOS);
+        assertThat(reopenedStates.consumedPermissions(reopenedIdleSlot, CYCLE_IN_NANOS)).isEqualTo(0);
+        assertThat(idleSlot).isGreaterThanOrEqualTo(0);
+        reopenedStates.close();
+    }
+
+    @Test
+    public void tableIsResetWhenCapacityChanges() throws Exception {
+        long nameHash = PersistentRequestLimitStates.nameHash("test");
+        int slot = states.claimSlot(nameHash, CYCLE_IN_NANOS);
+        states.recordPermissions(slot, CYCLE_IN_NANOS, 7);
+        states.close();
+
+        PersistentRequestLimitStates reopenedStates = PersistentRequestLimitStates.open(file, CAPACITY * 64);
+        int reopenedSlot = reopenedStates.claimSlot(nameHash, CYCLE_IN_NANOS);
+        assertThat(reopenedStates.consumedPermissions(reopenedSlot, CYCLE_IN_NANOS)).isEqualTo(0);
+        reopenedStates.close();
+    }
+
+    @Test
+    public void fileCantBeUsedTwice() throws Exception {
+        exception.expect(IllegalStateException.class);
+        exception.expectMessage("is used by another registry");
+        PersistentRequestLimitStates.open(file, CAPACITY);
+    }
+}
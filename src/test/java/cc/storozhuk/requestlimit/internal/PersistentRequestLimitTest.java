@@ -0,0 +1,129 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.mockito.Matchers.anyInt;
+import static org.mockito.Matchers.anyLong;
+import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.mock;
+import static org.mockito.Mockito.never;
+import static org.mockito.Mockito.times;
+import static org.mockito.Mockito.verify;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import org.junit.Before;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+
+/**
+ * @author bstorozhuk
+ */
+public class PersistentRequestLimitTest {
+
+    private static final int LIMIT = 10;
+    private static final int SLOT = 3;
+    private static final Duration REFRESH_PERIOD = Duration.ofSeconds(1);
+    private static final long CYCLE_IN_NANOS = REFRESH_PERIOD.toNanos();
+
+    private RequestLimit requestLimit;
+    private PersistentRequestLimitStates states;
+
+    @Before
+    public void init() {
+        RequestLimitConfig config = RequestLimitConfig.builder()
+            .timeoutDuration(Duration.ZERO)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 2)
+            .build();
+        requestLimit = mock(RequestLimit.class);
+        states = mock(PersistentRequestLimitStates.class);
+        doReturn(config).when(requestLimit).getRequestLimitConfig();
+    }
+
+    @Test
+    public void nothingIsConsumedWithoutPersistedPermissions() throws Exception {
+        doReturn(0).when(states).consumedPermissions(SLOT, CYCLE_IN_NANOS);
+        new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        verify(requestLimit, never()).getPermissions(anyInt(), anyLong());
+    }
+
+    @Test
+    public void persistedPermissionsAreConsumedOnCreation() throws Exception {
+        doReturn(LIMIT * 3).when(states).consumedPermissions(SLOT, CYCLE_IN_NANOS);
+        doReturn(false).when(requestLimit).getPermissions(LIMIT * 2, 0L);
+        doReturn(true).when(requestLimit).getPermissions(LIMIT, 0L);
+        new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        verify(requestLimit).getPermissions(LIMIT * 2, 0L);
+        verify(requestLimit).getPermissions(LIMIT, 0L);
+        verify(states, never()).recordPermissions(anyInt(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void grantedPermissionsAreRecorded() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        doReturn(true).when(requestLimit).getPermission(anyLong());
+        doReturn(true).when(requestLimit).getPermissions(eq(5), anyLong());
+        doReturn(-1L).when(requestLimit).reservePermission(Duration.ZERO);
+        doReturn(CompletableFuture.completedFuture(true)).when(requestLimit).acquirePermissionAsync();
+
+        assertThat(persistentLimit.getPermission(Duration.ZERO)).isTrue();
+        assertThat(persistentLimit.getPermissions(5, Duration.ZERO)).isTrue();
+        assertThat(persistentLimit.reservePermission(Duration.ZERO)).isEqualTo(-1L);
+        assertThat(persistentLimit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        verify(states, times(2)).recordPermissions(SLOT, CYCLE_IN_NANOS, 1);
+        verify(states).recordPermissions(SLOT, CYCLE_IN_NANOS, 5);
+    }
+
+    @Test
+    public void releasedPermissionsAreSubtracted() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        persistentLimit.releasePermissions(3);
+
+        verify(requestLimit).releasePermissions(3);
+        verify(states).recordPermissions(SLOT, CYCLE_IN_NANOS, -3);
+    }
+
+    @Test
+    public void recordedCallsGoToUnderlyingLimit() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        persistentLimit.recordCall(10L, false);
+        verify(requestLimit).recordCall(10L, false);
+    }
+
+    @Test
+    public void prioritizedPermissionsAreRecorded() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        doReturn(true).when(requestLimit).getPermission(0L, 1);
+
+        assertThat(persistentLimit.getPermission(Duration.ZERO, 1)).isTrue();
+        verify(requestLimit).getPermission(0L, 1);
+        verify(states).recordPermissions(SLOT, CYCLE_IN_NANOS, 1);
+    }
+
+    @Test
+    public void inFlightPermissionsGoToUnderlyingLimit() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        doReturn(true).when(requestLimit).acquireInFlightPermission(CYCLE_IN_NANOS);
+
+        assertThat(persistentLimit.acquireInFlightPermission(CYCLE_IN_NANOS)).isTrue();
+        persistentLimit.releaseInFlightPermission();
+        verify(requestLimit).releaseInFlightPermission();
+        verify(states, never()).recordPermissions(anyInt(), anyLong(), anyInt());
+    }
+
+    @Test
+    public void rejectedPermissionsAreNotRecorded() throws Exception {
+        RequestLimit persistentLimit = new PersistentRequestLimit(requestLimit, states, SLOT, CYCLE_IN_NANOS);
+        doReturn(false).when(requestLimit).getPermission(anyLong());
+        doReturn(CompletableFuture.completedFuture(false)).when(requestLimit).acquirePermissionAsync();
+
+        assertThat(persistentLimit.getPermission(Duration.ZERO)).isFalse();
+        assertThat(persistentLimit.acquirePermissionAsync().toCompletableFuture().get()).isFalse();
+        verify(states, never()).recordPermissions(anyInt(), anyLong(), anyInt());
+    }
+}
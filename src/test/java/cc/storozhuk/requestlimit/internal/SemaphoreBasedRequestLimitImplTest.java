@@ -9,7 +9,10 @@ import static java.time.Duration.ZERO;
 import static javaslang.control.Try.run;
 import static org.assertj.core.api.Assertions.assertThat;
 import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Matchers.any;
+import static org.mockito.Matchers.anyLong;
 import static org.mockito.Matchers.eq;
+import static org.mockito.Mockito.doReturn;
 import static org.mockito.Mockito.mock;
 import static org.mockito.Mockito.spy;
 import static org.mockito.Mockito.times;
@@ -17,6 +20,7 @@ import static org.mockito.Mockito.verify;
 
 import cc.storozhuk.requestlimit.RequestLimit;
 import cc.storozhuk.requestlimit.RequestLimitConfig;
+import cc.storozhuk.requestlimit.WaitStrategy;
 import com.jayway.awaitility.core.ConditionFactory;
 import org.junit.Before;
 import org.junit.Rule;
@@ -25,9 +29,12 @@ import org.junit.rules.ExpectedException;
 import org.mockito.ArgumentCaptor;
 
 import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
 import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
 import java.util.concurrent.SynchronousQueue;
 import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.function.Function;
 
 /**
@@ -41,6 +48,9 @@ public class SemaphoreBasedRequestLimitImplTest {
     private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
     private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
     private static final Object O = new Object();
+    private static final WaitStrategy[] OTHER_WAIT_STRATEGIES = {
+        WaitStrategy.SPIN, WaitStrategy.SPIN_THEN_YIELD, WaitStrategy.BACKOFF, WaitStrategy.PARK
+    };
 
     private RequestLimitConfig config;
 
@@ -145,6 +155,528 @@ public class SemaphoreBasedRequestLimitImplTest {
         assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(1);
     }
 
+    @Test
+    public void refreshLimitDoesNotAccumulatePermits() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        limit.refreshLimit();
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void refreshLimitTopsUpToBurstCapacity() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig burstConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 2 + 1)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", burstConfig, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT * 2 + 1);
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT * 2 + 1);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        CompletableFuture<Boolean> first = limit.acquirePermissionAsync().toCompletableFuture();
+        CompletableFuture<Boolean> second = limit.acquirePermissionAsync().toCompletableFuture();
+        CompletableFuture<Boolean> third = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(first.isDone()).isFalse();
+        assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+
+        limit.refreshLimit();
+        assertThat(first.get()).isTrue();
+        assertThat(second.get()).isTrue();
+        assertThat(third.isDone()).isFalse();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+
+        limit.refreshLimit();
+        assertThat(third.get()).isTrue();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquirePermissionAsyncTimeout() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig shortTimeoutConfig = RequestLimitConfig.builder()
+            .timeoutDuration(Duration.ofMillis(50))
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(1)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", shortTimeoutConfig, scheduler);
+
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+        CompletableFuture<Boolean> timedOut = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(timedOut.get(2, TimeUnit.SECONDS)).isFalse();
+
+        limit.refreshLimit();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void acquirePermissionAsyncWithZeroTimeout() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig zeroTimeoutConfig = RequestLimitConfig.builder()
+            .timeoutDuration(ZERO)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(1)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", zeroTimeoutConfig, scheduler);
+
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+    }
+
+    @Test
+    public void getPermissions() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        assertThat(limit.getPermissions(LIMIT + 1, TIMEOUT)).isFalse();
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(limit.getPermissions(1, ZERO)).isFalse();
+
+        limit.refreshLimit();
+        assertThat(limit.getPermissions(1, ZERO)).isTrue();
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isFalse();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void getPermissionsBiggerThanBurstCapacity() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig burstConfig = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .burstCapacity(LIMIT * 2)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", burstConfig, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        assertThat(limit.getPermissions(LIMIT * 2 + 1, TIMEOUT)).isFalse();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(0);
+
+        limit.refreshLimit();
+        assertThat(limit.getPermissions(LIMIT * 2, ZERO)).isTrue();
+    }
+
+    @Test
+    public void releasePermissionsReturnsReservationsFirst() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        limit.releasePermissions(1);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+
+        assertThat(limit.reservePermission(TIMEOUT)).isPositive();
+        limit.releasePermissions(1);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(0);
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+
+        limit.releasePermissions(LIMIT * 2);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void reservePermission() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+        long refreshPeriodInNanos = REFRESH_PERIOD.toNanos();
+
+        assertThat(limit.reservePermission(ZERO)).isEqualTo(0L);
+        assertThat(limit.reservePermission(ZERO)).isEqualTo(0L);
+        assertThat(limit.reservePermission(ZERO)).isNegative();
+        assertThat(detailedMetrics.getReservedPermits()).isEqualTo(0);
+
+        assertThat(limit.reservePermission(TIMEOUT)).isBetween(0L, refreshPeriodInNanos);
+        assertThat(limit.reservePermission(TIMEOUT)).isBetween(0L, refreshPeriodInNanos);
+        assertThat(limit.reservePermission(TIMEOUT)).isBetween(refreshPeriodInNanos, refreshPeriodInNanos * 2);
+        assertThat(detailedMetrics.getReservedPermits()).isEqualTo(3);
+
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getReservedPermits()).isEqualTo(1);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(0);
+
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getReservedPermits()).isEqualTo(0);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(1);
+    }
+
+    @Test
+    public void permissionCountersAndUtilization() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        for (int i = 0; i < LIMIT; i++) {
+            assertThat(limit.getPermission(ZERO)).isTrue();
+        }
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(limit.getPermissions(LIMIT + 1, ZERO)).isFalse();
+        assertThat(detailedMetrics.getNumberOfSuccessfulPermissions()).isEqualTo(LIMIT);
+        assertThat(detailedMetrics.getNumberOfRejectedPermissions()).isEqualTo(2L);
+        assertThat(detailedMetrics.getWaitTimeHistogram().getTotalCount()).isEqualTo(LIMIT);
+        assertThat(detailedMetrics.getWaitTimeHistogram().getMaxValue()).isEqualTo(0L);
+        assertThat(detailedMetrics.getLastCycleUtilization()).isEqualTo(0.0);
+
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getLastCycleUtilization()).isEqualTo(1.0);
+
+        assertThat(limit.getPermission(ZERO)).isTrue();
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getLastCycleUtilization()).isEqualTo(0.5);
+
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getLastCycleUtilization()).isEqualTo(0.0);
+        assertThat(detailedMetrics.getNumberOfSuccessfulPermissions()).isEqualTo(LIMIT + 1);
+    }
+
+    @Test
+    public void waitTimeOfBlockedPermission() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        limit.getPermission(ZERO);
+        limit.getPermission(ZERO);
+
+        Thread thread = new Thread(() -> limit.getPermission(TIMEOUT));
+        thread.setDaemon(true);
+        thread.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+        Thread.sleep(REFRESH_PERIOD.toMillis());
+        limit.refreshLimit();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+
+        WaitTimeHistogram waitTimes = limit.getDetailedMetrics().getWaitTimeHistogram();
+        assertThat(waitTimes.getTotalCount()).isEqualTo(3L);
+        assertThat(waitTimes.getMaxValue()).isGreaterThanOrEqualTo(REFRESH_PERIOD.toNanos());
+        assertThat(waitTimes.getValueAtPercentile(50)).isEqualTo(0L);
+    }
+
+    @Test
+    public void queueWaitStrategyHandsPermitsToWaitersInOrder() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig queueConfig = RequestLimitConfig.from(config).waitStrategy(WaitStrategy.QUEUE).build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", queueConfig, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+
+        AtomicBoolean firstPermitted = new AtomicBoolean(false);
+        Thread first = new Thread(() -> firstPermitted.set(limit.getPermissions(LIMIT, TIMEOUT)));
+        first.setDaemon(true);
+        first.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(first::getState, equalTo(TIMED_WAITING));
+        CompletableFuture<Boolean> second = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(1);
+
+        limit.refreshLimit();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(first::getState, equalTo(TERMINATED));
+        assertThat(firstPermitted.get()).isTrue();
+        assertThat(second.isDone()).isFalse();
+        assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(0);
+
+        limit.refreshLimit();
+        assertThat(second.get(1, TimeUnit.SECONDS)).isTrue();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT - 1);
+        assertThat(detailedMetrics.getNumberOfSuccessfulPermissions()).isEqualTo(3L);
+    }
+
+    @Test
+    public void queueWaitStrategyTimeout() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig queueConfig = RequestLimitConfig.from(config).waitStrategy(WaitStrategy.QUEUE).build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", queueConfig, scheduler);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        assertThat(limit.getPermission(Duration.ofMillis(10))).isFalse();
+        assertThat(limit.getDetailedMetrics().getNumberOfRejectedPermissions()).isEqualTo(1L);
+
+        limit.refreshLimit();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void queueWaitStrategyInterruptionAndClose() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig queueConfig = RequestLimitConfig.from(config).waitStrategy(WaitStrategy.QUEUE).build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", queueConfig, scheduler);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        AtomicBoolean interruptedPermitted = new AtomicBoolean(true);
+        AtomicBoolean interruptStatus = new AtomicBoolean(false);
+        Thread interrupted = new Thread(() -> {
+            interruptedPermitted.set(limit.getPermission(TIMEOUT));
+            interruptStatus.set(Thread.currentThread().isInterrupted());
+        });
+        interrupted.setDaemon(true);
+        interrupted.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(interrupted::getState, equalTo(TIMED_WAITING));
+        interrupted.interrupt();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(interrupted::getState, equalTo(TERMINATED));
+        assertThat(interruptedPermitted.get()).isFalse();
+        assertThat(interruptStatus.get()).isTrue();
+
+        AtomicBoolean closedPermitted = new AtomicBoolean(true);
+        Thread closed = new Thread(() -> closedPermitted.set(limit.getPermission(TIMEOUT)));
+        closed.setDaemon(true);
+        closed.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(closed::getState, equalTo(TIMED_WAITING));
+        limit.close();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(closed::getState, equalTo(TERMINATED));
+        assertThat(closedPermitted.get()).isFalse();
+    }
+
+    @Test
+    public void higherPriorityWaitersGetRefreshedPermitsFirst() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig priorityConfig = RequestLimitConfig.from(config).priorityLevels(2).build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", priorityConfig, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        AtomicBoolean lowPermitted = new AtomicBoolean(false);
+        Thread low = new Thread(() -> lowPermitted.set(limit.getPermissions(LIMIT, TIMEOUT)));
+        low.setDaemon(true);
+        low.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(low::getState, equalTo(TIMED_WAITING));
+        AtomicBoolean highPermitted = new AtomicBoolean(false);
+        Thread high = new Thread(() -> highPermitted.set(limit.getPermission(TIMEOUT, 1)));
+        high.setDaemon(true);
+        high.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(high::getState, equalTo(TIMED_WAITING));
+        assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(2);
+
+        limit.refreshLimit();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(high::getState, equalTo(TERMINATED));
+        assertThat(highPermitted.get()).isTrue();
+        assertThat(low.getState()).isEqualTo(TIMED_WAITING);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT - 1);
+
+        limit.refreshLimit();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(low::getState, equalTo(TERMINATED));
+        assertThat(lowPermitted.get()).isTrue();
+        assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void reservedShareIsKeptForHigherPriority() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        RequestLimitConfig priorityConfig = RequestLimitConfig.from(config)
+            .limitForPeriod(LIMIT * 5)
+            .priorityLevels(3)
+            .reservedShare(2, 0.2)
+            .reservedShare(1, 0.2)
+            .build();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", priorityConfig, scheduler);
+
+        assertThat(limit.getPermissions(LIMIT * 3, ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+        assertThat(limit.getPermission(ZERO, 1)).isTrue();
+        assertThat(limit.getPermission(ZERO, 1)).isTrue();
+        assertThat(limit.getPermission(ZERO, 1)).isFalse();
+        assertThat(limit.getPermission(ZERO, 5)).isTrue();
+        assertThat(limit.getPermission(ZERO, 2)).isTrue();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void priorityIsIgnoredWithOnePriorityLevel() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+
+        assertThat(limit.getPermission(ZERO, 0)).isTrue();
+        assertThat(limit.getPermission(ZERO, 10)).isTrue();
+        assertThat(limit.getPermission(ZERO, 10)).isFalse();
+    }
+
+    @Test
+    public void getPermissionWithNegativePriority() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Priority should not be negative");
+        limit.getPermission(ZERO, -1);
+    }
+
+    @Test
+    public void otherWaitStrategiesGetPermissionAfterRefresh() throws Exception {
+        for (WaitStrategy waitStrategy : OTHER_WAIT_STRATEGIES) {
+            ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+            RequestLimitConfig strategyConfig = RequestLimitConfig.from(config).waitStrategy(waitStrategy).build();
+            SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", strategyConfig, scheduler);
+            SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+            assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+            AtomicBoolean permitted = new AtomicBoolean(false);
+            Thread thread = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+            thread.setDaemon(true);
+            thread.start();
+            awaitImpatiently()
+                .atMost(2, TimeUnit.SECONDS).until(detailedMetrics::getNumberOfWaitingThreads, equalTo(1));
+
+            limit.refreshLimit();
+            awaitImpatiently()
+                .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+            assertThat(permitted.get()).isTrue();
+            assertThat(detailedMetrics.getNumberOfWaitingThreads()).isEqualTo(0);
+            assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT - 1);
+        }
+    }
+
+    @Test
+    public void otherWaitStrategiesTimeout() throws Exception {
+        for (WaitStrategy waitStrategy : OTHER_WAIT_STRATEGIES) {
+            ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+            RequestLimitConfig strategyConfig = RequestLimitConfig.from(config).waitStrategy(waitStrategy).build();
+            SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", strategyConfig, scheduler);
+            assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+            assertThat(limit.getPermission(Duration.ofMillis(10))).isFalse();
+            assertThat(limit.getDetailedMetrics().getNumberOfRejectedPermissions()).isEqualTo(1L);
+            assertThat(limit.getDetailedMetrics().getNumberOfWaitingThreads()).isEqualTo(0);
+        }
+    }
+
+    @Test
+    public void changeLimitForPeriodOnNextRefresh() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        SemaphoreBasedRequestLimitImpl.SemaphoreBasedRequestLimitMetrics detailedMetrics = limit.getDetailedMetrics();
+
+        limit.changeLimitForPeriod(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT);
+
+        limit.refreshLimit();
+        assertThat(detailedMetrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        assertThat(limit.getPermissions(LIMIT * 2, ZERO)).isTrue();
+    }
+
+    @Test
+    public void changeTimeoutDuration() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        limit.getPermission(ZERO);
+        limit.getPermission(ZERO);
+
+        limit.changeTimeoutDuration(ZERO);
+        assertThat(limit.getRequestLimitConfig().getTimeoutDuration()).isEqualTo(ZERO);
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithAnotherRefreshPeriod() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(
+            RequestLimitConfig.from(config).limitRefreshPeriod(REFRESH_PERIOD.multipliedBy(2)).build()
+        );
+    }
+
+    @Test
+    public void closeCancelsRefreshOnProvidedScheduler() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        ScheduledFuture<?> refresh = mock(ScheduledFuture.class);
+        doReturn(refresh).when(scheduler)
+            .scheduleAtFixedRate(any(Runnable.class), anyLong(), anyLong(), eq(TimeUnit.NANOSECONDS));
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+
+        limit.close();
+        limit.close();
+
+        verify(refresh, times(1)).cancel(false);
+    }
+
+    @Test
+    public void closeCancelsRefreshOnTimerAndCompletesAsyncWaiters() throws Exception {
+        HashedWheelRefreshTimer timer = new HashedWheelRefreshTimer();
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, timer);
+        limit.getPermission(ZERO);
+        limit.getPermission(ZERO);
+        CompletableFuture<Boolean> permission = limit.acquirePermissionAsync().toCompletableFuture();
+
+        limit.close();
+
+        assertThat(permission.get(1, TimeUnit.SECONDS)).isFalse();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(() -> timer.getNumberOfScheduledPeriods() == 0);
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void closeRejectsSemaphoreWaitersAndNewRequests() throws Exception {
+        ScheduledExecutorService scheduler = mock(ScheduledExecutorService.class);
+        SemaphoreBasedRequestLimitImpl limit = new SemaphoreBasedRequestLimitImpl("test", config, scheduler);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        AtomicBoolean permitted = new AtomicBoolean(true);
+        Thread waiter = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+        waiter.setDaemon(true);
+        waiter.start();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TIMED_WAITING));
+
+        limit.close();
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(waiter::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isFalse();
+        assertThat(limit.getPermission(TIMEOUT)).isFalse();
+        assertThat(limit.getPermissions(LIMIT, TIMEOUT)).isFalse();
+        assertThat(limit.reservePermission(TIMEOUT)).isNegative();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get(1, TimeUnit.SECONDS)).isFalse();
+        assertThat(limit.getDetailedMetrics().getAvailablePermits()).isEqualTo(0);
+    }
+
     @Test
     public void getPermissionInterruption() throws Exception {
         ScheduledExecutorService scheduledExecutorService = mock(ScheduledExecutorService.class);
@@ -207,14 +739,14 @@ public class SemaphoreBasedRequestLimitImplTest {
     public void constructionWithNullName() throws Exception {
         exception.expect(NullPointerException.class);
         exception.expectMessage(NAME_MUST_NOT_BE_NULL);
-        new SemaphoreBasedRequestLimitImpl(null, config, null);
+        new SemaphoreBasedRequestLimitImpl(null, config, (ScheduledExecutorService) null);
     }
 
     @Test
     public void constructionWithNullConfig() throws Exception {
         exception.expect(NullPointerException.class);
         exception.expectMessage(CONFIG_MUST_NOT_BE_NULL);
-        new SemaphoreBasedRequestLimitImpl("test", null, null);
+        new SemaphoreBasedRequestLimitImpl("test", null, (ScheduledExecutorService) null);
     }
 
     private static ConditionFactory awaitImpatiently() {
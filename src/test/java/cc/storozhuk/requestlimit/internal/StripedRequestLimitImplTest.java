@@ -0,0 +1,331 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static com.jayway.awaitility.Awaitility.await;
+import static java.lang.Thread.State.RUNNABLE;
+import static java.lang.Thread.State.TERMINATED;
+import static java.lang.Thread.State.TIMED_WAITING;
+import static java.time.Duration.ZERO;
+import static org.assertj.core.api.Assertions.assertThat;
+import static org.hamcrest.CoreMatchers.equalTo;
+import static org.mockito.Mockito.doReturn;
+import static org.mockito.Mockito.spy;
+
+import cc.storozhuk.requestlimit.RequestLimit;
+import cc.storozhuk.requestlimit.RequestLimitConfig;
+import com.jayway.awaitility.core.ConditionFactory;
+import org.junit.Before;
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+import java.time.Duration;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.function.Function;
+
+/**
+ * @author bstorozhuk
+ */
+public class StripedRequestLimitImplTest {
+
+    private static final int LIMIT = 10;
+    private static final int STRIPES = 4;
+    private static final Duration TIMEOUT = Duration.ofSeconds(5);
+    private static final Duration REFRESH_PERIOD = Duration.ofMillis(100);
+    private static final long CYCLE_IN_NANOS = REFRESH_PERIOD.toNanos();
+    private static final String CONFIG_MUST_NOT_BE_NULL = "RequestLimitConfig must not be null";
+    private static final String NAME_MUST_NOT_BE_NULL = "Name must not be null";
+
+    private RequestLimitConfig config;
+    private StripedRequestLimitImpl limit;
+    private StripedRequestLimitImpl.StripedRequestLimitMetrics metrics;
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Before
+    public void init() {
+        config = RequestLimitConfig.builder()
+            .timeoutDuration(TIMEOUT)
+            .limitRefreshPeriod(REFRESH_PERIOD)
+            .limitForPeriod(LIMIT)
+            .build();
+        limit = spy(new StripedRequestLimitImpl("test", config, STRIPES));
+        metrics = limit.getDetailedMetrics();
+    }
+
+    private void setTimeOnNanos(long nanoTime) {
+        doReturn(nanoTime).when(limit).currentNanoTime();
+    }
+
+    @Test
+    public void nextRefreshIsAtCycleBoundary() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(CYCLE_IN_NANOS);
+        setTimeOnNanos(CYCLE_IN_NANOS * 2 - 10);
+        assertThat(limit.getNanosToNextRefresh()).isEqualTo(10L);
+    }
+
+    @Test
+    public void permissionsOfAllStripesAreAvailable() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(metrics.getNumberOfStripes()).isEqualTo(STRIPES);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        for (int i = 0; i < LIMIT; i++) {
+            assertThat(limit.getPermission(ZERO)).isTrue();
+        }
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+        assertThat(metrics.getNanosToWait()).isEqualTo(CYCLE_IN_NANOS);
+        assertThat(limit.getPermission(ZERO)).isFalse();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+        assertThat(metrics.getNanosToWait()).isEqualTo(0L);
+    }
+
+    @Test
+    public void globalLimitIsRespectedByManyThreads() throws Exception {
+        RequestLimit limit = new StripedRequestLimitImpl(
+            "test", RequestLimitConfig.from(config).limitRefreshPeriod(Duration.ofDays(1)).build(), STRIPES
+        );
+        AtomicInteger permitted = new AtomicInteger();
+        Thread[] threads = new Thread[STRIPES * 2];
+        for (int i = 0; i < threads.length; i++) {
+            threads[i] = new Thread(() -> {
+                for (int j = 0; j < LIMIT; j++) {
+                    if (limit.getPermission(ZERO)) {
+                        permitted.incrementAndGet();
+                    }
+                }
+            });
+            threads[i].start();
+        }
+        for (Thread thread : threads) {
+            thread.join();
+        }
+        assertThat(permitted.get()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void getPermissionsCollectedFromSeveralStripes() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT - 1, ZERO)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermissions(2, ZERO)).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(1);
+        assertThat(limit.getPermission(ZERO)).isTrue();
+    }
+
+    @Test
+    public void idleStripesAccumulateUpToBurstCapacity() throws Exception {
+        limit.changeRequestLimitConfig(RequestLimitConfig.from(config).burstCapacity(LIMIT * 2).build());
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 10);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        assertThat(limit.getPermissions(LIMIT * 2, ZERO)).isTrue();
+        assertThat(limit.getPermission(ZERO)).isFalse();
+    }
+
+    @Test
+    public void stripesIdleForMoreThanIntCyclesAreRefilled() throws Exception {
+        long[] idleCycles = {(1L << 31) + 1, (1L << 32) - 1, 1L << 32, (1L << 32) + 1};
+        long cycle = 1L;
+        for (long idle : idleCycles) {
+            setTimeOnNanos(CYCLE_IN_NANOS * cycle);
+            assertThat(limit.getPermissions(metrics.getAvailablePermits(), ZERO)).isTrue();
+            assertThat(limit.getPermission(ZERO)).isFalse();
+
+            cycle += idle;
+            setTimeOnNanos(CYCLE_IN_NANOS * cycle);
+            assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+            assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+            assertThat(limit.getPermission(ZERO)).isFalse();
+            cycle++;
+        }
+    }
+
+    @Test
+    public void getPermissionsBiggerThanBurstCapacity() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT + 1, TIMEOUT)).isFalse();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void releasePermissionsUpToBurstCapacity() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        limit.releasePermissions(3);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(3);
+        assertThat(limit.getPermissions(3, ZERO)).isTrue();
+
+        limit.releasePermissions(LIMIT * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT);
+    }
+
+    @Test
+    public void getPermissionsWithNonPositivePermits() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Permits should be greater than 0");
+        limit.getPermissions(0, ZERO);
+    }
+
+    @Test
+    public void waitForPermission() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        AtomicBoolean permitted = new AtomicBoolean(false);
+        Thread thread = new Thread(() -> permitted.set(limit.getPermission(TIMEOUT)));
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(1);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TERMINATED));
+        assertThat(permitted.get()).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT - 1);
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void permissionAfterTimeoutIsRejectedWithoutWaiting() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+        assertThat(limit.getPermission(Duration.ofNanos(CYCLE_IN_NANOS - 1))).isFalse();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void reservePermission() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT - 1, ZERO)).isTrue();
+        assertThat(limit.reservePermission(TIMEOUT)).isEqualTo(0L);
+        assertThat(limit.reservePermission(TIMEOUT)).isNegative();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+    }
+
+    @Test
+    public void acquirePermissionAsync() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT - 1, ZERO)).isTrue();
+        assertThat(limit.acquirePermissionAsync().toCompletableFuture().get()).isTrue();
+
+        CompletableFuture<Boolean> delayed = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(delayed.isDone()).isFalse();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(delayed.get(2, TimeUnit.SECONDS)).isTrue();
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT - 1);
+    }
+
+    @Test
+    public void acquirePermissionAsyncLongerThanTimeout() throws Exception {
+        limit.changeTimeoutDuration(Duration.ofNanos(CYCLE_IN_NANOS - 1));
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        CompletableFuture<Boolean> notPermitted = limit.acquirePermissionAsync().toCompletableFuture();
+        assertThat(notPermitted.isDone()).isTrue();
+        assertThat(notPermitted.get()).isFalse();
+    }
+
+    @Test
+    public void getPermissionInterruption() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        limit.getPermissions(LIMIT, ZERO);
+
+        Thread thread = new Thread(() -> {
+            limit.getPermission(TIMEOUT);
+            while (true) {
+                Function.identity().apply(1);
+            }
+        });
+        thread.setDaemon(true);
+        thread.start();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(TIMED_WAITING));
+
+        thread.interrupt();
+
+        awaitImpatiently()
+            .atMost(2, TimeUnit.SECONDS).until(thread::getState, equalTo(RUNNABLE));
+        assertThat(thread.isInterrupted()).isTrue();
+    }
+
+    @Test
+    public void changeLimitForPeriodOnNextCycle() throws Exception {
+        setTimeOnNanos(CYCLE_IN_NANOS);
+        assertThat(limit.getPermissions(LIMIT, ZERO)).isTrue();
+
+        limit.changeLimitForPeriod(LIMIT * 2);
+        assertThat(limit.getRequestLimitConfig().getLimitForPeriod()).isEqualTo(LIMIT * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(0);
+
+        setTimeOnNanos(CYCLE_IN_NANOS * 2);
+        assertThat(metrics.getAvailablePermits()).isEqualTo(LIMIT * 2);
+        assertThat(limit.getPermissions(LIMIT * 2, ZERO)).isTrue();
+    }
+
+    @Test
+    public void changeRequestLimitConfigWithAnotherRefreshPeriod() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("LimitRefreshPeriod can't be changed");
+        limit.changeRequestLimitConfig(
+            RequestLimitConfig.from(config).limitRefreshPeriod(REFRESH_PERIOD.multipliedBy(2)).build()
+        );
+    }
+
+    @Test
+    public void getName() throws Exception {
+        assertThat(limit.getName()).isEqualTo("test");
+    }
+
+    @Test
+    public void getMetrics() throws Exception {
+        RequestLimit.Metrics metrics = limit.getMetrics();
+        assertThat(metrics.getNumberOfWaitingThreads()).isEqualTo(0);
+    }
+
+    @Test
+    public void getRequestLimitConfig() throws Exception {
+        assertThat(limit.getRequestLimitConfig()).isEqualTo(config);
+    }
+
+    @Test
+    public void constructionWithNullName() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(NAME_MUST_NOT_BE_NULL);
+        new StripedRequestLimitImpl(null, config);
+    }
+
+    @Test
+    public void constructionWithNullConfig() throws Exception {
+        exception.expect(NullPointerException.class);
+        exception.expectMessage(CONFIG_MUST_NOT_BE_NULL);
+        new StripedRequestLimitImpl("test", null);
+    }
+
+    @Test
+    public void constructionWithNonPositiveStripes() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Stripes should be greater than 0");
+        new StripedRequestLimitImpl("test", config, 0);
+    }
+
+    private static ConditionFactory awaitImpatiently() {
+        return await()
+            .pollDelay(1, TimeUnit.MICROSECONDS)
+            .pollInterval(2, TimeUnit.MILLISECONDS);
+    }
+}
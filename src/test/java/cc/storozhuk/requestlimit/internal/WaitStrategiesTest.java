@@ -0,0 +1,76 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static java.lang.System.nanoTime;
+import static org.assertj.core.api.Assertions.assertThat;
+
+import cc.storozhuk.requestlimit.WaitStrategy;
+import org.junit.Test;
+
+import java.time.Duration;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * @author bstorozhuk
+ */
+public class WaitStrategiesTest {
+
+    private static final long WAIT_IN_NANOS = Duration.ofMillis(5).toNanos();
+    private static final long TIMEOUT_IN_NANOS = Duration.ofSeconds(5).toNanos();
+
+    @Test
+    public void awaitUntilDeadline() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            long startNanos = nanoTime();
+            boolean notInterrupted = WaitStrategies.await(waitStrategy, startNanos + WAIT_IN_NANOS, System::nanoTime);
+            assertThat(notInterrupted).isTrue();
+            assertThat(nanoTime() - startNanos).isGreaterThanOrEqualTo(WAIT_IN_NANOS);
+        }
+    }
+
+    @Test
+    public void awaitSatisfiedCondition() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            long startNanos = nanoTime();
+            boolean notInterrupted = WaitStrategies.await(
+                waitStrategy, startNanos + TIMEOUT_IN_NANOS, System::nanoTime, () -> true
+            );
+            assertThat(notInterrupted).isTrue();
+            assertThat(nanoTime() - startNanos).isLessThan(TIMEOUT_IN_NANOS);
+        }
+    }
+
+    @Test
+    public void pollingStrategiesAwaitUntilCondition() throws Exception {
+        WaitStrategy[] pollingStrategies = {WaitStrategy.SPIN, WaitStrategy.SPIN_THEN_YIELD, WaitStrategy.BACKOFF};
+        for (WaitStrategy waitStrategy : pollingStrategies) {
+            AtomicInteger checks = new AtomicInteger(0);
+            long startNanos = nanoTime();
+            boolean notInterrupted = WaitStrategies.await(
+                waitStrategy, startNanos + TIMEOUT_IN_NANOS, System::nanoTime, () -> checks.incrementAndGet() > 200
+            );
+            assertThat(notInterrupted).isTrue();
+            assertThat(checks.get()).isEqualTo(201);
+            assertThat(nanoTime() - startNanos).isLessThan(TIMEOUT_IN_NANOS);
+        }
+    }
+
+    @Test
+    public void awaitPassedDeadline() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            long deadline = nanoTime();
+            assertThat(WaitStrategies.await(waitStrategy, deadline, () -> deadline)).isTrue();
+        }
+    }
+
+    @Test
+    public void awaitInterruption() throws Exception {
+        for (WaitStrategy waitStrategy : WaitStrategy.values()) {
+            Thread.currentThread().interrupt();
+            boolean notInterrupted = WaitStrategies.await(
+                waitStrategy, nanoTime() + TIMEOUT_IN_NANOS, System::nanoTime
+            );
+            assertThat(notInterrupted).isFalse();
+            assertThat(Thread.interrupted()).isTrue();
+        }
+    }
+}
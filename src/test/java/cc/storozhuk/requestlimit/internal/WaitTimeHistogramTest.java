@@ -0,0 +1,102 @@
+package cc.storozhuk.requestlimit.internal;
+
+import static org.assertj.core.api.Assertions.assertThat;
+
+import org.junit.Rule;
+import org.junit.Test;
+import org.junit.rules.ExpectedException;
+
+/**
+ * @author bstorozhuk
+ */
+public class WaitTimeHistogramTest {
+
+    @Rule
+    public ExpectedException exception = ExpectedException.none();
+
+    @Test
+    public void emptyHistogram() throws Exception {
+        WaitTimeHistogram histogram = new WaitTimeHistogram();
+        assertThat(histogram.getTotalCount()).isEqualTo(0L);
+        assertThat(histogram.getMaxValue()).isEqualTo(0L);
+        assertThat(histogram.getValueAtPercentile(99)).isEqualTo(0L);
+    }
+
+    @Test
+    public void smallValuesAreExact() throws Exception {
+        WaitTimeHistogram histogram = new WaitTimeHistogram();
+        for (long value = 0; value < 16; value++) {
+            histogram.recordValue(value);
+        }
+        assertThat(histogram.getTotalCount()).isEqualTo(16L);
+        assertThat(histogram.getValueAtPercentile(50)).isEqualTo(7L);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(15L);
+        assertThat(histogram.getMaxValue()).isEqualTo(15L);
+    }
+
+    @Test
+    public void valuesAreReportedWithBoundedRelativeError() throws Exception {
+        long[] values = {16L, 1_000L, 123_456L, 10_000_000L, 5_000_000_000L, Long.MAX_VALUE};
+        for (long value : values) {
+            WaitTimeHistogram histogram = new WaitTimeHistogram();
+            histogram.recordValue(value);
+            long reported = histogram.getMaxValue();
+            assertThat(reported).isGreaterThanOrEqualTo(value);
+            assertThat(reported - value).isLessThanOrEqualTo(value / 16);
+        }
+    }
+
+    @Test
+    public void percentiles() throws Exception {
+        WaitTimeHistogram histogram = new WaitTimeHistogram();
+        for (int i = 0; i < 99; i++) {
+            histogram.recordValue(1_000L);
+        }
+        histogram.recordValue(1_000_000L);
+
+        assertThat(histogram.getValueAtPercentile(50)).isBetween(1_000L, 1_063L);
+        assertThat(histogram.getValueAtPercentile(99)).isBetween(1_000L, 1_063L);
+        assertThat(histogram.getValueAtPercentile(99.5)).isBetween(1_000_000L, 1_062_500L);
+        assertThat(histogram.getMaxValue()).isBetween(1_000_000L, 1_062_500L);
+    }
+
+    @Test
+    public void zeroWaitTimes() throws Exception {
+        WaitTimeHistogram histogram = new WaitTimeHistogram();
+        for (int i = 0; i < 3; i++) {
+            histogram.recordValue(0L);
+        }
+        histogram.recordValue(5L);
+
+        assertThat(histogram.getTotalCount()).isEqualTo(4L);
+        assertThat(histogram.getValueAtPercentile(75)).isEqualTo(0L);
+        assertThat(histogram.getValueAtPercentile(100)).isEqualTo(5L);
+        assertThat(histogram.getMaxValue()).isEqualTo(5L);
+
+        histogram.reset();
+        assertThat(histogram.getTotalCount()).isEqualTo(0L);
+        assertThat(histogram.getMaxValue()).isEqualTo(0L);
+    }
+
+    @Test
+    public void reset() throws Exception {
+        WaitTimeHistogram histogram = new WaitTimeHistogram();
+        histogram.recordValue(42L);
+        histogram.reset();
+        assertThat(histogram.getTotalCount()).isEqualTo(0L);
+    }
+
+    @Test
+    public void recordNegativeValue() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Value should not be negative");
+        new WaitTimeHistogram().recordValue(-1L);
+    }
+
+    @Test
+    public void percentileOutOfRange() throws Exception {
+        exception.expect(IllegalArgumentException.class);
+        exception.expectMessage("Percentile should be in range [0, 100]");
+        new WaitTimeHistogram().getValueAtPercentile(101);
+    }
+}